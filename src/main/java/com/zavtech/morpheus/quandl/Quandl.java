@@ -15,7 +15,13 @@
  */
 package com.zavtech.morpheus.quandl;
 
+import java.io.File;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 import com.zavtech.morpheus.frame.DataFrame;
@@ -26,13 +32,19 @@ import com.zavtech.morpheus.frame.DataFrameSource;
  *
  * @link https://www.quandl.com/docs/api
  *
+ * An instance is thread safe and is intended to be created once and shared by all threads in an application,
+ * so that they share its connection settings, caches and rate budget. Only the first instance created is
+ * registered as the default QuandlSource with DataFrameSource, call register() to make another one the default.
+ *
  * @author Xavier Witdouck
  *
  * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
  */
 public class Quandl {
 
-    private QuandlSource<?,?> source;
+    private static final AtomicBoolean registered = new AtomicBoolean();
+
+    private final QuandlSource<?,?> source;
 
     /**
      * Constructor
@@ -48,8 +60,146 @@ public class Quandl {
      * @param apiKey    the API key to access Quandl
      */
     public Quandl(String baseUrl, String apiKey) {
-        this.source = new QuandlSource<>(baseUrl, apiKey);
+        this(new QuandlSource<>(baseUrl, apiKey));
+    }
+
+    /**
+     * Constructor
+     * @param source    the Quandl source to issue requests through, which may be shared with other adapters
+     */
+    public Quandl(QuandlSource<?,?> source) {
+        Objects.requireNonNull(source, "The Quandl source cannot be null");
+        this.source = source;
+        if (registered.compareAndSet(false, true)) {
+            DataFrameSource.register(source);
+        }
+    }
+
+    /**
+     * Registers the source of this adapter as the default QuandlSource with DataFrameSource
+     * @return  this Quandl adapter
+     */
+    public Quandl register() {
+        registered.set(true);
         DataFrameSource.register(source);
+        return this;
+    }
+
+    /**
+     * Returns the source through which this adapter issues requests
+     * @return  the Quandl source for this adapter
+     */
+    public QuandlSource<?,?> getSource() {
+        return source;
+    }
+
+    /**
+     * Enables conditional request caching so repeated identical requests are revalidated rather than downloaded
+     * @param cache the HTTP cache, null to disable caching
+     * @return      this Quandl adapter
+     */
+    public Quandl withHttpCache(QuandlHttpCache cache) {
+        this.source.setHttpCache(cache);
+        return this;
+    }
+
+    /**
+     * Applies a rate limit to all requests issued by this adapter
+     * @param rateLimiter   the rate limiter, null for no limit
+     * @return              this Quandl adapter
+     */
+    public Quandl withRateLimiter(QuandlRateLimiter rateLimiter) {
+        this.source.setRateLimiter(rateLimiter);
+        return this;
+    }
+
+    /**
+     * Enables hedging of data and metadata requests to cut tail latency
+     * @param hedgePolicy   the hedge policy, null to disable hedging
+     * @return              this Quandl adapter
+     */
+    public Quandl withHedgePolicy(QuandlHedgePolicy hedgePolicy) {
+        this.source.setHedgePolicy(hedgePolicy);
+        return this;
+    }
+
+    /**
+     * Enables serving of last good results, marked stale, while Quandl is failing or a refresh is in flight
+     * @param stalePolicy   the stale policy, null to disable
+     * @return              this Quandl adapter
+     */
+    public Quandl withStalePolicy(QuandlStalePolicy stalePolicy) {
+        this.source.setStalePolicy(stalePolicy);
+        return this;
+    }
+
+    /**
+     * Enables a memory bounded cache of results, which may spill to disk, so repeated identical requests are served locally
+     * @param frameCache    the frame cache, null to disable
+     * @return              this Quandl adapter
+     */
+    public Quandl withFrameCache(QuandlFrameCache frameCache) {
+        this.source.setFrameCache(frameCache);
+        return this;
+    }
+
+    /**
+     * Applies a prefetcher that learns access patterns and loads the predicted next data requests in the background
+     * @param prefetcher    the prefetcher, null to disable prefetching
+     * @return              this Quandl adapter
+     */
+    public Quandl withPrefetcher(QuandlPrefetcher prefetcher) {
+        this.source.setPrefetcher(prefetcher);
+        return this;
+    }
+
+    /**
+     * Applies a canonical date axis, so loaded data frames share interned dates and row indexes for common calendars
+     * @param dateAxis  the date axis, null for frames to build their own row indexes
+     * @return          this Quandl adapter
+     */
+    public Quandl withDateAxis(QuandlDateAxis dateAxis) {
+        this.source.setDateAxis(dateAxis);
+        return this;
+    }
+
+    /**
+     * Sets the min size of a CSV response body for it to be parsed in parallel chunks across all cores
+     * @param threshold the parallel parse threshold in bytes, Long.MAX_VALUE to always parse on the calling thread
+     * @return          this Quandl adapter
+     */
+    public Quandl withParallelParseThreshold(long threshold) {
+        this.source.setParallelParseThreshold(threshold);
+        return this;
+    }
+
+    /**
+     * Applies a default timeout to every request issued by this adapter, unless its options specify their own
+     * @param timeout   the max time for a request across connect, download, parse and all pages, null for none
+     * @return          this Quandl adapter
+     */
+    public Quandl withTimeout(Duration timeout) {
+        this.source.setTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * Returns true if the frame was served from a last good result rather than a fresh request
+     * @param frame the frame returned by this adapter
+     * @return      true if the frame is stale
+     */
+    public boolean isStale(DataFrame<?,?> frame) {
+        return source.isStale(frame);
+    }
+
+    /**
+     * Attaches an availability catalog used to skip or clamp data requests outside a dataset's available dates
+     * @param catalog   the catalog, null to disable pruning
+     * @return          this Quandl adapter
+     */
+    public Quandl withCatalog(QuandlCatalog catalog) {
+        this.source.setCatalog(catalog);
+        return this;
     }
 
     /**
@@ -93,6 +243,16 @@ public class Quandl {
         });
     }
 
+    /**
+     * Returns a batch result with one row of metadata per dataset, fetched concurrently
+     * @param codes     the Quandl codes in the form DATABASE/DATASET, for example "WIKI/AAPL"
+     * @param threads   the max number of concurrent metadata requests
+     * @return          the batch result, which includes errors for any datasets that failed
+     */
+    public QuandlBatch<Integer,QuandlField> getMetaData(Collection<String> codes, int threads) {
+        return source.getMetaData(codes, threads);
+    }
+
     /**
      * Returns a DataFrame containing data for the database and dataset specified
      * @param database      the Quandl database code, for example "WIKI"
@@ -110,4 +270,119 @@ public class Quandl {
         });
     }
 
+    /**
+     * Returns data for the database and dataset specified in a compressed form, to hold long histories in less memory
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param dataset       the Quandl dataset code in database, for example "AAPL"
+     * @param configurator  the configurator for options
+     * @return              the compressed series with the numeric columns of the data
+     * @see QuandlCompressedSeries
+     */
+    public QuandlCompressedSeries getCompressedData(String database, String dataset, Consumer<QuandlOptions> configurator) throws QuandlException {
+        return QuandlCompressedSeries.of(getDailyData(database, dataset, configurator));
+    }
+
+    /**
+     * Returns a lazy series handle that downloads 90 day windows of data on demand, caching up to 40 windows
+     * @param database  the Quandl database code, for example "WIKI"
+     * @param dataset   the Quandl dataset code in database, for example "AAPL"
+     * @return          the lazy series handle
+     * @see QuandlSeries
+     */
+    public QuandlSeries getSeries(String database, String dataset) {
+        return new QuandlSeries(source, database, dataset, 90, 40);
+    }
+
+    /**
+     * Returns a lazy series handle that downloads windows of data on demand
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param dataset       the Quandl dataset code in database, for example "AAPL"
+     * @param windowDays    the number of calendar days covered by each window
+     * @param maxWindows    the max number of windows to cache
+     * @return              the lazy series handle
+     * @see QuandlSeries
+     */
+    public QuandlSeries getSeries(String database, String dataset, int windowDays, int maxWindows) {
+        return new QuandlSeries(source, database, dataset, windowDays, maxWindows);
+    }
+
+    /**
+     * Loads the full history of a dataset and appends it to the store, recording only the rows that changed
+     * @param store     the history store to append to
+     * @param database  the Quandl database code, for example "WIKI"
+     * @param dataset   the Quandl dataset code in database, for example "AAPL"
+     * @return          the number of rows added, revised or removed since the prior recorded refresh
+     * @see QuandlHistoryStore
+     */
+    public int recordHistory(QuandlHistoryStore store, String database, String dataset) throws QuandlException {
+        final DataFrame<String,QuandlField> metaData = getMetaData(database, dataset);
+        if (metaData.rowCount() == 0) {
+            throw new QuandlException("No metadata available from Quandl for " + database + "/" + dataset);
+        } else {
+            final ZonedDateTime refreshedAt = metaData.rowAt(0).getValue(QuandlField.LAST_REFRESH_TIME);
+            final LocalDate startDate = metaData.rowAt(0).getValue(QuandlField.START_DATE);
+            final LocalDate endDate = metaData.rowAt(0).getValue(QuandlField.END_DATE);
+            final DataFrame<LocalDate,String> frame = getDailyData(database, dataset, options -> {
+                options.setStartDate(startDate);
+                options.setEndDate(endDate);
+            });
+            return store.append(database, dataset, refreshedAt, frame);
+        }
+    }
+
+    /**
+     * Returns a new planner to batch data requests so that overlapping date ranges are downloaded only once
+     * @return  the newly created planner
+     * @see QuandlPlanner
+     */
+    public QuandlPlanner newPlanner() {
+        return new QuandlPlanner(source);
+    }
+
+    /**
+     * Returns a new feed of changes to database dataset listings, with fingerprints persisted in the directory specified
+     * @param directory the directory under which listing fingerprints are stored
+     * @return          the newly created listing feed
+     * @see QuandlListingFeed
+     */
+    public QuandlListingFeed newListingFeed(File directory) {
+        return new QuandlListingFeed(source, directory);
+    }
+
+    /**
+     * Returns a new local caching proxy that serves the Quandl API to other processes on this host through this adapter
+     * @param port  the loopback port to listen on, 0 for any free port
+     * @return      the newly created server, which must be started
+     * @see QuandlServer
+     */
+    public QuandlServer newServer(int port) {
+        return new QuandlServer(source, port);
+    }
+
+    /**
+     * Returns a new scheduler that dispatches requests by priority class under the rate limit of this adapter
+     * @param threads   the max number of requests executing concurrently
+     * @return          the newly created scheduler
+     * @see QuandlScheduler
+     */
+    public QuandlScheduler newScheduler(int threads) {
+        return new QuandlScheduler(source, threads);
+    }
+
+    /**
+     * Returns a panel DataFrame combining data for many datasets in the specified database
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param datasets      the Quandl dataset codes in database, for example "AAPL", "MSFT"
+     * @param configurator  the configurator for options applied to each dataset request
+     * @return              the panel DataFrame with columns named DB/DATASET/Column
+     * @see QuandlPanel
+     */
+    public DataFrame<LocalDate,String> getDailyPanel(String database, Iterable<String> datasets, Consumer<QuandlOptions> configurator) throws QuandlException {
+        final QuandlPanel panel = new QuandlPanel();
+        for (String dataset : datasets) {
+            panel.add(database, dataset, getDailyData(database, dataset, configurator));
+        }
+        return panel.build();
+    }
+
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * The result of a batch Quandl request, which combines the rows that loaded successfully with any per-item errors
+ *
+ * @param <R>   the row key type
+ * @param <C>   the column key type
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlBatch<R,C> {
+
+    private DataFrame<R,C> frame;
+    private Map<String,Throwable> errors;
+
+    /**
+     * Constructor
+     * @param frame     the frame with rows for items that loaded successfully
+     * @param errors    the errors keyed by the Quandl code of items that failed
+     */
+    QuandlBatch(DataFrame<R,C> frame, Map<String,Throwable> errors) {
+        this.frame = frame;
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * Returns the frame with rows for items that loaded successfully
+     * @return  the result frame
+     */
+    public DataFrame<R,C> getFrame() {
+        return frame;
+    }
+
+    /**
+     * Returns the errors keyed by the Quandl code of the items that failed
+     * @return  the error map, empty if all items succeeded
+     */
+    public Map<String,Throwable> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns true if one or more items in the batch failed
+     * @return  true if there were errors
+     */
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A token used to cooperatively cancel Quandl requests from another thread
+ *
+ * A token is attached to a request via QuandlOptions.setCancelToken(), and may be shared by many requests. Cancelling
+ * the token closes any connection in flight and causes the request to fail with a QuandlTimeoutException at the next
+ * check, whether it is connecting, downloading, parsing or between pages. A cancelled token cannot be reset.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCancelToken {
+
+    private volatile boolean cancelled;
+    private List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Cancels all requests using this token
+     */
+    public void cancel() {
+        if (!cancelled) {
+            this.cancelled = true;
+            this.listeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Returns true if this token has been cancelled
+     * @return  true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Registers a listener to run when this token is cancelled, which runs immediately if already cancelled
+     * @param listener  the listener to run on cancel
+     * @return          the action that removes the listener
+     */
+    Runnable onCancel(Runnable listener) {
+        this.listeners.add(listener);
+        if (cancelled) {
+            listener.run();
+        }
+        return () -> listeners.remove(listener);
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.util.Json;
+
+/**
+ * A persisted catalog of Quandl databases and datasets along with their availability windows.
+ *
+ * The catalog is loaded from a local JSON snapshot so a new process knows what exists without listing databases
+ * or fetching metadata, and it is refreshed incrementally by only fetching metadata for datasets that are missing
+ * or older than the configured max age. When attached to a QuandlSource, data requests are clamped to the
+ * availability window of the dataset, and requests that cannot return any rows are skipped entirely.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCatalog {
+
+    private static final Gson gson = Json.builder().create();
+
+    private File file;
+    private volatile Duration maxAge;
+    private Map<String,Database> databaseMap = new ConcurrentHashMap<>();
+    private Map<String,Dataset> datasetMap = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     * @param file  the file used to persist this catalog
+     */
+    public QuandlCatalog(File file) {
+        Objects.requireNonNull(file, "The catalog file cannot be null");
+        this.file = file;
+        this.maxAge = Duration.ofDays(1);
+    }
+
+    /**
+     * Returns a catalog loaded from the snapshot file specified, or an empty catalog if the file does not exist
+     * @param file  the catalog snapshot file
+     * @return      the catalog
+     * @throws QuandlException  if the snapshot exists but cannot be read
+     */
+    public static QuandlCatalog load(File file) throws QuandlException {
+        final QuandlCatalog catalog = new QuandlCatalog(file);
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                final Snapshot snapshot = gson.fromJson(reader, Snapshot.class);
+                if (snapshot != null && snapshot.databases != null) {
+                    snapshot.databases.forEach(d -> catalog.databaseMap.put(d.code, d));
+                }
+                if (snapshot != null && snapshot.datasets != null) {
+                    snapshot.datasets.forEach(d -> catalog.datasetMap.put(key(d.databaseCode, d.datasetCode), d));
+                }
+            } catch (Exception ex) {
+                throw new QuandlException("Failed to load Quandl catalog from " + file.getAbsolutePath(), ex);
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Writes a snapshot of this catalog to its file, replacing any prior snapshot atomically
+     * @throws QuandlException  if the snapshot cannot be written
+     */
+    public void save() throws QuandlException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new QuandlException("Failed to create directory for Quandl catalog: " + parent.getAbsolutePath());
+        }
+        final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            final Snapshot snapshot = new Snapshot();
+            snapshot.databases = new ArrayList<>(databaseMap.values());
+            snapshot.datasets = new ArrayList<>(datasetMap.values());
+            gson.toJson(snapshot, writer);
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to save Quandl catalog to " + file.getAbsolutePath(), ex);
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to save Quandl catalog to " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Sets the max age of a dataset entry before it is considered stale and re-fetched on refresh
+     * @param maxAge    the max age for dataset entries
+     */
+    public void setMaxAge(Duration maxAge) {
+        Objects.requireNonNull(maxAge, "The max age cannot be null");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the max age of a dataset entry before it is considered stale
+     * @return  the max age for dataset entries
+     */
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Returns the databases in this catalog
+     * @return  the databases in this catalog
+     */
+    public Collection<Database> getDatabases() {
+        return Collections.unmodifiableCollection(databaseMap.values());
+    }
+
+    /**
+     * Returns the datasets in this catalog
+     * @return  the datasets in this catalog
+     */
+    public Collection<Dataset> getDatasets() {
+        return Collections.unmodifiableCollection(datasetMap.values());
+    }
+
+    /**
+     * Returns the database entry for the code specified
+     * @param database  the Quandl database code
+     * @return          the optional database entry
+     */
+    public Optional<Database> getDatabase(String database) {
+        return Optional.ofNullable(databaseMap.get(database));
+    }
+
+    /**
+     * Returns the dataset entry for the codes specified
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code
+     * @return          the optional dataset entry
+     */
+    public Optional<Dataset> getDataset(String database, String dataset) {
+        return Optional.ofNullable(datasetMap.get(key(database, dataset)));
+    }
+
+    /**
+     * Refreshes the database entries in this catalog from a full Quandl database listing
+     * @param source    the source to load the listing from
+     * @return          the number of databases in the catalog after refresh
+     * @throws QuandlException  if the listing fails to load
+     */
+    @SuppressWarnings("unchecked")
+    public int refreshDatabases(QuandlSource<?,?> source) throws QuandlException {
+        final DataFrame<Integer,QuandlField> frame = (DataFrame<Integer,QuandlField>)source.read(options -> {
+            options.setOperation(QuandlOptions.Operation.DATABASES);
+        });
+        final boolean hasName = frame.cols().contains(QuandlField.NAME);
+        final boolean hasCount = frame.cols().contains(QuandlField.DATASET_COUNT);
+        final boolean hasPremium = frame.cols().contains(QuandlField.PREMIUM);
+        frame.rows().forEach(row -> {
+            final Database database = new Database();
+            database.code = row.getValue(QuandlField.DATABASE_CODE);
+            database.name = hasName ? row.getValue(QuandlField.NAME) : null;
+            database.datasetCount = hasCount ? row.<Long>getValue(QuandlField.DATASET_COUNT) : null;
+            database.premium = hasPremium && Boolean.TRUE.equals(row.getValue(QuandlField.PREMIUM));
+            if (database.code != null) {
+                databaseMap.put(database.code, database);
+            }
+        });
+        return databaseMap.size();
+    }
+
+    /**
+     * Refreshes the dataset entries for the codes specified, only fetching metadata for missing or stale entries
+     * @param source    the source to load metadata from
+     * @param codes     the Quandl codes in the form DATABASE/DATASET
+     * @param threads   the max number of concurrent metadata requests
+     * @return          the batch result for datasets that were fetched, with errors for any that failed
+     */
+    public QuandlBatch<Integer,QuandlField> refreshDatasets(QuandlSource<?,?> source, Collection<String> codes, int threads) {
+        final long cutoff = System.currentTimeMillis() - maxAge.toMillis();
+        final List<String> staleCodes = codes.stream().filter(code -> {
+            final Dataset dataset = datasetMap.get(code);
+            return dataset == null || dataset.checkedAt < cutoff;
+        }).collect(Collectors.toList());
+        final QuandlBatch<Integer,QuandlField> batch = source.getMetaData(staleCodes, threads);
+        batch.getFrame().rows().forEach(row -> {
+            final Dataset dataset = new Dataset();
+            dataset.databaseCode = row.getValue(QuandlField.DATABASE_CODE);
+            dataset.datasetCode = row.getValue(QuandlField.DATASET_CODE);
+            dataset.oldestAvailableDate = row.getValue(QuandlField.START_DATE);
+            dataset.newestAvailableDate = row.getValue(QuandlField.END_DATE);
+            dataset.refreshedAt = row.getValue(QuandlField.LAST_REFRESH_TIME);
+            dataset.frequency = row.getValue(QuandlField.FREQUENCY);
+            dataset.columnNames = row.getValue(QuandlField.COLUMN_NAMES);
+            dataset.checkedAt = System.currentTimeMillis();
+            datasetMap.put(key(dataset.databaseCode, dataset.datasetCode), dataset);
+        });
+        return batch;
+    }
+
+    /**
+     * Updates this catalog with dataset info that was loaded as part of some other request
+     * @param info  the dataset info
+     */
+    void update(QuandlDatasetInfo info) {
+        if (info.getDatabaseCode() != null && info.getDatasetCode() != null) {
+            final Dataset dataset = new Dataset();
+            dataset.databaseCode = info.getDatabaseCode();
+            dataset.datasetCode = info.getDatasetCode();
+            dataset.oldestAvailableDate = info.getOldestAvailableDate();
+            dataset.newestAvailableDate = info.getNewestAvailableDate();
+            dataset.refreshedAt = info.getRefreshedAt();
+            dataset.frequency = info.getFrequency();
+            dataset.columnNames = info.getColumnNames();
+            dataset.checkedAt = System.currentTimeMillis();
+            this.datasetMap.put(key(dataset.databaseCode, dataset.datasetCode), dataset);
+        }
+    }
+
+    /**
+     * Returns the catalog key for the database and dataset codes
+     * @param database  the database code
+     * @param dataset   the dataset code
+     * @return          the catalog key
+     */
+    private static String key(String database, String dataset) {
+        return database + "/" + dataset;
+    }
+
+
+    /**
+     * A catalog entry for a Quandl database
+     */
+    public static class Database {
+
+        @SerializedName("code")
+        private String code;
+        @SerializedName("name")
+        private String name;
+        @SerializedName("datasets_count")
+        private Long datasetCount;
+        @SerializedName("premium")
+        private boolean premium;
+
+        /**
+         * Returns the database code
+         * @return  the database code
+         */
+        public String getCode() {
+            return code;
+        }
+
+        /**
+         * Returns the database name
+         * @return  the database name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of datasets in the database
+         * @return  the number of datasets, null if unknown
+         */
+        public Long getDatasetCount() {
+            return datasetCount;
+        }
+
+        /**
+         * Returns true if this is a premium database
+         * @return  true if premium database
+         */
+        public boolean isPremium() {
+            return premium;
+        }
+    }
+
+
+    /**
+     * A catalog entry for a Quandl dataset and its availability window
+     */
+    public static class Dataset {
+
+        @SerializedName("database_code")
+        private String databaseCode;
+        @SerializedName("dataset_code")
+        private String datasetCode;
+        @SerializedName("oldest_available_date")
+        private LocalDate oldestAvailableDate;
+        @SerializedName("newest_available_date")
+        private LocalDate newestAvailableDate;
+        @SerializedName("refreshed_at")
+        private ZonedDateTime refreshedAt;
+        @SerializedName("frequency")
+        private String frequency;
+        @SerializedName("column_names")
+        private String[] columnNames;
+        @SerializedName("checked_at")
+        private long checkedAt;
+
+        /**
+         * Returns the database code
+         * @return  the database code
+         */
+        public String getDatabaseCode() {
+            return databaseCode;
+        }
+
+        /**
+         * Returns the dataset code
+         * @return  the dataset code
+         */
+        public String getDatasetCode() {
+            return datasetCode;
+        }
+
+        /**
+         * Returns the first available date for this dataset
+         * @return  the first available date
+         */
+        public LocalDate getOldestAvailableDate() {
+            return oldestAvailableDate;
+        }
+
+        /**
+         * Returns the last available date for this dataset, as of the time this entry was checked
+         * @return  the last available date
+         */
+        public LocalDate getNewestAvailableDate() {
+            return newestAvailableDate;
+        }
+
+        /**
+         * Returns the last refresh time for this dataset
+         * @return  the last refresh time
+         */
+        public ZonedDateTime getRefreshedAt() {
+            return refreshedAt;
+        }
+
+        /**
+         * Returns the frequency for this dataset
+         * @return  the frequency
+         */
+        public String getFrequency() {
+            return frequency;
+        }
+
+        /**
+         * Returns the column names for this dataset, including the leading date column
+         * @return  the column names
+         */
+        public String[] getColumnNames() {
+            return columnNames;
+        }
+
+        /**
+         * Returns the epoch millis at which this entry was last checked against Quandl
+         * @return  the epoch millis when entry was checked
+         */
+        public long getCheckedAt() {
+            return checkedAt;
+        }
+    }
+
+
+    /**
+     * The JSON representation of a catalog snapshot
+     */
+    private static class Snapshot {
+        @SerializedName("databases")
+        private List<Database> databases;
+        @SerializedName("datasets")
+        private List<Dataset> datasets;
+    }
+
+}
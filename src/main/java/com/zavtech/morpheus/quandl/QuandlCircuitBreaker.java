@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker that stops requests being issued against a Quandl endpoint after repeated failures.
+ *
+ * The circuit opens after a number of consecutive failures, and while open all requests are rejected immediately.
+ * Once the open duration has elapsed a single trial request is permitted, and the circuit closes if it succeeds
+ * or re-opens if it fails.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private State state;
+    private int failures;
+    private long openedAt;
+    private long openMillis;
+    private int failureThreshold;
+    private LongSupplier clock;
+
+    /**
+     * Constructor
+     * @param failureThreshold  the number of consecutive failures that opens the circuit
+     * @param openDuration      the time the circuit stays open before a trial request is permitted
+     */
+    public QuandlCircuitBreaker(int failureThreshold, Duration openDuration) {
+        this(failureThreshold, openDuration, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor
+     * @param failureThreshold  the number of consecutive failures that opens the circuit
+     * @param openDuration      the time the circuit stays open before a trial request is permitted
+     * @param clock             the clock that supplies the current time in millis
+     */
+    QuandlCircuitBreaker(int failureThreshold, Duration openDuration, LongSupplier clock) {
+        if (failureThreshold < 1) throw new IllegalArgumentException("The failure threshold must be > 0");
+        this.state = State.CLOSED;
+        this.clock = clock;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openDuration.toMillis();
+    }
+
+    /**
+     * Returns the current state of this circuit
+     * @return  the circuit state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true if a request may be issued, which transitions an expired open circuit to half open
+     * @return  true if a request may be issued
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt >= openMillis) {
+                    this.state = State.HALF_OPEN;
+                    return true;
+                } else {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records a successful request, which closes the circuit
+     */
+    public synchronized void onSuccess() {
+        this.failures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Records a request abandoned by its caller, which permits another trial request if the circuit was half open
+     */
+    public synchronized void onAbandon() {
+        if (state == State.HALF_OPEN) {
+            this.state = State.OPEN;
+        }
+    }
+
+    /**
+     * Records a failed request, which may open the circuit
+     */
+    public synchronized void onFailure() {
+        this.failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = clock.getAsLong();
+        }
+    }
+
+}
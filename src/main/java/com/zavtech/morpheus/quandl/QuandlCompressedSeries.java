@@ -0,0 +1,642 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * An immutable, compressed in-memory representation of a daily Quandl series, for holding long histories of many datasets.
+ *
+ * Dates are stored as delta-of-delta encoded epoch days, so a run of regularly spaced dates costs a single bit per
+ * row, and each numeric column is stored as a stream of XOR compressed doubles in the style of the Gorilla time series
+ * database, so unchanged values cost one bit and small moves only store their meaningful bits. Rows are sorted in
+ * ascending date order and split into fixed size blocks that restart the encoding, so a range scan decodes from the
+ * nearest block rather than from the start. Only numeric columns are retained, and values round trip exactly.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCompressedSeries {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private int rowCount;
+    private String[] columns;
+    private long[] dateBits;
+    private long[][] valueBits;
+    private int[] blockDays;
+    private long[] dateOffsets;
+    private long[][] valueOffsets;
+
+    /**
+     * Constructor
+     * @param rowCount      the number of rows
+     * @param columns       the column keys
+     * @param dateBits      the encoded date stream
+     * @param valueBits     the encoded value stream for each column
+     * @param blockDays     the first epoch day of each block
+     * @param dateOffsets   the bit offset of each block in the date stream
+     * @param valueOffsets  the bit offset of each block in each value stream
+     */
+    private QuandlCompressedSeries(int rowCount, String[] columns, long[] dateBits, long[][] valueBits, int[] blockDays, long[] dateOffsets, long[][] valueOffsets) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.dateBits = dateBits;
+        this.valueBits = valueBits;
+        this.blockDays = blockDays;
+        this.dateOffsets = dateOffsets;
+        this.valueOffsets = valueOffsets;
+    }
+
+    /**
+     * Returns a compressed series holding the numeric columns of the frame specified, in ascending date order
+     * @param frame the frame to compress, as returned by Quandl.getDailyData()
+     * @return      the compressed series
+     */
+    public static QuandlCompressedSeries of(DataFrame<LocalDate,String> frame) {
+        Objects.requireNonNull(frame, "The data frame cannot be null");
+        final List<String> keys = new ArrayList<>();
+        frame.cols().forEach(column -> {
+            if (Number.class.isAssignableFrom(column.typeInfo())) {
+                keys.add(column.key());
+            }
+        });
+        final int rowCount = frame.rowCount();
+        final int colCount = keys.size();
+        final int[] ordinals = keys.stream().mapToInt(k -> frame.cols().ordinalOf(k)).toArray();
+        final long[] days = new long[rowCount];
+        for (int i=0; i<rowCount; ++i) {
+            days[i] = frame.rows().key(i).toEpochDay();
+        }
+        final Integer[] order = new Integer[rowCount];
+        for (int i=0; i<rowCount; ++i) order[i] = i;
+        Arrays.sort(order, (i, j) -> Long.compare(days[i], days[j]));
+        final int blockCount = (rowCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int[] blockDays = new int[blockCount];
+        final long[] dateOffsets = new long[blockCount];
+        final long[][] valueOffsets = new long[colCount][blockCount];
+        final BitWriter dateWriter = new BitWriter(rowCount * 2 + 64);
+        final BitWriter[] valueWriters = new BitWriter[colCount];
+        final DayCodec dayCodec = new DayCodec();
+        final ValueCodec[] valueCodecs = new ValueCodec[colCount];
+        for (int j=0; j<colCount; ++j) {
+            valueWriters[j] = new BitWriter(rowCount * 32 + 64);
+            valueCodecs[j] = new ValueCodec();
+        }
+        for (int i=0; i<rowCount; ++i) {
+            final int row = order[i];
+            if (i % BLOCK_SIZE == 0) {
+                final int block = i / BLOCK_SIZE;
+                blockDays[block] = (int)days[row];
+                dateOffsets[block] = dateWriter.position;
+                dayCodec.reset();
+                for (int j=0; j<colCount; ++j) {
+                    valueOffsets[j][block] = valueWriters[j].position;
+                    valueCodecs[j].reset();
+                }
+            }
+            dayCodec.encode(days[row], dateWriter);
+            for (int j=0; j<colCount; ++j) {
+                final double value = frame.data().getDouble(row, ordinals[j]);
+                valueCodecs[j].encode(Double.doubleToRawLongBits(value), valueWriters[j]);
+            }
+        }
+        final long[][] valueBits = new long[colCount][];
+        for (int j=0; j<colCount; ++j) {
+            valueBits[j] = valueWriters[j].toArray();
+        }
+        final String[] columns = keys.toArray(new String[colCount]);
+        return new QuandlCompressedSeries(rowCount, columns, dateWriter.toArray(), valueBits, blockDays, dateOffsets, valueOffsets);
+    }
+
+    /**
+     * Returns the number of rows in this series
+     * @return  the row count
+     */
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the keys of the numeric columns held by this series
+     * @return  the column keys
+     */
+    public List<String> getColumnKeys() {
+        return Collections.unmodifiableList(Arrays.asList(columns));
+    }
+
+    /**
+     * Returns the first date in this series
+     * @return  the first date, null if this series is empty
+     */
+    public LocalDate getStartDate() {
+        return rowCount > 0 ? LocalDate.ofEpochDay(blockDays[0]) : null;
+    }
+
+    /**
+     * Returns the last date in this series, which requires decoding the final block
+     * @return  the last date, null if this series is empty
+     */
+    public LocalDate getEndDate() {
+        if (rowCount == 0) {
+            return null;
+        } else {
+            final Cursor cursor = new Cursor(blockDays.length - 1);
+            long epochDay = 0L;
+            while (cursor.next()) {
+                epochDay = cursor.getEpochDay();
+            }
+            return LocalDate.ofEpochDay(epochDay);
+        }
+    }
+
+    /**
+     * Returns the approximate number of heap bytes held by this series
+     * @return  the approximate size in bytes
+     */
+    public long getSizeBytes() {
+        long bytes = 64L + columns.length * 48L + dateBits.length * 8L + blockDays.length * 12L;
+        for (int j=0; j<columns.length; ++j) {
+            bytes += 16L + valueBits[j].length * 8L + valueOffsets[j].length * 8L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a cursor that decodes all rows of this series sequentially
+     * @return  the cursor positioned before the first row
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * Returns a cursor that decodes rows of this series sequentially, starting with the first row on or after the date
+     * Only the block containing the start date is decoded to locate it, preceding blocks are skipped.
+     * @param start the start date, inclusive
+     * @return      the cursor positioned before the first row on or after start
+     */
+    public Cursor cursor(LocalDate start) {
+        Objects.requireNonNull(start, "The start date cannot be null");
+        final long startDay = start.toEpochDay();
+        if (rowCount == 0 || startDay <= blockDays[0]) {
+            return new Cursor(0);
+        } else {
+            final int index = Arrays.binarySearch(blockDays, (int)startDay);
+            final int block = index >= 0 ? index : -index - 2;
+            final Cursor cursor = new Cursor(block);
+            cursor.seek(startDay);
+            return cursor;
+        }
+    }
+
+    /**
+     * Returns the full series as a DataFrame in ascending date order
+     * @return  the decoded DataFrame
+     */
+    public DataFrame<LocalDate,String> toFrame() {
+        return toFrame(cursor(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the rows between the dates specified as a DataFrame in ascending date order
+     * @param start the start date, inclusive
+     * @param end   the end date, inclusive
+     * @return      the decoded DataFrame for the range
+     */
+    public DataFrame<LocalDate,String> toFrame(LocalDate start, LocalDate end) {
+        Objects.requireNonNull(end, "The end date cannot be null");
+        return toFrame(cursor(start), end.toEpochDay());
+    }
+
+    /**
+     * Returns a DataFrame with the rows returned by the cursor up to and including the end day
+     * @param cursor    the cursor to decode rows from
+     * @param endDay    the last epoch day to include
+     * @return          the decoded DataFrame
+     */
+    private DataFrame<LocalDate,String> toFrame(Cursor cursor, long endDay) {
+        int count = 0;
+        LocalDate[] dates = new LocalDate[Math.min(rowCount, 1024)];
+        double[][] values = new double[columns.length][dates.length];
+        while (cursor.next() && cursor.getEpochDay() <= endDay) {
+            if (count == dates.length) {
+                final int capacity = Math.min(rowCount, count * 2);
+                dates = Arrays.copyOf(dates, capacity);
+                for (int j=0; j<columns.length; ++j) {
+                    values[j] = Arrays.copyOf(values[j], capacity);
+                }
+            }
+            dates[count] = cursor.getDate();
+            for (int j=0; j<columns.length; ++j) {
+                values[j][count] = cursor.getDouble(j);
+            }
+            ++count;
+        }
+        final Index<LocalDate> rows = Index.of(LocalDate.class, count);
+        for (int i=0; i<count; ++i) {
+            rows.add(dates[i]);
+        }
+        final int rowTotal = count;
+        final double[][] columnValues = values;
+        return DataFrame.of(rows, String.class, frameColumns -> {
+            for (int j=0; j<columns.length; ++j) {
+                frameColumns.add(columns[j], Array.of(Arrays.copyOf(columnValues[j], rowTotal)));
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "QuandlCompressedSeries{rows=" + rowCount + ", columns=" + columns.length + ", bytes=" + getSizeBytes() + "}";
+    }
+
+
+    /**
+     * A forward only cursor that decodes the rows of a compressed series
+     */
+    public class Cursor {
+
+        private int row;
+        private long epochDay;
+        private boolean pending;
+        private double[] values;
+        private BitReader dateReader;
+        private BitReader[] valueReaders;
+        private DayCodec dayCodec = new DayCodec();
+        private ValueCodec[] valueCodecs;
+
+        /**
+         * Constructor
+         * @param block the block to start decoding from
+         */
+        private Cursor(int block) {
+            this.row = block * BLOCK_SIZE - 1;
+            this.values = new double[columns.length];
+            this.valueCodecs = new ValueCodec[columns.length];
+            this.valueReaders = new BitReader[columns.length];
+            this.dateReader = new BitReader(dateBits, block < dateOffsets.length ? dateOffsets[block] : 0L);
+            for (int j=0; j<columns.length; ++j) {
+                this.valueCodecs[j] = new ValueCodec();
+                this.valueReaders[j] = new BitReader(valueBits[j], block < dateOffsets.length ? valueOffsets[j][block] : 0L);
+            }
+        }
+
+        /**
+         * Advances this cursor until the current row is on or after the epoch day, and marks it as pending
+         * @param startDay  the epoch day to seek to
+         */
+        private void seek(long startDay) {
+            while (decode()) {
+                if (epochDay >= startDay) {
+                    this.pending = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Advances this cursor to the next row
+         * @return  true if there is a current row, false if the series is exhausted
+         */
+        public boolean next() {
+            if (pending) {
+                this.pending = false;
+                return true;
+            } else {
+                return decode();
+            }
+        }
+
+        /**
+         * Decodes the next row into this cursor
+         * @return  true if a row was decoded
+         */
+        private boolean decode() {
+            if (row + 1 >= rowCount) {
+                return false;
+            } else {
+                this.row++;
+                if (row % BLOCK_SIZE == 0) {
+                    dayCodec.reset();
+                    for (ValueCodec codec : valueCodecs) {
+                        codec.reset();
+                    }
+                }
+                this.epochDay = dayCodec.decode(dateReader);
+                for (int j=0; j<values.length; ++j) {
+                    this.values[j] = Double.longBitsToDouble(valueCodecs[j].decode(valueReaders[j]));
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Returns the ordinal of the current row in ascending date order
+         * @return  the current row ordinal
+         */
+        public int getRowOrdinal() {
+            return row;
+        }
+
+        /**
+         * Returns the epoch day of the current row
+         * @return  the current epoch day
+         */
+        public long getEpochDay() {
+            return epochDay;
+        }
+
+        /**
+         * Returns the date of the current row
+         * @return  the current date
+         */
+        public LocalDate getDate() {
+            return LocalDate.ofEpochDay(epochDay);
+        }
+
+        /**
+         * Returns the value of a column for the current row
+         * @param colOrdinal    the column ordinal, as per getColumnKeys()
+         * @return              the value for the current row
+         */
+        public double getDouble(int colOrdinal) {
+            return values[colOrdinal];
+        }
+    }
+
+
+    /**
+     * The delta-of-delta codec for epoch days, where each block starts with a raw 32-bit epoch day
+     */
+    private static class DayCodec {
+
+        private boolean first;
+        private long prevDay;
+        private long prevDelta;
+
+        /**
+         * Resets this codec at the start of a block
+         */
+        void reset() {
+            this.first = true;
+            this.prevDelta = 0L;
+        }
+
+        /**
+         * Encodes an epoch day
+         * @param epochDay  the epoch day, which must not precede the prior one
+         * @param writer    the bit writer
+         */
+        void encode(long epochDay, BitWriter writer) {
+            if (first) {
+                writer.write(epochDay, 32);
+                this.first = false;
+            } else {
+                final long delta = epochDay - prevDay;
+                final long dod = delta - prevDelta;
+                if (dod == 0) {
+                    writer.write(0L, 1);
+                } else if (dod >= -64 && dod <= 63) {
+                    writer.write(0b10L, 2);
+                    writer.write(dod, 7);
+                } else if (dod >= -256 && dod <= 255) {
+                    writer.write(0b110L, 3);
+                    writer.write(dod, 9);
+                } else if (dod >= -2048 && dod <= 2047) {
+                    writer.write(0b1110L, 4);
+                    writer.write(dod, 12);
+                } else {
+                    writer.write(0b1111L, 4);
+                    writer.write(dod, 32);
+                }
+                this.prevDelta = delta;
+            }
+            this.prevDay = epochDay;
+        }
+
+        /**
+         * Decodes the next epoch day
+         * @param reader    the bit reader
+         * @return          the epoch day
+         */
+        long decode(BitReader reader) {
+            if (first) {
+                this.prevDay = signed(reader.read(32), 32);
+                this.first = false;
+            } else {
+                final long dod;
+                if (reader.read(1) == 0L) {
+                    dod = 0L;
+                } else if (reader.read(1) == 0L) {
+                    dod = signed(reader.read(7), 7);
+                } else if (reader.read(1) == 0L) {
+                    dod = signed(reader.read(9), 9);
+                } else if (reader.read(1) == 0L) {
+                    dod = signed(reader.read(12), 12);
+                } else {
+                    dod = signed(reader.read(32), 32);
+                }
+                this.prevDelta += dod;
+                this.prevDay += prevDelta;
+            }
+            return prevDay;
+        }
+
+        /**
+         * Returns the sign extended value of a two's complement field
+         * @param value the field value
+         * @param bits  the field width in bits
+         * @return      the sign extended value
+         */
+        private static long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+    }
+
+
+    /**
+     * The XOR codec for doubles, where each block starts with a raw 64-bit value
+     */
+    private static class ValueCodec {
+
+        private boolean first;
+        private long prevBits;
+        private int prevLeading;
+        private int prevTrailing;
+
+        /**
+         * Resets this codec at the start of a block
+         */
+        void reset() {
+            this.first = true;
+            this.prevLeading = -1;
+            this.prevTrailing = 0;
+        }
+
+        /**
+         * Encodes the raw bits of a double
+         * @param bits      the raw bits of the value
+         * @param writer    the bit writer
+         */
+        void encode(long bits, BitWriter writer) {
+            if (first) {
+                writer.write(bits, 64);
+                this.first = false;
+            } else {
+                final long xor = bits ^ prevBits;
+                if (xor == 0L) {
+                    writer.write(0L, 1);
+                } else {
+                    final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    final int trailing = Long.numberOfTrailingZeros(xor);
+                    if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                        writer.write(0b10L, 2);
+                        writer.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                    } else {
+                        final int significant = 64 - leading - trailing;
+                        writer.write(0b11L, 2);
+                        writer.write(leading, 5);
+                        writer.write(significant - 1, 6);
+                        writer.write(xor >>> trailing, significant);
+                        this.prevLeading = leading;
+                        this.prevTrailing = trailing;
+                    }
+                }
+            }
+            this.prevBits = bits;
+        }
+
+        /**
+         * Decodes the raw bits of the next double
+         * @param reader    the bit reader
+         * @return          the raw bits of the value
+         */
+        long decode(BitReader reader) {
+            if (first) {
+                this.prevBits = reader.read(64);
+                this.first = false;
+            } else if (reader.read(1) != 0L) {
+                if (reader.read(1) != 0L) {
+                    this.prevLeading = (int)reader.read(5);
+                    final int significant = (int)reader.read(6) + 1;
+                    this.prevTrailing = 64 - prevLeading - significant;
+                }
+                final long xor = reader.read(64 - prevLeading - prevTrailing) << prevTrailing;
+                this.prevBits ^= xor;
+            }
+            return prevBits;
+        }
+    }
+
+
+    /**
+     * A growable stream of bits written most significant bit first
+     */
+    private static class BitWriter {
+
+        private long[] words;
+        private long position;
+
+        /**
+         * Constructor
+         * @param initialBits   the initial capacity in bits
+         */
+        BitWriter(long initialBits) {
+            this.words = new long[(int)Math.max(1L, (initialBits + 63) / 64)];
+        }
+
+        /**
+         * Appends the low order bits of a value to this stream
+         * @param value the value to append
+         * @param bits  the number of low order bits to append, from 1 to 64
+         */
+        void write(long value, int bits) {
+            final long masked = bits == 64 ? value : value & ((1L << bits) - 1L);
+            final int index = (int)(position >>> 6);
+            final int free = 64 - (int)(position & 63);
+            if (index + 1 >= words.length) {
+                this.words = Arrays.copyOf(words, Math.max(words.length * 2, index + 2));
+            }
+            if (bits <= free) {
+                this.words[index] |= masked << (free - bits);
+            } else {
+                final int remainder = bits - free;
+                this.words[index] |= masked >>> remainder;
+                this.words[index + 1] |= masked << (64 - remainder);
+            }
+            this.position += bits;
+        }
+
+        /**
+         * Returns the words of this stream trimmed to the bits written
+         * @return  the trimmed words
+         */
+        long[] toArray() {
+            return Arrays.copyOf(words, (int)((position + 63) / 64));
+        }
+    }
+
+
+    /**
+     * A reader over a stream of bits written by a BitWriter
+     */
+    private static class BitReader {
+
+        private long[] words;
+        private long position;
+
+        /**
+         * Constructor
+         * @param words     the words to read
+         * @param position  the bit position to start reading from
+         */
+        BitReader(long[] words, long position) {
+            this.words = words;
+            this.position = position;
+        }
+
+        /**
+         * Returns the next bits of this stream as the low order bits of a long
+         * @param bits  the number of bits to read, from 1 to 64
+         * @return      the bits read
+         */
+        long read(int bits) {
+            final int index = (int)(position >>> 6);
+            final int free = 64 - (int)(position & 63);
+            final long value;
+            if (bits <= free) {
+                value = words[index] >>> (free - bits);
+            } else {
+                final int remainder = bits - free;
+                value = (words[index] << remainder) | (words[index + 1] >>> (64 - remainder));
+            }
+            this.position += bits;
+            return bits == 64 ? value : value & ((1L << bits) - 1L);
+        }
+    }
+
+}
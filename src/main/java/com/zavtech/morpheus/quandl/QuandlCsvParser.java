@@ -0,0 +1,584 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * A parser for the CSV bodies returned by Quandl, which parses large bodies in chunks on a fork join pool.
+ *
+ * The body is buffered and, if it is at least as large as the threshold, split at newline boundaries into chunks that
+ * are parsed concurrently into primitive column segments, which are then concatenated in order. Data columns are typed
+ * the way the Morpheus CSV reader would type them, namely int or long if every value is an integer and double otherwise.
+ * As with the reader, empty fields do not affect the type of a column, and are read as 0 in int and long columns and
+ * as NaN in double columns.
+ * Smaller bodies, and any body containing content the chunked parser does not handle such as quoted data fields,
+ * non numeric values or embedded newlines, are parsed on the calling thread by the Morpheus CSV reader.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlCsvParser {
+
+    static final long DEFAULT_THRESHOLD = 4L * 1024L * 1024L;
+
+    private static final int MIN_CHUNK_BYTES = 256 * 1024;
+    private static final int MAX_INTEGRAL_DIGITS = 15;
+
+    private long threshold;
+    private int minChunkBytes;
+    private ForkJoinPool pool;
+
+    /**
+     * Constructor
+     * @param threshold the min body size in bytes to parse in parallel
+     * @param pool      the fork join pool to parse chunks on
+     */
+    QuandlCsvParser(long threshold, ForkJoinPool pool) {
+        this(threshold, MIN_CHUNK_BYTES, pool);
+    }
+
+    /**
+     * Constructor
+     * @param threshold     the min body size in bytes to parse in parallel
+     * @param minChunkBytes the min size of a chunk in bytes
+     * @param pool          the fork join pool to parse chunks on
+     */
+    QuandlCsvParser(long threshold, int minChunkBytes, ForkJoinPool pool) {
+        if (threshold < 0L) throw new IllegalArgumentException("The parallel parse threshold must be >= 0");
+        if (minChunkBytes <= 0) throw new IllegalArgumentException("The min chunk size must be > 0");
+        this.threshold = threshold;
+        this.minChunkBytes = minChunkBytes;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the min body size in bytes to parse in parallel
+     * @return  the parallel parse threshold
+     */
+    long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns a DataFrame of a dataset body, keyed by the date in the first column
+     * @param body      the CSV body with a header row
+     * @param axis      the canonical date axis for row keys, null for none
+     * @param deadline  the deadline for the request
+     * @return          the resulting DataFrame
+     * @throws IOException  if the body cannot be read
+     */
+    DataFrame<LocalDate,String> parseData(InputStream body, QuandlDateAxis axis, QuandlDeadline deadline) throws IOException {
+        final byte[] bytes = readAll(body);
+        final DataFrame<LocalDate,String> frame = bytes.length >= threshold ? parseDataChunks(bytes, axis, deadline) : null;
+        if (frame != null) {
+            return frame;
+        } else if (axis == null) {
+            return DataFrame.read().csv(options -> {
+                options.setResource(new ByteArrayInputStream(bytes));
+                options.setColIndexPredicate(index -> index != 0);
+                options.setRowKeyParser(LocalDate.class, v -> LocalDate.parse(v[0]));
+            });
+        } else {
+            return axis.share(DataFrame.read().csv(options -> {
+                options.setResource(new ByteArrayInputStream(bytes));
+                options.setColIndexPredicate(index -> index != 0);
+                options.setRowKeyParser(LocalDate.class, v -> axis.parse(v[0]));
+            }));
+        }
+    }
+
+    /**
+     * Returns a DataFrame of a dataset codes listing, keyed by code with the description in Column-1
+     * @param bytes     the CSV content without a header row
+     * @param deadline  the deadline for the request
+     * @return          the resulting DataFrame
+     */
+    DataFrame<String,String> parseCodes(byte[] bytes, QuandlDeadline deadline) {
+        final DataFrame<String,String> frame = bytes.length >= threshold ? parseCodeChunks(bytes, deadline) : null;
+        if (frame != null) {
+            return frame;
+        } else {
+            return DataFrame.read().csv(options -> {
+                options.setHeader(false);
+                options.setExcludeColumns("Column-0");
+                options.setRowKeyParser(String.class, row -> row[0]);
+                options.setResource(new ByteArrayInputStream(bytes));
+            });
+        }
+    }
+
+
+    /**
+     * Returns a DataFrame parsed from a dataset body in parallel chunks
+     * @param bytes     the CSV body with a header row
+     * @param axis      the canonical date axis for row keys, null for none
+     * @param deadline  the deadline for the request
+     * @return          the resulting DataFrame, null if the body must be parsed by the Morpheus CSV reader
+     */
+    private DataFrame<LocalDate,String> parseDataChunks(byte[] bytes, QuandlDateAxis axis, QuandlDeadline deadline) {
+        final int headerEnd = indexOf(bytes, 0, bytes.length, (byte)'\n');
+        if (headerEnd < 0) return null;
+        final List<String> header = split(new String(bytes, 0, trim(bytes, 0, headerEnd), StandardCharsets.UTF_8));
+        if (header == null || header.size() < 2) return null;
+        final int colCount = header.size() - 1;
+        final List<ForkJoinTask<DataSegment>> tasks = new ArrayList<>();
+        for (int[] chunk : chunks(bytes, headerEnd + 1)) {
+            tasks.add(pool.submit(() -> parseData(bytes, chunk[0], chunk[1], colCount, deadline)));
+        }
+        final List<DataSegment> segments = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<DataSegment> task : tasks) {
+            final DataSegment segment = task.join();
+            if (segment == null) return null;
+            segments.add(segment);
+        }
+        deadline.check("parse");
+        final int rowCount = segments.stream().mapToInt(s -> s.rowCount).sum();
+        for (int j=0; j<colCount; ++j) {
+            final int col = j;
+            if (segments.stream().noneMatch(s -> s.present[col])) {
+                return null;
+            }
+        }
+        final long[] epochDays = new long[rowCount];
+        int offset = 0;
+        for (DataSegment segment : segments) {
+            System.arraycopy(segment.epochDays, 0, epochDays, offset, segment.rowCount);
+            offset += segment.rowCount;
+        }
+        final Index<LocalDate> rowKeys = axis != null ? axis.index(epochDays, rowCount) : Index.of(LocalDate.class, Math.max(rowCount, 1));
+        if (axis == null) {
+            for (long epochDay : epochDays) {
+                rowKeys.add(LocalDate.ofEpochDay(epochDay));
+            }
+        }
+        if (rowKeys.size() != rowCount) {
+            return null;
+        } else {
+            return DataFrame.of(rowKeys, String.class, columns -> {
+                for (int j=0; j<colCount; ++j) {
+                    columns.add(header.get(j + 1), concat(segments, j, rowCount));
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Returns a DataFrame parsed from a dataset codes listing in parallel chunks
+     * @param bytes     the CSV content without a header row
+     * @param deadline  the deadline for the request
+     * @return          the resulting DataFrame, null if the content must be parsed by the Morpheus CSV reader
+     */
+    private DataFrame<String,String> parseCodeChunks(byte[] bytes, QuandlDeadline deadline) {
+        final List<ForkJoinTask<CodeSegment>> tasks = new ArrayList<>();
+        for (int[] chunk : chunks(bytes, 0)) {
+            tasks.add(pool.submit(() -> parseCodes(bytes, chunk[0], chunk[1], deadline)));
+        }
+        final List<CodeSegment> segments = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<CodeSegment> task : tasks) {
+            final CodeSegment segment = task.join();
+            if (segment == null) return null;
+            segments.add(segment);
+        }
+        deadline.check("parse");
+        final int rowCount = segments.stream().mapToInt(s -> s.codes.size()).sum();
+        if (rowCount == 0) return null;
+        final Index<String> rowKeys = Index.of(String.class, rowCount);
+        final String[] descriptions = new String[rowCount];
+        int row = 0;
+        for (CodeSegment segment : segments) {
+            for (int i=0; i<segment.codes.size(); ++i) {
+                rowKeys.add(segment.codes.get(i));
+                descriptions[row++] = segment.descriptions.get(i);
+            }
+        }
+        if (rowKeys.size() != rowCount) {
+            return null;
+        } else {
+            return DataFrame.of(rowKeys, String.class, columns -> {
+                columns.add("Column-1", Array.of(descriptions));
+            });
+        }
+    }
+
+
+    /**
+     * Returns the chunks of content to parse, each of which starts at a line start and ends after a newline
+     * @param bytes     the content
+     * @param offset    the offset of the first line to include
+     * @return          the list of chunks as [start, end) offset pairs
+     */
+    private List<int[]> chunks(byte[] bytes, int offset) {
+        final int length = bytes.length - offset;
+        final int maxChunks = Math.max(1, pool.getParallelism() * 4);
+        final int chunkCount = Math.max(1, Math.min(maxChunks, length / minChunkBytes));
+        final int chunkSize = length / chunkCount + 1;
+        final List<int[]> chunks = new ArrayList<>(chunkCount);
+        int start = offset;
+        while (start < bytes.length) {
+            final int target = Math.min(bytes.length, start + chunkSize);
+            final int newline = target < bytes.length ? indexOf(bytes, target, bytes.length, (byte)'\n') : -1;
+            final int end = newline < 0 ? bytes.length : newline + 1;
+            chunks.add(new int[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+
+    /**
+     * Returns the segment of dates and primitive column values parsed from a chunk of dataset lines
+     * @param bytes     the content
+     * @param start     the offset of the first line of the chunk
+     * @param end       the offset after the last line of the chunk
+     * @param colCount  the number of data columns, excluding the date column
+     * @param deadline  the deadline for the request
+     * @return          the parsed segment, null if the chunk contains content this parser does not handle
+     */
+    private static DataSegment parseData(byte[] bytes, int start, int end, int colCount, QuandlDeadline deadline) {
+        deadline.check("parse");
+        final DataSegment segment = new DataSegment(colCount, (end - start) / (12 + colCount * 4) + 16);
+        int lineStart = start;
+        while (lineStart < end) {
+            final int newline = indexOf(bytes, lineStart, end, (byte)'\n');
+            final int lineEnd = trim(bytes, lineStart, newline < 0 ? end : newline);
+            if (lineEnd > lineStart) {
+                final int dateEnd = indexOf(bytes, lineStart, lineEnd, (byte)',');
+                final long epochDay = parseDate(bytes, lineStart, dateEnd < 0 ? lineEnd : dateEnd);
+                if (epochDay == Long.MIN_VALUE) return null;
+                final int row = segment.addRow(epochDay);
+                int fieldStart = dateEnd < 0 ? lineEnd + 1 : dateEnd + 1;
+                for (int j=0; j<colCount; ++j) {
+                    if (fieldStart > lineEnd) {
+                        segment.values[j][row] = Double.NaN;
+                    } else {
+                        final int comma = indexOf(bytes, fieldStart, lineEnd, (byte)',');
+                        final int fieldEnd = comma < 0 ? lineEnd : comma;
+                        if (!parseValue(bytes, fieldStart, fieldEnd, segment, j, row)) return null;
+                        fieldStart = fieldEnd + 1;
+                    }
+                }
+                if (fieldStart <= lineEnd) {
+                    return null;
+                }
+            }
+            lineStart = newline < 0 ? end : newline + 1;
+        }
+        return segment;
+    }
+
+
+    /**
+     * Returns the segment of codes and descriptions parsed from a chunk of codes listing lines
+     * @param bytes     the content
+     * @param start     the offset of the first line of the chunk
+     * @param end       the offset after the last line of the chunk
+     * @param deadline  the deadline for the request
+     * @return          the parsed segment, null if the chunk contains content this parser does not handle
+     */
+    private static CodeSegment parseCodes(byte[] bytes, int start, int end, QuandlDeadline deadline) {
+        deadline.check("parse");
+        final CodeSegment segment = new CodeSegment();
+        int lineStart = start;
+        while (lineStart < end) {
+            final int newline = indexOf(bytes, lineStart, end, (byte)'\n');
+            final int lineEnd = trim(bytes, lineStart, newline < 0 ? end : newline);
+            if (lineEnd > lineStart) {
+                final List<String> fields = split(new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                if (fields == null || fields.size() != 2 || fields.get(0).isEmpty()) return null;
+                segment.codes.add(fields.get(0));
+                segment.descriptions.add(fields.get(1).isEmpty() ? null : fields.get(1));
+            }
+            lineStart = newline < 0 ? end : newline + 1;
+        }
+        return segment;
+    }
+
+
+    /**
+     * Parses a numeric field into a segment column, recording whether the column remains integral
+     * @param bytes     the content
+     * @param start     the field start offset
+     * @param end       the field end offset
+     * @param segment   the segment to populate
+     * @param col       the column ordinal in the segment
+     * @param row       the row ordinal in the segment
+     * @return          true if the field was parsed, false if it is not a plain number
+     */
+    private static boolean parseValue(byte[] bytes, int start, int end, DataSegment segment, int col, int row) {
+        if (start == end) {
+            segment.values[col][row] = Double.NaN;
+            return true;
+        } else {
+            boolean integral = true;
+            int digits = 0;
+            for (int i=start; i<end; ++i) {
+                final byte b = bytes[i];
+                if (b >= '0' && b <= '9') {
+                    digits++;
+                } else if (b == '-' && i == start) {
+                    continue;
+                } else if (b == '.' || b == 'e' || b == 'E' || b == '-' || b == '+') {
+                    integral = false;
+                } else {
+                    return false;
+                }
+            }
+            if (digits == 0) {
+                return false;
+            } else {
+                try {
+                    final double value = Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+                    segment.values[col][row] = value;
+                    segment.present[col] = true;
+                    if (integral && digits > MAX_INTEGRAL_DIGITS) return false;
+                    segment.integral[col] &= integral;
+                    return true;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the epoch day for an ISO date of the form yyyy-MM-dd
+     * @param bytes     the content
+     * @param start     the field start offset
+     * @param end       the field end offset
+     * @return          the epoch day, Long.MIN_VALUE if the field is not an ISO date
+     */
+    private static long parseDate(byte[] bytes, int start, int end) {
+        if (end - start != 10 || bytes[start + 4] != '-' || bytes[start + 7] != '-') {
+            return Long.MIN_VALUE;
+        } else {
+            final int year = digits(bytes, start, 4);
+            final int month = digits(bytes, start + 5, 2);
+            final int day = digits(bytes, start + 8, 2);
+            return QuandlDateAxis.toEpochDay(year, month, day);
+        }
+    }
+
+
+    /**
+     * Returns the non negative integer represented by a run of ASCII digits
+     * @param bytes     the content
+     * @param start     the start offset
+     * @param count     the number of digits
+     * @return          the integer, -1 if any character is not a digit
+     */
+    private static int digits(byte[] bytes, int start, int count) {
+        int result = 0;
+        for (int i=0; i<count; ++i) {
+            final int digit = bytes[start + i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the column of values concatenated across segments, as int, long or double values
+     * Empty fields are held as NaN, which become 0 in int and long columns, as they do with the Morpheus CSV reader.
+     * @param segments  the segments in order
+     * @param col       the column ordinal
+     * @param rowCount  the total row count
+     * @return          the concatenated column
+     */
+    private static Array<?> concat(List<DataSegment> segments, int col, int rowCount) {
+        boolean integral = true;
+        double min = 0d, max = 0d;
+        final double[] values = new double[rowCount];
+        int offset = 0;
+        for (DataSegment segment : segments) {
+            integral &= segment.integral[col];
+            System.arraycopy(segment.values[col], 0, values, offset, segment.rowCount);
+            offset += segment.rowCount;
+        }
+        if (!integral || rowCount == 0) {
+            return Array.of(values);
+        } else {
+            for (double value : values) {
+                if (!Double.isNaN(value)) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+                final int[] ints = new int[rowCount];
+                for (int i=0; i<rowCount; ++i) ints[i] = Double.isNaN(values[i]) ? 0 : (int)values[i];
+                return Array.of(ints);
+            } else {
+                final long[] longs = new long[rowCount];
+                for (int i=0; i<rowCount; ++i) longs[i] = Double.isNaN(values[i]) ? 0L : (long)values[i];
+                return Array.of(longs);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the fields of a CSV line, removing quotes and unescaping doubled quotes
+     * @param line  the CSV line
+     * @return      the list of fields, null if the line has an unterminated quote
+     */
+    private static List<String> split(String line) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i=0; i<line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return quoted ? null : fields;
+    }
+
+
+    /**
+     * Returns the end offset of a line with any trailing carriage return removed
+     * @param bytes the content
+     * @param start the line start offset
+     * @param end   the line end offset, excluding the newline
+     * @return      the trimmed line end offset
+     */
+    private static int trim(byte[] bytes, int start, int end) {
+        return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+    }
+
+
+    /**
+     * Returns the offset of the first occurrence of a byte in a range
+     * @param bytes the content
+     * @param start the start offset, inclusive
+     * @param end   the end offset, exclusive
+     * @param value the byte to find
+     * @return      the offset, -1 if not found
+     */
+    private static int indexOf(byte[] bytes, int start, int end, byte value) {
+        for (int i=start; i<end; ++i) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Returns the entire content of a stream
+     * @param is    the input stream
+     * @return      the stream content
+     * @throws IOException  if the stream cannot be read
+     */
+    private static byte[] readAll(InputStream is) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 * 100);
+        final byte[] buffer = new byte[1024 * 100];
+        while (true) {
+            final int read = is.read(buffer);
+            if (read < 0) break;
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * The dates and primitive column values parsed from one chunk of a dataset body
+     */
+    private static class DataSegment {
+
+        private int rowCount;
+        private long[] epochDays;
+        private double[][] values;
+        private boolean[] integral;
+        private boolean[] present;
+
+        /**
+         * Constructor
+         * @param colCount  the number of data columns
+         * @param capacity  the initial row capacity
+         */
+        DataSegment(int colCount, int capacity) {
+            this.epochDays = new long[capacity];
+            this.values = new double[colCount][capacity];
+            this.integral = new boolean[colCount];
+            this.present = new boolean[colCount];
+            Arrays.fill(integral, true);
+        }
+
+        /**
+         * Adds a row to this segment, growing its arrays if required
+         * @param epochDay  the epoch day of the row
+         * @return          the row ordinal
+         */
+        int addRow(long epochDay) {
+            if (rowCount == epochDays.length) {
+                final int capacity = epochDays.length * 2;
+                this.epochDays = Arrays.copyOf(epochDays, capacity);
+                for (int j=0; j<values.length; ++j) {
+                    this.values[j] = Arrays.copyOf(values[j], capacity);
+                }
+            }
+            this.epochDays[rowCount] = epochDay;
+            return rowCount++;
+        }
+    }
+
+
+    /**
+     * The codes and descriptions parsed from one chunk of a codes listing
+     */
+    private static class CodeSegment {
+        private List<String> codes = new ArrayList<>();
+        private List<String> descriptions = new ArrayList<>();
+    }
+
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * A canonical date axis shared by the frames loaded through an adapter, which interns dates and row indexes.
+ *
+ * Dates between 1800 and 2199 are interned in a table keyed by epoch day, so parsing the same date in thousands of
+ * series yields one LocalDate instance. Row indexes are shared between frames whose rows are exactly the same sequence
+ * of dates, which is common when loading many series of one calendar over one window. Each distinct sequence is kept
+ * once as a read only index in a bounded LRU table, and frames reference it through a copy on write view so that
+ * sorting or adding rows to one frame never affects another. Sequences shorter than a min row count are not shared.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlDateAxis {
+
+    private static final long MIN_EPOCH_DAY = LocalDate.of(1800, 1, 1).toEpochDay();
+    private static final long MAX_EPOCH_DAY = LocalDate.of(2199, 12, 31).toEpochDay();
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final long DAYS_0000_TO_1970 = 719528L;
+
+    private int minRows;
+    private int maxIndexes;
+    private AtomicReferenceArray<AtomicReferenceArray<LocalDate>> pages;
+    private AtomicLong shareCount = new AtomicLong();
+    private AtomicLong createCount = new AtomicLong();
+    private Map<Long,Entry> indexMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor for up to 256 shared row indexes of at least 32 rows
+     */
+    public QuandlDateAxis() {
+        this(256, 32);
+    }
+
+    /**
+     * Constructor
+     * @param maxIndexes    the max number of distinct row indexes to retain for sharing
+     * @param minRows       the min number of rows for a row index to be shared
+     */
+    public QuandlDateAxis(int maxIndexes, int minRows) {
+        if (maxIndexes <= 0) throw new IllegalArgumentException("The max shared indexes must be > 0");
+        if (minRows <= 0) throw new IllegalArgumentException("The min shared rows must be > 0");
+        this.maxIndexes = maxIndexes;
+        this.minRows = minRows;
+        this.pages = new AtomicReferenceArray<>((int)((MAX_EPOCH_DAY - MIN_EPOCH_DAY) >> PAGE_BITS) + 1);
+    }
+
+    /**
+     * Returns the canonical date for the epoch day specified
+     * @param epochDay  the epoch day
+     * @return          the canonical date, which is a new instance if outside the interned range
+     */
+    public LocalDate intern(long epochDay) {
+        if (epochDay < MIN_EPOCH_DAY || epochDay > MAX_EPOCH_DAY) {
+            return LocalDate.ofEpochDay(epochDay);
+        } else {
+            final int offset = (int)(epochDay - MIN_EPOCH_DAY);
+            final AtomicReferenceArray<LocalDate> page = page(offset >> PAGE_BITS);
+            final int slot = offset & (PAGE_SIZE - 1);
+            final LocalDate date = page.get(slot);
+            if (date != null) {
+                return date;
+            } else {
+                final LocalDate created = LocalDate.ofEpochDay(epochDay);
+                return page.compareAndSet(slot, null, created) ? created : page.get(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the intern page at the index specified, installing it if this is the first date interned in the page
+     * @param index the page index
+     * @return      the intern page, which is the same instance for all threads
+     */
+    private AtomicReferenceArray<LocalDate> page(int index) {
+        final AtomicReferenceArray<LocalDate> page = pages.get(index);
+        if (page != null) {
+            return page;
+        } else {
+            final AtomicReferenceArray<LocalDate> created = new AtomicReferenceArray<>(PAGE_SIZE);
+            return pages.compareAndSet(index, null, created) ? created : pages.get(index);
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the date specified
+     * @param date  the date, null permitted
+     * @return      the canonical date, null if the date is null
+     */
+    public LocalDate intern(LocalDate date) {
+        return date != null ? intern(date.toEpochDay()) : null;
+    }
+
+    /**
+     * Returns the canonical date for an ISO date string, for example "2017-01-31"
+     * @param text  the ISO date string
+     * @return      the canonical date
+     */
+    public LocalDate parse(String text) {
+        if (text.length() == 10 && text.charAt(4) == '-' && text.charAt(7) == '-') {
+            final int year = digits(text, 0, 4);
+            final int month = digits(text, 5, 2);
+            final int day = digits(text, 8, 2);
+            final long epochDay = toEpochDay(year, month, day);
+            if (epochDay != Long.MIN_VALUE) {
+                return intern(epochDay);
+            }
+        }
+        return intern(LocalDate.parse(text));
+    }
+
+    /**
+     * Returns the number of distinct row indexes retained for sharing
+     * @return  the shared index count
+     */
+    public synchronized int getIndexCount() {
+        return indexMap.size();
+    }
+
+    /**
+     * Returns the number of row indexes served by referencing an existing shared index
+     * @return  the share count
+     */
+    public long getShareCount() {
+        return shareCount.get();
+    }
+
+    /**
+     * Returns the number of shared row indexes created
+     * @return  the create count
+     */
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    /**
+     * Discards all shared row indexes, which frames already referencing them continue to use
+     */
+    public synchronized void clear() {
+        this.indexMap.clear();
+    }
+
+    /**
+     * Returns a row index for the sequence of epoch days, which references a shared index if the sequence is long enough
+     * @param epochDays the epoch days in row order
+     * @param count     the number of leading epoch days to include
+     * @return          the row index, which may contain fewer keys than count if the epoch days contain duplicates
+     */
+    public Index<LocalDate> index(long[] epochDays, int count) {
+        if (count < minRows) {
+            return create(epochDays, count);
+        } else {
+            final long key = hash(epochDays, count);
+            synchronized (this) {
+                final Entry entry = indexMap.get(key);
+                if (entry != null && entry.matches(epochDays, count)) {
+                    this.shareCount.incrementAndGet();
+                    return new QuandlSharedIndex<>(entry.index);
+                } else if (entry != null) {
+                    return create(epochDays, count);
+                }
+            }
+            final Index<LocalDate> index = create(epochDays, count);
+            if (index.size() != count) {
+                return index;
+            } else {
+                synchronized (this) {
+                    final Entry entry = indexMap.get(key);
+                    if (entry != null) {
+                        if (!entry.matches(epochDays, count)) {
+                            return index;
+                        } else {
+                            this.shareCount.incrementAndGet();
+                            return new QuandlSharedIndex<>(entry.index);
+                        }
+                    } else {
+                        final Index<LocalDate> shared = index.readOnly();
+                        this.createCount.incrementAndGet();
+                        this.indexMap.put(key, new Entry(Arrays.copyOf(epochDays, count), shared));
+                        if (indexMap.size() > maxIndexes) {
+                            this.indexMap.remove(indexMap.keySet().iterator().next());
+                        }
+                        return new QuandlSharedIndex<>(shared);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a frame with the same content as the frame specified, but with its rows on the canonical axis
+     * @param frame the frame keyed by date
+     * @param <C>   the column key type
+     * @return      the frame on the canonical axis, which is the same frame if its rows are not shared
+     */
+    public <C> DataFrame<LocalDate,C> share(DataFrame<LocalDate,C> frame) {
+        final int rowCount = frame.rowCount();
+        if (rowCount < minRows) {
+            return frame;
+        } else {
+            final long[] epochDays = new long[rowCount];
+            for (int i=0; i<rowCount; ++i) {
+                epochDays[i] = frame.rows().key(i).toEpochDay();
+            }
+            final Index<LocalDate> rowKeys = index(epochDays, rowCount);
+            if (!(rowKeys instanceof QuandlSharedIndex)) {
+                return frame;
+            } else {
+                return DataFrame.of(rowKeys, frame.cols().keyType(), columns -> {
+                    frame.cols().forEach(column -> columns.add(column.key(), column.toArray()));
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the epoch day for the year, month and day specified
+     * @param year  the year
+     * @param month the month of year, 1 to 12
+     * @param day   the day of month, 1 to 31
+     * @return      the epoch day, Long.MIN_VALUE if the fields are not a valid date
+     */
+    static long toEpochDay(int year, int month, int day) {
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return Long.MIN_VALUE;
+        } else {
+            final boolean leap = (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+            final int length = month == 2 ? (leap ? 29 : 28) : month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+            if (day > length) {
+                return Long.MIN_VALUE;
+            } else {
+                long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+                total += (367 * month - 362) / 12;
+                total += day - 1;
+                if (month > 2) {
+                    total -= leap ? 1 : 2;
+                }
+                return total - DAYS_0000_TO_1970;
+            }
+        }
+    }
+
+    /**
+     * Returns a new row index for the epoch days specified, with keys from the intern table
+     * @param epochDays the epoch days in row order
+     * @param count     the number of leading epoch days to include
+     * @return          the newly created row index
+     */
+    private Index<LocalDate> create(long[] epochDays, int count) {
+        final Index<LocalDate> index = Index.of(LocalDate.class, Math.max(count, 1));
+        for (int i=0; i<count; ++i) {
+            index.add(intern(epochDays[i]));
+        }
+        return index;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of a sequence of epoch days
+     * @param epochDays the epoch days
+     * @param count     the number of leading epoch days to hash
+     * @return          the hash value
+     */
+    private static long hash(long[] epochDays, int count) {
+        long hash = 0xcbf29ce484222325L ^ count;
+        for (int i=0; i<count; ++i) {
+            hash ^= epochDays[i];
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the non negative integer represented by a run of ASCII digits
+     * @param text  the text
+     * @param start the start offset
+     * @param count the number of digits
+     * @return      the integer, -1 if any character is not a digit
+     */
+    private static int digits(String text, int start, int count) {
+        int result = 0;
+        for (int i=0; i<count; ++i) {
+            final int digit = text.charAt(start + i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+
+    /**
+     * A sequence of epoch days retained along with the read only row index shared for it
+     */
+    private static class Entry {
+
+        private long[] epochDays;
+        private Index<LocalDate> index;
+
+        /**
+         * Constructor
+         * @param epochDays the epoch days in row order
+         * @param index     the read only row index
+         */
+        Entry(long[] epochDays, Index<LocalDate> index) {
+            this.epochDays = epochDays;
+            this.index = index;
+        }
+
+        /**
+         * Returns true if this entry is for the sequence of epoch days specified
+         * @param other the epoch days to compare
+         * @param count the number of leading epoch days to compare
+         * @return      true if the sequences are equal
+         */
+        boolean matches(long[] other, int count) {
+            if (epochDays.length != count) {
+                return false;
+            } else {
+                for (int i=0; i<count; ++i) {
+                    if (epochDays[i] != other[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+}
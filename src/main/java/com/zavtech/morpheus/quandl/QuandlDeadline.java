@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline and cancel token of a single request, which is checked at each phase of the request
+ *
+ * A deadline starts when the request options are sealed, and is shared by all connections, pages and parsing that
+ * the request entails, so that the whole call is bounded rather than each step individually.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlDeadline {
+
+    static final QuandlDeadline NONE = new QuandlDeadline(null, null);
+
+    private Duration timeout;
+    private long expiresAtNanos;
+    private QuandlCancelToken token;
+
+    /**
+     * Constructor
+     * @param timeout   the timeout for the request, null for no timeout
+     * @param token     the cancel token for the request, null permitted
+     */
+    QuandlDeadline(Duration timeout, QuandlCancelToken token) {
+        this.timeout = timeout;
+        this.token = token;
+        this.expiresAtNanos = timeout != null ? System.nanoTime() + timeout.toNanos() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns true if this deadline has a timeout or a cancel token
+     * @return  true if bounded
+     */
+    boolean isBounded() {
+        return timeout != null || token != null;
+    }
+
+    /**
+     * Returns true if this deadline has expired or its token has been cancelled
+     * @return  true if the request should stop
+     */
+    boolean isExpired() {
+        return isCancelled() || (timeout != null && System.nanoTime() - expiresAtNanos >= 0L);
+    }
+
+    /**
+     * Returns true if the cancel token for this deadline has been cancelled
+     * @return  true if cancelled
+     */
+    boolean isCancelled() {
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * Returns the time remaining in nanos
+     * @return  the remaining nanos, Long.MAX_VALUE if there is no timeout
+     */
+    long remainingNanos() {
+        return timeout == null ? Long.MAX_VALUE : Math.max(0L, expiresAtNanos - System.nanoTime());
+    }
+
+    /**
+     * Returns the time remaining in millis in the form expected by URLConnection timeouts
+     * @return  the remaining millis, at least 1, or 0 for no timeout
+     */
+    int remainingTimeout() {
+        if (timeout == null) {
+            return 0;
+        } else {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+            return (int)Math.max(1L, Math.min(Integer.MAX_VALUE, millis));
+        }
+    }
+
+    /**
+     * Checks that this deadline has not expired
+     * @param phase the phase of the request being checked, for the exception message
+     * @throws QuandlTimeoutException   if the deadline has expired or the request was cancelled
+     */
+    void check(String phase) throws QuandlTimeoutException {
+        if (isExpired()) {
+            throw expired(phase, null);
+        }
+    }
+
+    /**
+     * Returns the exception to throw for a request that has expired or been cancelled
+     * @param phase the phase of the request that was interrupted
+     * @param cause the underlying failure, null permitted
+     * @return      the timeout exception
+     */
+    QuandlTimeoutException expired(String phase, Throwable cause) {
+        if (isCancelled()) {
+            return new QuandlTimeoutException("Quandl request was cancelled during " + phase, true, cause);
+        } else {
+            return new QuandlTimeoutException("Quandl request exceeded timeout of " + timeout.toMillis() + " millis during " + phase, false, cause);
+        }
+    }
+
+    /**
+     * Registers an action to run if the request is cancelled via its token
+     * @param action    the action to run on cancel
+     * @return          the action that removes the registration
+     */
+    Runnable onCancel(Runnable action) {
+        return token != null ? token.onCancel(action) : () -> {};
+    }
+
+    /**
+     * Returns a stream that checks this deadline before each read, so parsing stops once the deadline expires
+     * @param is    the stream to wrap
+     * @param phase the phase of the request the stream is read in
+     * @return      the checked stream, or the original stream if this deadline is unbounded
+     */
+    InputStream wrap(InputStream is, String phase) {
+        if (!isBounded()) {
+            return is;
+        } else {
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    check(phase);
+                    return super.read();
+                }
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    check(phase);
+                    return super.read(b, off, len);
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns the timeout exception in the cause chain of the error, if any
+     * @param error the error to inspect
+     * @return      the timeout exception, null if none
+     */
+    static QuandlTimeoutException find(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof QuandlTimeoutException) {
+                return (QuandlTimeoutException)t;
+            }
+        }
+        return null;
+    }
+}
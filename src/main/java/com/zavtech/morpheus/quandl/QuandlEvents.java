@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+/**
+ * Java Flight Recorder events emitted by the Quandl adapter for each request and its download, decompress and parse phases.
+ *
+ * Events carry the operation and the database and dataset codes, but never the request url, so the api key cannot
+ * appear in a recording. The JFR types live in QuandlFlightRecorder, which is only loaded reflectively through the
+ * Recorder interface once the JFR API is known to be present, so the adapter continues to work on runtimes without JFR.
+ * Since the JFR API is not part of Java 8, QuandlFlightRecorder is compiled separately for Java 11 by the jfr build
+ * profile, which is active when building on JDK 11 or later, and is simply absent from builds made on older JDKs.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlEvents {
+
+    private static final Recorder recorder = createRecorder();
+    private static final ThreadLocal<Context> current = new ThreadLocal<>();
+
+    enum PhaseType {
+        DOWNLOAD,
+        DECOMPRESS,
+        PARSE
+    }
+
+    /**
+     * Private constructor
+     */
+    private QuandlEvents() {
+        super();
+    }
+
+    /**
+     * Returns true if the JFR API is present and events can be emitted
+     * @return  true if JFR is available
+     */
+    static boolean isAvailable() {
+        return recorder != null;
+    }
+
+    /**
+     * Returns the request context bound to the calling thread
+     * @return  the current context, null if none
+     */
+    static Context current() {
+        return current.get();
+    }
+
+    /**
+     * Begins a request event for the options and binds its context to the calling thread
+     * @param options   the request options
+     * @return          the request context, which must be passed to end()
+     */
+    static Context begin(QuandlOptions<?,?> options) {
+        final Context context = new Context(options, current.get());
+        current.set(context);
+        if (recorder != null) {
+            context.event = recorder.beginRequest();
+        }
+        return context;
+    }
+
+    /**
+     * Ends the request event for the context and restores the prior context for the calling thread
+     * @param context   the context returned from begin()
+     * @param error     the error if the request failed, null if successful
+     */
+    static void end(Context context, Throwable error) {
+        if (context.prior != null) {
+            current.set(context.prior);
+        } else {
+            current.remove();
+        }
+        if (recorder != null && context.event != null) {
+            recorder.endRequest(context.event, context, error != null);
+        }
+    }
+
+    /**
+     * Begins a phase event for the context specified
+     * @param type      the phase type
+     * @param context   the request context, null permitted
+     * @return          the phase, which must be ended once the phase completes
+     */
+    static Phase begin(PhaseType type, Context context) {
+        final Object event = recorder != null ? recorder.beginPhase(type) : null;
+        return event != null ? new Phase(event, context) : Phase.NONE;
+    }
+
+    /**
+     * Returns the JFR recorder if the JFR API is available in the running JVM
+     * @return  the recorder, null if JFR is not available
+     */
+    private static Recorder createRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder)Class.forName("com.zavtech.morpheus.quandl.QuandlFlightRecorder").getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+
+    /**
+     * The bridge to the JFR events, implemented by a class that is only loaded if JFR is present
+     */
+    interface Recorder {
+
+        /**
+         * Begins a request event
+         * @return  the event, null if request events are not enabled
+         */
+        Object beginRequest();
+
+        /**
+         * Ends and commits a request event
+         * @param event     the event returned from beginRequest()
+         * @param context   the request context
+         * @param failed    true if the request failed
+         */
+        void endRequest(Object event, Context context, boolean failed);
+
+        /**
+         * Begins a phase event
+         * @param type  the phase type
+         * @return      the event, null if events for the phase are not enabled
+         */
+        Object beginPhase(PhaseType type);
+
+        /**
+         * Ends and commits a phase event
+         * @param event         the event returned from beginPhase()
+         * @param context       the request context, null permitted
+         * @param inputBytes    the number of bytes consumed by the phase
+         * @param outputBytes   the number of bytes produced by the phase
+         * @param status        the HTTP status, or 0 if not applicable
+         */
+        void endPhase(Object event, Context context, long inputBytes, long outputBytes, int status);
+    }
+
+
+    /**
+     * The context for a single request, which accumulates statistics across attempts and pages
+     */
+    static class Context {
+
+        private Object event;
+        private Context prior;
+        private String operation;
+        private String databaseCode;
+        private String datasetCode;
+        private volatile long bytes;
+        private volatile int status;
+        private volatile int attempts;
+        private volatile boolean revalidated;
+
+        /**
+         * Constructor
+         * @param options   the request options
+         * @param prior     the context that was bound to the thread before this one
+         */
+        Context(QuandlOptions<?,?> options, Context prior) {
+            this.prior = prior;
+            this.operation = String.valueOf(options.getOperation());
+            this.databaseCode = options.getDatabaseCode().orElse(null);
+            this.datasetCode = options.getDatasetCode().orElse(null);
+        }
+
+        /**
+         * Returns the operation of the request
+         * @return  the operation name
+         */
+        String getOperation() {
+            return operation;
+        }
+
+        /**
+         * Returns the database code of the request
+         * @return  the database code, null if none
+         */
+        String getDatabaseCode() {
+            return databaseCode;
+        }
+
+        /**
+         * Returns the dataset code of the request
+         * @return  the dataset code, null if none
+         */
+        String getDatasetCode() {
+            return datasetCode;
+        }
+
+        /**
+         * Returns the total number of response bytes received for the request
+         * @return  the response byte count
+         */
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the HTTP status of the last response received for the request
+         * @return  the HTTP status, 0 if none
+         */
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the number of HTTP attempts issued for the request, including hedges and additional pages
+         * @return  the attempt count
+         */
+        int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns true if the last response was served from cache following a 304 response
+         * @return  true if revalidated
+         */
+        boolean isRevalidated() {
+            return revalidated;
+        }
+
+        /**
+         * Records that an HTTP attempt was issued on behalf of this request
+         */
+        synchronized void onAttempt() {
+            this.attempts++;
+        }
+
+        /**
+         * Records a response received on behalf of this request
+         * @param response  the response
+         */
+        synchronized void onResponse(QuandlResponse response) {
+            this.bytes += response.getBody().length;
+            this.status = response.getStatus();
+            this.revalidated = response.isRevalidated();
+        }
+    }
+
+
+    /**
+     * A phase of a request, which wraps the JFR event so callers do not depend on JFR types
+     */
+    static class Phase {
+
+        static final Phase NONE = new Phase(null, null);
+
+        private Object event;
+        private Context context;
+
+        /**
+         * Constructor
+         * @param event     the JFR event, null if not recording
+         * @param context   the request context, null permitted
+         */
+        Phase(Object event, Context context) {
+            this.event = event;
+            this.context = context;
+        }
+
+        /**
+         * Ends this phase and commits its event
+         * @param inputBytes    the number of bytes consumed by the phase
+         * @param outputBytes   the number of bytes produced by the phase
+         * @param status        the HTTP status, or 0 if not applicable
+         */
+        void end(long inputBytes, long outputBytes, int status) {
+            if (event != null) {
+                recorder.endPhase(event, context, inputBytes, outputBytes, status);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR event types of the Quandl adapter, which QuandlEvents only loads reflectively once JFR is known to be present.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlFlightRecorder implements QuandlEvents.Recorder {
+
+    @Override
+    public Object beginRequest() {
+        final RequestEvent event = new RequestEvent();
+        if (!event.isEnabled()) {
+            return null;
+        } else {
+            event.begin();
+            return event;
+        }
+    }
+
+    @Override
+    public void endRequest(Object event, QuandlEvents.Context context, boolean failed) {
+        final RequestEvent requestEvent = (RequestEvent)event;
+        requestEvent.end();
+        if (requestEvent.shouldCommit()) {
+            requestEvent.operation = context.getOperation();
+            requestEvent.databaseCode = context.getDatabaseCode();
+            requestEvent.datasetCode = context.getDatasetCode();
+            requestEvent.bytes = context.getBytes();
+            requestEvent.status = context.getStatus();
+            requestEvent.attempts = context.getAttempts();
+            requestEvent.revalidated = context.isRevalidated();
+            requestEvent.failed = failed;
+            requestEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginPhase(QuandlEvents.PhaseType type) {
+        final PhaseEvent event;
+        switch (type) {
+            case DOWNLOAD:      event = new DownloadEvent();    break;
+            case DECOMPRESS:    event = new DecompressEvent();  break;
+            default:            event = new ParseEvent();       break;
+        }
+        if (!event.isEnabled()) {
+            return null;
+        } else {
+            event.begin();
+            return event;
+        }
+    }
+
+    @Override
+    public void endPhase(Object event, QuandlEvents.Context context, long inputBytes, long outputBytes, int status) {
+        final PhaseEvent phaseEvent = (PhaseEvent)event;
+        phaseEvent.end();
+        if (phaseEvent.shouldCommit()) {
+            if (context != null) {
+                phaseEvent.operation = context.getOperation();
+                phaseEvent.databaseCode = context.getDatabaseCode();
+                phaseEvent.datasetCode = context.getDatasetCode();
+            }
+            phaseEvent.inputBytes = inputBytes;
+            phaseEvent.outputBytes = outputBytes;
+            phaseEvent.status = status;
+            phaseEvent.commit();
+        }
+    }
+
+
+    @Name("com.zavtech.morpheus.quandl.Request")
+    @Label("Quandl Request")
+    @Category({"Morpheus", "Quandl"})
+    @Description("A request issued through the Quandl adapter, spanning all attempts, pages and parsing")
+    @StackTrace(false)
+    public static class RequestEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Database Code")
+        String databaseCode;
+        @Label("Dataset Code")
+        String datasetCode;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("HTTP Status")
+        int status;
+        @Label("Attempts")
+        @Description("The number of HTTP attempts issued, including hedges and additional pages")
+        int attempts;
+        @Label("Revalidated")
+        @Description("True if the body was served from cache following a 304 response")
+        boolean revalidated;
+        @Label("Failed")
+        boolean failed;
+    }
+
+
+    @StackTrace(false)
+    public static abstract class PhaseEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Database Code")
+        String databaseCode;
+        @Label("Dataset Code")
+        String datasetCode;
+        @Label("Input Bytes")
+        @DataAmount
+        long inputBytes;
+        @Label("Output Bytes")
+        @DataAmount
+        long outputBytes;
+        @Label("HTTP Status")
+        int status;
+    }
+
+
+    @Name("com.zavtech.morpheus.quandl.Download")
+    @Label("Quandl Download")
+    @Category({"Morpheus", "Quandl"})
+    @Description("The transfer of a single Quandl HTTP response body")
+    public static class DownloadEvent extends PhaseEvent {
+    }
+
+
+    @Name("com.zavtech.morpheus.quandl.Decompress")
+    @Label("Quandl Decompress")
+    @Category({"Morpheus", "Quandl"})
+    @Description("The decompression of a gzip encoded Quandl response body")
+    public static class DecompressEvent extends PhaseEvent {
+    }
+
+
+    @Name("com.zavtech.morpheus.quandl.Parse")
+    @Label("Quandl Parse")
+    @Category({"Morpheus", "Quandl"})
+    @Description("The parsing of a Quandl response body into a DataFrame or metadata")
+    public static class ParseEvent extends PhaseEvent {
+    }
+
+}
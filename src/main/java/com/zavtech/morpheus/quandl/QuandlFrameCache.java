@@ -0,0 +1,581 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A two tier cache of DataFrames returned by the Quandl adapter, bounded by an estimate of their memory footprint.
+ *
+ * The heap tier holds frames up to a global byte budget, evicting the least recently used frames until a new frame
+ * fits. If a spill directory is configured, evicted frames are serialized to a disk tier, which is itself bounded by
+ * a byte budget, and are loaded back into the heap tier when next accessed. Frames are copied on the way in and out
+ * so callers can never mutate cached content. Frame sizes are estimated from column types and row counts, which is
+ * approximate but sufficient to keep the heap tier within budget.
+ *
+ * Frames expire once they exceed the max age, which defaults to one hour, so a source that consults this cache is
+ * guaranteed to request the data again eventually. Frames can also be invalidated explicitly with remove(). The
+ * monitor of this cache only guards its bookkeeping, so frame copies and disk reads and writes never block other
+ * readers.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlFrameCache {
+
+    private static final int SAMPLE_SIZE = 64;
+
+    private long maxHeapBytes;
+    private long maxDiskBytes;
+    private long heapBytes;
+    private long diskBytes;
+    private long hitCount;
+    private long diskHitCount;
+    private long missCount;
+    private long evictionCount;
+    private long spillCount;
+    private long spillSequence;
+    private File spillDirectory;
+    private volatile Duration maxAge = Duration.ofHours(1);
+    private Map<String,HeapEntry> heapMap = new LinkedHashMap<>(16, 0.75f, true);
+    private Map<String,DiskEntry> diskMap = new LinkedHashMap<>(16, 0.75f, true);
+    private Map<String,HeapEntry> spillingMap = new HashMap<>();
+
+    /**
+     * Constructor for a heap only cache
+     * @param maxHeapBytes  the max estimated bytes of frames held on heap
+     */
+    public QuandlFrameCache(long maxHeapBytes) {
+        this(maxHeapBytes, null, 0L);
+    }
+
+    /**
+     * Constructor
+     * @param maxHeapBytes      the max estimated bytes of frames held on heap
+     * @param spillDirectory    the directory to spill evicted frames to, null for no disk tier
+     * @param maxDiskBytes      the max bytes of spilled frames held on disk
+     */
+    public QuandlFrameCache(long maxHeapBytes, File spillDirectory, long maxDiskBytes) {
+        if (maxHeapBytes <= 0L) throw new IllegalArgumentException("The max heap bytes must be > 0");
+        if (spillDirectory != null && maxDiskBytes <= 0L) throw new IllegalArgumentException("The max disk bytes must be > 0");
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Sets the max age of a cached frame, after which it is discarded rather than served
+     * @param maxAge    the max age for cached frames
+     */
+    public void setMaxAge(Duration maxAge) {
+        Objects.requireNonNull(maxAge, "The max age cannot be null");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the max age of a cached frame, after which it is discarded rather than served
+     * @return  the max age for cached frames
+     */
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Returns a copy of the frame cached against the key, loading it from the disk tier if required
+     * A frame loaded from disk is promoted to the heap tier, unless it is too large to ever fit there, in which
+     * case it remains on disk.
+     * @param key   the cache key
+     * @param <R>   the row key type
+     * @param <C>   the column key type
+     * @return      a copy of the cached frame, null if not cached or expired
+     */
+    @SuppressWarnings("unchecked")
+    public <R,C> DataFrame<R,C> get(String key) {
+        final HeapEntry heapEntry;
+        final DiskEntry diskEntry;
+        final List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            final HeapEntry cached = heapMap.containsKey(key) ? heapMap.get(key) : spillingMap.get(key);
+            heapEntry = cached != null && !isExpired(cached.cachedAt) ? cached : null;
+            diskEntry = cached == null ? diskMap.get(key) : null;
+            if (heapEntry != null) {
+                this.hitCount++;
+            } else if (diskEntry == null || isExpired(diskEntry.cachedAt)) {
+                this.missCount++;
+                this.remove(key, deleted);
+            }
+        }
+        delete(deleted);
+        if (heapEntry != null) {
+            return (DataFrame<R,C>)heapEntry.frame.copy();
+        } else if (diskEntry == null || isExpired(diskEntry.cachedAt)) {
+            return null;
+        } else {
+            return (DataFrame<R,C>)load(key, diskEntry);
+        }
+    }
+
+    /**
+     * Returns a frame loaded from the disk tier, promoting it to the heap tier if it can fit there
+     * @param key       the cache key
+     * @param diskEntry the disk entry to load
+     * @return          a copy of the frame, null if the file could not be read
+     */
+    private DataFrame<?,?> load(String key, DiskEntry diskEntry) {
+        final DataFrame<?,?> frame = read(diskEntry.file);
+        final List<File> deleted = new ArrayList<>();
+        final List<HeapEntry> evicted;
+        final long bytes = frame != null ? estimateBytes(frame) : 0L;
+        synchronized (this) {
+            final boolean current = diskMap.get(key) == diskEntry;
+            if (frame == null) {
+                this.missCount++;
+                if (current) {
+                    this.remove(key, deleted);
+                }
+                evicted = Collections.emptyList();
+            } else {
+                this.diskHitCount++;
+                if (!current || bytes > maxHeapBytes) {
+                    evicted = Collections.emptyList();
+                } else {
+                    this.remove(key, deleted);
+                    evicted = putHeap(new HeapEntry(key, frame, bytes, diskEntry.cachedAt));
+                }
+            }
+        }
+        this.delete(deleted);
+        this.spill(evicted);
+        return frame == null || bytes > maxHeapBytes ? frame : frame.copy();
+    }
+
+    /**
+     * Adds a copy of the frame to this cache, replacing any prior frame for the key
+     * @param key   the cache key
+     * @param frame the frame to cache
+     */
+    public void put(String key, DataFrame<?,?> frame) {
+        Objects.requireNonNull(key, "The cache key cannot be null");
+        Objects.requireNonNull(frame, "The frame cannot be null");
+        final DataFrame<?,?> copy = frame.copy();
+        final HeapEntry entry = new HeapEntry(key, copy, estimateBytes(copy), System.nanoTime());
+        final List<File> deleted = new ArrayList<>();
+        final List<HeapEntry> evicted;
+        synchronized (this) {
+            this.remove(key, deleted);
+            if (entry.bytes > maxHeapBytes) {
+                this.spillingMap.put(key, entry);
+                evicted = Collections.singletonList(entry);
+            } else {
+                evicted = putHeap(entry);
+            }
+        }
+        this.delete(deleted);
+        this.spill(evicted);
+    }
+
+    /**
+     * Removes any frame cached against the key from both tiers
+     * @param key   the cache key
+     */
+    public void remove(String key) {
+        final List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            this.remove(key, deleted);
+        }
+        this.delete(deleted);
+    }
+
+    /**
+     * Removes all frames from both tiers of this cache
+     */
+    public void clear() {
+        final List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            this.diskMap.values().forEach(entry -> deleted.add(entry.file));
+            this.heapMap.clear();
+            this.diskMap.clear();
+            this.spillingMap.clear();
+            this.heapBytes = 0L;
+            this.diskBytes = 0L;
+        }
+        this.delete(deleted);
+    }
+
+    /**
+     * Removes any frame cached against the key from both tiers, while holding the monitor of this cache
+     * @param key       the cache key
+     * @param deleted   the list to add spill files to, which are deleted once the monitor is released
+     */
+    private void remove(String key, List<File> deleted) {
+        final HeapEntry heapEntry = heapMap.remove(key);
+        if (heapEntry != null) {
+            this.heapBytes -= heapEntry.bytes;
+        }
+        final DiskEntry diskEntry = diskMap.remove(key);
+        if (diskEntry != null) {
+            this.diskBytes -= diskEntry.bytes;
+            deleted.add(diskEntry.file);
+        }
+        this.spillingMap.remove(key);
+    }
+
+    /**
+     * Returns true if a frame cached at the time specified is older than the max age
+     * @param cachedAt  the nano time the frame was cached
+     * @return          true if expired
+     */
+    private boolean isExpired(long cachedAt) {
+        return System.nanoTime() - cachedAt > maxAge.toNanos();
+    }
+
+    /**
+     * Returns the number of frames held on heap
+     * @return  the heap entry count
+     */
+    public synchronized int getHeapCount() {
+        return heapMap.size();
+    }
+
+    /**
+     * Returns the number of frames held on disk
+     * @return  the disk entry count
+     */
+    public synchronized int getDiskCount() {
+        return diskMap.size();
+    }
+
+    /**
+     * Returns the estimated bytes of frames held on heap
+     * @return  the heap bytes
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Returns the bytes of frames held on disk
+     * @return  the disk bytes
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Returns the number of lookups served from the heap tier
+     * @return  the heap hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups served from the disk tier
+     * @return  the disk hit count
+     */
+    public synchronized long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * Returns the number of lookups that found no frame in either tier
+     * @return  the miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of frames evicted from the heap tier
+     * @return  the heap eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of frames written to the disk tier
+     * @return  the spill count
+     */
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * Returns the ratio of lookups served from either tier
+     * @return  the hit ratio, or NaN if there have been no lookups
+     */
+    public synchronized double getHitRatio() {
+        final long hits = hitCount + diskHitCount;
+        final long total = hits + missCount;
+        return total == 0L ? Double.NaN : (double)hits / total;
+    }
+
+    /**
+     * Returns an estimate of the heap footprint of the frame, based on column types and row count
+     * @param frame the frame to estimate
+     * @return      the estimated bytes
+     */
+    public static long estimateBytes(DataFrame<?,?> frame) {
+        final int rowCount = frame.rowCount();
+        final long[] bytes = new long[] { 256L + rowCount * 40L + frame.colCount() * 64L };
+        frame.cols().forEach(column -> {
+            final Class<?> type = column.typeInfo();
+            final int width = widthOf(type);
+            if (width > 0) {
+                bytes[0] += (long)rowCount * width;
+            } else {
+                long sampleBytes = 0L;
+                final int step = Math.max(1, rowCount / SAMPLE_SIZE);
+                int samples = 0;
+                for (int i=0; i<rowCount; i += step) {
+                    final Object value = column.getValue(i);
+                    sampleBytes += 8 + (value == null ? 0 : value instanceof String ? 40 + 2 * ((String)value).length() : 64);
+                    samples++;
+                }
+                bytes[0] += samples == 0 ? 0L : (long)Math.ceil((double)sampleBytes / samples * rowCount);
+            }
+        });
+        return bytes[0];
+    }
+
+
+    /**
+     * Returns the per value width in bytes for primitive coded column types, or -1 for object columns
+     * @param type  the column type
+     * @return      the width per value, -1 if values are held as objects
+     */
+    private static int widthOf(Class<?> type) {
+        if (type == Double.class || type == Long.class || type == double.class || type == long.class) {
+            return 8;
+        } else if (type == LocalDate.class || type == LocalTime.class || type == LocalDateTime.class || type == Date.class) {
+            return 8;
+        } else if (type == ZonedDateTime.class) {
+            return 10;
+        } else if (type == Integer.class || type == Float.class || type == int.class || type == float.class) {
+            return 4;
+        } else if (type == Boolean.class || type == boolean.class) {
+            return 1;
+        } else {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Adds a frame to the heap tier, evicting least recently used frames until it fits within budget
+     * This is called while holding the monitor of this cache, and the evicted frames are registered as spilling so
+     * they remain readable until spill() writes them to the disk tier once the monitor is released.
+     * @param entry the heap entry to add
+     * @return      the list of evicted entries to spill
+     */
+    private List<HeapEntry> putHeap(HeapEntry entry) {
+        final List<HeapEntry> evicted = new ArrayList<>();
+        final Iterator<HeapEntry> iterator = heapMap.values().iterator();
+        while (heapBytes + entry.bytes > maxHeapBytes && iterator.hasNext()) {
+            final HeapEntry eldest = iterator.next();
+            iterator.remove();
+            this.heapBytes -= eldest.bytes;
+            this.evictionCount++;
+            if (spillDirectory != null) {
+                this.spillingMap.put(eldest.key, eldest);
+                evicted.add(eldest);
+            }
+        }
+        this.heapMap.put(entry.key, entry);
+        this.heapBytes += entry.bytes;
+        return evicted;
+    }
+
+
+    /**
+     * Writes evicted frames to the disk tier if configured, evicting least recently used files to stay within budget
+     * Frames are written without holding the monitor of this cache, and are only registered on disk if they were not
+     * replaced or removed in the meantime.
+     * @param evicted   the evicted heap entries to spill
+     */
+    private void spill(List<HeapEntry> evicted) {
+        for (HeapEntry entry : evicted) {
+            final File file;
+            synchronized (this) {
+                if (spillingMap.get(entry.key) != entry) continue;
+                file = spillDirectory != null ? new File(spillDirectory, toFileName(entry.key, spillSequence++)) : null;
+            }
+            final boolean written = file != null && write(file, entry.frame);
+            final List<File> deleted = new ArrayList<>();
+            synchronized (this) {
+                final boolean current = spillingMap.remove(entry.key, entry);
+                final long bytes = written ? file.length() : 0L;
+                if (!written) {
+                    continue;
+                } else if (!current || bytes > maxDiskBytes) {
+                    deleted.add(file);
+                } else {
+                    final Iterator<DiskEntry> iterator = diskMap.values().iterator();
+                    while (diskBytes + bytes > maxDiskBytes && iterator.hasNext()) {
+                        final DiskEntry eldest = iterator.next();
+                        iterator.remove();
+                        this.diskBytes -= eldest.bytes;
+                        deleted.add(eldest.file);
+                    }
+                    this.diskMap.put(entry.key, new DiskEntry(file, bytes, entry.cachedAt));
+                    this.diskBytes += bytes;
+                    this.spillCount++;
+                }
+            }
+            this.delete(deleted);
+        }
+    }
+
+
+    /**
+     * Deletes spill files that are no longer referenced by the disk tier
+     * @param files the files to delete
+     */
+    private void delete(List<File> files) {
+        files.forEach(File::delete);
+    }
+
+
+    /**
+     * Serializes a frame to the file specified
+     * @param file  the file to write
+     * @param frame the frame to write
+     * @return      true if written, false if the frame could not be written, in which case it is simply dropped
+     */
+    private boolean write(File file, DataFrame<?,?> frame) {
+        if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+            return false;
+        } else {
+            try (ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                os.writeObject(frame);
+                return true;
+            } catch (Exception ex) {
+                file.delete();
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Deserializes a frame from the file specified
+     * @param file  the file to read
+     * @return      the frame, null if the file could not be read
+     */
+    private DataFrame<?,?> read(File file) {
+        try (ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (DataFrame<?,?>)is.readObject();
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns a file name for the cache key, which is a digest so keys never leak into file names
+     * @param key       the cache key
+     * @param sequence  the spill sequence number, which keeps concurrent spills of one key apart
+     * @return          the file name
+     */
+    private static String toFileName(String key, long sequence) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + 6);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append("-").append(sequence).append(".frame").toString();
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to create cache file name", ex);
+        }
+    }
+
+
+    /**
+     * A frame held on heap along with its estimated size and the time it was cached
+     */
+    private static class HeapEntry {
+
+        private String key;
+        private DataFrame<?,?> frame;
+        private long bytes;
+        private long cachedAt;
+
+        /**
+         * Constructor
+         * @param key       the cache key
+         * @param frame     the cached frame
+         * @param bytes     the estimated size
+         * @param cachedAt  the nano time the frame was cached
+         */
+        HeapEntry(String key, DataFrame<?,?> frame, long bytes, long cachedAt) {
+            this.key = key;
+            this.frame = frame;
+            this.bytes = bytes;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+
+    /**
+     * A frame spilled to disk along with its file size and the time it was cached
+     */
+    private static class DiskEntry {
+
+        private File file;
+        private long bytes;
+        private long cachedAt;
+
+        /**
+         * Constructor
+         * @param file      the spill file
+         * @param bytes     the file size
+         * @param cachedAt  the nano time the frame was cached
+         */
+        DiskEntry(File file, long bytes, long cachedAt) {
+            this.file = file;
+            this.bytes = bytes;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+}
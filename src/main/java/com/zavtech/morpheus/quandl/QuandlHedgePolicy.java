@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A policy that controls when duplicate requests are issued to cut the tail latency of data and metadata requests.
+ *
+ * The policy tracks a sliding window of recent request latencies, and if a request has not completed after the
+ * configured latency percentile, a single duplicate is issued and whichever responds first wins. Each request
+ * accrues a fractional hedge credit equal to the budget, and each hedge consumes a whole credit, so hedges can
+ * never exceed the configured fraction of traffic.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHedgePolicy {
+
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_CREDITS = 10d;
+
+    private double budget;
+    private double percentile;
+    private long minDelayMillis;
+    private long[] samples;
+    private int sampleCount;
+    private int cursor;
+    private double credits;
+    private volatile long delayMillis = -1L;
+    private AtomicLong hedgeCount = new AtomicLong();
+    private AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param percentile    the latency percentile after which to hedge, for example 0.95
+     * @param budget        the max fraction of requests that may be hedged, for example 0.05
+     */
+    public QuandlHedgePolicy(double percentile, double budget) {
+        this(percentile, budget, 50L, 1000);
+    }
+
+    /**
+     * Constructor
+     * @param percentile        the latency percentile after which to hedge, for example 0.95
+     * @param budget            the max fraction of requests that may be hedged, for example 0.05
+     * @param minDelayMillis    the min delay before issuing a hedge, regardless of observed latency
+     * @param window            the number of recent latency samples used to compute the percentile
+     */
+    public QuandlHedgePolicy(double percentile, double budget, long minDelayMillis, int window) {
+        if (percentile <= 0d || percentile >= 1d) throw new IllegalArgumentException("The percentile must be in (0,1)");
+        if (budget <= 0d || budget > 1d) throw new IllegalArgumentException("The hedge budget must be in (0,1]");
+        if (window < MIN_SAMPLES) throw new IllegalArgumentException("The latency window must be >= " + MIN_SAMPLES);
+        this.percentile = percentile;
+        this.budget = budget;
+        this.minDelayMillis = Math.max(0L, minDelayMillis);
+        this.samples = new long[window];
+    }
+
+    /**
+     * Returns the latency percentile after which requests are hedged
+     * @return  the latency percentile
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Returns the max fraction of requests that may be hedged
+     * @return  the hedge budget
+     */
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the number of hedge requests issued
+     * @return  the number of hedges
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Returns the number of hedge requests that responded before the original request
+     * @return  the number of hedges that won
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Returns the current delay after which a request is hedged
+     * @return  the hedge delay in millis, -1 if too few latency samples have been recorded to hedge
+     */
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Records the start of a hedgeable request, which accrues hedge credit
+     */
+    synchronized void onRequest() {
+        this.credits = Math.min(MAX_CREDITS, credits + budget);
+    }
+
+    /**
+     * Records the latency of a completed request
+     * @param millis    the request latency in millis
+     */
+    synchronized void record(long millis) {
+        this.samples[cursor] = millis;
+        this.cursor = (cursor + 1) % samples.length;
+        this.sampleCount = Math.min(samples.length, sampleCount + 1);
+        if (sampleCount >= MIN_SAMPLES && (delayMillis < 0L || cursor % 16 == 0)) {
+            final long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            final int index = Math.min(sampleCount - 1, (int)Math.ceil(percentile * sampleCount) - 1);
+            this.delayMillis = Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+        }
+    }
+
+    /**
+     * Consumes a hedge credit if one is available
+     * @return  true if a hedge may be issued
+     */
+    synchronized boolean tryHedge() {
+        if (credits >= 1d) {
+            this.credits -= 1d;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a hedge credit that was acquired but not used
+     */
+    synchronized void refund() {
+        this.credits = Math.min(MAX_CREDITS, credits + 1d);
+    }
+
+    /**
+     * Records that a hedge request was issued
+     */
+    void onHedge() {
+        hedgeCount.incrementAndGet();
+    }
+
+    /**
+     * Records that a hedge request responded before the original request
+     */
+    void onHedgeWin() {
+        hedgeWinCount.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * An append-only local store of Quandl dataset revisions, which supports as-of queries for any past refresh time.
+ *
+ * Each dataset has its own binary log file, with one record per refresh keyed by the refreshed_at time reported
+ * by Quandl. A record only holds the rows that were added or revised since the prior refresh, along with the dates
+ * of any rows that were removed, so full histories are never duplicated on disk. Values are stored as doubles, so
+ * only numeric columns are recorded. Records are length prefixed and checksummed, and a partially written record
+ * at the end of a log, for example after a crash, is ignored on read and truncated on the next append.
+ *
+ * The file offset of every record is retained along with an in memory checkpoint of the full state after every
+ * CHECKPOINT_INTERVAL refreshes, so an as-of query copies the nearest prior checkpoint and replays at most that many
+ * records from its offset, rather than replaying the log from the start. A dataset holds at most MAX_CHECKPOINTS
+ * checkpoints, and once that is exceeded every other one is dropped and the interval doubled, which bounds memory
+ * at the expense of longer replays for very long histories. At most MAX_HISTORIES datasets are held in memory, and
+ * the least recently used is reloaded from its log when next accessed.
+ *
+ * Database and dataset codes name the log files, so they are restricted to letters, digits, underscores, dashes
+ * and dots, and may not be "." or "..".
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHistoryStore {
+
+    private static final int MAGIC = 0x51484c31;
+    private static final int CHECKPOINT_INTERVAL = 32;
+    private static final int MAX_CHECKPOINTS = 16;
+    private static final int MAX_HISTORIES = 64;
+    private static final Pattern CODE_PATTERN = Pattern.compile("[A-Za-z0-9_.\\-]+");
+
+    private File directory;
+    private Map<String,History> historyMap = new LinkedHashMap<String,History>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,History> eldest) {
+            return size() > MAX_HISTORIES;
+        }
+    };
+
+    /**
+     * Constructor
+     * @param directory the directory under which dataset logs are stored
+     */
+    public QuandlHistoryStore(File directory) {
+        Objects.requireNonNull(directory, "The history directory cannot be null");
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory under which dataset logs are stored
+     * @return  the history directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Appends a refresh of a dataset to this store, recording only the rows that changed since the prior refresh
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param dataset       the Quandl dataset code in database, for example "AAPL"
+     * @param refreshedAt   the refresh time reported by Quandl for the data
+     * @param frame         the full data for the dataset as of the refresh time
+     * @return              the number of rows added, revised or removed, 0 if nothing changed and no record written
+     * @throws QuandlException  if the refresh time precedes the latest recorded refresh, equals it but the data differs,
+     *                          or the log cannot be written
+     */
+    public synchronized int append(String database, String dataset, ZonedDateTime refreshedAt, DataFrame<LocalDate,String> frame) throws QuandlException {
+        Objects.requireNonNull(refreshedAt, "The refresh time cannot be null");
+        Objects.requireNonNull(frame, "The data frame cannot be null");
+        final History history = getHistory(database, dataset);
+        final long timestamp = refreshedAt.toInstant().toEpochMilli();
+        final long latest = history.versions.isEmpty() ? Long.MIN_VALUE : history.versions.get(history.versions.size() - 1);
+        if (timestamp < latest) {
+            throw new QuandlException("Refresh time " + refreshedAt + " precedes latest recorded refresh for " + database + "/" + dataset);
+        } else {
+            final List<String> columns = new ArrayList<>();
+            frame.cols().forEach(column -> {
+                if (Number.class.isAssignableFrom(column.typeInfo())) {
+                    columns.add(column.key());
+                }
+            });
+            final boolean schemaChanged = !columns.equals(history.columns);
+            final TreeMap<Long,double[]> rows = new TreeMap<>();
+            final List<Long> upserts = new ArrayList<>();
+            final int[] ordinals = columns.stream().mapToInt(c -> frame.cols().ordinalOf(c)).toArray();
+            for (int i=0; i<frame.rowCount(); ++i) {
+                final long epochDay = frame.rows().key(i).toEpochDay();
+                final double[] values = new double[ordinals.length];
+                for (int j=0; j<ordinals.length; ++j) {
+                    values[j] = frame.data().getDouble(i, ordinals[j]);
+                }
+                rows.put(epochDay, values);
+                final double[] prior = history.rows.get(epochDay);
+                if (schemaChanged || prior == null || !Arrays.equals(prior, values)) {
+                    upserts.add(epochDay);
+                }
+            }
+            final List<Long> deletes = new ArrayList<>();
+            history.rows.keySet().forEach(epochDay -> {
+                if (!rows.containsKey(epochDay)) {
+                    deletes.add(epochDay);
+                }
+            });
+            if (!schemaChanged && upserts.isEmpty() && deletes.isEmpty()) {
+                return 0;
+            } else if (timestamp == latest) {
+                throw new QuandlException("Refresh time " + refreshedAt + " is already recorded with different data for " + database + "/" + dataset);
+            } else {
+                final long offset = this.write(history, timestamp, columns, rows, upserts, deletes);
+                history.columns = columns;
+                history.rows = rows;
+                history.onVersion(timestamp, offset);
+                return upserts.size() + deletes.size();
+            }
+        }
+    }
+
+    /**
+     * Returns the list of refresh times recorded for a dataset, in ascending order
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code in database
+     * @return          the recorded refresh times in UTC
+     * @throws QuandlException  if the log cannot be read
+     */
+    public synchronized List<ZonedDateTime> getVersions(String database, String dataset) throws QuandlException {
+        final List<ZonedDateTime> result = new ArrayList<>();
+        getHistory(database, dataset).versions.forEach(v -> result.add(toDateTime(v)));
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the latest recorded data for a dataset
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code in database
+     * @return          the latest data, empty if nothing recorded
+     * @throws QuandlException  if the log cannot be read
+     */
+    public synchronized Optional<DataFrame<LocalDate,String>> getLatest(String database, String dataset) throws QuandlException {
+        final History history = getHistory(database, dataset);
+        return history.versions.isEmpty() ? Optional.empty() : Optional.of(createFrame(history.columns, history.rows));
+    }
+
+    /**
+     * Returns the data for a dataset as it was at the time specified, replaying the log from the nearest checkpoint
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code in database
+     * @param asOf      the as-of time
+     * @return          the data as of the time, empty if no refresh was recorded at or before that time
+     * @throws QuandlException  if the log cannot be read
+     */
+    public synchronized Optional<DataFrame<LocalDate,String>> getAsOf(String database, String dataset, ZonedDateTime asOf) throws QuandlException {
+        Objects.requireNonNull(asOf, "The as-of time cannot be null");
+        final History history = getHistory(database, dataset);
+        final long timestamp = asOf.toInstant().toEpochMilli();
+        if (history.versions.isEmpty() || timestamp < history.versions.get(0)) {
+            return Optional.empty();
+        } else if (timestamp >= history.versions.get(history.versions.size() - 1)) {
+            return Optional.of(createFrame(history.columns, history.rows));
+        } else {
+            final int version = floorVersion(history.versions, timestamp);
+            final History replay = new History(history.file);
+            final Map.Entry<Integer,Checkpoint> entry = history.checkpoints.floorEntry(version);
+            final Checkpoint checkpoint = entry != null ? entry.getValue() : null;
+            final int from = checkpoint != null ? checkpoint.version + 1 : 0;
+            if (checkpoint != null) {
+                replay.columns = checkpoint.columns;
+                replay.rows = new TreeMap<>(checkpoint.rows);
+            }
+            if (from <= version) {
+                this.replay(replay, history.offsets.get(from), version - from + 1);
+            }
+            return Optional.of(createFrame(replay.columns, replay.rows));
+        }
+    }
+
+
+    /**
+     * Returns the number of checkpoints held in memory for a dataset
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code in database
+     * @return          the number of checkpoints
+     * @throws QuandlException  if the log cannot be read
+     */
+    synchronized int getCheckpointCount(String database, String dataset) throws QuandlException {
+        return getHistory(database, dataset).checkpoints.size();
+    }
+
+
+    /**
+     * Returns the history for the dataset, loading the latest state from its log if required
+     * @param database  the Quandl database code
+     * @param dataset   the Quandl dataset code in database
+     * @return          the history for dataset
+     * @throws QuandlException  if either code is invalid, or the log cannot be read
+     */
+    private History getHistory(String database, String dataset) throws QuandlException {
+        Objects.requireNonNull(database, "The database code cannot be null");
+        Objects.requireNonNull(dataset, "The dataset code cannot be null");
+        checkCode("database", database);
+        checkCode("dataset", dataset);
+        final String key = database + "/" + dataset;
+        History history = historyMap.get(key);
+        if (history == null) {
+            history = new History(new File(new File(directory, database), dataset + ".history"));
+            this.load(history);
+            this.historyMap.put(key, history);
+        }
+        return history;
+    }
+
+
+    /**
+     * Checks that a code is safe to use as a file name within the history directory
+     * @param type  the type of code, for the exception message
+     * @param code  the database or dataset code
+     * @throws QuandlException  if the code contains characters other than letters, digits, '_', '-' and '.', or is a relative path
+     */
+    private static void checkCode(String type, String code) throws QuandlException {
+        if (!CODE_PATTERN.matcher(code).matches() || code.equals(".") || code.equals("..")) {
+            throw new QuandlException("Invalid Quandl " + type + " code for history store: " + code);
+        }
+    }
+
+
+    /**
+     * Loads the latest state of the history from its log, recording the offset of each version and the checkpoints
+     * A log too short to hold its header, for example after a crash while creating it, is treated as empty and
+     * truncated on the next append.
+     * @param history   the history to populate
+     * @throws QuandlException  if the log cannot be read
+     */
+    private void load(History history) throws QuandlException {
+        if (history.file.exists() && history.file.length() >= 4L) {
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(history.file)))) {
+                if (is.readInt() != MAGIC) {
+                    throw new QuandlException("Not a Quandl history log: " + history.file.getAbsolutePath());
+                }
+                history.validLength = 4L;
+                while (true) {
+                    final byte[] record = readRecord(is);
+                    if (record == null) break;
+                    final long offset = history.validLength;
+                    history.onVersion(apply(history, record), offset);
+                    history.validLength += 8 + record.length;
+                }
+            } catch (QuandlException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new QuandlException("Failed to read Quandl history log " + history.file.getAbsolutePath(), ex);
+            }
+        }
+    }
+
+
+    /**
+     * Replays a run of records from the log onto the state specified
+     * @param state     the state to apply records to
+     * @param offset    the file offset of the first record to replay
+     * @param count     the number of records to replay
+     * @throws QuandlException  if the log cannot be read
+     */
+    private void replay(History state, long offset, int count) throws QuandlException {
+        try (FileInputStream fis = new FileInputStream(state.file)) {
+            fis.getChannel().position(offset);
+            final DataInputStream is = new DataInputStream(new BufferedInputStream(fis));
+            for (int i=0; i<count; ++i) {
+                final byte[] record = readRecord(is);
+                if (record == null) {
+                    throw new QuandlException("Quandl history log is truncated: " + state.file.getAbsolutePath());
+                } else {
+                    this.apply(state, record);
+                }
+            }
+        } catch (QuandlException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to read Quandl history log " + state.file.getAbsolutePath(), ex);
+        }
+    }
+
+
+    /**
+     * Applies a single log record to the state specified
+     * @param state     the state to apply the record to
+     * @param record    the record bytes
+     * @return          the refresh time of the record in epoch millis
+     * @throws IOException  if the record cannot be decoded
+     */
+    private long apply(History state, byte[] record) throws IOException {
+        final DataInputStream ris = new DataInputStream(new ByteArrayInputStream(record));
+        final long refreshedAt = ris.readLong();
+        final int columnCount = ris.readInt();
+        final List<String> columns = new ArrayList<>(columnCount);
+        for (int i=0; i<columnCount; ++i) {
+            columns.add(ris.readUTF());
+        }
+        if (!columns.equals(state.columns)) {
+            state.columns = columns;
+            state.rows.clear();
+        }
+        final int upsertCount = ris.readInt();
+        for (int i=0; i<upsertCount; ++i) {
+            final long epochDay = ris.readLong();
+            final double[] values = new double[columnCount];
+            for (int j=0; j<columnCount; ++j) {
+                values[j] = ris.readDouble();
+            }
+            state.rows.put(epochDay, values);
+        }
+        final int deleteCount = ris.readInt();
+        for (int i=0; i<deleteCount; ++i) {
+            state.rows.remove(ris.readLong());
+        }
+        return refreshedAt;
+    }
+
+
+    /**
+     * Returns the index of the latest version recorded at or before the timestamp
+     * @param versions  the refresh times in ascending order
+     * @param timestamp the as-of time in epoch millis, which must not precede the first version
+     * @return          the index of the version in effect at the timestamp
+     */
+    private static int floorVersion(List<Long> versions, long timestamp) {
+        int low = 0, high = versions.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (versions.get(mid) <= timestamp) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Returns the next complete record from the log, or null if the end of log or a partial record is reached
+     * @param is    the log input stream
+     * @return      the record bytes, null if no further complete record
+     * @throws IOException  if an I/O error occurs
+     */
+    private byte[] readRecord(DataInputStream is) throws IOException {
+        try {
+            final int length = is.readInt();
+            final int checksum = is.readInt();
+            if (length < 0) {
+                return null;
+            } else {
+                final byte[] record = new byte[length];
+                is.readFully(record);
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+                return (int)crc.getValue() == checksum ? record : null;
+            }
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Appends a record for a refresh to the log of the history specified
+     * @param history   the dataset history
+     * @param timestamp the refresh time in epoch millis
+     * @param columns   the numeric columns as of the refresh
+     * @param rows      the full rows as of the refresh
+     * @param upserts   the epoch days of added or revised rows
+     * @param deletes   the epoch days of removed rows
+     * @return          the file offset of the appended record
+     * @throws QuandlException  if the log cannot be written
+     */
+    private long write(History history, long timestamp, List<String> columns, TreeMap<Long,double[]> rows, List<Long> upserts, List<Long> deletes) throws QuandlException {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + upserts.size() * (8 + columns.size() * 8));
+            final DataOutputStream os = new DataOutputStream(bytes);
+            os.writeLong(timestamp);
+            os.writeInt(columns.size());
+            for (String column : columns) {
+                os.writeUTF(column);
+            }
+            os.writeInt(upserts.size());
+            for (Long epochDay : upserts) {
+                os.writeLong(epochDay);
+                for (double value : rows.get(epochDay)) {
+                    os.writeDouble(value);
+                }
+            }
+            os.writeInt(deletes.size());
+            for (Long epochDay : deletes) {
+                os.writeLong(epochDay);
+            }
+            os.flush();
+            final byte[] record = bytes.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(record);
+            final File file = history.file;
+            final File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new QuandlException("Failed to create directory for Quandl history: " + parent.getAbsolutePath());
+            }
+            if (file.exists() && file.length() > history.validLength) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(history.validLength);
+                }
+            }
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                final DataOutputStream out = new DataOutputStream(fos);
+                if (history.validLength == 0L) {
+                    out.writeInt(MAGIC);
+                    history.validLength = 4L;
+                }
+                out.writeInt(record.length);
+                out.writeInt((int)crc.getValue());
+                out.write(record);
+                out.flush();
+                fos.getFD().sync();
+            }
+            final long offset = history.validLength;
+            history.validLength += 8 + record.length;
+            return offset;
+        } catch (QuandlException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to write Quandl history log " + history.file.getAbsolutePath(), ex);
+        }
+    }
+
+
+    /**
+     * Returns a DataFrame for the columns and rows specified
+     * @param columns   the column keys
+     * @param rows      the rows keyed by epoch day, in ascending order
+     * @return          the newly created DataFrame
+     */
+    private DataFrame<LocalDate,String> createFrame(List<String> columns, TreeMap<Long,double[]> rows) {
+        final Index<LocalDate> rowKeys = Index.of(LocalDate.class, rows.size());
+        final double[][] values = new double[columns.size()][rows.size()];
+        int rowIndex = 0;
+        for (Map.Entry<Long,double[]> entry : rows.entrySet()) {
+            rowKeys.add(LocalDate.ofEpochDay(entry.getKey()));
+            final double[] row = entry.getValue();
+            for (int j=0; j<row.length; ++j) {
+                values[j][rowIndex] = row[j];
+            }
+            rowIndex++;
+        }
+        return DataFrame.of(rowKeys, String.class, cols -> {
+            for (int j=0; j<columns.size(); ++j) {
+                cols.add(columns.get(j), Array.of(values[j]));
+            }
+        });
+    }
+
+
+    /**
+     * Returns the UTC date time for the epoch millis specified
+     * @param epochMillis   the epoch millis
+     * @return              the UTC date time
+     */
+    private static ZonedDateTime toDateTime(long epochMillis) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC);
+    }
+
+
+    /**
+     * The replayed state of a dataset log
+     */
+    private static class History {
+
+        private File file;
+        private long validLength;
+        private int checkpointInterval = CHECKPOINT_INTERVAL;
+        private List<String> columns = Collections.emptyList();
+        private List<Long> versions = new ArrayList<>();
+        private List<Long> offsets = new ArrayList<>();
+        private TreeMap<Long,double[]> rows = new TreeMap<>();
+        private TreeMap<Integer,Checkpoint> checkpoints = new TreeMap<>();
+
+        /**
+         * Constructor
+         * @param file  the log file for dataset
+         */
+        History(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Records a version whose record has been applied to this state, taking a checkpoint at each interval
+         * If this exceeds the max checkpoints, the interval is doubled and checkpoints off the new interval dropped.
+         * @param refreshedAt   the refresh time of the version in epoch millis
+         * @param offset        the file offset of the version record
+         */
+        void onVersion(long refreshedAt, long offset) {
+            this.versions.add(refreshedAt);
+            this.offsets.add(offset);
+            if (versions.size() % checkpointInterval == 0) {
+                final int version = versions.size() - 1;
+                this.checkpoints.put(version, new Checkpoint(version, columns, new TreeMap<>(rows)));
+                if (checkpoints.size() > MAX_CHECKPOINTS) {
+                    this.checkpointInterval *= 2;
+                    this.checkpoints.keySet().removeIf(v -> (v + 1) % checkpointInterval != 0);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The full state of a dataset after a given version, which shares row values with the live state as they are never mutated
+     */
+    private static class Checkpoint {
+
+        private int version;
+        private List<String> columns;
+        private TreeMap<Long,double[]> rows;
+
+        /**
+         * Constructor
+         * @param version   the index of the version this checkpoint follows
+         * @param columns   the columns as of the version
+         * @param rows      the rows as of the version
+         */
+        Checkpoint(int version, List<String> columns, TreeMap<Long,double[]> rows) {
+            this.version = version;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A response level cache that stores Quandl response bodies along with their HTTP validators.
+ *
+ * Cached entries are revalidated with <code>If-None-Match</code> and <code>If-Modified-Since</code> headers,
+ * so a repeated request for unchanged content costs a header exchange rather than a full download. Each entry
+ * also retains the result of parsing its body, so a 304 response can skip the parse as well. The size budget covers
+ * both the bodies and the estimated size of their parsed content, and parsed content that would not fit alongside
+ * its body is simply not retained.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHttpCache {
+
+    private long maxBytes;
+    private long totalBytes;
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private Map<String,Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor
+     * @param maxBytes  the max number of body and parsed content bytes to retain, least recently used entries are evicted first
+     */
+    public QuandlHttpCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("The cache size must be > 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of requests that were revalidated with a 304 response
+     * @return  the number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of requests that required a full response body
+     * @return  the number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of entries in this cache
+     * @return  the number of entries
+     */
+    public synchronized int size() {
+        return entryMap.size();
+    }
+
+    /**
+     * Returns the total number of body bytes and estimated parsed content bytes held by this cache
+     * @return  the total number of bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Removes all entries from this cache
+     */
+    public synchronized void clear() {
+        this.entryMap.values().forEach(entry -> entry.owner = null);
+        this.entryMap.clear();
+        this.totalBytes = 0L;
+    }
+
+    /**
+     * Returns the cache entry for the key specified
+     * @param key   the cache key, usually the request URL
+     * @return      the cache entry, null if no match
+     */
+    synchronized Entry get(String key) {
+        return entryMap.get(key);
+    }
+
+    /**
+     * Stores an entry in this cache, evicting least recently used entries if required
+     * @param key   the cache key, usually the request URL
+     * @param entry the entry to store
+     */
+    synchronized void put(String key, Entry entry) {
+        if (entry.body.length <= maxBytes) {
+            final Entry prior = entryMap.put(key, entry);
+            if (prior != null) {
+                prior.owner = null;
+                this.totalBytes -= prior.size();
+            }
+            entry.owner = this;
+            this.totalBytes += entry.size();
+            this.evict();
+        }
+    }
+
+    /**
+     * Stores the parsed content of an entry held by this cache, charging its estimated size against the budget
+     * @param entry     the cache entry
+     * @param content   the parsed content
+     * @return          true if the content was retained, false if the entry is no longer cached or the content is too large
+     */
+    private synchronized boolean retain(Entry entry, Object content) {
+        if (entry.owner != this || entry.content != null) {
+            return false;
+        } else {
+            final long contentBytes = estimateBytes(content, entry.body.length);
+            if (entry.body.length + contentBytes > maxBytes) {
+                return false;
+            } else {
+                entry.content = content;
+                entry.contentBytes = contentBytes;
+                this.totalBytes += contentBytes;
+                this.evict();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the total bytes are within the budget
+     */
+    private void evict() {
+        final Iterator<Entry> iterator = entryMap.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            entry.owner = null;
+            this.totalBytes -= entry.size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the estimated heap size of content parsed from a response body
+     * @param content       the parsed content
+     * @param bodyLength    the length of the body it was parsed from
+     * @return              the estimated size in bytes
+     */
+    private static long estimateBytes(Object content, int bodyLength) {
+        if (content instanceof DataFrame) {
+            return QuandlFrameCache.estimateBytes((DataFrame<?,?>)content);
+        } else {
+            return bodyLength;
+        }
+    }
+
+    /**
+     * Records the outcome of a revalidation
+     * @param hit   true if the cached entry was still valid
+     */
+    void record(boolean hit) {
+        if (hit) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * A cached response body along with its validators and parsed content
+     */
+    static class Entry {
+
+        private byte[] body;
+        private String etag;
+        private String lastModified;
+        private volatile Object content;
+        private volatile QuandlHttpCache owner;
+        private long contentBytes;
+
+        /**
+         * Constructor
+         * @param body          the response body
+         * @param etag          the ETag header value, null permitted
+         * @param lastModified  the Last-Modified header value, null permitted
+         */
+        Entry(byte[] body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the response body for this entry
+         * @return  the response body
+         */
+        byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the ETag validator for this entry
+         * @return  the ETag, null if none
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Returns the Last-Modified validator for this entry
+         * @return  the Last-Modified value, null if none
+         */
+        String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the parsed content for this entry, null if not yet parsed or not retained
+         * @return  the parsed content
+         */
+        Object getContent() {
+            return content;
+        }
+
+        /**
+         * Retains the parsed content for this entry if it is still cached and the content fits the cache budget
+         * @param content   the parsed content
+         * @return          true if the content was retained
+         */
+        boolean retain(Object content) {
+            final QuandlHttpCache owner = this.owner;
+            return owner != null && owner.retain(this, content);
+        }
+
+        /**
+         * Returns the number of bytes this entry charges against the cache budget
+         * @return  the body length plus the estimated size of the parsed content
+         */
+        private long size() {
+            return body.length + contentBytes;
+        }
+    }
+
+}
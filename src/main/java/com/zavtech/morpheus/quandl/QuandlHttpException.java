@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+/**
+ * A QuandlException raised when Quandl responds with an HTTP error status
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHttpException extends QuandlException {
+
+    private int status;
+
+    /**
+     * Constructor
+     *
+     * @param message the exception message
+     * @param status  the HTTP status code
+     */
+    public QuandlHttpException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Returns the HTTP status code returned by Quandl
+     * @return  the HTTP status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the error was caused by the request rather than the server, such as an unknown dataset
+     * @return  true for a 4xx status other than 429 Too Many Requests
+     */
+    public boolean isClientError() {
+        return status >= 400 && status < 500 && status != 429;
+    }
+}
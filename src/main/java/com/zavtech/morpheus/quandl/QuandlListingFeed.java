@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A feed of changes to the dataset listing of Quandl databases, which avoids re-processing full listings each day.
+ *
+ * For each database, a fingerprint of the previously seen listing is persisted as a digest of the raw archive along
+ * with the code and a 64-bit hash of the description of every dataset. A refresh compares the digest of the newly
+ * downloaded archive to the fingerprint and skips parsing entirely if it is unchanged, and attaching a QuandlHttpCache
+ * to the source avoids the download too, via ETag revalidation. Otherwise the archive is streamed line by line without
+ * building any DataFrames, and only the added, removed and re-described codes are reported.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlListingFeed {
+
+    private static final int MAGIC = 0x514c4631;
+
+    private File directory;
+    private QuandlSource<?,?> source;
+
+    /**
+     * Constructor
+     * @param source    the source used to download dataset listings
+     * @param directory the directory under which listing fingerprints are stored
+     */
+    public QuandlListingFeed(QuandlSource<?,?> source, File directory) {
+        Objects.requireNonNull(source, "The Quandl source cannot be null");
+        Objects.requireNonNull(directory, "The fingerprint directory cannot be null");
+        this.source = source;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory under which listing fingerprints are stored
+     * @return  the fingerprint directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Downloads the dataset listing for a database, and returns the changes since the last refresh of that database
+     * The first refresh of a database reports every code as added. The fingerprint is replaced once changes are computed.
+     * @param database  the Quandl database code, for example "WIKI"
+     * @return          the changes to the listing since the last refresh
+     * @throws QuandlException  if the listing cannot be downloaded, or the fingerprint cannot be read or written
+     */
+    public synchronized Changes refresh(String database) throws QuandlException {
+        Objects.requireNonNull(database, "The database code cannot be null");
+        final QuandlResponse response = source.getDatasetArchive(database);
+        return refresh(database, response.getBody());
+    }
+
+    /**
+     * Returns the changes between the archive specified and the fingerprint of the last refresh of a database
+     * @param database  the Quandl database code
+     * @param archive   the zip archive with the dataset listing for the database
+     * @return          the changes to the listing since the last refresh
+     * @throws QuandlException  if the fingerprint cannot be read or written, or the archive cannot be parsed
+     */
+    synchronized Changes refresh(String database, byte[] archive) throws QuandlException {
+        final File file = new File(directory, database + ".listing");
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(archive);
+            if (file.exists() && Arrays.equals(readDigest(file), digest)) {
+                return new Changes(database, true);
+            } else {
+                final Map<String,Long> previous = file.exists() ? readCodes(file) : new HashMap<>();
+                final Map<String,Long> current = new HashMap<>(Math.max(16, previous.size() * 4 / 3));
+                final Changes changes = new Changes(database, false);
+                try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+                    for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                        final BufferedReader reader = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+                        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                            final int comma = line.indexOf(',');
+                            if (comma > 0) {
+                                final String code = line.substring(0, comma);
+                                final String description = unquote(line, comma + 1);
+                                final long hash = hash(description);
+                                final Long prior = previous.remove(code);
+                                current.put(code, hash);
+                                if (prior == null) {
+                                    changes.added.put(code, description);
+                                } else if (prior != hash) {
+                                    changes.changed.put(code, description);
+                                }
+                            }
+                        }
+                    }
+                }
+                changes.removed.addAll(previous.keySet());
+                this.write(file, digest, current);
+                return changes;
+            }
+        } catch (QuandlException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new QuandlException("Failed to refresh dataset listing for " + database + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Returns the archive digest recorded in a fingerprint file, reading only its header
+     * @param file  the fingerprint file
+     * @return      the archive digest
+     * @throws IOException  if the file cannot be read
+     */
+    private byte[] readDigest(File file) throws IOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return readHeader(is, file);
+        }
+    }
+
+    /**
+     * Returns the code to description hash map recorded in a fingerprint file
+     * @param file  the fingerprint file
+     * @return      the map of codes to description hashes
+     * @throws IOException  if the file cannot be read
+     */
+    private Map<String,Long> readCodes(File file) throws IOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 64))) {
+            readHeader(is, file);
+            final int count = is.readInt();
+            final Map<String,Long> codes = new HashMap<>(Math.max(16, count * 4 / 3));
+            for (int i=0; i<count; ++i) {
+                final String code = is.readUTF();
+                codes.put(code, is.readLong());
+            }
+            return codes;
+        }
+    }
+
+    /**
+     * Reads the header of a fingerprint file and returns the archive digest
+     * @param is    the input stream positioned at the start of the file
+     * @param file  the fingerprint file
+     * @return      the archive digest
+     * @throws IOException  if the file cannot be read
+     */
+    private byte[] readHeader(DataInputStream is, File file) throws IOException {
+        if (is.readInt() != MAGIC) {
+            throw new QuandlException("Not a Quandl listing fingerprint: " + file.getAbsolutePath());
+        } else {
+            final byte[] digest = new byte[is.readUnsignedShort()];
+            is.readFully(digest);
+            return digest;
+        }
+    }
+
+    /**
+     * Writes a fingerprint file, replacing any prior file atomically so a crash never leaves a partial fingerprint
+     * @param file      the fingerprint file
+     * @param digest    the archive digest
+     * @param codes     the map of codes to description hashes
+     * @throws IOException  if the file cannot be written
+     */
+    private void write(File file, byte[] digest, Map<String,Long> codes) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new QuandlException("Failed to create fingerprint directory: " + directory.getAbsolutePath());
+        } else {
+            final File tmp = new File(directory, file.getName() + ".tmp");
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 64))) {
+                os.writeInt(MAGIC);
+                os.writeShort(digest.length);
+                os.write(digest);
+                os.writeInt(codes.size());
+                for (Map.Entry<String,Long> entry : codes.entrySet()) {
+                    os.writeUTF(entry.getKey());
+                    os.writeLong(entry.getValue());
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Returns the value of the CSV field starting at the offset specified, removing quotes and escaped quotes
+     * @param line      the CSV line
+     * @param offset    the offset of the field in line
+     * @return          the unquoted field value
+     */
+    private static String unquote(String line, int offset) {
+        if (offset >= line.length() || line.charAt(offset) != '"') {
+            return line.substring(offset);
+        } else {
+            final StringBuilder value = new StringBuilder(line.length() - offset);
+            for (int i=offset+1; i<line.length(); ++i) {
+                final char c = line.charAt(i);
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    ++i;
+                } else {
+                    break;
+                }
+            }
+            return value.toString();
+        }
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the string specified
+     * @param value the string to hash
+     * @return      the 64-bit hash
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=0; i<value.length(); ++i) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+
+    /**
+     * The changes to the dataset listing of a database between two refreshes
+     */
+    public static class Changes {
+
+        private String database;
+        private boolean unchanged;
+        private Map<String,String> added = new LinkedHashMap<>();
+        private Map<String,String> changed = new LinkedHashMap<>();
+        private Set<String> removed = new TreeSet<>();
+
+        /**
+         * Constructor
+         * @param database  the Quandl database code
+         * @param unchanged true if the archive was identical to the prior refresh and was not parsed
+         */
+        Changes(String database, boolean unchanged) {
+            this.database = database;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * Returns the Quandl database code these changes apply to
+         * @return  the database code
+         */
+        public String getDatabase() {
+            return database;
+        }
+
+        /**
+         * Returns true if the listing archive was identical to the prior refresh, in which case it was not parsed
+         * @return  true if the archive was unchanged
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Returns true if no codes were added, removed or re-described
+         * @return  true if there are no changes
+         */
+        public boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+
+        /**
+         * Returns the codes added since the prior refresh, in listing order, mapped to their description
+         * @return  the added codes and descriptions
+         */
+        public Map<String,String> getAdded() {
+            return Collections.unmodifiableMap(added);
+        }
+
+        /**
+         * Returns the codes whose description changed since the prior refresh, mapped to their new description
+         * @return  the changed codes and descriptions
+         */
+        public Map<String,String> getChanged() {
+            return Collections.unmodifiableMap(changed);
+        }
+
+        /**
+         * Returns the codes removed since the prior refresh
+         * @return  the removed codes, sorted
+         */
+        public Set<String> getRemoved() {
+            return Collections.unmodifiableSet(removed);
+        }
+
+        @Override
+        public String toString() {
+            return "Changes{database=" + database + ", added=" + added.size() + ", changed=" + changed.size() + ", removed=" + removed.size() + "}";
+        }
+    }
+
+}
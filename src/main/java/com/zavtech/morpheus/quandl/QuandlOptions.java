@@ -15,6 +15,7 @@
  */
 package com.zavtech.morpheus.quandl;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.Optional;
 
@@ -24,13 +25,17 @@ import com.zavtech.morpheus.util.Asserts;
 /**
  * A generic request descriptor to load various kinds of data and meta-data from Quandl.
  *
+ * Options are populated by a configurator for a single request, and are sealed once the request is issued, so that
+ * they are effectively immutable while the request is in flight and can safely be read from any thread. Use copy()
+ * to derive a modified request from options that have been sealed.
+ *
  * @author Xavier Witdouck
  *
  * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
  */
 public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
 
-    enum Operation {
+    public enum Operation {
         DATA,
         DATABASES,
         DATASETS,
@@ -49,6 +54,10 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
     private LocalDate endDate;
     private Operation operation;
     private Boolean ascending;
+    private Duration timeout;
+    private QuandlCancelToken cancelToken;
+    private volatile boolean sealed;
+    private volatile QuandlDeadline deadline;
 
 
     /**
@@ -72,11 +81,80 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
         }
     }
 
+    /**
+     * Returns true if these options have been sealed because a request was issued with them
+     * @return  true if these options can no longer be modified
+     */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Returns a copy of these options which is not sealed, and can therefore be modified and issued again
+     * @return  the unsealed copy of these options
+     */
+    public QuandlOptions<R,C> copy() {
+        final QuandlOptions<R,C> copy = new QuandlOptions<>();
+        copy.apiKey = apiKey;
+        copy.limit = limit;
+        copy.rows = rows;
+        copy.colIndex = colIndex;
+        copy.maxPages = maxPages;
+        copy.pageSize = pageSize;
+        copy.databaseCode = databaseCode;
+        copy.datasetCode = datasetCode;
+        copy.startDate = startDate;
+        copy.endDate = endDate;
+        copy.operation = operation;
+        copy.ascending = ascending;
+        copy.timeout = timeout;
+        copy.cancelToken = cancelToken;
+        return copy;
+    }
+
+    /**
+     * Seals these options so they cannot be modified while the request they describe is in flight
+     */
+    void seal() {
+        this.seal(null);
+    }
+
+    /**
+     * Seals these options and starts the deadline for the request they describe
+     * @param inherited the deadline of a parent request to share, null to start a new deadline from these options
+     */
+    void seal(QuandlDeadline inherited) {
+        if (deadline == null) {
+            this.deadline = inherited != null ? inherited : timeout != null || cancelToken != null ? new QuandlDeadline(timeout, cancelToken) : QuandlDeadline.NONE;
+        }
+        this.sealed = true;
+    }
+
+    /**
+     * Returns the deadline for the request described by these options, which starts when the options are sealed
+     * @return  the request deadline, QuandlDeadline.NONE if unbounded or not yet sealed
+     */
+    QuandlDeadline getDeadline() {
+        final QuandlDeadline deadline = this.deadline;
+        return deadline != null ? deadline : QuandlDeadline.NONE;
+    }
+
+    /**
+     * Checks that these options have not been sealed
+     * @throws IllegalStateException    if these options have been sealed
+     */
+    private void checkMutable() {
+        if (sealed) {
+            throw new IllegalStateException("Quandl options cannot be modified once a request has been issued with them");
+        }
+    }
+
     /**
      * Sets the operation for these options
      * @param operation the operation
      */
     public void setOperation(Operation operation) {
+        this.checkMutable();
         this.operation = operation;
     }
 
@@ -85,6 +163,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param apiKey    the API key for request, otherwise use key associated with source
      */
     public void setApiKey(String apiKey) {
+        this.checkMutable();
         this.apiKey = apiKey;
     }
 
@@ -93,6 +172,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param databaseCode  the database code
      */
     public void setDatabase(String databaseCode) {
+        this.checkMutable();
         this.databaseCode = databaseCode;
     }
 
@@ -101,6 +181,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param datasetCode   the dataset code
      */
     public void setDataset(String datasetCode) {
+        this.checkMutable();
         this.datasetCode = datasetCode;
     }
 
@@ -109,6 +190,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param startDate the start date
      */
     public void setStartDate(LocalDate startDate) {
+        this.checkMutable();
         this.startDate = startDate;
     }
 
@@ -117,6 +199,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param endDate   the end date
      */
     public void setEndDate(LocalDate endDate) {
+        this.checkMutable();
         this.endDate = endDate;
     }
 
@@ -125,6 +208,7 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param startDate the start date
      */
     public void setStartDate(String startDate) {
+        this.checkMutable();
         this.startDate = startDate != null ? LocalDate.parse(startDate) : null;
     }
 
@@ -133,9 +217,59 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
      * @param endDate the end date
      */
     public void setEndDate(String endDate) {
+        this.checkMutable();
         this.endDate = endDate != null ? LocalDate.parse(endDate) : null;
     }
 
+    /**
+     * Sets the max number of rows to return for data requests
+     * @param limit the row limit, null for no limit
+     */
+    public void setLimit(Integer limit) {
+        this.checkMutable();
+        this.limit = limit;
+    }
+
+    /**
+     * Sets the index of the single column to return for data requests
+     * @param colIndex  the column index, null for all columns
+     */
+    public void setColumnIndex(Integer colIndex) {
+        this.checkMutable();
+        this.colIndex = colIndex;
+    }
+
+    /**
+     * Sets whether data rows should be returned in ascending or descending date order
+     * @param ascending true for ascending order, false for descending
+     */
+    public void setAscending(boolean ascending) {
+        this.checkMutable();
+        this.ascending = ascending;
+    }
+
+    /**
+     * Sets the max time the request may take across connect, download, parse and all pages, after which it fails
+     * with a QuandlTimeoutException
+     * @param timeout   the request timeout, null for no timeout
+     */
+    public void setTimeout(Duration timeout) {
+        this.checkMutable();
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("The Quandl request timeout must be > 0");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets a token that can be used to cancel the request from another thread
+     * @param cancelToken   the cancel token, null for none
+     */
+    public void setCancelToken(QuandlCancelToken cancelToken) {
+        this.checkMutable();
+        this.cancelToken = cancelToken;
+    }
+
     /**
      * Returns the operation code for these options
      * @return  the operation code
@@ -224,6 +358,36 @@ public class QuandlOptions<R,C> implements DataFrameSource.Options<R,C> {
         return Optional.ofNullable(ascending);
     }
 
+    /**
+     * Returns the optional timeout for the request
+     * @return      the optional request timeout
+     */
+    public Optional<Duration> getTimeout() {
+        return Optional.ofNullable(timeout);
+    }
+
+    /**
+     * Returns the optional cancel token for the request
+     * @return      the optional cancel token
+     */
+    public Optional<QuandlCancelToken> getCancelToken() {
+        return Optional.ofNullable(cancelToken);
+    }
+
+    /**
+     * Returns a key that identifies the request described by these options
+     * @return      the request key
+     */
+    String toKey() {
+        return getOperation() + "|" +
+            getApiKey().orElse("") + "|" +
+            getDatabaseCode().orElse("") + "|" +
+            getDatasetCode().orElse("") + "|" +
+            getMaxPages().map(String::valueOf).orElse("") + "|" +
+            getPageSize().map(String::valueOf).orElse("") + "|" +
+            toQueryString();
+    }
+
     /**
      * Returns a URL query string for these options
      * @return      the URL query string
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * A builder that combines many per-dataset Quandl time series into a single panel DataFrame.
+ *
+ * Rather than repeatedly calling <code>DataFrame.combineFirst()</code>, which rebuilds the row index and
+ * copies all columns on each step, this class performs a single k-way merge of the date sorted row keys
+ * of all input frames into one shared row axis, and then lays out each column exactly once. Numeric columns
+ * are stored as primitive doubles with NaN representing missing values.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPanel {
+
+    private Naming naming;
+    private List<Series> seriesList = new ArrayList<>();
+
+    /**
+     * A function that generates panel column keys from the dataset identity and source column name
+     */
+    @FunctionalInterface
+    public interface Naming {
+
+        /**
+         * Returns the panel column key for the dataset column specified
+         * @param database  the Quandl database code, for example "WIKI"
+         * @param dataset   the Quandl dataset code, for example "AAPL"
+         * @param column    the column key in the per-dataset frame, for example "Close"
+         * @return          the column key in the panel
+         */
+        String apply(String database, String dataset, String column);
+    }
+
+    /**
+     * Constructor
+     */
+    public QuandlPanel() {
+        this.naming = (database, dataset, column) -> database + "/" + dataset + "/" + column;
+    }
+
+    /**
+     * Sets the naming function used to generate panel column keys, defaults to DB/DATASET/Column
+     * @param naming    the naming function
+     * @return          this panel builder
+     */
+    public QuandlPanel setNaming(Naming naming) {
+        Objects.requireNonNull(naming, "The panel naming function cannot be null");
+        this.naming = naming;
+        return this;
+    }
+
+    /**
+     * Adds a per-dataset frame to this panel builder
+     * @param database  the Quandl database code for the frame
+     * @param dataset   the Quandl dataset code for the frame
+     * @param frame     the frame of data, typically as returned by Quandl.getDailyData()
+     * @return          this panel builder
+     */
+    public QuandlPanel add(String database, String dataset, DataFrame<LocalDate,String> frame) {
+        Objects.requireNonNull(database, "The database code cannot be null");
+        Objects.requireNonNull(dataset, "The dataset code cannot be null");
+        Objects.requireNonNull(frame, "The frame cannot be null");
+        this.seriesList.add(new Series(database, dataset, frame));
+        return this;
+    }
+
+    /**
+     * Returns the number of frames added to this builder
+     * @return  the number of frames
+     */
+    public int size() {
+        return seriesList.size();
+    }
+
+    /**
+     * Returns a newly created panel DataFrame combining all frames added to this builder
+     * @return      the panel DataFrame, with the union of all dates along the row axis
+     * @throws QuandlException  if two input columns map to the same panel column key
+     */
+    public DataFrame<LocalDate,String> build() throws QuandlException {
+        final long[] axis = mergeKeys();
+        final Index<LocalDate> rowKeys = Index.of(LocalDate.class, axis.length);
+        for (long epochDay : axis) {
+            rowKeys.add(LocalDate.ofEpochDay(epochDay));
+        }
+        final Set<String> columnKeys = new HashSet<>();
+        return DataFrame.of(rowKeys, String.class, columns -> {
+            for (Series series : seriesList) {
+                final DataFrame<LocalDate,String> frame = series.frame;
+                for (int j=0; j<frame.colCount(); ++j) {
+                    final String column = frame.cols().key(j);
+                    final String key = naming.apply(series.database, series.dataset, column);
+                    if (!columnKeys.add(key)) {
+                        throw new QuandlException("Duplicate column key in Quandl panel: " + key);
+                    } else {
+                        columns.add(key, series.layout(j, axis.length));
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Performs a k-way merge of the sorted epoch day keys of all series, recording row positions along the way
+     * @return  the sorted array of distinct epoch days across all series
+     */
+    private long[] mergeKeys() {
+        final int capacity = seriesList.stream().mapToInt(s -> s.keys.length).max().orElse(0);
+        final PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, seriesList.size()));
+        seriesList.stream().filter(s -> s.keys.length > 0).map(Cursor::new).forEach(queue::add);
+        long[] axis = new long[Math.max(16, capacity)];
+        int count = 0;
+        while (!queue.isEmpty()) {
+            final Cursor cursor = queue.poll();
+            final long key = cursor.key();
+            if (count == 0 || axis[count-1] != key) {
+                if (count == axis.length) axis = Arrays.copyOf(axis, axis.length * 2);
+                axis[count++] = key;
+            }
+            cursor.series.positions[cursor.index] = count - 1;
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+        return Arrays.copyOf(axis, count);
+    }
+
+
+    /**
+     * A holder for a single input frame, its sorted row keys and their positions in the merged axis
+     */
+    private static class Series {
+
+        private String database;
+        private String dataset;
+        private DataFrame<LocalDate,String> frame;
+        /** The epoch day row keys of the frame in ascending order */
+        private long[] keys;
+        /** The frame row ordinal for each entry in keys */
+        private int[] ordinals;
+        /** The merged axis position for each entry in keys */
+        private int[] positions;
+
+        /**
+         * Constructor
+         * @param database  the database code
+         * @param dataset   the dataset code
+         * @param frame     the frame of data
+         */
+        Series(String database, String dataset, DataFrame<LocalDate,String> frame) {
+            this.database = database;
+            this.dataset = dataset;
+            this.frame = frame;
+            final int rowCount = frame.rowCount();
+            final Array<LocalDate> rowKeys = frame.rows().keyArray();
+            this.keys = new long[rowCount];
+            this.ordinals = new int[rowCount];
+            this.positions = new int[rowCount];
+            boolean ascending = true, descending = true;
+            for (int i=0; i<rowCount; ++i) {
+                keys[i] = rowKeys.getValue(i).toEpochDay();
+                ordinals[i] = i;
+                if (i > 0) {
+                    ascending = ascending && keys[i] > keys[i-1];
+                    descending = descending && keys[i] < keys[i-1];
+                }
+            }
+            if (!ascending && descending) {
+                for (int i=0, j=rowCount-1; i<j; ++i, --j) {
+                    final long key = keys[i]; keys[i] = keys[j]; keys[j] = key;
+                    final int ordinal = ordinals[i]; ordinals[i] = ordinals[j]; ordinals[j] = ordinal;
+                }
+            } else if (!ascending) {
+                throw new QuandlException("Frame for " + database + "/" + dataset + " is not sorted by date");
+            }
+        }
+
+        /**
+         * Returns a newly created column array for the frame column, laid out against the merged axis
+         * @param colOrdinal    the column ordinal in the source frame
+         * @param length        the length of the merged axis
+         * @return              the column array for the panel
+         */
+        @SuppressWarnings("unchecked")
+        Array<?> layout(int colOrdinal, int length) {
+            final Class<?> type = frame.cols().type(frame.cols().key(colOrdinal));
+            if (Number.class.isAssignableFrom(type) || type.isPrimitive()) {
+                final double[] values = new double[length];
+                Arrays.fill(values, Double.NaN);
+                for (int i=0; i<keys.length; ++i) {
+                    values[positions[i]] = frame.data().getDouble(ordinals[i], colOrdinal);
+                }
+                return Array.of(values);
+            } else {
+                final Array<Object> values = Array.of((Class<Object>)type, length);
+                for (int i=0; i<keys.length; ++i) {
+                    values.setValue(positions[i], frame.data().getValue(ordinals[i], colOrdinal));
+                }
+                return values;
+            }
+        }
+    }
+
+
+    /**
+     * A cursor over the sorted keys of a single series, ordered by current key for the merge heap
+     */
+    private static class Cursor implements Comparable<Cursor> {
+
+        private int index;
+        private Series series;
+
+        /**
+         * Constructor
+         * @param series    the series to iterate over
+         */
+        Cursor(Series series) {
+            this.series = series;
+        }
+
+        /**
+         * Returns the epoch day key at the current position
+         * @return  the current key
+         */
+        long key() {
+            return series.keys[index];
+        }
+
+        /**
+         * Advances this cursor to the next key
+         * @return  true if the cursor has more keys
+         */
+        boolean next() {
+            return ++index < series.keys.length;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(key(), other.key());
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A batch planner that merges data requests with overlapping or adjacent date ranges into the fewest covering fetches.
+ *
+ * Requests are grouped by database, dataset, column index, order, api key, timeout and cancel token, and within each
+ * group date ranges that overlap or touch are merged into a single fetch. Grouping on the timeout and cancel token
+ * ensures a caller that cancels or times out only fails the fetches for its own requests. Once the fetches are executed, each request is given a view of the
+ * fetched frame restricted to its own date range. Requests that specify a row limit depend on the exact range they
+ * were issued with, so they are never merged.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPlanner {
+
+    private QuandlSource<?,?> source;
+    private List<QuandlOptions<?,?>> requests = new ArrayList<>();
+
+    /**
+     * Constructor
+     * @param source    the source used to execute fetches
+     */
+    public QuandlPlanner(QuandlSource<?,?> source) {
+        Objects.requireNonNull(source, "The Quandl source cannot be null");
+        this.source = source;
+    }
+
+    /**
+     * Adds a data request to this planner
+     * @param request   the data request, which must specify database, dataset, start and end date
+     * @return          this planner
+     * @throws QuandlException  if the request is incomplete, or is for an operation other than DATA
+     */
+    public QuandlPlanner add(QuandlOptions<?,?> request) throws QuandlException {
+        Objects.requireNonNull(request, "The Quandl request cannot be null");
+        if (request.getOperation() != null && request.getOperation() != QuandlOptions.Operation.DATA) {
+            throw new QuandlException("Only DATA requests can be planned, not " + request.getOperation());
+        } else if (!request.getDatabaseCode().isPresent()) {
+            throw new QuandlException("No database code specified in Quandl request");
+        } else if (!request.getDatasetCode().isPresent()) {
+            throw new QuandlException("No dataset code specified in Quandl request");
+        } else if (!request.getStartDate().isPresent() || !request.getEndDate().isPresent()) {
+            throw new QuandlException("Start and end dates must be specified for planned Quandl requests");
+        } else {
+            this.requests.add(request);
+            return this;
+        }
+    }
+
+    /**
+     * Adds a data request to this planner
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param dataset       the Quandl dataset code in database, for example "AAPL"
+     * @param configurator  the configurator for options, which must set start and end date
+     * @return              the request that was added, which can be used to lookup its result
+     * @throws QuandlException  if the request is incomplete
+     */
+    public QuandlOptions<?,?> add(String database, String dataset, Consumer<QuandlOptions<?,?>> configurator) throws QuandlException {
+        final QuandlOptions<?,?> request = new QuandlOptions<>();
+        request.setDatabase(database);
+        request.setDataset(dataset);
+        configurator.accept(request);
+        this.add(request);
+        return request;
+    }
+
+    /**
+     * Returns the list of fetches required to cover all requests added to this planner
+     * @return  the list of merged fetches
+     */
+    public List<Fetch> plan() {
+        final Map<List<Object>,List<QuandlOptions<?,?>>> groupMap = new LinkedHashMap<>();
+        final List<Fetch> fetches = new ArrayList<>();
+        for (QuandlOptions<?,?> request : requests) {
+            if (request.getLimit().isPresent() || request.getRows().isPresent()) {
+                fetches.add(new Fetch(request, Collections.singletonList(request)));
+            } else {
+                final List<Object> key = Arrays.asList(
+                    request.getApiKey().orElse(null),
+                    request.getDatabaseCode().orElse(null),
+                    request.getDatasetCode().orElse(null),
+                    request.getColIndex().orElse(null),
+                    request.isAscending().orElse(true),
+                    request.getTimeout().orElse(null),
+                    new Identity(request.getCancelToken().orElse(null))
+                );
+                groupMap.computeIfAbsent(key, k -> new ArrayList<>()).add(request);
+            }
+        }
+        groupMap.values().forEach(group -> {
+            group.sort(Comparator.comparing(r -> r.getStartDate().get()));
+            List<QuandlOptions<?,?>> covered = new ArrayList<>();
+            LocalDate start = null, end = null;
+            for (QuandlOptions<?,?> request : group) {
+                final LocalDate requestStart = request.getStartDate().get();
+                final LocalDate requestEnd = request.getEndDate().get();
+                if (end != null && !requestStart.isAfter(end.plusDays(1))) {
+                    end = requestEnd.isAfter(end) ? requestEnd : end;
+                    covered.add(request);
+                } else {
+                    if (end != null) {
+                        fetches.add(new Fetch(merge(covered.get(0), start, end), covered));
+                    }
+                    covered = new ArrayList<>();
+                    covered.add(request);
+                    start = requestStart;
+                    end = requestEnd;
+                }
+            }
+            if (end != null) {
+                fetches.add(new Fetch(merge(covered.get(0), start, end), covered));
+            }
+        });
+        return fetches;
+    }
+
+    /**
+     * Executes the planned fetches and returns each request mapped to a view of its requested date range
+     * @return  the map of results keyed by the requests added to this planner
+     * @throws QuandlException  if any of the fetches fail
+     */
+    @SuppressWarnings("unchecked")
+    public Map<QuandlOptions<?,?>,DataFrame<LocalDate,String>> execute() throws QuandlException {
+        final Map<QuandlOptions<?,?>,DataFrame<LocalDate,String>> resultMap = new LinkedHashMap<>();
+        for (Fetch fetch : plan()) {
+            final QuandlOptions<?,?> options = fetch.getOptions().copy();
+            options.setOperation(QuandlOptions.Operation.DATA);
+            final DataFrame<LocalDate,String> frame = (DataFrame<LocalDate,String>)source.read(options);
+            for (QuandlOptions<?,?> request : fetch.getRequests()) {
+                if (fetch.getRequests().size() == 1) {
+                    resultMap.put(request, frame);
+                } else {
+                    final LocalDate start = request.getStartDate().get();
+                    final LocalDate end = request.getEndDate().get();
+                    resultMap.put(request, frame.rows().select(row -> !row.key().isBefore(start) && !row.key().isAfter(end)));
+                }
+            }
+        }
+        final Map<QuandlOptions<?,?>,DataFrame<LocalDate,String>> ordered = new LinkedHashMap<>();
+        requests.forEach(request -> ordered.put(request, resultMap.get(request)));
+        return ordered;
+    }
+
+
+    /**
+     * Returns a new request based on the template with the date range specified
+     * The request is an unsealed copy of the template, so it keeps the timeout, cancel token and every other setting
+     * shared by the requests in its group, and only differs in its date range.
+     * @param template  the template request
+     * @param start     the start date for merged request
+     * @param end       the end date for merged request
+     * @return          the merged request
+     */
+    private QuandlOptions<?,?> merge(QuandlOptions<?,?> template, LocalDate start, LocalDate end) {
+        final QuandlOptions<?,?> merged = template.copy();
+        merged.setOperation(QuandlOptions.Operation.DATA);
+        merged.setStartDate(start);
+        merged.setEndDate(end);
+        return merged;
+    }
+
+
+    /**
+     * A wrapper that compares an object by identity, for use in group keys
+     */
+    private static class Identity {
+
+        private Object value;
+
+        /**
+         * Constructor
+         * @param value the value to compare by identity, null permitted
+         */
+        Identity(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Identity && ((Identity)other).value == value;
+        }
+    }
+
+
+    /**
+     * A single planned fetch that covers the date ranges of one or more requests
+     */
+    public static class Fetch {
+
+        private QuandlOptions<?,?> options;
+        private List<QuandlOptions<?,?>> requests;
+
+        /**
+         * Constructor
+         * @param options   the options for the fetch
+         * @param requests  the requests covered by this fetch
+         */
+        Fetch(QuandlOptions<?,?> options, List<QuandlOptions<?,?>> requests) {
+            this.options = options;
+            this.requests = Collections.unmodifiableList(requests);
+        }
+
+        /**
+         * Returns the options used to execute this fetch
+         * @return  the fetch options
+         */
+        public QuandlOptions<?,?> getOptions() {
+            return options;
+        }
+
+        /**
+         * Returns the requests covered by this fetch
+         * @return  the covered requests
+         */
+        public List<QuandlOptions<?,?>> getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the start date for this fetch
+         * @return  the start date
+         */
+        public LocalDate getStartDate() {
+            return options.getStartDate().orElse(null);
+        }
+
+        /**
+         * Returns the end date for this fetch
+         * @return  the end date
+         */
+        public LocalDate getEndDate() {
+            return options.getEndDate().orElse(null);
+        }
+    }
+
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * An opt-in prefetcher that learns recent data access patterns and loads the predicted next requests in the background.
+ *
+ * Two patterns are recognised. When consecutive data requests for a database walk the most recent dataset listing
+ * of that database in order, the next datasets in the same direction are predicted with the same date window. When
+ * consecutive requests for the same dataset ask for adjacent date windows, the next window of the same length in
+ * the same direction is predicted, which covers the common case of extending a window backwards in time.
+ *
+ * Predicted requests are issued on a small pool of daemon threads through the same source, so they share its caches
+ * and rate limiter. A prefetch is skipped unless the rate limiter has a spare permit, so background work never makes
+ * a foreground request wait for the rate budget. Prefetched frames are held in a bounded LRU cache until requested
+ * or until they exceed the max age. A foreground request for a prediction still in flight waits for it rather than
+ * issuing a duplicate request, but for at most half its remaining deadline, after which it issues the request directly.
+ * Predicted requests never inherit the cancel token or timeout of the request that led to them, and instead run with
+ * the default timeout of the source, so cancelling a foreground request does not abandon the prefetches it triggered.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPrefetcher {
+
+    private static final long MAX_WINDOW_GAP_DAYS = 7L;
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+
+    private int depth;
+    private int maxEntries;
+    private volatile Duration maxAge = Duration.ofMinutes(1);
+    private ExecutorService executor;
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong prefetchCount = new AtomicLong();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong skipCount = new AtomicLong();
+    private AtomicLong wasteCount = new AtomicLong();
+    private AtomicLong failureCount = new AtomicLong();
+    private Map<String,Map<String,Integer>> listingMap = new ConcurrentHashMap<>();
+    private Map<String,List<String>> codesMap = new ConcurrentHashMap<>();
+    private Map<String,String> lastDatasetMap = new ConcurrentHashMap<>();
+    private Map<String,QuandlOptions<?,?>> lastWindowMap = new ConcurrentHashMap<>();
+    private Map<String,CompletableFuture<DataFrame<?,?>>> pendingMap = new ConcurrentHashMap<>();
+    private Map<String,Prefetched> frameMap;
+
+    /**
+     * Constructor with a depth of 2, up to 64 prefetched frames and 2 threads
+     */
+    public QuandlPrefetcher() {
+        this(2, 64, 2);
+    }
+
+    /**
+     * Constructor
+     * @param depth         the number of requests to predict ahead of each access
+     * @param maxEntries    the max number of prefetched frames held until requested
+     * @param threads       the number of background threads used to prefetch
+     */
+    public QuandlPrefetcher(int depth, int maxEntries, int threads) {
+        if (depth <= 0) throw new IllegalArgumentException("The prefetch depth must be > 0");
+        if (maxEntries <= 0) throw new IllegalArgumentException("The max prefetch entries must be > 0");
+        if (threads <= 0) throw new IllegalArgumentException("The prefetch thread count must be > 0");
+        final AtomicInteger counter = new AtomicInteger();
+        this.depth = depth;
+        this.maxEntries = maxEntries;
+        this.frameMap = new LinkedHashMap<String,Prefetched>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Prefetched> eldest) {
+                if (size() <= QuandlPrefetcher.this.maxEntries) {
+                    return false;
+                } else {
+                    wasteCount.incrementAndGet();
+                    return true;
+                }
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "QuandlPrefetcher-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the max age of a prefetched frame, after which it is discarded rather than served
+     * @param maxAge    the max age for prefetched frames
+     */
+    public void setMaxAge(Duration maxAge) {
+        Objects.requireNonNull(maxAge, "The max age cannot be null");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the max age of a prefetched frame, after which it is discarded rather than served
+     * @return  the max age for prefetched frames
+     */
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Returns the number of data requests observed by this prefetcher
+     * @return  the data request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of predicted requests issued in the background
+     * @return  the prefetch count
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /**
+     * Returns the number of requests served from a prefetched frame
+     * @return  the prefetch hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of predicted requests skipped because the rate limiter had no spare permit
+     * @return  the skip count
+     */
+    public long getSkipCount() {
+        return skipCount.get();
+    }
+
+    /**
+     * Returns the number of prefetched frames evicted or expired before they were ever requested
+     * @return  the waste count
+     */
+    public long getWasteCount() {
+        return wasteCount.get();
+    }
+
+    /**
+     * Returns the number of predicted requests that failed
+     * @return  the failure count
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Returns the ratio of prefetched requests that were subsequently requested in the foreground
+     * @return  the prefetch hit ratio, 0 if nothing has been prefetched
+     */
+    public double getHitRatio() {
+        final long prefetched = prefetchCount.get();
+        return prefetched == 0L ? 0d : (double)hitCount.get() / prefetched;
+    }
+
+    /**
+     * Returns the number of predicted requests currently in flight
+     * @return  the pending prefetch count
+     */
+    public int getPendingCount() {
+        return pendingMap.size();
+    }
+
+    /**
+     * Returns the number of prefetched frames held until requested
+     * @return  the prefetched frame count
+     */
+    public synchronized int getCacheSize() {
+        return frameMap.size();
+    }
+
+    /**
+     * Discards all prefetched frames and learned access patterns
+     */
+    public synchronized void clear() {
+        this.frameMap.clear();
+        this.listingMap.clear();
+        this.codesMap.clear();
+        this.lastDatasetMap.clear();
+        this.lastWindowMap.clear();
+    }
+
+    /**
+     * Stops the background threads of this prefetcher, after which no further requests are prefetched
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns the prefetched frame for the request key, waiting a bounded time if the prefetch is still in flight
+     * @param key       the request key
+     * @param deadline  the deadline of the foreground request
+     * @param <R>       the row key type
+     * @param <C>       the column key type
+     * @return          the prefetched frame, null if not prefetched, expired, failed or not ready within the deadline
+     */
+    @SuppressWarnings("unchecked")
+    <R,C> DataFrame<R,C> take(String key, QuandlDeadline deadline) {
+        final CompletableFuture<DataFrame<?,?>> pending = pendingMap.get(key);
+        if (pending != null && !await(pending, deadline)) {
+            return null;
+        } else {
+            final Prefetched entry;
+            synchronized (this) {
+                entry = frameMap.remove(key);
+            }
+            if (entry == null) {
+                return null;
+            } else if (entry.isExpired(maxAge)) {
+                this.wasteCount.incrementAndGet();
+                return null;
+            } else {
+                this.hitCount.incrementAndGet();
+                return (DataFrame<R,C>)entry.frame;
+            }
+        }
+    }
+
+    /**
+     * Waits for a prefetch in flight for at most half the time remaining on the deadline, so a stalled prefetch
+     * leaves the foreground request time to issue the request directly
+     * @param pending   the pending prefetch
+     * @param deadline  the deadline of the foreground request
+     * @return          true if the prefetch completed successfully
+     */
+    private boolean await(CompletableFuture<DataFrame<?,?>> pending, QuandlDeadline deadline) {
+        final long remainingNanos = deadline.remainingNanos();
+        final long waitNanos = remainingNanos == Long.MAX_VALUE ? Long.MAX_VALUE : remainingNanos / 2L;
+        final long startNanos = System.nanoTime();
+        try {
+            while (true) {
+                final long leftNanos = waitNanos == Long.MAX_VALUE ? Long.MAX_VALUE : waitNanos - (System.nanoTime() - startNanos);
+                if (deadline.isExpired() || leftNanos <= 0L) {
+                    return false;
+                } else {
+                    try {
+                        pending.get(Math.min(leftNanos, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                        return true;
+                    } catch (TimeoutException ex) {
+                        // check the deadline and token again before waiting another slice
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | CancellationException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Records a request served by the source, learning from it and prefetching the requests it predicts
+     * @param source    the source that served the request
+     * @param options   the sealed options of the request
+     * @param result    the frame returned for the request
+     */
+    void record(QuandlSource<?,?> source, QuandlOptions<?,?> options, DataFrame<?,?> result) {
+        final String database = options.getDatabaseCode().orElse(null);
+        if (database == null || executor.isShutdown()) {
+            return;
+        } else if (options.getOperation() == QuandlOptions.Operation.DATASETS) {
+            this.learnListing(database, result);
+        } else if (options.getOperation() == QuandlOptions.Operation.DATA) {
+            this.requestCount.incrementAndGet();
+            final String key = options.toKey();
+            for (QuandlOptions<?,?> predicted : predict(database, options)) {
+                this.prefetch(source, key, predicted);
+            }
+        }
+    }
+
+    /**
+     * Records the order of dataset codes in a listing returned for a database
+     * @param database  the database code
+     * @param listing   the dataset listing keyed by full code, for example "WIKI/AAPL"
+     */
+    private void learnListing(String database, DataFrame<?,?> listing) {
+        final int rowCount = listing.rowCount();
+        final List<String> codes = new ArrayList<>(rowCount);
+        final Map<String,Integer> positions = new HashMap<>(rowCount * 2);
+        for (int i=0; i<rowCount; ++i) {
+            final String code = String.valueOf(listing.rows().key(i));
+            final int slash = code.indexOf('/');
+            final String dataset = slash >= 0 ? code.substring(slash + 1) : code;
+            if (positions.putIfAbsent(dataset, codes.size()) == null) {
+                codes.add(dataset);
+            }
+        }
+        this.codesMap.put(database, Collections.unmodifiableList(codes));
+        this.listingMap.put(database, positions);
+    }
+
+    /**
+     * Returns the requests predicted to follow a data request, based on the accesses that preceded it
+     * @param database  the database code
+     * @param options   the options for the data request
+     * @return          the list of predicted requests
+     */
+    private List<QuandlOptions<?,?>> predict(String database, QuandlOptions<?,?> options) {
+        final List<QuandlOptions<?,?>> predicted = new ArrayList<>();
+        final String dataset = options.getDatasetCode().orElse(null);
+        if (dataset != null) {
+            final String previousDataset = lastDatasetMap.put(database, dataset);
+            final QuandlOptions<?,?> previousWindow = lastWindowMap.put(database + "/" + dataset, options);
+            final Map<String,Integer> positions = listingMap.get(database);
+            final List<String> codes = codesMap.get(database);
+            if (positions != null && codes != null && previousDataset != null) {
+                final Integer index = positions.get(dataset);
+                final Integer previousIndex = positions.get(previousDataset);
+                if (index != null && previousIndex != null && Math.abs(index - previousIndex) == 1) {
+                    final int step = index - previousIndex;
+                    for (int i=1; i<=depth; ++i) {
+                        final int next = index + step * i;
+                        if (next < 0 || next >= codes.size()) break;
+                        final QuandlOptions<?,?> request = options.copy();
+                        request.setDataset(codes.get(next));
+                        predicted.add(request);
+                    }
+                }
+            }
+            final LocalDate start = options.getStartDate().orElse(null);
+            final LocalDate end = options.getEndDate().orElse(null);
+            final LocalDate previousStart = previousWindow != null ? previousWindow.getStartDate().orElse(null) : null;
+            final LocalDate previousEnd = previousWindow != null ? previousWindow.getEndDate().orElse(null) : null;
+            if (start != null && end != null && previousStart != null && previousEnd != null && !end.isBefore(start)) {
+                final long length = ChronoUnit.DAYS.between(start, end) + 1L;
+                final long gapBefore = ChronoUnit.DAYS.between(end, previousStart);
+                final long gapAfter = ChronoUnit.DAYS.between(previousEnd, start);
+                if (gapBefore > 0L && gapBefore <= MAX_WINDOW_GAP_DAYS) {
+                    for (int i=1; i<=depth; ++i) {
+                        final QuandlOptions<?,?> request = options.copy();
+                        request.setStartDate(start.minusDays(length * i));
+                        request.setEndDate(start.minusDays(length * (i - 1) + 1L));
+                        predicted.add(request);
+                    }
+                } else if (gapAfter > 0L && gapAfter <= MAX_WINDOW_GAP_DAYS) {
+                    for (int i=1; i<=depth; ++i) {
+                        final QuandlOptions<?,?> request = options.copy();
+                        request.setStartDate(end.plusDays(length * (i - 1) + 1L));
+                        request.setEndDate(end.plusDays(length * i));
+                        predicted.add(request);
+                    }
+                }
+            }
+        }
+        return predicted;
+    }
+
+    /**
+     * Issues a predicted request in the background, unless it is already held, in flight or beyond the rate budget
+     * @param source    the source to issue the request through
+     * @param current   the key of the request that led to the prediction
+     * @param request   the predicted request
+     */
+    private void prefetch(QuandlSource<?,?> source, String current, QuandlOptions<?,?> request) {
+        final String key = request.toKey();
+        synchronized (this) {
+            final Prefetched entry = frameMap.get(key);
+            if (entry != null && entry.isExpired(maxAge)) {
+                this.frameMap.remove(key);
+                this.wasteCount.incrementAndGet();
+            } else if (key.equals(current) || entry != null || pendingMap.containsKey(key)) {
+                return;
+            }
+        }
+        final QuandlRateLimiter rateLimiter = source.getRateLimiter();
+        if (rateLimiter != null && rateLimiter.getAvailablePermits() < 2d) {
+            this.skipCount.incrementAndGet();
+        } else {
+            final CompletableFuture<DataFrame<?,?>> future = new CompletableFuture<>();
+            if (pendingMap.putIfAbsent(key, future) == null) {
+                try {
+                    this.prefetchCount.incrementAndGet();
+                    this.executor.execute(() -> {
+                        try {
+                            final DataFrame<?,?> frame = source.prefetch(request);
+                            synchronized (this) {
+                                this.frameMap.put(key, new Prefetched(frame));
+                            }
+                            this.pendingMap.remove(key);
+                            future.complete(frame);
+                        } catch (Throwable t) {
+                            this.failureCount.incrementAndGet();
+                            this.pendingMap.remove(key);
+                            future.completeExceptionally(t);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    this.prefetchCount.decrementAndGet();
+                    this.pendingMap.remove(key);
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A prefetched frame along with the time it was loaded
+     */
+    private static class Prefetched {
+
+        private DataFrame<?,?> frame;
+        private long loadedAt;
+
+        /**
+         * Constructor
+         * @param frame the prefetched frame
+         */
+        Prefetched(DataFrame<?,?> frame) {
+            this.frame = frame;
+            this.loadedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns true if this entry is older than the max age specified
+         * @param maxAge    the max age for prefetched frames
+         * @return          true if this entry has expired
+         */
+        boolean isExpired(Duration maxAge) {
+            return System.nanoTime() - loadedAt > maxAge.toNanos();
+        }
+    }
+
+}
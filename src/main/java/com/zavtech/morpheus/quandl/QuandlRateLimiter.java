@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter that bounds the rate of HTTP requests issued against Quandl.
+ *
+ * A single limiter is intended to be shared by all components issuing requests on behalf of an api key, so that
+ * on demand requests, hedges and any background work draw from the same budget.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlRateLimiter {
+
+    private double capacity;
+    private double tokens;
+    private double permitsPerNano;
+    private long lastRefillNanos;
+    private ThreadLocal<Boolean> held = new ThreadLocal<>();
+
+    /**
+     * Constructor
+     * @param permitsPerSecond  the sustained number of requests per second
+     */
+    public QuandlRateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, Math.max(1d, permitsPerSecond));
+    }
+
+    /**
+     * Constructor
+     * @param permitsPerSecond  the sustained number of requests per second
+     * @param burst             the max number of requests that can be issued in a burst
+     */
+    public QuandlRateLimiter(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0d) throw new IllegalArgumentException("The permits per second must be > 0");
+        if (burst < 1d) throw new IllegalArgumentException("The burst size must be >= 1");
+        this.capacity = burst;
+        this.tokens = burst;
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Acquires a permit, blocking until one is available
+     * @throws QuandlException  if the calling thread is interrupted while waiting
+     */
+    public void acquire() throws QuandlException {
+        if (takeHeld()) return;
+        final long waitNanos = reserve();
+        if (waitNanos > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new QuandlException("Interrupted while waiting for Quandl rate limit permit", ex);
+            }
+        }
+    }
+
+    /**
+     * Acquires a permit if one becomes available within the timeout, blocking until then
+     * A permit is only reserved if the wait it implies fits within the timeout, so a failed call consumes no budget.
+     * @param timeout   the max time to wait
+     * @param unit      the time unit for timeout
+     * @return          true if a permit was acquired, false if none would be available in time
+     * @throws QuandlException  if the calling thread is interrupted while waiting
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws QuandlException {
+        if (takeHeld()) return true;
+        final long waitNanos;
+        synchronized (this) {
+            this.refill();
+            final double neededNanos = tokens >= 1d ? 0d : Math.ceil((1d - tokens) / permitsPerNano);
+            if (neededNanos > unit.toNanos(timeout)) {
+                return false;
+            } else {
+                this.tokens -= 1d;
+                waitNanos = tokens >= 0d ? 0L : (long)Math.ceil(-tokens / permitsPerNano);
+            }
+        }
+        if (waitNanos > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new QuandlException("Interrupted while waiting for Quandl rate limit permit", ex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Acquires a permit only if one is immediately available
+     * @return  true if a permit was acquired
+     */
+    public boolean tryAcquire() {
+        if (takeHeld()) return true;
+        synchronized (this) {
+            this.refill();
+            if (tokens >= 1d) {
+                this.tokens -= 1d;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of permits currently available
+     * @return  the number of available permits
+     */
+    public synchronized double getAvailablePermits() {
+        this.refill();
+        return Math.max(0d, tokens);
+    }
+
+    /**
+     * Runs the task on the calling thread holding a permit that was acquired on its behalf by another thread
+     * The first acquire by the task consumes the held permit rather than drawing from the bucket, and a permit
+     * left unused when the task completes is returned to the bucket.
+     * @param task  the task to run
+     */
+    void runWithPermit(Runnable task) {
+        this.held.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            if (takeHeld()) {
+                this.release();
+            }
+        }
+    }
+
+    /**
+     * Returns a permit to the bucket, up to the bucket capacity
+     */
+    synchronized void release() {
+        this.refill();
+        this.tokens = Math.min(capacity, tokens + 1d);
+    }
+
+    /**
+     * Consumes the permit held by the calling thread, if any
+     * @return  true if the calling thread held a permit
+     */
+    private boolean takeHeld() {
+        if (held.get() == null) {
+            return false;
+        } else {
+            this.held.remove();
+            return true;
+        }
+    }
+
+    /**
+     * Reserves a permit and returns the time the caller must wait before using it
+     * @return  the wait time in nanos
+     */
+    private synchronized long reserve() {
+        this.refill();
+        this.tokens -= 1d;
+        return tokens >= 0d ? 0L : (long)Math.ceil(-tokens / permitsPerNano);
+    }
+
+    /**
+     * Adds tokens accrued since the last refill, up to the bucket capacity
+     */
+    private void refill() {
+        final long now = System.nanoTime();
+        this.tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerNano);
+        this.lastRefillNanos = now;
+    }
+
+}
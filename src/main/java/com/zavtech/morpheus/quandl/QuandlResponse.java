@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A class that captures the body of a Quandl HTTP response, along with the cache entry it was served from if any
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+class QuandlResponse {
+
+    private int status;
+    private byte[] body;
+    private boolean revalidated;
+    private QuandlHttpCache.Entry entry;
+
+    /**
+     * A function that parses a response body into some content
+     * @param <T>   the content type
+     */
+    @FunctionalInterface
+    interface Parser<T> {
+
+        /**
+         * Returns the content parsed from the body stream
+         * @param body  the response body stream
+         * @return      the parsed content
+         * @throws Exception    if parsing fails
+         */
+        T parse(InputStream body) throws Exception;
+    }
+
+    /**
+     * Constructor
+     * @param status        the HTTP status code
+     * @param body          the response body
+     * @param revalidated   true if the body was served from cache following a 304 response
+     * @param entry         the cache entry that holds the body, null if not cached
+     */
+    QuandlResponse(int status, byte[] body, boolean revalidated, QuandlHttpCache.Entry entry) {
+        this.status = status;
+        this.body = body;
+        this.revalidated = revalidated;
+        this.entry = entry;
+    }
+
+    /**
+     * Returns the HTTP status code for this response
+     * @return  the HTTP status code
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the body of this response
+     * @return  the response body
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns true if this response was served from cache after a 304 revalidation
+     * @return  true if revalidated from cache
+     */
+    boolean isRevalidated() {
+        return revalidated;
+    }
+
+    /**
+     * Returns true if this response body is held in a cache, and therefore its parsed content is shared
+     * @return  true if the response is cached
+     */
+    boolean isCached() {
+        return entry != null;
+    }
+
+    /**
+     * Returns a stream over the body of this response
+     * @return  the body input stream
+     */
+    InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Returns the parsed content of this response, reusing content parsed from an earlier identical response
+     * @param parser    the parser to apply to the body if no parsed content is available
+     * @param <T>       the content type
+     * @return          the parsed content, which may be shared with the cache if isCached() is true
+     * @throws Exception    if parsing fails
+     */
+    <T> T getContent(Parser<T> parser) throws Exception {
+        return getContent(parser, QuandlDeadline.NONE);
+    }
+
+    /**
+     * Returns the parsed content of this response, reusing content parsed from an earlier identical response
+     * @param parser    the parser to apply to the body if no parsed content is available
+     * @param deadline  the request deadline, which is checked as the parser reads the body
+     * @param <T>       the content type
+     * @return          the parsed content, which may be shared with the cache if isCached() is true
+     * @throws Exception    if parsing fails, or QuandlTimeoutException if the deadline expires while parsing
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getContent(Parser<T> parser, QuandlDeadline deadline) throws Exception {
+        if (entry == null) {
+            return parse(parser, deadline);
+        } else {
+            synchronized (entry) {
+                final Object cached = entry.getContent();
+                if (cached != null) {
+                    return (T)cached;
+                } else {
+                    final T content = parse(parser, deadline);
+                    entry.retain(content);
+                    return content;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the content parsed from the body of this response, recording a parse event
+     * @param parser    the parser to apply to the body
+     * @param deadline  the request deadline
+     * @param <T>       the content type
+     * @return          the parsed content
+     * @throws Exception    if parsing fails
+     */
+    private <T> T parse(Parser<T> parser, QuandlDeadline deadline) throws Exception {
+        final QuandlEvents.Phase phase = QuandlEvents.begin(QuandlEvents.PhaseType.PARSE, QuandlEvents.current());
+        final T content = parser.parse(deadline.wrap(getInputStream(), "parse"));
+        deadline.check("parse");
+        phase.end(body.length, 0L, status);
+        return content;
+    }
+
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A scheduler that dispatches Quandl requests from several priority classes under one shared rate budget.
+ *
+ * Each priority class has its own queue, a weight and a max concurrency. Queued requests are dispatched using
+ * stride scheduling, a form of weighted fair queuing, so a class with twice the weight is dispatched twice as often
+ * while both are backlogged, yet no backlogged class is ever starved. A class that has been idle re-enters at the
+ * current virtual time rather than with accumulated credit, so interactive requests jump ahead of a bulk backlog
+ * without being able to monopolize the scheduler later. By default batch requests may occupy all but one worker,
+ * which keeps a worker free for interactive requests.
+ *
+ * Each request is dispatched holding a permit the dispatcher acquired from the rate limiter of the source, so the
+ * order in which requests consume the shared budget is decided here rather than by threads racing for permits.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlScheduler {
+
+    private static final long STRIDE = 1 << 20;
+
+    public enum Priority {
+        INTERACTIVE,
+        NORMAL,
+        BATCH
+    }
+
+    private int threads;
+    private int activeCount;
+    private long virtualTime;
+    private boolean shutdown;
+    private Thread dispatcher;
+    private ExecutorService executor;
+    private QuandlSource<?,?> source;
+    private Map<Priority,PriorityClass> classMap = new EnumMap<>(Priority.class);
+
+    /**
+     * Constructor
+     * @param source    the source used to execute requests
+     * @param threads   the max number of requests executing concurrently across all classes
+     */
+    public QuandlScheduler(QuandlSource<?,?> source, int threads) {
+        Objects.requireNonNull(source, "The Quandl source cannot be null");
+        if (threads < 1) throw new IllegalArgumentException("The thread count must be > 0");
+        this.source = source;
+        this.threads = threads;
+        this.classMap.put(Priority.INTERACTIVE, new PriorityClass(16, threads));
+        this.classMap.put(Priority.NORMAL, new PriorityClass(4, threads));
+        this.classMap.put(Priority.BATCH, new PriorityClass(1, Math.max(1, threads - 1)));
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "QuandlWorker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatch, "QuandlScheduler");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Sets the weight for a priority class, which is its relative share of dispatches while backlogged
+     * @param priority  the priority class
+     * @param weight    the weight, which must be > 0
+     */
+    public synchronized void setWeight(Priority priority, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("The weight must be > 0");
+        this.classMap.get(priority).weight = weight;
+    }
+
+    /**
+     * Sets the max number of requests from a priority class that may execute concurrently
+     * @param priority          the priority class
+     * @param maxConcurrency    the max concurrency, which must be > 0
+     */
+    public synchronized void setMaxConcurrency(Priority priority, int maxConcurrency) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("The max concurrency must be > 0");
+        this.classMap.get(priority).maxConcurrency = maxConcurrency;
+        this.notifyAll();
+    }
+
+    /**
+     * Returns the number of requests waiting to be dispatched for a priority class
+     * @param priority  the priority class
+     * @return          the queue length
+     */
+    public synchronized int getQueueLength(Priority priority) {
+        return classMap.get(priority).queue.size();
+    }
+
+    /**
+     * Returns the number of requests currently executing for a priority class
+     * @param priority  the priority class
+     * @return          the active count
+     */
+    public synchronized int getActiveCount(Priority priority) {
+        return classMap.get(priority).active;
+    }
+
+    /**
+     * Returns the total number of requests dispatched for a priority class
+     * @param priority  the priority class
+     * @return          the dispatch count
+     */
+    public synchronized long getDispatchCount(Priority priority) {
+        return classMap.get(priority).dispatched;
+    }
+
+    /**
+     * Submits a request to read a DataFrame from the source in the priority class specified
+     * @param priority      the priority class
+     * @param configurator  the configurator for request options
+     * @param <R>           the row key type
+     * @param <C>           the column key type
+     * @return              the future result
+     */
+    @SuppressWarnings("unchecked")
+    public <R,C> Future<DataFrame<R,C>> submit(Priority priority, Consumer<QuandlOptions<R,C>> configurator) {
+        final QuandlSource<R,C> source = (QuandlSource<R,C>)this.source;
+        return submit(priority, () -> source.read(configurator));
+    }
+
+    /**
+     * Submits a task that issues Quandl requests in the priority class specified
+     * @param priority  the priority class
+     * @param task      the task to execute
+     * @param <T>       the result type
+     * @return          the future result
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task) {
+        Objects.requireNonNull(priority, "The priority cannot be null");
+        Objects.requireNonNull(task, "The task cannot be null");
+        final ScheduledTask<T> future = new ScheduledTask<>(task);
+        synchronized (this) {
+            if (shutdown) {
+                throw new QuandlException("The Quandl scheduler has been shutdown");
+            } else {
+                final PriorityClass priorityClass = classMap.get(priority);
+                if (priorityClass.queue.isEmpty() && priorityClass.active == 0) {
+                    priorityClass.pass = Math.max(priorityClass.pass, virtualTime);
+                }
+                priorityClass.queue.add(future);
+                this.notifyAll();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Reads a DataFrame from the source in the priority class specified, blocking until complete
+     * @param priority      the priority class
+     * @param configurator  the configurator for request options
+     * @param <R>           the row key type
+     * @param <C>           the column key type
+     * @return              the resulting DataFrame
+     * @throws QuandlException  if the request fails or the calling thread is interrupted
+     */
+    public <R,C> DataFrame<R,C> read(Priority priority, Consumer<QuandlOptions<R,C>> configurator) throws QuandlException {
+        final Future<DataFrame<R,C>> future = submit(priority, configurator);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new QuandlException("Interrupted while waiting for scheduled Quandl request", ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof QuandlException) {
+                throw (QuandlException)cause;
+            } else {
+                throw new QuandlException("Scheduled Quandl request failed", cause);
+            }
+        }
+    }
+
+    /**
+     * Shuts down this scheduler, cancelling any requests that have not been dispatched
+     */
+    public void shutdown() {
+        synchronized (this) {
+            this.shutdown = true;
+            this.classMap.values().forEach(c -> {
+                c.queue.forEach(f -> f.cancel(false));
+                c.queue.clear();
+            });
+            this.notifyAll();
+        }
+        this.executor.shutdown();
+    }
+
+
+    /**
+     * The dispatcher loop, which waits for an eligible class and a rate permit before dispatching each request
+     * If the dispatcher is interrupted, queued requests are failed rather than left waiting and the scheduler shuts down.
+     */
+    private void dispatch() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (select() == null && !shutdown) {
+                        this.wait();
+                    }
+                    if (shutdown) {
+                        return;
+                    }
+                }
+                final QuandlRateLimiter limiter = source.getRateLimiter();
+                if (limiter != null) {
+                    try {
+                        limiter.acquire();
+                    } catch (QuandlException ex) {
+                        this.fail(ex);
+                        this.shutdown();
+                        return;
+                    }
+                }
+                final PriorityClass priorityClass;
+                final ScheduledTask<?> task;
+                synchronized (this) {
+                    final PriorityClass next = select();
+                    if (next == null) {
+                        if (limiter != null) {
+                            limiter.release();
+                        }
+                        continue;
+                    } else {
+                        priorityClass = next;
+                        task = next.queue.poll();
+                        this.virtualTime = next.pass;
+                        next.pass += STRIDE / next.weight;
+                        next.active++;
+                        next.dispatched++;
+                        this.activeCount++;
+                    }
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            if (limiter != null) {
+                                limiter.runWithPermit(task);
+                            } else {
+                                task.run();
+                            }
+                        } finally {
+                            this.complete(priorityClass);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    task.cancel(false);
+                    this.complete(priorityClass);
+                    if (limiter != null) {
+                        limiter.release();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            this.fail(new QuandlException("Interrupted while dispatching scheduled Quandl requests", ex));
+            this.shutdown();
+        }
+    }
+
+
+    /**
+     * Fails all queued requests with the error specified
+     * @param error the error that prevented dispatch
+     */
+    private synchronized void fail(Throwable error) {
+        this.classMap.values().forEach(c -> {
+            c.queue.forEach(task -> task.fail(error));
+            c.queue.clear();
+        });
+    }
+
+
+    /**
+     * Returns the eligible class with the lowest pass, discarding any cancelled requests at the head of each queue
+     * @return  the class to dispatch from next, null if none is eligible
+     */
+    private PriorityClass select() {
+        if (activeCount >= threads) {
+            return null;
+        } else {
+            PriorityClass result = null;
+            for (PriorityClass priorityClass : classMap.values()) {
+                while (!priorityClass.queue.isEmpty() && priorityClass.queue.peek().isCancelled()) {
+                    priorityClass.queue.poll();
+                }
+                if (!priorityClass.queue.isEmpty() && priorityClass.active < priorityClass.maxConcurrency) {
+                    if (result == null || priorityClass.pass < result.pass) {
+                        result = priorityClass;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     * Records completion of a request from the priority class specified
+     * @param priorityClass the priority class
+     */
+    private synchronized void complete(PriorityClass priorityClass) {
+        priorityClass.active--;
+        this.activeCount--;
+        this.notifyAll();
+    }
+
+
+    /**
+     * The state for a single priority class
+     */
+    private static class PriorityClass {
+
+        private int weight;
+        private int maxConcurrency;
+        private int active;
+        private long pass;
+        private long dispatched;
+        private ArrayDeque<ScheduledTask<?>> queue = new ArrayDeque<>();
+
+        /**
+         * Constructor
+         * @param weight            the relative share of dispatches
+         * @param maxConcurrency    the max number of concurrently executing requests
+         */
+        PriorityClass(int weight, int maxConcurrency) {
+            this.weight = weight;
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
+
+
+    /**
+     * A queued request, which can be failed by the dispatcher without being run
+     */
+    private static class ScheduledTask<T> extends FutureTask<T> {
+
+        /**
+         * Constructor
+         * @param task  the task to execute
+         */
+        ScheduledTask(Callable<T> task) {
+            super(task);
+        }
+
+        /**
+         * Completes this request with the error specified
+         * @param error the error
+         */
+        void fail(Throwable error) {
+            this.setException(error);
+        }
+    }
+
+}
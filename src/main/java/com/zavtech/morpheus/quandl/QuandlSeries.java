@@ -0,0 +1,415 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * A lazy handle on a Quandl time series, which only downloads the date windows that are actually accessed.
+ *
+ * Metadata for the dataset is loaded on first use to discover its date range and columns. Data is then fetched in
+ * fixed size date windows aligned on epoch days, using start_date and end_date, as ranges are requested. Fetched
+ * windows are retained in a bounded LRU cache, so repeated access to recent history is served locally. Requests for
+ * the last N rows are served from cached windows where possible, and otherwise use limit and descending order so
+ * that only the rows required are downloaded.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlSeries {
+
+    private String database;
+    private String dataset;
+    private int windowDays;
+    private int maxWindows;
+    private QuandlSource<?,?> source;
+    private LocalDate startDate;
+    private LocalDate endDate;
+    private volatile List<String> columnKeys;
+    private final Object metaDataLock = new Object();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private Map<Long,DataFrame<LocalDate,String>> windowMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor
+     * @param source        the source used to load metadata and data
+     * @param database      the Quandl database code, for example "WIKI"
+     * @param dataset       the Quandl dataset code in database, for example "AAPL"
+     * @param windowDays    the number of calendar days covered by each fetched window
+     * @param maxWindows    the max number of windows to retain in the cache
+     */
+    public QuandlSeries(QuandlSource<?,?> source, String database, String dataset, int windowDays, int maxWindows) {
+        Objects.requireNonNull(source, "The Quandl source cannot be null");
+        Objects.requireNonNull(database, "The database code cannot be null");
+        Objects.requireNonNull(dataset, "The dataset code cannot be null");
+        if (windowDays < 1) throw new IllegalArgumentException("The window days must be > 0");
+        if (maxWindows < 1) throw new IllegalArgumentException("The max windows must be > 0");
+        this.source = source;
+        this.database = database;
+        this.dataset = dataset;
+        this.windowDays = windowDays;
+        this.maxWindows = maxWindows;
+    }
+
+    /**
+     * Returns the Quandl database code for this series
+     * @return  the database code
+     */
+    public String getDatabaseCode() {
+        return database;
+    }
+
+    /**
+     * Returns the Quandl dataset code for this series
+     * @return  the dataset code
+     */
+    public String getDatasetCode() {
+        return dataset;
+    }
+
+    /**
+     * Returns the oldest available date for this series, loading metadata if required
+     * @return  the oldest available date
+     */
+    public LocalDate getStartDate() {
+        this.init();
+        return startDate;
+    }
+
+    /**
+     * Returns the newest available date for this series, loading metadata if required
+     * @return  the newest available date
+     */
+    public LocalDate getEndDate() {
+        this.init();
+        return endDate;
+    }
+
+    /**
+     * Returns the data column keys for this series, loading metadata if required
+     * @return  the column keys, excluding the date column
+     */
+    public List<String> getColumnKeys() {
+        this.init();
+        return columnKeys;
+    }
+
+    /**
+     * Returns the number of windows currently held in the cache
+     * @return  the number of cached windows
+     */
+    public synchronized int getWindowCount() {
+        return windowMap.size();
+    }
+
+    /**
+     * Returns the number of window accesses that were served from the cache
+     * @return  the cache hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of window accesses that required a download
+     * @return  the cache miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns a DataFrame with the rows of this series between the dates specified
+     * @param start the start date, inclusive
+     * @param end   the end date, inclusive
+     * @return      the DataFrame of rows in range, in ascending date order
+     * @throws QuandlException  if a window fails to load
+     */
+    public DataFrame<LocalDate,String> getRange(LocalDate start, LocalDate end) throws QuandlException {
+        Objects.requireNonNull(start, "The start date cannot be null");
+        Objects.requireNonNull(end, "The end date cannot be null");
+        this.init();
+        final LocalDate from = startDate != null && start.isBefore(startDate) ? startDate : start;
+        final LocalDate to = endDate != null && end.isAfter(endDate) ? endDate : end;
+        if (from.isAfter(to)) {
+            return createEmptyFrame();
+        } else {
+            final List<DataFrame<LocalDate,String>> parts = new ArrayList<>();
+            final long first = toWindow(from), last = toWindow(to);
+            for (long window = first; window <= last; window += windowDays) {
+                final DataFrame<LocalDate,String> frame = getWindow(window);
+                if (frame.rowCount() > 0) {
+                    parts.add(frame.rows().select(row -> {
+                        final LocalDate date = row.key();
+                        return !date.isBefore(from) && !date.isAfter(to);
+                    }));
+                }
+            }
+            return combine(parts);
+        }
+    }
+
+    /**
+     * Returns a DataFrame with the most recent rows of this series
+     * @param count the max number of rows
+     * @return      the DataFrame with up to count rows, in ascending date order
+     * @throws QuandlException  if the data fails to load
+     */
+    public DataFrame<LocalDate,String> getLast(int count) throws QuandlException {
+        if (count < 1) throw new IllegalArgumentException("The row count must be > 0");
+        this.init();
+        if (startDate == null || endDate == null) {
+            return createEmptyFrame();
+        } else {
+            final List<DataFrame<LocalDate,String>> parts = new ArrayList<>();
+            final long oldest = toWindow(startDate);
+            boolean cached = true;
+            int rowCount = 0;
+            for (long window = toWindow(endDate); window >= oldest && rowCount < count; window -= windowDays) {
+                final DataFrame<LocalDate,String> frame = peek(window);
+                if (frame == null) {
+                    cached = false;
+                    break;
+                } else {
+                    parts.add(0, frame);
+                    rowCount += frame.rowCount();
+                }
+            }
+            if (cached) {
+                this.hitCount.addAndGet(parts.size());
+                final DataFrame<LocalDate,String> combined = combine(parts);
+                return rowCount > count ? combined.tail(count).copy() : combined;
+            } else {
+                this.missCount.incrementAndGet();
+                final DataFrame<LocalDate,String> frame = read(startDate, endDate, count, false).rows().sort(true).copy();
+                this.putWindows(frame, frame.rowCount() < count);
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Reloads the metadata for this series and evicts windows that may be missing newly published rows
+     * @throws QuandlException  if the metadata fails to load
+     */
+    public void refresh() throws QuandlException {
+        final LocalDate previousEnd;
+        synchronized (this) {
+            previousEnd = this.endDate;
+            this.columnKeys = null;
+        }
+        this.init();
+        if (previousEnd != null) {
+            final long window = toWindow(previousEnd);
+            synchronized (this) {
+                this.windowMap.keySet().removeIf(start -> start >= window);
+            }
+        }
+    }
+
+    /**
+     * Clears all cached windows for this series
+     */
+    public synchronized void clear() {
+        this.windowMap.clear();
+    }
+
+
+    /**
+     * Loads the metadata for this series if it has not already been loaded, with concurrent callers sharing one load
+     * @throws QuandlException  if the metadata fails to load
+     */
+    @SuppressWarnings("unchecked")
+    private void init() throws QuandlException {
+        if (columnKeys == null) {
+            synchronized (metaDataLock) {
+                if (columnKeys == null) {
+                    final DataFrame<Integer,QuandlField> metaData = (DataFrame<Integer,QuandlField>)source.read(options -> {
+                        options.setOperation(QuandlOptions.Operation.META_DATA);
+                        options.setDatabase(database);
+                        options.setDataset(dataset);
+                    });
+                    if (metaData.rowCount() == 0) {
+                        throw new QuandlException("No metadata available from Quandl for " + database + "/" + dataset);
+                    } else {
+                        final String[] names = metaData.rowAt(0).getValue(QuandlField.COLUMN_NAMES);
+                        synchronized (this) {
+                            this.startDate = metaData.rowAt(0).getValue(QuandlField.START_DATE);
+                            this.endDate = metaData.rowAt(0).getValue(QuandlField.END_DATE);
+                            this.columnKeys = names == null || names.length < 2
+                                ? Collections.emptyList()
+                                : Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(names, 1, names.length)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the window frame starting at the epoch day specified, downloading it if not cached
+     * @param window    the epoch day of the window start
+     * @return          the window frame
+     * @throws QuandlException  if the window fails to load
+     */
+    private DataFrame<LocalDate,String> getWindow(long window) throws QuandlException {
+        final DataFrame<LocalDate,String> cached = getCached(window);
+        if (cached != null) {
+            return cached;
+        } else {
+            this.missCount.incrementAndGet();
+            final LocalDate windowStart = LocalDate.ofEpochDay(window);
+            final LocalDate windowEnd = LocalDate.ofEpochDay(window + windowDays - 1);
+            final LocalDate from = startDate != null && windowStart.isBefore(startDate) ? startDate : windowStart;
+            final LocalDate to = endDate != null && windowEnd.isAfter(endDate) ? endDate : windowEnd;
+            final DataFrame<LocalDate,String> frame = read(from, to, null, true);
+            this.putWindow(window, frame);
+            return frame;
+        }
+    }
+
+
+    /**
+     * Adds a window frame to the cache, evicting the least recently used window if the cache is full
+     * @param window    the epoch day of the window start
+     * @param frame     the window frame
+     */
+    private synchronized void putWindow(long window, DataFrame<LocalDate,String> frame) {
+        this.windowMap.put(window, frame);
+        if (windowMap.size() > maxWindows) {
+            this.windowMap.remove(windowMap.keySet().iterator().next());
+        }
+    }
+
+
+    /**
+     * Adds the windows fully covered by the most recent rows of this series to the cache
+     * The window containing the oldest row is only complete if the rows include the whole series, since earlier
+     * rows in that window may have been cut off by the row limit.
+     * @param frame     the most recent rows of this series, in ascending date order
+     * @param complete  true if the frame holds every row of this series
+     */
+    private void putWindows(DataFrame<LocalDate,String> frame, boolean complete) {
+        final long last = toWindow(endDate);
+        final long covered = complete ? toWindow(startDate) : frame.rowCount() > 0 ? toWindow(frame.rows().firstKey().get()) + windowDays : last + windowDays;
+        final long first = Math.max(covered, last - (long)(maxWindows - 1) * windowDays);
+        for (long window = first; window <= last; window += windowDays) {
+            final long start = window, end = window + windowDays;
+            this.putWindow(window, frame.rows().select(row -> {
+                final long epochDay = row.key().toEpochDay();
+                return epochDay >= start && epochDay < end;
+            }).copy());
+        }
+    }
+
+
+    /**
+     * Returns the cached window frame starting at the epoch day specified
+     * @param window    the epoch day of the window start
+     * @return          the cached frame, null if not cached
+     */
+    private DataFrame<LocalDate,String> getCached(long window) {
+        final DataFrame<LocalDate,String> frame = peek(window);
+        if (frame != null) {
+            this.hitCount.incrementAndGet();
+        }
+        return frame;
+    }
+
+
+    /**
+     * Returns the cached window frame starting at the epoch day specified, without recording a cache hit
+     * @param window    the epoch day of the window start
+     * @return          the cached frame, null if not cached
+     */
+    private synchronized DataFrame<LocalDate,String> peek(long window) {
+        return windowMap.get(window);
+    }
+
+
+    /**
+     * Returns the data for this series over the date range specified
+     * @param start     the start date, inclusive
+     * @param end       the end date, inclusive
+     * @param limit     the max number of rows, null for no limit
+     * @param ascending true for ascending date order
+     * @return          the frame of data
+     * @throws QuandlException  if the data fails to load
+     */
+    @SuppressWarnings("unchecked")
+    private DataFrame<LocalDate,String> read(LocalDate start, LocalDate end, Integer limit, boolean ascending) throws QuandlException {
+        return (DataFrame<LocalDate,String>)source.read(options -> {
+            options.setOperation(QuandlOptions.Operation.DATA);
+            options.setDatabase(database);
+            options.setDataset(dataset);
+            options.setStartDate(start);
+            options.setEndDate(end);
+            options.setLimit(limit);
+            options.setAscending(ascending);
+        });
+    }
+
+
+    /**
+     * Returns the epoch day of the start of the window that contains the date specified
+     * @param date  the date
+     * @return      the epoch day of the window start
+     */
+    private long toWindow(LocalDate date) {
+        return Math.floorDiv(date.toEpochDay(), (long)windowDays) * windowDays;
+    }
+
+
+    /**
+     * Returns a single frame combining the parts specified, which are assumed to be in ascending date order
+     * @param parts the frame parts
+     * @return      the combined frame
+     */
+    private DataFrame<LocalDate,String> combine(List<DataFrame<LocalDate,String>> parts) {
+        if (parts.isEmpty()) {
+            return createEmptyFrame();
+        } else if (parts.size() == 1) {
+            return parts.get(0).copy();
+        } else {
+            return DataFrame.concatRows(parts).copy();
+        }
+    }
+
+
+    /**
+     * Returns an empty frame with the columns of this series
+     * @return  the empty frame
+     */
+    private DataFrame<LocalDate,String> createEmptyFrame() {
+        final List<String> columns = columnKeys != null ? columnKeys : Collections.emptyList();
+        return DataFrame.of(Index.of(LocalDate.class, 0), columns, Double.class);
+    }
+
+}
@@ -0,0 +1,474 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local caching proxy that exposes the same /api/v3/... endpoints as Quandl, so many processes can share one cache and quota.
+ *
+ * Clients simply use the base url of this server in place of https://www.quandl.com. Requests are keyed by path and
+ * query, ignoring the client api_key, and served from a shared in-memory cache while younger than the time to live.
+ * Misses are forwarded upstream through a QuandlSource using its own api_key, so they share its rate limiter, HTTP
+ * cache and hedge policy, and concurrent misses for the same key are coalesced into a single upstream request.
+ * Responses carry an ETag so clients with a QuandlHttpCache revalidate with a 304 rather than re-downloading.
+ * Upstream requests are bounded by the upstream timeout, which also bounds how long coalesced callers wait, so a
+ * stalled request cannot hold the threads of this server indefinitely.
+ *
+ * Since clients of this server spend the quota of its api key, it listens on the loopback interface by default,
+ * and is only exposed to other hosts when constructed with an explicit wider address.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlServer {
+
+    private static final Duration DEFAULT_UPSTREAM_TIMEOUT = Duration.ofSeconds(60);
+
+    private InetSocketAddress address;
+    private QuandlSource<?,?> upstream;
+    private int threads;
+    private long maxBytes;
+    private long totalBytes;
+    private long timeToLiveMillis;
+    private volatile Duration upstreamTimeout;
+    private HttpServer server;
+    private ExecutorService executor;
+    private Map<String,Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private Map<String,CompletableFuture<Entry>> pendingMap = new ConcurrentHashMap<>();
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong coalescedCount = new AtomicLong();
+    private AtomicLong upstreamCount = new AtomicLong();
+
+    /**
+     * Constructor for a server that only accepts connections from the local host
+     * @param upstream  the source through which cache misses are forwarded to Quandl
+     * @param port      the loopback port to listen on, 0 for any free port
+     */
+    public QuandlServer(QuandlSource<?,?> upstream, int port) {
+        this(upstream, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16, 256L * 1024L * 1024L, Duration.ofMinutes(10));
+    }
+
+    /**
+     * Constructor
+     * @param upstream      the source through which cache misses are forwarded to Quandl
+     * @param address       the local address to listen on, which may be a wildcard or external interface
+     * @param threads       the number of threads serving client requests
+     * @param maxBytes      the max number of response bytes to cache, least recently used entries are evicted first
+     * @param timeToLive    the time after which a cached response is fetched again from upstream
+     */
+    public QuandlServer(QuandlSource<?,?> upstream, InetSocketAddress address, int threads, long maxBytes, Duration timeToLive) {
+        Objects.requireNonNull(upstream, "The upstream source cannot be null");
+        Objects.requireNonNull(address, "The server address cannot be null");
+        Objects.requireNonNull(timeToLive, "The time to live cannot be null");
+        if (threads <= 0) throw new IllegalArgumentException("The thread count must be > 0");
+        if (maxBytes <= 0) throw new IllegalArgumentException("The cache size must be > 0");
+        this.upstream = upstream;
+        this.address = address;
+        this.threads = threads;
+        this.maxBytes = maxBytes;
+        this.timeToLiveMillis = timeToLive.toMillis();
+        this.upstreamTimeout = upstream.getTimeout() != null ? upstream.getTimeout() : DEFAULT_UPSTREAM_TIMEOUT;
+    }
+
+    /**
+     * Starts this server listening for client requests
+     * @return  this server
+     * @throws QuandlException  if the server cannot be bound to its address
+     */
+    public synchronized QuandlServer start() throws QuandlException {
+        if (server == null) {
+            try {
+                this.server = HttpServer.create(address, 128);
+                this.executor = Executors.newFixedThreadPool(threads, r -> {
+                    final Thread thread = new Thread(r, "QuandlServer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.server.setExecutor(executor);
+                this.server.createContext("/", this::handle);
+                this.server.start();
+            } catch (IOException ex) {
+                this.server = null;
+                throw new QuandlException("Failed to start Quandl server on " + address, ex);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Stops this server, closing its listener and releasing its threads
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+            this.server = null;
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Returns the timeout for upstream requests, which also bounds how long callers wait for a coalesced request
+     * @return  the upstream timeout, which defaults to that of the upstream source, or 60 seconds if it has none
+     */
+    public Duration getUpstreamTimeout() {
+        return upstreamTimeout;
+    }
+
+    /**
+     * Sets the timeout for upstream requests, which also bounds how long callers wait for a coalesced request
+     * @param upstreamTimeout   the upstream timeout, which must be > 0
+     */
+    public void setUpstreamTimeout(Duration upstreamTimeout) {
+        Objects.requireNonNull(upstreamTimeout, "The upstream timeout cannot be null");
+        if (upstreamTimeout.isNegative() || upstreamTimeout.isZero()) {
+            throw new IllegalArgumentException("The upstream timeout must be > 0");
+        }
+        this.upstreamTimeout = upstreamTimeout;
+    }
+
+    /**
+     * Returns the address this server listens on, which includes the actual port once started
+     * @return  the listen address
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : address;
+    }
+
+    /**
+     * Returns the base url clients should use in place of https://www.quandl.com
+     * @return  the base url for this server
+     * @throws IllegalStateException    if this server has not been started
+     */
+    public synchronized String getBaseUrl() {
+        if (server == null) {
+            throw new IllegalStateException("The Quandl server has not been started");
+        } else {
+            final InetSocketAddress bound = server.getAddress();
+            final String host = bound.getAddress().isAnyLocalAddress() ? "localhost" : bound.getHostString();
+            return "http://" + host + ":" + bound.getPort();
+        }
+    }
+
+    /**
+     * Returns the number of client requests received by this server
+     * @return  the number of client requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of client requests served from the shared cache
+     * @return  the number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of client requests that joined an upstream request already in flight for the same key
+     * @return  the number of coalesced requests
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of requests forwarded to Quandl
+     * @return  the number of upstream requests
+     */
+    public long getUpstreamCount() {
+        return upstreamCount.get();
+    }
+
+    /**
+     * Returns the number of responses in the shared cache
+     * @return  the number of cached responses
+     */
+    public synchronized int getCacheSize() {
+        return entryMap.size();
+    }
+
+    /**
+     * Removes all responses from the shared cache
+     */
+    public synchronized void clear() {
+        this.entryMap.clear();
+        this.totalBytes = 0L;
+    }
+
+    /**
+     * Handles a single client request
+     * @param exchange  the HTTP exchange
+     */
+    private void handle(HttpExchange exchange) {
+        try {
+            requestCount.incrementAndGet();
+            final String path = exchange.getRequestURI().getRawPath();
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only GET requests are supported");
+            } else if (path == null || !path.startsWith("/api/v3/")) {
+                respond(exchange, 404, "Unsupported path: " + path);
+            } else {
+                final String query = stripApiKey(exchange.getRequestURI().getRawQuery());
+                final Entry entry = fetch(path, query);
+                exchange.getResponseHeaders().set("Content-Type", contentType(path));
+                exchange.getResponseHeaders().set("ETag", entry.etag);
+                if (entry.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, entry.body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(entry.body);
+                    }
+                }
+            }
+        } catch (QuandlHttpException ex) {
+            respond(exchange, ex.getStatus(), ex.getMessage());
+        } catch (QuandlTimeoutException ex) {
+            respond(exchange, 504, "Upstream request timed out: " + ex.getMessage());
+        } catch (Exception ex) {
+            respond(exchange, 502, "Upstream request failed: " + ex.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the cached response for a path and query, fetching it from upstream if missing or expired
+     * Only one upstream request per key is in flight at a time, and other callers wait for its outcome, for at most
+     * the upstream timeout. The outcome is published to waiting callers whatever is thrown, including errors.
+     * @param path      the Quandl API path
+     * @param query     the query excluding api_key
+     * @return          the response entry
+     * @throws QuandlTimeoutException   if the upstream request or the wait for it exceeds the upstream timeout
+     * @throws QuandlException  if the upstream request fails
+     */
+    private Entry fetch(String path, String query) throws QuandlException {
+        final String key = query.isEmpty() ? path : path + "?" + query;
+        final Duration timeout = this.upstreamTimeout;
+        final Entry cached = getFresh(key);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return cached;
+        } else {
+            final CompletableFuture<Entry> future = new CompletableFuture<>();
+            final CompletableFuture<Entry> pending = pendingMap.putIfAbsent(key, future);
+            if (pending != null) {
+                coalescedCount.incrementAndGet();
+                return await(pending, timeout);
+            } else {
+                try {
+                    final Entry latest = getFresh(key);
+                    if (latest != null) {
+                        hitCount.incrementAndGet();
+                        future.complete(latest);
+                        return latest;
+                    } else {
+                        upstreamCount.incrementAndGet();
+                        final QuandlResponse response = upstream.forward(path, query, timeout);
+                        final Entry entry = new Entry(response.getBody(), System.currentTimeMillis());
+                        this.put(key, entry);
+                        future.complete(entry);
+                        return entry;
+                    }
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                    throw ex;
+                } finally {
+                    pendingMap.remove(key, future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the outcome of an upstream request in flight
+     * @param pending   the pending upstream request
+     * @param timeout   the max time to wait for the outcome
+     * @return          the response entry
+     * @throws QuandlTimeoutException   if the outcome is not available within the timeout
+     * @throws QuandlException  if the upstream request failed or the wait was interrupted
+     */
+    private Entry await(CompletableFuture<Entry> pending, Duration timeout) throws QuandlException {
+        try {
+            return pending.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw new QuandlTimeoutException("Upstream Quandl request exceeded timeout of " + timeout.toMillis() + " millis", false, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QuandlException("Interrupted while waiting for upstream Quandl request", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof QuandlException) {
+                throw (QuandlException)ex.getCause();
+            } else {
+                throw new QuandlException("Upstream Quandl request failed", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Returns the cached entry for the key if it is younger than the time to live
+     * @param key   the cache key
+     * @return      the cached entry, null if missing or expired
+     */
+    private synchronized Entry getFresh(String key) {
+        final Entry entry = entryMap.get(key);
+        return entry != null && entry.fetchedAt + timeToLiveMillis > System.currentTimeMillis() ? entry : null;
+    }
+
+    /**
+     * Stores an entry in the shared cache, evicting least recently used entries if required
+     * @param key   the cache key
+     * @param entry the entry to store
+     */
+    private synchronized void put(String key, Entry entry) {
+        if (entry.body.length <= maxBytes) {
+            final Entry prior = entryMap.put(key, entry);
+            this.totalBytes += entry.body.length - (prior != null ? prior.body.length : 0);
+            final Iterator<Entry> iterator = entryMap.values().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                this.totalBytes -= iterator.next().body.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the query string with any api_key parameter removed and the remaining parameters in canonical order
+     * @param query the raw query string, null permitted
+     * @return      the canonical query without api_key, empty if none
+     */
+    private static String stripApiKey(String query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        } else {
+            final List<String> params = new ArrayList<>();
+            for (String param : query.split("&")) {
+                if (!param.isEmpty() && !param.startsWith("api_key=")) {
+                    params.add(param);
+                }
+            }
+            Collections.sort(params);
+            return String.join("&", params);
+        }
+    }
+
+    /**
+     * Returns the content type for a Quandl API path
+     * @param path  the Quandl API path
+     * @return      the content type
+     */
+    private static String contentType(String path) {
+        if (path.endsWith("/codes.csv")) {
+            return "application/zip";
+        } else if (path.endsWith(".csv")) {
+            return "text/csv";
+        } else if (path.endsWith(".json")) {
+            return "application/json";
+        } else {
+            return "application/octet-stream";
+        }
+    }
+
+    /**
+     * Sends a plain text error response, ignoring any failure to do so
+     * @param exchange  the HTTP exchange
+     * @param status    the HTTP status code
+     * @param message   the error message
+     */
+    private static void respond(HttpExchange exchange, int status, String message) {
+        try {
+            final byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } catch (IOException ex) {
+            // The client has gone away, nothing more to do
+        }
+    }
+
+
+    /**
+     * A cached upstream response body along with the time it was fetched and its entity tag
+     */
+    private static class Entry {
+
+        private byte[] body;
+        private String etag;
+        private long fetchedAt;
+
+        /**
+         * Constructor
+         * @param body      the response body
+         * @param fetchedAt the epoch millis when the body was fetched from upstream
+         */
+        Entry(byte[] body, long fetchedAt) {
+            this.body = body;
+            this.fetchedAt = fetchedAt;
+            this.etag = etag(body);
+        }
+
+        /**
+         * Returns a strong entity tag for the body, based on its SHA-1 digest
+         * @param body  the response body
+         * @return      the quoted entity tag
+         */
+        private static String etag(byte[] body) {
+            try {
+                final byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+                final StringBuilder etag = new StringBuilder(42).append('"');
+                for (byte b : digest) {
+                    etag.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return etag.append('"').toString();
+            } catch (Exception ex) {
+                throw new QuandlException("Failed to compute entity tag", ex);
+            }
+        }
+    }
+
+}
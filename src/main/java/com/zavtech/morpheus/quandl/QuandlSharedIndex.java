@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.index.Index;
+import com.zavtech.morpheus.index.IndexConsumer;
+import com.zavtech.morpheus.index.IndexMapper;
+import com.zavtech.morpheus.util.IntComparator;
+
+/**
+ * A copy on write view of a read only index shared by many frames, which gives each frame its own order and keys.
+ *
+ * Morpheus sorts the row index of a frame in place, so frames cannot simply share one index instance without a sort
+ * of one frame reordering all the others. This view delegates to the shared index until the frame it belongs to
+ * adds, replaces or reorders keys, at which point it switches to a private copy of the shared index.
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlSharedIndex<K> implements Index<K> {
+
+    private static final long serialVersionUID = 1L;
+
+    private Index<K> shared;
+    private Index<K> local;
+
+    /**
+     * Constructor
+     * @param shared    the read only index shared by many frames
+     */
+    QuandlSharedIndex(Index<K> shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Returns true if this view still delegates to the shared index
+     * @return  true if no private copy has been made
+     */
+    boolean isShared() {
+        return local == null;
+    }
+
+    /**
+     * Returns the index to read from, which is the private copy if one has been made
+     * @return  the index to read from
+     */
+    private Index<K> target() {
+        return local != null ? local : shared;
+    }
+
+    /**
+     * Returns the private copy of the shared index, making it on first access
+     * @return  the private copy of the index
+     */
+    private Index<K> local() {
+        if (local == null) {
+            this.local = shared.copy();
+        }
+        return local;
+    }
+
+    @Override
+    public int size() {
+        return target().size();
+    }
+
+    @Override
+    public int capacity() {
+        return target().capacity();
+    }
+
+    @Override
+    public boolean add(K key) {
+        return local().add(key);
+    }
+
+    @Override
+    public int addAll(Iterable<K> keys, boolean ignoreDuplicates) {
+        return local().addAll(keys, ignoreDuplicates);
+    }
+
+    @Override
+    public Class<K> type() {
+        return target().type();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return target().isEmpty();
+    }
+
+    @Override
+    public boolean isFilter() {
+        return false;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public Index<K> copy() {
+        return target().copy();
+    }
+
+    @Override
+    public Index<K> readOnly() {
+        return target().readOnly();
+    }
+
+    @Override
+    public Stream<K> keys() {
+        return target().keys();
+    }
+
+    @Override
+    public List<K> toList() {
+        return target().toList();
+    }
+
+    @Override
+    public Array<K> toArray() {
+        return target().toArray();
+    }
+
+    @Override
+    public Array<K> toArray(int start, int end) {
+        return target().toArray(start, end);
+    }
+
+    @Override
+    public IntStream indexes() {
+        return target().indexes();
+    }
+
+    @Override
+    public IntStream indexes(Iterable<K> keys) {
+        return target().indexes(keys);
+    }
+
+    @Override
+    public IntStream ordinals(Iterable<K> keys) {
+        return target().ordinals(keys);
+    }
+
+    @Override
+    public Optional<K> first() {
+        return target().first();
+    }
+
+    @Override
+    public Optional<K> last() {
+        return target().last();
+    }
+
+    @Override
+    public Optional<K> previousKey(K key) {
+        return target().previousKey(key);
+    }
+
+    @Override
+    public Optional<K> nextKey(K key) {
+        return target().nextKey(key);
+    }
+
+    @Override
+    public Index<K> resetOrder() {
+        if (local != null) {
+            this.local.resetOrder();
+        }
+        return this;
+    }
+
+    @Override
+    public K getKey(int ordinal) {
+        return target().getKey(ordinal);
+    }
+
+    @Override
+    public int getOrdinalForKey(K key) {
+        return target().getOrdinalForKey(key);
+    }
+
+    @Override
+    public int getOrdinalForIndex(int index) {
+        return target().getOrdinalForIndex(index);
+    }
+
+    @Override
+    public int getIndexForKey(K key) {
+        return target().getIndexForKey(key);
+    }
+
+    @Override
+    public int getIndexForOrdinal(int ordinal) {
+        return target().getIndexForOrdinal(ordinal);
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return target().contains(key);
+    }
+
+    @Override
+    public boolean containsAll(Iterable<K> keys) {
+        return target().containsAll(keys);
+    }
+
+    @Override
+    public <V> Index<V> map(IndexMapper<K,V> mapper) {
+        return target().map(mapper);
+    }
+
+    @Override
+    public Array<K> intersect(Iterable<K> keys) {
+        return target().intersect(keys);
+    }
+
+    @Override
+    public int replace(K existing, K replacement) {
+        return local().replace(existing, replacement);
+    }
+
+    @Override
+    public void forEachEntry(IndexConsumer<K> consumer) {
+        this.target().forEachEntry(consumer);
+    }
+
+    @Override
+    public Index<K> sort(boolean parallel, boolean ascending) {
+        this.local().sort(parallel, ascending);
+        return this;
+    }
+
+    @Override
+    public Index<K> sort(boolean parallel, IntComparator comparator) {
+        this.local().sort(parallel, comparator);
+        return this;
+    }
+
+    @Override
+    public Index<K> filter(Iterable<K> keys) {
+        return target().filter(keys);
+    }
+
+    @Override
+    public Index<K> filter(Predicate<K> predicate) {
+        return target().filter(predicate);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return target().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return target().toString();
+    }
+}
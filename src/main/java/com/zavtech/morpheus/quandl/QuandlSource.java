@@ -15,21 +15,34 @@
  */
 package com.zavtech.morpheus.quandl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.zip.ZipFile;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static com.zavtech.morpheus.quandl.QuandlField.COLUMN_NAMES;
 import static com.zavtech.morpheus.quandl.QuandlField.DATABASE_CODE;
@@ -45,16 +58,21 @@ import static com.zavtech.morpheus.quandl.QuandlField.NAME;
 import static com.zavtech.morpheus.quandl.QuandlField.PREMIUM;
 import static com.zavtech.morpheus.quandl.QuandlField.START_DATE;
 
+import com.google.gson.Gson;
 import com.zavtech.morpheus.array.Array;
 import com.zavtech.morpheus.frame.DataFrame;
 import com.zavtech.morpheus.frame.DataFrameException;
 import com.zavtech.morpheus.frame.DataFrameSource;
-import com.zavtech.morpheus.util.IO;
+import com.zavtech.morpheus.index.Index;
 import com.zavtech.morpheus.util.Json;
 
 /**
  * A DataFrameSource implementation used to load meta-data and data from Qunadl.com
  *
+ * A single source is designed to be shared by many threads. All per-request state lives in the QuandlOptions
+ * created for each read, which are sealed before the request is issued, while the shared collaborators such
+ * as caches, rate limiter and catalog are thread safe and may be swapped at any time via volatile references.
+ *
  * @link https://www.quandl.com/docs/api
  *
  * @author Xavier Witdouck
@@ -63,8 +81,20 @@ import com.zavtech.morpheus.util.Json;
  */
 public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
 
-    private String apiKey;
-    private String baseUrl;
+    private static final int MAX_META_DATA_THREADS = 16;
+
+    private final String apiKey;
+    private final String baseUrl;
+    private final Gson gson = Json.builder().create();
+    private final QuandlTransport transport = new QuandlTransport();
+    private volatile QuandlCatalog catalog;
+    private volatile QuandlStalePolicy stalePolicy;
+    private volatile QuandlFrameCache frameCache;
+    private volatile Duration timeout;
+    private volatile QuandlPrefetcher prefetcher;
+    private volatile QuandlDateAxis dateAxis;
+    private ExecutorService metaDataExecutor;
+    private volatile QuandlCsvParser parser = new QuandlCsvParser(QuandlCsvParser.DEFAULT_THRESHOLD, ForkJoinPool.commonPool());
 
     /**
      * Constructor
@@ -86,6 +116,170 @@ public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
         this.apiKey = apiKey;
     }
 
+    /**
+     * Returns the conditional request cache used by this source
+     * @return  the HTTP cache, null if caching is disabled
+     */
+    public QuandlHttpCache getHttpCache() {
+        return transport.getCache();
+    }
+
+    /**
+     * Sets the conditional request cache used by this source
+     * @param cache the HTTP cache, null to disable caching
+     */
+    public void setHttpCache(QuandlHttpCache cache) {
+        this.transport.setCache(cache);
+    }
+
+    /**
+     * Returns the rate limiter applied to all requests issued by this source
+     * @return  the rate limiter, null if none
+     */
+    public QuandlRateLimiter getRateLimiter() {
+        return transport.getRateLimiter();
+    }
+
+    /**
+     * Sets the rate limiter applied to all requests issued by this source, including hedges
+     * @param rateLimiter   the rate limiter, null for no limit
+     */
+    public void setRateLimiter(QuandlRateLimiter rateLimiter) {
+        this.transport.setRateLimiter(rateLimiter);
+    }
+
+    /**
+     * Returns the hedging policy applied to data and metadata requests
+     * @return  the hedge policy, null if hedging is disabled
+     */
+    public QuandlHedgePolicy getHedgePolicy() {
+        return transport.getHedgePolicy();
+    }
+
+    /**
+     * Sets the hedging policy applied to data and metadata requests
+     * @param hedgePolicy   the hedge policy, null to disable hedging
+     */
+    public void setHedgePolicy(QuandlHedgePolicy hedgePolicy) {
+        this.transport.setHedgePolicy(hedgePolicy);
+    }
+
+    /**
+     * Returns the policy used to serve last good results while Quandl is failing
+     * @return  the stale policy, null if disabled
+     */
+    public QuandlStalePolicy getStalePolicy() {
+        return stalePolicy;
+    }
+
+    /**
+     * Sets the policy used to serve last good results while Quandl is failing
+     * @param stalePolicy   the stale policy, null to disable
+     */
+    public void setStalePolicy(QuandlStalePolicy stalePolicy) {
+        this.stalePolicy = stalePolicy;
+    }
+
+    /**
+     * Returns the cache of DataFrames returned by this source
+     * @return  the frame cache, null if disabled
+     */
+    public QuandlFrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    /**
+     * Sets the cache of DataFrames returned by this source, which serves repeated identical requests locally
+     * Cached frames are served without consulting the stale policy until they reach the max age of the cache.
+     * @param frameCache    the frame cache, null to disable
+     */
+    public void setFrameCache(QuandlFrameCache frameCache) {
+        this.frameCache = frameCache;
+    }
+
+    /**
+     * Returns the default timeout applied to requests whose options do not specify one
+     * @return  the default request timeout, null if none
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the default timeout applied to requests whose options do not specify one
+     * @param timeout   the default request timeout, null for none
+     */
+    public void setTimeout(Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("The Quandl request timeout must be > 0");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the prefetcher that loads predicted data requests in the background
+     * @return  the prefetcher, null if prefetching is disabled
+     */
+    public QuandlPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Sets the prefetcher that loads predicted data requests in the background
+     * @param prefetcher    the prefetcher, null to disable prefetching
+     */
+    public void setPrefetcher(QuandlPrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Returns the canonical date axis that loaded data frames share their dates and row indexes with
+     * @return  the date axis, null if frames build their own row indexes
+     */
+    public QuandlDateAxis getDateAxis() {
+        return dateAxis;
+    }
+
+    /**
+     * Sets the canonical date axis that loaded data frames share their dates and row indexes with
+     * @param dateAxis  the date axis, null for frames to build their own row indexes
+     */
+    public void setDateAxis(QuandlDateAxis dateAxis) {
+        this.dateAxis = dateAxis;
+    }
+
+    /**
+     * Returns the min size of a CSV body in bytes for it to be parsed in parallel chunks
+     * @return  the parallel parse threshold in bytes
+     */
+    public long getParallelParseThreshold() {
+        return parser.getThreshold();
+    }
+
+    /**
+     * Sets the min size of a CSV body in bytes for it to be parsed in parallel chunks on the common fork join pool
+     * @param threshold the parallel parse threshold in bytes, Long.MAX_VALUE to always parse on the calling thread
+     */
+    public void setParallelParseThreshold(long threshold) {
+        this.parser = new QuandlCsvParser(threshold, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the availability catalog used to prune data requests
+     * @return  the catalog, null if none
+     */
+    public QuandlCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Sets the availability catalog used to prune data requests, which is also updated with loaded metadata
+     * @param catalog   the catalog, null to disable pruning
+     */
+    public void setCatalog(QuandlCatalog catalog) {
+        this.catalog = catalog;
+    }
+
     /**
      * Returns the fully qualified Quandl URL string
      * @param request   the request descriptor
@@ -111,44 +305,219 @@ public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
 
 
     @Override
-    @SuppressWarnings("unchecked")
     public DataFrame<R,C> read(Consumer<QuandlOptions<R, C>> configurator) throws DataFrameException {
-        final QuandlOptions options = initOptions(new QuandlOptions<>(), configurator);
-        switch (options.getOperation()) {
-            case DATA:      return (DataFrame<R,C>)getData(options);
-            case DATASETS:  return (DataFrame<R,C>)getDatasets(options);
-            case DATABASES: return (DataFrame<R,C>)getDatabases(options);
-            case META_DATA: return (DataFrame<R,C>)getMetaData(options);
-            default:        throw new DataFrameException("Unsupported request: " + options);
+        return read(initOptions(new QuandlOptions<>(), configurator));
+    }
+
+
+    /**
+     * Returns a DataFrame for a request that has already been configured and validated
+     * @param request   the Quandl request, which is sealed by this call
+     * @return          the resulting DataFrame
+     */
+    @SuppressWarnings("unchecked")
+    DataFrame<R,C> read(QuandlOptions<?,?> request) {
+        final QuandlOptions<R,C> options = (QuandlOptions<R,C>)request;
+        final Duration timeout = this.timeout;
+        if (timeout != null && !options.getTimeout().isPresent()) {
+            options.setTimeout(timeout);
+        }
+        options.seal();
+        final String key = options.toKey();
+        final QuandlPrefetcher prefetcher = this.prefetcher;
+        if (prefetcher == null) {
+            return read(options, key);
+        } else {
+            final DataFrame<R,C> prefetched = prefetcher.take(key, options.getDeadline());
+            final DataFrame<R,C> result = prefetched != null ? prefetched : read(options, key);
+            prefetcher.record(this, options, result);
+            return result;
+        }
+    }
+
+
+    /**
+     * Returns a DataFrame for the sealed request, served from the frame cache if possible
+     * @param options   the sealed Quandl request
+     * @param key       the request key
+     * @return          the resulting DataFrame
+     */
+    private DataFrame<R,C> read(QuandlOptions<R,C> options, String key) {
+        final QuandlStalePolicy stalePolicy = this.stalePolicy;
+        final QuandlFrameCache frameCache = this.frameCache;
+        final DataFrame<R,C> cached = frameCache != null ? frameCache.get(key) : null;
+        if (cached != null) {
+            return cached;
+        } else if (stalePolicy == null) {
+            final DataFrame<R,C> result = load(options);
+            if (frameCache != null) {
+                frameCache.put(key, result);
+            }
+            return result;
+        } else {
+            final DataFrame<R,C> result = stalePolicy.read(options.getOperation(), key, () -> load(options), () -> load(detach(options)));
+            if (frameCache != null && !stalePolicy.isStale(result)) {
+                frameCache.put(key, result);
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     * Returns a sealed copy of the request for a background refresh, without the caller's cancel token or deadline
+     * @param options   the sealed Quandl request
+     * @return          the copy with this source's default timeout
+     */
+    private QuandlOptions<R,C> detach(QuandlOptions<R,C> options) {
+        final QuandlOptions<R,C> copy = options.copy();
+        copy.setCancelToken(null);
+        copy.setTimeout(timeout);
+        copy.seal();
+        return copy;
+    }
+
+
+    /**
+     * Returns a DataFrame for a request predicted by the prefetcher, bypassing the prefetcher itself
+     * @param request   the predicted request, a copy of the caller's request which is sealed by this call
+     * @return          the resulting DataFrame
+     */
+    @SuppressWarnings("unchecked")
+    DataFrame<R,C> prefetch(QuandlOptions<?,?> request) {
+        final QuandlOptions<R,C> options = (QuandlOptions<R,C>)request;
+        options.setCancelToken(null);
+        options.setTimeout(timeout);
+        options.seal();
+        return read(options, options.toKey());
+    }
+
+
+    /**
+     * Returns a DataFrame loaded from Quandl for the request specified
+     * @param options   the Quandl request
+     * @return          the resulting DataFrame
+     */
+    @SuppressWarnings("unchecked")
+    private DataFrame<R,C> load(QuandlOptions<R,C> options) {
+        Throwable error = null;
+        final QuandlEvents.Context context = QuandlEvents.begin(options);
+        try {
+            switch (options.getOperation()) {
+                case DATA:      return (DataFrame<R,C>)getData(options);
+                case DATASETS:  return (DataFrame<R,C>)getDatasets(options);
+                case DATABASES: return (DataFrame<R,C>)getDatabases(options);
+                case META_DATA: return (DataFrame<R,C>)getMetaData(options);
+                default:        throw new DataFrameException("Unsupported request: " + options);
+            }
+        } catch (RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            QuandlEvents.end(context, error);
         }
     }
 
 
+    /**
+     * Returns true if the frame was served from a last good result because Quandl was failing or busy refreshing
+     * @param frame the frame returned by this source
+     * @return      true if the frame is stale
+     */
+    public boolean isStale(DataFrame<?,?> frame) {
+        final QuandlStalePolicy stalePolicy = this.stalePolicy;
+        return stalePolicy != null && stalePolicy.isStale(frame);
+    }
+
+
     /**
      * Returns a DataFrame containing data for the request specified
      * @param request   the Quandl request for data
      * @return          the resulting DataFrame
      */
-    private DataFrame<LocalDate,String> getData(QuandlOptions<R,C> request) {
+    private DataFrame<LocalDate,String> getData(QuandlOptions<R,C> original) {
+        QuandlOptions<R,C> request = original;
         try {
             final String database = request.getDatabaseCode().orElse(null);
             if (database == null) throw new QuandlException("No database code specified in Quandl request");
             final String dataset = request.getDatasetCode().orElse(null);
             if (dataset == null) throw new QuandlException("No dataset code specified in Quandl request");
+            final QuandlCatalog catalog = this.catalog;
+            final QuandlCatalog.Dataset entry = catalog != null ? catalog.getDataset(database, dataset).orElse(null) : null;
+            if (entry != null) {
+                request = clamp(original, entry, catalog.getMaxAge());
+                if (request == null) {
+                    return createEmptyFrame(original, entry);
+                }
+            }
             final String queryString = request.toQueryString();
             final String urlString = createUrl(request, "/api/v3/datasets/" + database + "/" + dataset + ".csv", queryString);
-            System.out.println(urlString);
-            return DataFrame.read().csv(options -> {
-                options.setResource(urlString);
-                options.setColIndexPredicate(index -> index != 0);
-                options.setRowKeyParser(LocalDate.class, v -> LocalDate.parse(v[0]));
-            });
+            final QuandlResponse response = transport.get(urlString, true, request.getDeadline());
+            final QuandlCsvParser parser = this.parser;
+            final QuandlDeadline deadline = request.getDeadline();
+            final QuandlDateAxis dateAxis = this.dateAxis;
+            final DataFrame<LocalDate,String> frame = response.getContent(body -> parser.parseData(body, dateAxis, deadline), deadline);
+            return response.isCached() ? frame.copy() : frame;
         } catch (Exception ex) {
-            throw new QuandlException("Failed to load data from Quandl for " + request, ex);
+            throw failure("Failed to load data from Quandl for " + original, ex);
         }
     }
 
 
+    /**
+     * Clamps the date range of a data request to the availability window recorded in the catalog
+     * The newest available date is only trusted if the catalog entry is younger than the max age.
+     * The request itself is sealed and never modified, a clamped copy is returned if the range had to be narrowed.
+     * @param request   the data request to clamp
+     * @param entry     the catalog entry for the requested dataset
+     * @param maxAge    the max age of a catalog entry to trust its newest available date
+     * @return          the request to issue, which may be a clamped copy, or null if the request can be skipped
+     */
+    private QuandlOptions<R,C> clamp(QuandlOptions<R,C> request, QuandlCatalog.Dataset entry, Duration maxAge) {
+        final LocalDate oldest = entry.getOldestAvailableDate();
+        final LocalDate newest = entry.getNewestAvailableDate();
+        final boolean fresh = entry.getCheckedAt() >= System.currentTimeMillis() - maxAge.toMillis();
+        final LocalDate start = request.getStartDate().orElse(null);
+        final LocalDate end = request.getEndDate().orElse(null);
+        if (oldest != null && end != null && end.isBefore(oldest)) {
+            return null;
+        } else if (fresh && newest != null && start != null && start.isAfter(newest)) {
+            return null;
+        } else {
+            final boolean clampStart = oldest != null && start != null && start.isBefore(oldest);
+            final boolean clampEnd = fresh && newest != null && end != null && end.isAfter(newest);
+            if (!clampStart && !clampEnd) {
+                return request;
+            } else {
+                final QuandlOptions<R,C> clamped = request.copy();
+                if (clampStart) clamped.setStartDate(oldest);
+                if (clampEnd) clamped.setEndDate(newest);
+                clamped.seal(request.getDeadline());
+                return clamped;
+            }
+        }
+    }
+
+
+    /**
+     * Returns an empty data frame for a request that was skipped, with columns based on the catalog entry
+     * @param request   the data request
+     * @param entry     the catalog entry for the requested dataset
+     * @return          the empty data frame
+     */
+    private DataFrame<LocalDate,String> createEmptyFrame(QuandlOptions<R,C> request, QuandlCatalog.Dataset entry) {
+        final String[] names = entry.getColumnNames() != null ? entry.getColumnNames() : new String[0];
+        final Integer colIndex = request.getColIndex().orElse(null);
+        final List<String> columns = new ArrayList<>();
+        for (int i=1; i<names.length; ++i) {
+            if (colIndex == null || colIndex == i) {
+                columns.add(names[i]);
+            }
+        }
+        return DataFrame.of(Index.of(LocalDate.class, 0), columns, Double.class);
+    }
+
+
     /**
      * Returns a DataFrame containing metadata for the request specified
      * @param request   the Quandl request for data
@@ -156,31 +525,186 @@ public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
      */
     private DataFrame<Integer,QuandlField> getMetaData(QuandlOptions<R,C> request) {
         try {
-            final String database = request.getDatabaseCode().orElse(null);
-            if (database == null) throw new QuandlException("No database code specified in Quandl request");
-            final String dataset = request.getDatasetCode().orElse(null);
-            if (dataset == null) throw new QuandlException("No dataset code specified in Quandl request");
-            final String urlString = createUrl(request, "/api/v3/datasets/" + database + "/" + dataset + "/metadata.json");
-            final QuandlDatasetInfo datasetInfo = new Json().parse(new URL(urlString), QuandlDatasetInfo.class);
-            final Set<Integer> rowKeys = Collections.singleton(datasetInfo.getId());
-            return DataFrame.of(rowKeys, QuandlField.class, columns -> {
-                columns.add(NAME, Array.of(datasetInfo.getName()));
-                columns.add(DESCRIPTION, Array.of(datasetInfo.getDescription()));
-                columns.add(DATASET_CODE, Array.of(datasetInfo.getDatasetCode()));
-                columns.add(DATABASE_CODE, Array.of(datasetInfo.getDatabaseCode()));
-                columns.add(LAST_REFRESH_TIME, Array.of(datasetInfo.getRefreshedAt()));
-                columns.add(START_DATE, Array.of(datasetInfo.getOldestAvailableDate()));
-                columns.add(END_DATE, Array.of(datasetInfo.getNewestAvailableDate()));
-                columns.add(DATASET_TYPE, Array.of(datasetInfo.getType()));
-                columns.add(FREQUENCY, Array.of(datasetInfo.getFrequency()));
-                columns.add(DATABASE_ID, Array.of(datasetInfo.getDatabaseId()));
-                columns.add(DATASET_ID, Array.of(datasetInfo.getId()));
-                columns.add(PREMIUM, Array.of(datasetInfo.isPremium()));
-                columns.add(COLUMN_NAMES, Array.singleton(datasetInfo.getColumnNames()));
-            });
+            final QuandlDatasetInfo datasetInfo = getDatasetInfo(request);
+            return createMetaDataFrame(Collections.singletonList(datasetInfo));
         } catch (Exception ex) {
-            throw new QuandlException("Failed to dataset metadata listing from Quandl for " + request, ex);
+            throw failure("Failed to dataset metadata listing from Quandl for " + request, ex);
+        }
+    }
+
+
+    /**
+     * Returns a DataFrame containing metadata for many datasets, which are fetched concurrently
+     * Errors for individual datasets do not fail the batch, but are instead collected in the result.
+     * @param codes     the Quandl codes in the form DATABASE/DATASET, for example "WIKI/AAPL"
+     * @param threads   the max number of concurrent metadata requests, capped by the executor shared across batches
+     * @return          the batch result, with one row per dataset that loaded successfully
+     */
+    public QuandlBatch<Integer,QuandlField> getMetaData(Collection<String> codes, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("The thread count must be > 0");
+        final List<String> codeList = new ArrayList<>(codes);
+        final QuandlDatasetInfo[] results = new QuandlDatasetInfo[codeList.size()];
+        final Map<String,Throwable> errorMap = new ConcurrentHashMap<>();
+        final AtomicInteger next = new AtomicInteger();
+        final int workers = Math.min(Math.min(threads, MAX_META_DATA_THREADS), codeList.size());
+        final CountDownLatch latch = new CountDownLatch(workers);
+        final ExecutorService executor = getMetaDataExecutor();
+        for (int i=0; i<workers; ++i) {
+            executor.execute(() -> {
+                try {
+                    for (int index = next.getAndIncrement(); index < codeList.size(); index = next.getAndIncrement()) {
+                        final String code = codeList.get(index);
+                        try {
+                            results[index] = getDatasetInfo(code);
+                        } catch (Throwable t) {
+                            errorMap.put(code, t);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            next.set(codeList.size());
+            Thread.currentThread().interrupt();
+            throw new QuandlException("Interrupted while loading dataset metadata from Quandl", ex);
+        }
+        final List<QuandlDatasetInfo> infoList = Arrays.stream(results).filter(Objects::nonNull).collect(Collectors.toList());
+        final Map<String,Throwable> errors = new LinkedHashMap<>();
+        codeList.stream().filter(errorMap::containsKey).forEach(code -> errors.put(code, errorMap.get(code)));
+        return new QuandlBatch<>(createMetaDataFrame(infoList), errors);
+    }
+
+
+    /**
+     * Returns the dataset info for a single code in a metadata batch, recorded as its own request event
+     * @param code  the Quandl code in the form DATABASE/DATASET
+     * @return      the dataset info
+     * @throws Exception    if the code is invalid or the request fails
+     */
+    private QuandlDatasetInfo getDatasetInfo(String code) throws Exception {
+        final String[] tokens = code.split("/");
+        if (tokens.length != 2) throw new QuandlException("Invalid Quandl code, expected DATABASE/DATASET: " + code);
+        final QuandlOptions<R,C> request = new QuandlOptions<>();
+        request.setOperation(QuandlOptions.Operation.META_DATA);
+        request.setDatabase(tokens[0]);
+        request.setDataset(tokens[1]);
+        request.setTimeout(timeout);
+        request.seal();
+        Throwable error = null;
+        final QuandlEvents.Context context = QuandlEvents.begin(request);
+        try {
+            return getDatasetInfo(request);
+        } catch (Throwable t) {
+            error = t;
+            throw t;
+        } finally {
+            QuandlEvents.end(context, error);
+        }
+    }
+
+
+    /**
+     * Returns the executor shared by all metadata batches of this source, which is bounded and creates threads lazily
+     * @return  the executor for metadata requests
+     */
+    private synchronized ExecutorService getMetaDataExecutor() {
+        if (metaDataExecutor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_META_DATA_THREADS, MAX_META_DATA_THREADS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                final Thread thread = new Thread(r, "QuandlMetaData-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.metaDataExecutor = executor;
+        }
+        return metaDataExecutor;
+    }
+
+
+    /**
+     * Returns the dataset info for the request specified
+     * @param request   the Quandl request for metadata
+     * @return          the dataset info
+     * @throws Exception    if the request fails
+     */
+    private QuandlDatasetInfo getDatasetInfo(QuandlOptions<R,C> request) throws Exception {
+        final String database = request.getDatabaseCode().orElse(null);
+        if (database == null) throw new QuandlException("No database code specified in Quandl request");
+        final String dataset = request.getDatasetCode().orElse(null);
+        if (dataset == null) throw new QuandlException("No dataset code specified in Quandl request");
+        final String urlString = createUrl(request, "/api/v3/datasets/" + database + "/" + dataset + "/metadata.json");
+        final QuandlResponse response = transport.get(urlString, true, request.getDeadline());
+        final QuandlDatasetInfo info = response.getContent(body -> {
+            try (Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8)) {
+                return gson.fromJson(reader, QuandlDatasetInfo.class);
+            }
+        }, request.getDeadline());
+        final QuandlCatalog catalog = this.catalog;
+        if (catalog != null) {
+            catalog.update(info);
+        }
+        return info;
+    }
+
+
+    /**
+     * Returns a metadata DataFrame with one row per dataset, laying out each column in a single pass
+     * @param infoList  the list of dataset info
+     * @return          the metadata DataFrame keyed by dataset id
+     */
+    private DataFrame<Integer,QuandlField> createMetaDataFrame(List<QuandlDatasetInfo> infoList) {
+        final Index<Integer> rowKeys = Index.of(Integer.class, infoList.size());
+        final List<QuandlDatasetInfo> rows = infoList.stream().filter(info -> rowKeys.add(info.getId())).collect(Collectors.toList());
+        final int count = rows.size();
+        final Array<String> names = Array.of(String.class, count);
+        final Array<String> descriptions = Array.of(String.class, count);
+        final Array<String> datasetCodes = Array.of(String.class, count);
+        final Array<String> databaseCodes = Array.of(String.class, count);
+        final Array<ZonedDateTime> refreshTimes = Array.of(ZonedDateTime.class, count);
+        final Array<LocalDate> startDates = Array.of(LocalDate.class, count);
+        final Array<LocalDate> endDates = Array.of(LocalDate.class, count);
+        final Array<String> types = Array.of(String.class, count);
+        final Array<String> frequencies = Array.of(String.class, count);
+        final Array<Integer> databaseIds = Array.of(Integer.class, count);
+        final Array<Integer> datasetIds = Array.of(Integer.class, count);
+        final Array<Boolean> premiums = Array.of(Boolean.class, count);
+        final Array<String[]> columnNames = Array.of(String[].class, count);
+        for (int i=0; i<count; ++i) {
+            final QuandlDatasetInfo info = rows.get(i);
+            names.setValue(i, info.getName());
+            descriptions.setValue(i, info.getDescription());
+            datasetCodes.setValue(i, info.getDatasetCode());
+            databaseCodes.setValue(i, info.getDatabaseCode());
+            refreshTimes.setValue(i, info.getRefreshedAt());
+            startDates.setValue(i, info.getOldestAvailableDate());
+            endDates.setValue(i, info.getNewestAvailableDate());
+            types.setValue(i, info.getType());
+            frequencies.setValue(i, info.getFrequency());
+            databaseIds.setInt(i, info.getDatabaseId());
+            datasetIds.setInt(i, info.getId());
+            premiums.setBoolean(i, info.isPremium());
+            columnNames.setValue(i, info.getColumnNames());
         }
+        return DataFrame.of(rowKeys, QuandlField.class, columns -> {
+            columns.add(NAME, names);
+            columns.add(DESCRIPTION, descriptions);
+            columns.add(DATASET_CODE, datasetCodes);
+            columns.add(DATABASE_CODE, databaseCodes);
+            columns.add(LAST_REFRESH_TIME, refreshTimes);
+            columns.add(START_DATE, startDates);
+            columns.add(END_DATE, endDates);
+            columns.add(DATASET_TYPE, types);
+            columns.add(FREQUENCY, frequencies);
+            columns.add(DATABASE_ID, databaseIds);
+            columns.add(DATASET_ID, datasetIds);
+            columns.add(PREMIUM, premiums);
+            columns.add(COLUMN_NAMES, columnNames);
+        });
     }
 
 
@@ -195,34 +719,84 @@ public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
             if (database == null) {
                 throw new QuandlException("No database code specified for Quandl request:" + request);
             } else {
-                final String urlString = createUrl(request, "/api/v3/databases/" + database  + "/codes.csv");
-                final File localFile = downloadZipFile(new URL(urlString));
-                final ZipFile zipfile = new ZipFile(localFile);
-                final List<DataFrame<String,String>> frameList = new ArrayList<>();
-                zipfile.stream().forEach(entry -> {
-                    try {
-                        final DataFrame<String,String> frame = DataFrame.read().csv(options -> {
-                            try {
-                                options.setHeader(false);
-                                options.setExcludeColumns("Column-0");
-                                options.setRowKeyParser(String.class, row -> row[0]);
-                                options.setResource(zipfile.getInputStream(entry));
-                            } catch (IOException ex) {
-                                throw new RuntimeException("Failed to extract entry from zip file", ex);
-                            }
-                        });
-                        frame.cols().replaceKey("Column-1", QuandlField.DESCRIPTION.name());
-                        frame.cols().add(QuandlField.DATABASE_CODE.name(), String.class).applyValues(v -> database);
-                        frameList.add(frame);
-                    } catch (Exception ex) {
-                        throw new RuntimeException("Failed to extract content from zip file", ex);
+                final QuandlCsvParser parser = this.parser;
+                final QuandlResponse response = getDatasetArchive(request, database);
+                final DataFrame<String,String> combined = response.getContent(body -> {
+                    final List<DataFrame<String,String>> frameList = new ArrayList<>();
+                    try (ZipInputStream zis = new ZipInputStream(body)) {
+                        for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                            request.getDeadline().check("parse");
+                            final DataFrame<String,String> frame = parser.parseCodes(readEntry(zis), request.getDeadline());
+                            frame.cols().replaceKey("Column-1", QuandlField.DESCRIPTION.name());
+                            frame.cols().add(QuandlField.DATABASE_CODE.name(), String.class).applyValues(v -> database);
+                            frameList.add(frame);
+                        }
                     }
-                });
-                final DataFrame<String,String> combined = DataFrame.combineFirst(frameList);
-                return combined.cols().mapKeys(column -> QuandlField.of(column.key()));
+                    return DataFrame.combineFirst(frameList);
+                }, request.getDeadline());
+                final DataFrame<String,String> result = response.isCached() ? combined.copy() : combined;
+                return result.cols().mapKeys(column -> QuandlField.of(column.key()));
             }
         } catch (Exception ex) {
-            throw new QuandlException("Failed to load dataset listing from Quandl for " + request, ex);
+            throw failure("Failed to load dataset listing from Quandl for " + request, ex);
+        }
+    }
+
+
+    /**
+     * Returns the response holding the zipped listing of all dataset codes in a database, without parsing it
+     * @param database  the Quandl database code, for example "WIKI"
+     * @return          the response with the zip archive body
+     * @throws QuandlException  if the download fails
+     */
+    QuandlResponse getDatasetArchive(String database) throws QuandlException {
+        Throwable error = null;
+        final QuandlOptions<R,C> request = new QuandlOptions<>();
+        request.setOperation(QuandlOptions.Operation.DATASETS);
+        request.setDatabase(database);
+        request.seal();
+        final QuandlEvents.Context context = QuandlEvents.begin(request);
+        try {
+            return getDatasetArchive(request, database);
+        } catch (RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            QuandlEvents.end(context, error);
+        }
+    }
+
+
+    /**
+     * Returns the response holding the zipped listing of all dataset codes in a database
+     * @param request   the request descriptor
+     * @param database  the Quandl database code
+     * @return          the response with the zip archive body
+     * @throws QuandlException  if the download fails
+     */
+    private QuandlResponse getDatasetArchive(QuandlOptions<R,C> request, String database) throws QuandlException {
+        final String urlString = createUrl(request, "/api/v3/databases/" + database  + "/codes.csv");
+        return transport.get(urlString, false, request.getDeadline());
+    }
+
+
+    /**
+     * Returns the upstream response for a raw Quandl API path and query, as issued through this source's transport
+     * The api_key of this source is applied, so the request shares the caches, rate budget and hedging of this source.
+     * @param path      the Quandl API path, which must start with /api/v3/
+     * @param query     the query string excluding any api_key, null or empty permitted
+     * @param timeout   the timeout for the request, null for none
+     * @return          the upstream response
+     * @throws QuandlException  if the request fails or Quandl returns an error status
+     */
+    QuandlResponse forward(String path, String query, Duration timeout) throws QuandlException {
+        if (path == null || !path.startsWith("/api/v3/")) {
+            throw new QuandlException("Unsupported Quandl API path: " + path);
+        } else {
+            final String url = baseUrl + path + "?api_key=" + apiKey;
+            final boolean hedgeable = path.startsWith("/api/v3/datasets/");
+            final QuandlDeadline deadline = timeout != null ? new QuandlDeadline(timeout, null) : QuandlDeadline.NONE;
+            return transport.get(query == null || query.isEmpty() ? url : url + "&" + query, hedgeable, deadline);
         }
     }
 
@@ -238,48 +812,56 @@ public class QuandlSource<R,C> extends DataFrameSource<R,C,QuandlOptions<R,C>> {
             final int maxPages = request.getMaxPages().orElse(100);
             final int pageSize = request.getPageSize().orElse(100);
             final List<DataFrame<Integer,String>> frameList = new ArrayList<>();
+            final QuandlDeadline deadline = request.getDeadline();
             for (int i=0; i<maxPages; ++i) {
+                deadline.check("page " + i);
                 final String url = createUrl(request, "/api/v3/databases.csv", "page=" + i + "&per_page=" + pageSize);
-                final DataFrame<Integer,String> frame = DataFrame.read().csv(options -> {
-                    options.setResource(url);
+                final QuandlResponse response = transport.get(url, false, deadline);
+                final DataFrame<Integer,String> frame = response.getContent(body -> DataFrame.read().csv(options -> {
+                    options.setResource(body);
                     options.setExcludeColumns("id");
                     options.setColumnType("datasets_count", Long.class);
                     options.setColumnType("downloads", Long.class);
                     options.setRowKeyParser(Integer.class, v -> Integer.parseInt(v[0]));
-                });
+                }), deadline);
                 if (frame.rowCount() == 0) break;
                 frameList.add(frame);
             }
             final DataFrame<Integer,String> combined = DataFrame.combineFirst(frameList);
             return combined.cols().mapKeys(column -> QuandlField.of(column.key()));
         } catch (Exception ex) {
-            throw new QuandlException("Failed to load database list from Quandl: " + ex.getMessage(), ex);
+            throw failure("Failed to load database list from Quandl: " + ex.getMessage(), ex);
         }
     }
 
 
-    private File downloadZipFile(URL url) throws IOException {
-        BufferedInputStream bis = null;
-        BufferedOutputStream bos = null;
-        try {
-            final String tmpDir = System.getProperty("java.io.tmpdir");
-            final File file = new File(tmpDir, UUID.randomUUID().toString() + ".zip");
-            file.deleteOnExit();
-            bis = new BufferedInputStream(url.openStream());
-            bos = new BufferedOutputStream(new FileOutputStream(file));
-            final byte[] buffer = new byte[1024 * 100];
-            while (true) {
-                final int read = bis.read(buffer);
-                if (read < 0) break;
-                bos.write(buffer, 0, read);
-            }
-            return file;
-        } catch (Exception ex) {
-            throw new QuandlException("Failed to download zip file from " + url, ex);
-        } finally {
-            IO.close(bis);
-            IO.close(bos);
+    /**
+     * Returns the exception to throw for a failed request, which is the timeout itself if the request timed out
+     * @param message   the message for a general failure
+     * @param ex        the cause of the failure
+     * @return          the QuandlTimeoutException in the cause chain if any, otherwise a new QuandlException
+     */
+    private static QuandlException failure(String message, Exception ex) {
+        final QuandlTimeoutException timeout = QuandlDeadline.find(ex);
+        return timeout != null ? timeout : new QuandlException(message, ex);
+    }
+
+
+    /**
+     * Returns the bytes for the current entry of the zip stream
+     * @param zis   the zip input stream positioned at an entry
+     * @return      the bytes for the entry
+     * @throws IOException  if an I/O error occurs
+     */
+    private byte[] readEntry(ZipInputStream zis) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 * 100);
+        final byte[] buffer = new byte[1024 * 100];
+        while (true) {
+            final int read = zis.read(buffer);
+            if (read < 0) break;
+            bytes.write(buffer, 0, read);
         }
+        return bytes.toByteArray();
     }
 
-}
+}
\ No newline at end of file
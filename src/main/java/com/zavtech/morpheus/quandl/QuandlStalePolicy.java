@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A policy that serves the last good result for a request while its endpoint is failing or a refresh is in flight.
+ *
+ * Each endpoint type has its own circuit breaker. While the circuit for an endpoint is open, or while a request with
+ * the same key is already in flight, callers immediately receive a copy of the last good result and a background
+ * refresh is scheduled to replace it. If a synchronous request fails and a last good result exists, that result is
+ * returned instead of the error. Frames served this way are marked stale, which can be checked with isStale().
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlStalePolicy {
+
+    private int maxEntries;
+    private int failureThreshold;
+    private Duration openDuration;
+    private LongSupplier clock;
+    private ExecutorService executor;
+    private AtomicLong staleCount = new AtomicLong();
+    private Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private Set<StaleRef> staleSet = new HashSet<>();
+    private ReferenceQueue<DataFrame<?,?>> staleQueue = new ReferenceQueue<>();
+    private Map<QuandlOptions.Operation,QuandlCircuitBreaker> breakerMap = new ConcurrentHashMap<>();
+    private Map<String,DataFrame<?,?>> lastGoodMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor
+     * @param maxEntries    the max number of last good results to retain
+     */
+    public QuandlStalePolicy(int maxEntries) {
+        this(maxEntries, 5, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Constructor
+     * @param maxEntries        the max number of last good results to retain
+     * @param failureThreshold  the number of consecutive failures that opens the circuit for an endpoint
+     * @param openDuration      the time a circuit stays open before a trial request is permitted
+     */
+    public QuandlStalePolicy(int maxEntries, int failureThreshold, Duration openDuration) {
+        this(maxEntries, failureThreshold, openDuration, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor
+     * @param maxEntries        the max number of last good results to retain
+     * @param failureThreshold  the number of consecutive failures that opens the circuit for an endpoint
+     * @param openDuration      the time a circuit stays open before a trial request is permitted
+     * @param clock             the clock that supplies the current time in millis to the circuit breakers
+     */
+    QuandlStalePolicy(int maxEntries, int failureThreshold, Duration openDuration, LongSupplier clock) {
+        if (maxEntries < 1) throw new IllegalArgumentException("The max entries must be > 0");
+        this.maxEntries = maxEntries;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+        this.executor = Executors.newFixedThreadPool(2, r -> {
+            final Thread thread = new Thread(r, "QuandlRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the circuit breaker for the operation specified
+     * @param operation the endpoint operation
+     * @return          the circuit breaker for endpoint
+     */
+    public QuandlCircuitBreaker getCircuitBreaker(QuandlOptions.Operation operation) {
+        return breakerMap.computeIfAbsent(operation, op -> new QuandlCircuitBreaker(failureThreshold, openDuration, clock));
+    }
+
+    /**
+     * Returns the number of stale results served by this policy
+     * @return  the number of stale results served
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    /**
+     * Returns true if the frame was served from a last good result rather than a fresh request
+     * @param frame the frame returned from a request
+     * @return      true if the frame is stale
+     */
+    public boolean isStale(DataFrame<?,?> frame) {
+        synchronized (staleSet) {
+            return staleSet.contains(new StaleRef(frame, null));
+        }
+    }
+
+    /**
+     * Returns the result for a request, serving the last good result if the endpoint is failing or busy refreshing
+     * @param operation the endpoint operation
+     * @param key       the key that identifies the request
+     * @param loader    the loader that issues the request on behalf of the caller
+     * @param refresher the loader that issues the request in the background, free of the caller's deadline
+     * @param <R>       the row key type
+     * @param <C>       the column key type
+     * @return          the fresh or stale result
+     * @throws QuandlException  if the request fails and there is no last good result, or the caller's deadline expires
+     */
+    <R,C> DataFrame<R,C> read(QuandlOptions.Operation operation, String key, Supplier<DataFrame<R,C>> loader, Supplier<DataFrame<R,C>> refresher) {
+        final QuandlCircuitBreaker breaker = getCircuitBreaker(operation);
+        final DataFrame<R,C> lastGood = getLastGood(key);
+        if (lastGood != null && refreshing.contains(key)) {
+            return stale(lastGood);
+        } else if (lastGood != null && breaker.getState() != QuandlCircuitBreaker.State.CLOSED) {
+            this.refresh(key, breaker, refresher);
+            return stale(lastGood);
+        } else if (!breaker.allowRequest()) {
+            throw new QuandlException("Circuit is open for Quandl " + operation + " requests, and no prior result available");
+        } else if (lastGood == null) {
+            return load(key, breaker, loader).copy();
+        } else if (!refreshing.add(key)) {
+            return stale(lastGood);
+        } else {
+            try {
+                return load(key, breaker, loader).copy();
+            } catch (QuandlException ex) {
+                if (isClientError(ex) || QuandlDeadline.find(ex) != null) {
+                    throw ex;
+                } else {
+                    return stale(lastGood);
+                }
+            } finally {
+                refreshing.remove(key);
+            }
+        }
+    }
+
+
+    /**
+     * Schedules a background refresh of the request, unless one is already in flight
+     * @param key       the key that identifies the request
+     * @param breaker   the circuit breaker for endpoint
+     * @param loader    the loader that issues the request in the background
+     */
+    private <R,C> void refresh(String key, QuandlCircuitBreaker breaker, Supplier<DataFrame<R,C>> loader) {
+        if (refreshing.add(key)) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (breaker.allowRequest()) {
+                            load(key, breaker, loader);
+                        }
+                    } catch (Exception ex) {
+                        // failure is recorded against the breaker, and the last good result continues to be served
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                refreshing.remove(key);
+                throw ex;
+            }
+        }
+    }
+
+
+    /**
+     * Issues the request, recording the outcome against the breaker and storing the result if successful
+     * A request abandoned because the caller's deadline expired or was cancelled says nothing about the endpoint,
+     * so it is not recorded as a failure.
+     * @param key       the key that identifies the request
+     * @param breaker   the circuit breaker for endpoint
+     * @param loader    the loader that issues the request
+     * @return          the result, which is retained as the last good result
+     */
+    private <R,C> DataFrame<R,C> load(String key, QuandlCircuitBreaker breaker, Supplier<DataFrame<R,C>> loader) {
+        try {
+            final DataFrame<R,C> result = loader.get();
+            breaker.onSuccess();
+            synchronized (lastGoodMap) {
+                this.lastGoodMap.put(key, result);
+                if (lastGoodMap.size() > maxEntries) {
+                    lastGoodMap.remove(lastGoodMap.keySet().iterator().next());
+                }
+            }
+            return result;
+        } catch (QuandlException ex) {
+            if (QuandlDeadline.find(ex) != null) {
+                breaker.onAbandon();
+            } else if (isClientError(ex)) {
+                breaker.onSuccess();
+            } else {
+                breaker.onFailure();
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            breaker.onFailure();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Returns the last good result for the request key
+     * @param key   the request key
+     * @return      the last good result, null if none
+     */
+    @SuppressWarnings("unchecked")
+    private <R,C> DataFrame<R,C> getLastGood(String key) {
+        synchronized (lastGoodMap) {
+            return (DataFrame<R,C>)lastGoodMap.get(key);
+        }
+    }
+
+
+    /**
+     * Returns a copy of the last good result that is marked as stale
+     * @param lastGood  the last good result
+     * @return          the stale copy
+     */
+    private <R,C> DataFrame<R,C> stale(DataFrame<R,C> lastGood) {
+        final DataFrame<R,C> copy = lastGood.copy();
+        synchronized (staleSet) {
+            for (Object ref = staleQueue.poll(); ref != null; ref = staleQueue.poll()) {
+                staleSet.remove(ref);
+            }
+            staleSet.add(new StaleRef(copy, staleQueue));
+        }
+        staleCount.incrementAndGet();
+        return copy;
+    }
+
+
+    /**
+     * Returns true if the exception was caused by an HTTP client error, which should not affect the circuit
+     * @param ex    the exception
+     * @return      true if caused by a client error
+     */
+    private boolean isClientError(Throwable ex) {
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof QuandlHttpException) {
+                return ((QuandlHttpException)t).isClientError();
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * A weak reference to a stale frame with identity equality, since DataFrame equality is content based
+     */
+    private static class StaleRef extends WeakReference<DataFrame<?,?>> {
+
+        private int hashCode;
+
+        /**
+         * Constructor
+         * @param frame the stale frame
+         * @param queue the reference queue, null permitted
+         */
+        StaleRef(DataFrame<?,?> frame, ReferenceQueue<DataFrame<?,?>> queue) {
+            super(frame, queue);
+            this.hashCode = System.identityHashCode(frame);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            } else if (other instanceof StaleRef) {
+                final Object referent = get();
+                return referent != null && referent == ((StaleRef)other).get();
+            } else {
+                return false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+/**
+ * A QuandlException raised when a request exceeds its deadline, or is cancelled via its QuandlCancelToken
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlTimeoutException extends QuandlException {
+
+    private boolean cancelled;
+
+    /**
+     * Constructor
+     *
+     * @param message   the exception message
+     * @param cancelled true if the request was cancelled rather than timed out
+     * @param cause     the root cause, null permitted
+     */
+    public QuandlTimeoutException(String message, boolean cancelled, Throwable cause) {
+        super(message, cause);
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Returns true if the request was cancelled via its token, rather than exceeding its deadline
+     * @return  true if the request was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.zavtech.morpheus.util.IO;
+
+/**
+ * The HTTP transport used by QuandlSource to execute GET requests, with optional conditional request caching,
+ * rate limiting and request hedging
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+class QuandlTransport {
+
+    private volatile QuandlHttpCache cache;
+    private volatile QuandlRateLimiter rateLimiter;
+    private volatile QuandlHedgePolicy hedgePolicy;
+    private ExecutorService executor;
+
+    /**
+     * Constructor
+     */
+    QuandlTransport() {
+        super();
+    }
+
+    /**
+     * Returns the conditional request cache for this transport
+     * @return  the cache, null if caching disabled
+     */
+    QuandlHttpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the conditional request cache for this transport
+     * @param cache the cache, null to disable caching
+     */
+    void setCache(QuandlHttpCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the rate limiter applied to all requests issued by this transport
+     * @return  the rate limiter, null if none
+     */
+    QuandlRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the rate limiter applied to all requests issued by this transport
+     * @param rateLimiter   the rate limiter, null for no limit
+     */
+    void setRateLimiter(QuandlRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the hedging policy for hedgeable requests
+     * @return  the hedge policy, null if hedging disabled
+     */
+    QuandlHedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Sets the hedging policy for hedgeable requests
+     * @param hedgePolicy   the hedge policy, null to disable hedging
+     */
+    void setHedgePolicy(QuandlHedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Returns the response for an HTTP GET against the url, revalidating any cached body for that url
+     * @param url   the fully qualified request url
+     * @return      the response
+     * @throws QuandlException  if the request fails or returns an error status
+     */
+    QuandlResponse get(String url) throws QuandlException {
+        return get(url, false, QuandlDeadline.NONE);
+    }
+
+    /**
+     * Returns the response for an HTTP GET against the url, revalidating any cached body for that url
+     * @param url       the fully qualified request url
+     * @param hedgeable true if the request may be hedged according to the hedge policy
+     * @return          the response
+     * @throws QuandlException  if the request fails or returns an error status
+     */
+    QuandlResponse get(String url, boolean hedgeable) throws QuandlException {
+        return get(url, hedgeable, QuandlDeadline.NONE);
+    }
+
+    /**
+     * Returns the response for an HTTP GET against the url, revalidating any cached body for that url
+     * @param url       the fully qualified request url
+     * @param hedgeable true if the request may be hedged according to the hedge policy
+     * @param deadline  the deadline for the request, which bounds waiting for a permit, connecting and downloading
+     * @return          the response
+     * @throws QuandlTimeoutException   if the deadline expires or the request is cancelled
+     * @throws QuandlException  if the request fails or returns an error status
+     */
+    QuandlResponse get(String url, boolean hedgeable, QuandlDeadline deadline) throws QuandlException {
+        final QuandlHedgePolicy policy = this.hedgePolicy;
+        final QuandlRateLimiter limiter = this.rateLimiter;
+        final QuandlEvents.Context context = QuandlEvents.current();
+        deadline.check("rate limiting");
+        if (limiter != null) {
+            final long remainingNanos = deadline.remainingNanos();
+            if (remainingNanos == Long.MAX_VALUE) {
+                limiter.acquire();
+            } else if (!limiter.tryAcquire(remainingNanos, TimeUnit.NANOSECONDS)) {
+                throw deadline.expired("rate limiting", null);
+            }
+        }
+        final QuandlResponse response;
+        if (!hedgeable || policy == null) {
+            response = execute(url, new Attempt(context, deadline));
+        } else {
+            policy.onRequest();
+            final long delayMillis = policy.getDelayMillis();
+            if (delayMillis >= 0L) {
+                response = executeHedged(url, policy, limiter, delayMillis, context, deadline);
+            } else {
+                final long start = System.nanoTime();
+                response = execute(url, new Attempt(context, deadline));
+                policy.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+        if (context != null) {
+            context.onResponse(response);
+        }
+        return response;
+    }
+
+
+    /**
+     * Returns the response for a request that is duplicated if it has not completed within the delay
+     * Only the latency of a successful primary attempt is recorded against the policy, since failures and hedge wins
+     * would otherwise skew the distribution that the hedge delay is derived from.
+     * @param url           the fully qualified request url
+     * @param policy        the hedge policy
+     * @param limiter       the rate limiter, null permitted
+     * @param delayMillis   the delay after which to issue a hedge
+     * @param context       the request context for events, null permitted
+     * @param deadline      the deadline for the request
+     * @return              the first successful response
+     * @throws QuandlException  if all attempts fail
+     */
+    private QuandlResponse executeHedged(String url, QuandlHedgePolicy policy, QuandlRateLimiter limiter, long delayMillis, QuandlEvents.Context context, QuandlDeadline deadline) throws QuandlException {
+        final Attempt primary = new Attempt(context, deadline);
+        final Attempt hedge = new Attempt(context, deadline);
+        final AtomicInteger pending = new AtomicInteger(1);
+        final CompletableFuture<QuandlResponse> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        try {
+            submit(url, primary, pending, result);
+            try {
+                final long delayNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(delayMillis), deadline.remainingNanos());
+                final QuandlResponse response = result.get(delayNanos, TimeUnit.NANOSECONDS);
+                policy.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return response;
+            } catch (TimeoutException ex) {
+                deadline.check("download");
+                if (policy.tryHedge()) {
+                    if (limiter == null || limiter.tryAcquire()) {
+                        policy.onHedge();
+                        pending.incrementAndGet();
+                        submit(url, hedge, pending, result);
+                    } else {
+                        policy.refund();
+                    }
+                }
+            }
+            final long remainingNanos = deadline.remainingNanos();
+            final QuandlResponse response = remainingNanos == Long.MAX_VALUE ? result.get() : result.get(remainingNanos, TimeUnit.NANOSECONDS);
+            if (response == hedge.response) {
+                policy.onHedgeWin();
+            } else {
+                policy.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            return response;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new QuandlException("Interrupted while waiting for Quandl response for " + redact(url), ex);
+        } catch (TimeoutException ex) {
+            throw deadline.expired("download", ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof QuandlException) {
+                throw (QuandlException)cause;
+            } else {
+                throw new QuandlException("Quandl request failed for " + redact(url), cause);
+            }
+        } finally {
+            primary.cancel();
+            hedge.cancel();
+        }
+    }
+
+
+    /**
+     * Submits an attempt to the executor, which completes the result with the first success or last failure
+     * @param url       the fully qualified request url
+     * @param attempt   the attempt to execute
+     * @param pending   the number of attempts that have not yet failed
+     * @param result    the future to complete with the response
+     */
+    private void submit(String url, Attempt attempt, AtomicInteger pending, CompletableFuture<QuandlResponse> result) {
+        getExecutor().execute(() -> {
+            try {
+                attempt.response = execute(url, attempt);
+                result.complete(attempt.response);
+            } catch (Throwable t) {
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns the executor used to run attempts of hedged requests
+     * @return  the executor for hedged requests
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            this.executor = Executors.newCachedThreadPool(r -> {
+                final Thread thread = new Thread(r, "QuandlHedge");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+
+    /**
+     * Returns the response for a single attempt at an HTTP GET against the url
+     * The connection is only disconnected if the attempt fails, so a completed response leaves its socket for reuse.
+     * @param url       the fully qualified request url
+     * @param attempt   the attempt which holds the connection so it can be cancelled
+     * @return          the response
+     * @throws QuandlException  if the request fails or returns an error status
+     */
+    private QuandlResponse execute(String url, Attempt attempt) throws QuandlException {
+        HttpURLConnection conn = null;
+        boolean completed = false;
+        String phase = "connect";
+        final QuandlDeadline deadline = attempt.deadline;
+        final Runnable deregister = deadline.onCancel(attempt::cancel);
+        try {
+            final QuandlHttpCache cache = this.cache;
+            final QuandlHttpCache.Entry cached = cache != null ? cache.get(url) : null;
+            conn = attempt.open(url);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            if (cached != null && cached.getEtag() != null) {
+                conn.setRequestProperty("If-None-Match", cached.getEtag());
+            }
+            if (cached != null && cached.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", cached.getLastModified());
+            }
+            int status = 0;
+            byte[] content = null;
+            final QuandlEvents.Phase download = QuandlEvents.begin(QuandlEvents.PhaseType.DOWNLOAD, attempt.context);
+            try {
+                status = conn.getResponseCode();
+                if (status < 400) {
+                    phase = "download";
+                    content = read(conn.getInputStream(), conn.getContentLength(), deadline, phase);
+                }
+            } finally {
+                download.end(0L, content != null ? content.length : 0L, status);
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                cache.record(true);
+                completed = true;
+                return new QuandlResponse(status, cached.getBody(), true, cached);
+            } else if (status >= 400) {
+                throw new QuandlHttpException("Quandl responded with HTTP status " + status + " for " + redact(url), status);
+            } else {
+                final boolean gzip = "gzip".equalsIgnoreCase(conn.getContentEncoding());
+                phase = "decompress";
+                final byte[] body = gzip ? decompress(content, attempt.context, deadline) : content;
+                completed = true;
+                if (cache == null) {
+                    return new QuandlResponse(status, body, false, null);
+                } else {
+                    cache.record(false);
+                    final String etag = conn.getHeaderField("ETag");
+                    final String lastModified = conn.getHeaderField("Last-Modified");
+                    if (etag == null && lastModified == null) {
+                        return new QuandlResponse(status, body, false, null);
+                    } else {
+                        final QuandlHttpCache.Entry entry = new QuandlHttpCache.Entry(body, etag, lastModified);
+                        cache.put(url, entry);
+                        return new QuandlResponse(status, body, false, entry);
+                    }
+                }
+            }
+        } catch (QuandlException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            if (deadline.isExpired() || (ex instanceof SocketTimeoutException && deadline.isBounded())) {
+                throw deadline.expired(phase, ex);
+            } else if (attempt.cancelled) {
+                throw new QuandlException("Quandl request was cancelled for " + redact(url), ex);
+            } else {
+                throw new QuandlException("Quandl request failed for " + redact(url), ex);
+            }
+        } finally {
+            deregister.run();
+            if (conn != null && !completed) {
+                conn.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the full content of the stream, which is closed on completion
+     * @param is        the stream to read from
+     * @param length    the expected length, or -1 if unknown
+     * @param deadline  the request deadline, checked before each read
+     * @param phase     the phase of the request, for timeout messages
+     * @return          the stream content
+     * @throws IOException  if an I/O error occurs
+     */
+    private byte[] read(InputStream is, int length, QuandlDeadline deadline, String phase) throws IOException {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? length : 1024 * 100);
+            final byte[] buffer = new byte[1024 * 100];
+            while (true) {
+                deadline.check(phase);
+                final int read = is.read(buffer);
+                if (read < 0) break;
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            IO.close(is);
+        }
+    }
+
+
+    /**
+     * Returns the decompressed form of a gzip encoded response body, recording a decompress event
+     * @param content   the gzip encoded content
+     * @param context   the request context for events, null permitted
+     * @param deadline  the request deadline
+     * @return          the decompressed content
+     * @throws IOException  if an I/O error occurs
+     */
+    private byte[] decompress(byte[] content, QuandlEvents.Context context, QuandlDeadline deadline) throws IOException {
+        final QuandlEvents.Phase phase = QuandlEvents.begin(QuandlEvents.PhaseType.DECOMPRESS, context);
+        final byte[] body = read(new GZIPInputStream(new ByteArrayInputStream(content)), content.length * 4, deadline, "decompress");
+        phase.end(content.length, body.length, 0);
+        return body;
+    }
+
+
+    /**
+     * Returns the url with any api key value removed, so it is safe to include in messages
+     * @param url   the url string
+     * @return      the redacted url string
+     */
+    static String redact(String url) {
+        return url == null ? null : url.replaceAll("api_key=[^&]*", "api_key=***");
+    }
+
+
+
+    /**
+     * A single attempt at a request, which retains its connection so that it can be cancelled from another thread
+     */
+    private static class Attempt {
+
+        private volatile boolean cancelled;
+        private volatile HttpURLConnection conn;
+        private volatile QuandlResponse response;
+        private QuandlEvents.Context context;
+        private QuandlDeadline deadline;
+
+        /**
+         * Constructor
+         * @param context   the request context for events, null permitted
+         * @param deadline  the deadline for the request
+         */
+        Attempt(QuandlEvents.Context context, QuandlDeadline deadline) {
+            this.context = context;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Opens the connection for this attempt
+         * @param url   the fully qualified request url
+         * @return      the connection
+         * @throws IOException  if the connection cannot be opened, or the attempt was cancelled
+         */
+        HttpURLConnection open(String url) throws IOException {
+            if (context != null) {
+                context.onAttempt();
+            }
+            deadline.check("connect");
+            this.conn = (HttpURLConnection)new URL(url).openConnection();
+            final int timeout = deadline.remainingTimeout();
+            if (timeout > 0) {
+                conn.setConnectTimeout(timeout);
+                conn.setReadTimeout(timeout);
+            }
+            if (cancelled) {
+                throw new IOException("The request attempt was cancelled");
+            }
+            return conn;
+        }
+
+        /**
+         * Cancels this attempt, closing its connection if one is open
+         */
+        void cancel() {
+            this.cancelled = true;
+            final HttpURLConnection conn = this.conn;
+            if (conn != null && response == null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the availability window pruning and persistence of QuandlCatalog, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCatalogTests {
+
+    private static final LocalDate oldest = LocalDate.of(2017, 1, 2);
+    private static final LocalDate newest = LocalDate.of(2017, 12, 29);
+
+    private QuandlStubServer server;
+    private List<String> dataQueries = new CopyOnWriteArrayList<>();
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/metadata.json")) {
+                final String dataset = path.substring("/api/v3/datasets/WIKI/".length(), path.indexOf("/metadata.json"));
+                QuandlStubServer.respond(exchange, "{\"dataset\":{\"id\":" + dataset.length() + ",\"dataset_code\":\"" + dataset + "\",\"database_code\":\"WIKI\"," +
+                    "\"name\":\"Test\",\"oldest_available_date\":\"" + oldest + "\",\"newest_available_date\":\"" + newest + "\"," +
+                    "\"column_names\":[\"Date\",\"Close\"],\"frequency\":\"daily\",\"type\":\"Time Series\",\"premium\":false,\"database_id\":1}}");
+            } else {
+                final Map<String,String> query = QuandlStubServer.query(exchange);
+                dataQueries.add(QuandlStubServer.dataset(exchange) + ":" + query.get("start_date") + ":" + query.get("end_date"));
+                final LocalDate start = LocalDate.parse(query.get("start_date"));
+                final LocalDate end = LocalDate.parse(query.get("end_date"));
+                final StringBuilder csv = new StringBuilder("Date,Close\n");
+                for (LocalDate date = end; !date.isBefore(start); date = date.minusDays(1)) {
+                    if (!date.isBefore(oldest) && !date.isAfter(newest)) {
+                        csv.append(date).append(",1.5\n");
+                    }
+                }
+                QuandlStubServer.respond(exchange, csv.toString());
+            }
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.dataQueries.clear();
+        this.server.reset();
+    }
+
+
+    private Quandl quandl(QuandlCatalog catalog) {
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withCatalog(catalog);
+        final QuandlBatch<Integer,QuandlField> batch = catalog.refreshDatasets(quandl.getSource(), Collections.singletonList("WIKI/TEST"), 1);
+        Assert.assertFalse(batch.hasErrors());
+        this.dataQueries.clear();
+        return quandl;
+    }
+
+
+    private static DataFrame<LocalDate,String> load(Quandl quandl, LocalDate start, LocalDate end) {
+        return quandl.getDailyData("WIKI", "TEST", options -> {
+            options.setStartDate(start);
+            options.setEndDate(end);
+        });
+    }
+
+
+    private static QuandlCatalog catalog() throws Exception {
+        return new QuandlCatalog(new File(Files.createTempDirectory("quandl-catalog").toFile(), "catalog.json"));
+    }
+
+
+    @Test()
+    public void testStartIsClampedToOldestDate() throws Exception {
+        final Quandl quandl = quandl(catalog());
+        final DataFrame<LocalDate,String> frame = load(quandl, LocalDate.of(2016, 6, 1), LocalDate.of(2017, 1, 31));
+        Assert.assertEquals(dataQueries, Collections.singletonList("TEST:2017-01-02:2017-01-31"));
+        Assert.assertEquals(frame.rowCount(), 30);
+        final DataFrame<LocalDate,String> skipped = load(quandl, LocalDate.of(2016, 1, 1), LocalDate.of(2016, 12, 31));
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertEquals(skipped.rowCount(), 0);
+        Assert.assertEquals(skipped.cols().keyArray().toList(), Collections.singletonList("Close"));
+    }
+
+
+    @Test()
+    public void testEndIsClampedToNewestDateOfFreshEntry() throws Exception {
+        final Quandl quandl = quandl(catalog());
+        final DataFrame<LocalDate,String> frame = load(quandl, LocalDate.of(2017, 12, 1), LocalDate.of(2018, 3, 31));
+        Assert.assertEquals(dataQueries, Collections.singletonList("TEST:2017-12-01:2017-12-29"));
+        Assert.assertEquals(frame.rowCount(), 29);
+        final DataFrame<LocalDate,String> skipped = load(quandl, LocalDate.of(2018, 1, 1), LocalDate.of(2018, 2, 1));
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertEquals(skipped.rowCount(), 0);
+    }
+
+
+    @Test()
+    public void testNewestDateOfStaleEntryIsNotTrusted() throws Exception {
+        final QuandlCatalog catalog = catalog();
+        final Quandl quandl = quandl(catalog);
+        catalog.setMaxAge(Duration.ZERO);
+        Thread.sleep(5L);
+        load(quandl, LocalDate.of(2017, 12, 1), LocalDate.of(2018, 3, 31));
+        load(quandl, LocalDate.of(2018, 1, 1), LocalDate.of(2018, 2, 1));
+        load(quandl, LocalDate.of(2016, 1, 1), LocalDate.of(2016, 12, 31));
+        Assert.assertEquals(dataQueries, Arrays.asList("TEST:2017-12-01:2018-03-31", "TEST:2018-01-01:2018-02-01"));
+        server.reset();
+        final QuandlBatch<Integer,QuandlField> batch = catalog.refreshDatasets(quandl.getSource(), Arrays.asList("WIKI/TEST", "WIKI/OTHER"), 2);
+        Assert.assertEquals(batch.getFrame().rowCount(), 2);
+        Assert.assertEquals(server.getRequestCount(), 2);
+    }
+
+
+    @Test()
+    public void testSaveAndLoadRoundTrip() throws Exception {
+        final QuandlCatalog catalog = catalog();
+        final Quandl quandl = quandl(catalog);
+        final File file = Files.createTempDirectory("quandl-catalog").toFile();
+        final QuandlCatalog.Dataset expected = catalog.getDataset("WIKI", "TEST").get();
+        final QuandlCatalog saved = new QuandlCatalog(new File(file, "nested/catalog.json"));
+        Assert.assertEquals(QuandlCatalog.load(new File(file, "nested/catalog.json")).getDatasets().size(), 0);
+        saved.refreshDatasets(quandl.getSource(), Collections.singletonList("WIKI/TEST"), 1);
+        saved.save();
+        Assert.assertFalse(new File(file, "nested/catalog.json.tmp").exists());
+        final QuandlCatalog loaded = QuandlCatalog.load(new File(file, "nested/catalog.json"));
+        final QuandlCatalog.Dataset actual = loaded.getDataset("WIKI", "TEST").orElse(null);
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(actual.getOldestAvailableDate(), expected.getOldestAvailableDate());
+        Assert.assertEquals(actual.getNewestAvailableDate(), expected.getNewestAvailableDate());
+        Assert.assertEquals(actual.getFrequency(), "daily");
+        Assert.assertEquals(actual.getColumnNames(), new String[] {"Date", "Close"});
+        Assert.assertTrue(actual.getCheckedAt() > 0L);
+        server.reset();
+        loaded.refreshDatasets(quandl.getSource(), Collections.singletonList("WIKI/TEST"), 1);
+        Assert.assertEquals(server.getRequestCount(), 0, "A fresh entry loaded from a snapshot should not be fetched again");
+    }
+
+}
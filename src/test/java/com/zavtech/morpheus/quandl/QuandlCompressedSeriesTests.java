@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the delta-of-delta and XOR encoding performed by QuandlCompressedSeries
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCompressedSeriesTests {
+
+    private static void assertRange(DataFrame<LocalDate,String> actual, DataFrame<LocalDate,String> source, LocalDate start, LocalDate end) {
+        final DataFrame<LocalDate,String> expected = source.rows().select(row -> !row.key().isBefore(start) && !row.key().isAfter(end)).rows().sort(true);
+        Assert.assertEquals(actual.rowCount(), expected.rowCount(), "Row count");
+        Assert.assertEquals(actual.cols().keyArray().toList(), expected.cols().keyArray().toList());
+        for (int i=0; i<expected.rowCount(); ++i) {
+            Assert.assertEquals(actual.rows().key(i), expected.rows().key(i));
+            for (int j=0; j<expected.colCount(); ++j) {
+                final long actualBits = Double.doubleToRawLongBits(actual.data().getDouble(i, j));
+                final long expectedBits = Double.doubleToRawLongBits(expected.data().getDouble(i, j));
+                Assert.assertEquals(actualBits, expectedBits, "Value at " + i + "," + j);
+            }
+        }
+    }
+
+
+    @Test()
+    public void testRoundTripIsExactAndAscending() {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(2000, 7);
+        frame.cols().add("Name", String.class, v -> "ignored");
+        final QuandlCompressedSeries series = QuandlCompressedSeries.of(frame);
+        Assert.assertEquals(series.rowCount(), 2000);
+        Assert.assertEquals(series.getColumnKeys(), Arrays.asList("Close", "Volume", "Split Ratio"));
+        Assert.assertEquals(series.getStartDate(), frame.rows().key(1999));
+        Assert.assertEquals(series.getEndDate(), frame.rows().key(0));
+        final DataFrame<LocalDate,String> numeric = frame.cols().select(col -> !col.key().equals("Name"));
+        assertRange(series.toFrame(), numeric, LocalDate.MIN, LocalDate.MAX);
+    }
+
+
+    @Test()
+    public void testRangeScansAcrossBlocks() {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(3000, 7);
+        final QuandlCompressedSeries series = QuandlCompressedSeries.of(frame);
+        final LocalDate first = series.getStartDate();
+        assertRange(series.toFrame(first.plusDays(1000), first.plusDays(1100)), frame, first.plusDays(1000), first.plusDays(1100));
+        assertRange(series.toFrame(first.minusDays(10), first.plusDays(5)), frame, first.minusDays(10), first.plusDays(5));
+        assertRange(series.toFrame(series.getEndDate().minusDays(3), LocalDate.MAX), frame, series.getEndDate().minusDays(3), LocalDate.MAX);
+        Assert.assertEquals(series.toFrame(series.getEndDate().plusDays(1), LocalDate.MAX).rowCount(), 0);
+        final QuandlCompressedSeries.Cursor cursor = series.cursor(LocalDate.of(1995, 6, 3));
+        Assert.assertTrue(cursor.next());
+        Assert.assertFalse(cursor.getDate().isBefore(LocalDate.of(1995, 6, 3)));
+        Assert.assertEquals(cursor.getDouble(1), frame.data().getDouble(cursor.getDate(), "Volume"), 0d);
+    }
+
+
+    @Test()
+    public void testCompressesWellBelowFrameSize() {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(5000, 7);
+        final QuandlCompressedSeries series = QuandlCompressedSeries.of(frame);
+        final long frameBytes = QuandlFrameCache.estimateBytes(frame);
+        final long rawBytes = 5000L * 8L * 4L;
+        Assert.assertTrue(series.getSizeBytes() * 3 < frameBytes, "Compressed " + series.getSizeBytes() + " vs frame " + frameBytes);
+        Assert.assertTrue(series.getSizeBytes() < rawBytes, "Compressed " + series.getSizeBytes() + " vs raw " + rawBytes);
+    }
+
+
+    @Test()
+    public void testEmptyFrame() {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(10, 7).rows().select(row -> false).copy();
+        final QuandlCompressedSeries series = QuandlCompressedSeries.of(frame);
+        Assert.assertEquals(series.rowCount(), 0);
+        Assert.assertNull(series.getStartDate());
+        Assert.assertNull(series.getEndDate());
+        Assert.assertEquals(series.toFrame().rowCount(), 0);
+        Assert.assertFalse(series.cursor(LocalDate.of(2000, 1, 1)).next());
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.frame.DataFrameSource;
+
+/**
+ * A multi-threaded stress and concurrency test of a single shared Quandl client, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlConcurrencyTests {
+
+    private static final LocalDate start = LocalDate.of(2017, 1, 1);
+
+    private QuandlStubServer server;
+    private volatile CountDownLatch arrivals;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer(32).handle("/api/v3/datasets/WIKI/", exchange -> {
+            final int id = Integer.parseInt(QuandlStubServer.dataset(exchange).substring(1));
+            final DataFrame<LocalDate,String> frame = QuandlTestData.series(start.plusDays(49), 50, id * 1000 + 49, -1d);
+            try {
+                final CountDownLatch arrivals = this.arrivals;
+                if (arrivals != null) {
+                    arrivals.countDown();
+                    arrivals.await(5, TimeUnit.SECONDS);
+                }
+                QuandlStubServer.respond(exchange, 200, QuandlTestData.csv(frame));
+            } catch (InterruptedException ex) {
+                exchange.close();
+            }
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.arrivals = null;
+        this.server.reset();
+    }
+
+
+    private Quandl quandl() {
+        return new Quandl(server.getBaseUrl(), "test");
+    }
+
+
+    /**
+     * Loads one dataset and verifies every value belongs to that dataset, to detect requests crossing threads
+     */
+    private static void load(Quandl quandl, int id) {
+        final DataFrame<LocalDate,String> frame = quandl.getDailyData("WIKI", "D" + id, options -> {
+            options.setStartDate(start);
+            options.setEndDate(start.plusDays(49));
+        });
+        Assert.assertEquals(frame.rowCount(), 50, "Row count for D" + id);
+        for (int i=0; i<frame.rowCount(); ++i) {
+            final int day = (int)(frame.rows().key(i).toEpochDay() - start.toEpochDay());
+            Assert.assertEquals(frame.data().getDouble(i, "Close"), id * 1000d + day, 0d, "Close for D" + id);
+            Assert.assertEquals(frame.data().getDouble(i, "Volume"), 1049d - day, 0d, "Volume for D" + id);
+        }
+    }
+
+
+    /**
+     * Runs the request count specified across the threads specified
+     */
+    private static void run(Quandl quandl, int threads, int requests) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i=0; i<requests; ++i) {
+                final int id = i;
+                futures.add(executor.submit(() -> {
+                    latch.await();
+                    load(quandl, id % 40);
+                    return null;
+                }));
+            }
+            latch.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testSharedClientReturnsCorrectFramesUnderContention() throws Exception {
+        final Quandl quandl = quandl()
+            .withHttpCache(new QuandlHttpCache(16 * 1024 * 1024))
+            .withFrameCache(new QuandlFrameCache(16 * 1024 * 1024));
+        run(quandl, 8, 400);
+        Assert.assertTrue(server.getRequestCount() >= 40, "Every dataset should be fetched at least once");
+        Assert.assertTrue(server.getRequestCount() < 400, "Repeated requests should be served from the shared caches");
+        Assert.assertTrue(quandl.getSource().getFrameCache().getHitCount() > 0L);
+    }
+
+
+    @Test()
+    public void testSharedClientIssuesRequestsConcurrently() throws Exception {
+        final Quandl quandl = quandl();
+        final int requests = 32;
+        run(quandl, 1, requests);
+        Assert.assertEquals(server.getRequestCount(), requests);
+        Assert.assertEquals(server.getMaxConcurrency(), 1);
+        this.server.reset();
+        this.arrivals = new CountDownLatch(8);
+        run(quandl, 8, requests);
+        Assert.assertEquals(server.getRequestCount(), requests);
+        Assert.assertEquals(arrivals.getCount(), 0L, "Expected 8 requests in flight at once");
+        Assert.assertEquals(server.getMaxConcurrency(), 8, "Expected every thread of the shared client to have a request in flight");
+    }
+
+
+    @Test()
+    public void testOptionsAreSealedOnceIssued() {
+        final List<QuandlOptions<?,?>> issued = new ArrayList<>();
+        quandl().getDailyData("WIKI", "D1", options -> {
+            options.setStartDate(start);
+            options.setEndDate(start.plusDays(49));
+            issued.add(options);
+        });
+        final QuandlOptions<?,?> options = issued.get(0);
+        Assert.assertTrue(options.isSealed());
+        try {
+            options.setEndDate(start);
+            Assert.fail("Sealed options should reject modification");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals(options.getEndDate().orElse(null), start.plusDays(49));
+        }
+        final QuandlOptions<?,?> copy = options.copy();
+        Assert.assertFalse(copy.isSealed());
+        copy.setEndDate(start);
+        Assert.assertEquals(copy.getEndDate().orElse(null), start);
+        Assert.assertEquals(copy.getDatasetCode().orElse(null), "D1");
+        Assert.assertEquals(options.getEndDate().orElse(null), start.plusDays(49));
+    }
+
+
+    @Test()
+    public void testOnlyFirstInstanceRegistersByDefault() {
+        final Quandl first = quandl();
+        final QuandlSource<?,?> registered = DataFrameSource.lookup(QuandlSource.class);
+        Assert.assertNotNull(registered);
+        final Quandl second = quandl();
+        Assert.assertSame(DataFrameSource.lookup(QuandlSource.class), registered);
+        Assert.assertNotSame(second.getSource(), first.getSource());
+        second.register();
+        Assert.assertSame(DataFrameSource.lookup(QuandlSource.class), second.getSource());
+        final Quandl shared = new Quandl(second.getSource());
+        Assert.assertSame(shared.getSource(), second.getSource());
+    }
+
+}
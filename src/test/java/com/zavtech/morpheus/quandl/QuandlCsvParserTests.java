@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the parallel chunked parsing performed by QuandlCsvParser, compared against the Morpheus CSV reader
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlCsvParserTests {
+
+    private ForkJoinPool pool = new ForkJoinPool(4);
+    private QuandlCsvParser serial = new QuandlCsvParser(Long.MAX_VALUE, pool);
+    private QuandlCsvParser parallel = new QuandlCsvParser(0L, 512, pool);
+
+
+    @AfterClass()
+    public void stop() {
+        this.pool.shutdownNow();
+    }
+
+
+    /**
+     * Returns a CSV body of weekday prices with CRLF line endings, and optionally a text column with one non numeric value
+     */
+    private static byte[] prices(int rowCount, boolean flag) {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(rowCount, 11);
+        if (flag) {
+            frame.cols().add("Flag", String.class, v -> v.rowOrdinal() == 0 ? "Revised" : "1");
+        }
+        return QuandlTestData.csv(frame, "\r\n");
+    }
+
+
+    private static <R,C> void assertSame(DataFrame<R,C> actual, DataFrame<R,C> expected) {
+        Assert.assertEquals(actual.rowCount(), expected.rowCount(), "Row count");
+        Assert.assertEquals(actual.cols().keyArray().toList(), expected.cols().keyArray().toList());
+        Assert.assertEquals(actual.rows().keyArray().toList(), expected.rows().keyArray().toList());
+        for (int j=0; j<expected.colCount(); ++j) {
+            Assert.assertEquals(actual.cols().type(actual.cols().key(j)), expected.cols().type(expected.cols().key(j)), "Type of column " + j);
+            for (int i=0; i<expected.rowCount(); ++i) {
+                final Object actualValue = actual.data().getValue(i, j);
+                final Object expectedValue = expected.data().getValue(i, j);
+                Assert.assertEquals(actualValue, expectedValue, "Value at " + i + "," + j);
+            }
+        }
+    }
+
+
+    @Test()
+    public void testParallelDataMatchesMorpheusReader() throws Exception {
+        final byte[] body = prices(5000, false);
+        final DataFrame<LocalDate,String> expected = serial.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        final DataFrame<LocalDate,String> actual = parallel.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        Assert.assertEquals(actual.cols().type("Volume"), Integer.class);
+        Assert.assertEquals(actual.cols().type("Close"), Double.class);
+        Assert.assertTrue(Double.isNaN(actual.data().getDouble(2500, "Close")));
+        assertSame(actual, expected);
+    }
+
+
+    @Test()
+    public void testEmptyIntegralValuesMatchMorpheusReader() throws Exception {
+        final DataFrame<LocalDate,String> frame = QuandlTestData.prices(4000, 11);
+        frame.data().setDouble(0, "Volume", Double.NaN);
+        frame.data().setDouble(2000, "Volume", Double.NaN);
+        final byte[] body = QuandlTestData.csv(frame);
+        final DataFrame<LocalDate,String> expected = serial.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        final DataFrame<LocalDate,String> actual = parallel.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        Assert.assertEquals(expected.cols().type("Volume"), Integer.class);
+        Assert.assertEquals(actual.cols().type("Volume"), Integer.class);
+        Assert.assertEquals(actual.data().getInt(2000, "Volume"), 0);
+        assertSame(actual, expected);
+    }
+
+
+    @Test()
+    public void testNonNumericContentFallsBackToMorpheusReader() throws Exception {
+        final byte[] body = prices(2000, true);
+        final DataFrame<LocalDate,String> expected = serial.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        final DataFrame<LocalDate,String> actual = parallel.parseData(new ByteArrayInputStream(body), null, QuandlDeadline.NONE);
+        Assert.assertEquals(actual.cols().type("Flag"), String.class);
+        assertSame(actual, expected);
+    }
+
+
+    @Test()
+    public void testParallelCodesMatchMorpheusReader() {
+        final StringBuilder csv = new StringBuilder();
+        for (int i=0; i<3000; ++i) {
+            csv.append("WIKI/C").append(i).append(",\"Company ").append(i).append(", Inc. \"\"Class A\"\" Prices\"\n");
+        }
+        final byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        final DataFrame<String,String> expected = serial.parseCodes(bytes, QuandlDeadline.NONE);
+        final DataFrame<String,String> actual = parallel.parseCodes(bytes, QuandlDeadline.NONE);
+        Assert.assertEquals(actual.data().getValue("WIKI/C7", "Column-1"), "Company 7, Inc. \"Class A\" Prices");
+        assertSame(actual, expected);
+    }
+
+
+    @Test()
+    public void testParallelParseHonoursDeadline() {
+        final byte[] body = prices(5000, false);
+        final QuandlCancelToken token = new QuandlCancelToken();
+        token.cancel();
+        try {
+            parallel.parseData(new ByteArrayInputStream(body), null, new QuandlDeadline(Duration.ofMinutes(1), token));
+            Assert.fail("Expected parse to be cancelled");
+        } catch (Exception ex) {
+            Assert.assertNotNull(QuandlDeadline.find(ex), "Cause was " + ex);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayInputStream;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the date interning and shared row indexes of QuandlDateAxis
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlDateAxisTests {
+
+    private QuandlStubServer server;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer().handle("/api/v3/datasets/TEST/", exchange -> {
+            final String dataset = QuandlStubServer.dataset(exchange);
+            QuandlStubServer.respond(exchange, 200, prices(40, dataset.charAt(dataset.length() - 1)));
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    private static byte[] prices(int rowCount, int seed) {
+        return QuandlTestData.csv(QuandlTestData.series(LocalDate.of(2017, 3, 31), rowCount, seed, 0.5d));
+    }
+
+
+    @Test()
+    public void testParseAndInternMatchLocalDate() {
+        final QuandlDateAxis axis = new QuandlDateAxis();
+        for (LocalDate date = LocalDate.of(1800, 1, 1); date.getYear() < 2200; date = date.plusDays(17)) {
+            Assert.assertEquals(QuandlDateAxis.toEpochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()), date.toEpochDay());
+            Assert.assertEquals(axis.parse(date.toString()), date);
+        }
+        Assert.assertEquals(QuandlDateAxis.toEpochDay(2017, 2, 29), Long.MIN_VALUE);
+        Assert.assertEquals(QuandlDateAxis.toEpochDay(2000, 2, 29), LocalDate.of(2000, 2, 29).toEpochDay());
+        Assert.assertSame(axis.parse("2017-01-03"), axis.parse("2017-01-03"));
+        Assert.assertSame(axis.intern(LocalDate.of(2017, 1, 3)), axis.parse("2017-01-03"));
+        Assert.assertEquals(axis.parse("+12017-01-03"), LocalDate.of(12017, 1, 3));
+    }
+
+
+    @Test()
+    public void testConcurrentInternYieldsOneInstance() throws Exception {
+        final QuandlDateAxis axis = new QuandlDateAxis();
+        final long start = LocalDate.of(2000, 1, 1).toEpochDay();
+        final int days = 5000;
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<Future<LocalDate[]>> futures = IntStream.range(0, 8).mapToObj(i -> executor.submit(() -> {
+                latch.await();
+                final LocalDate[] dates = new LocalDate[days];
+                for (int j=0; j<days; ++j) {
+                    dates[j] = axis.intern(start + j);
+                }
+                return dates;
+            })).collect(Collectors.toList());
+            latch.countDown();
+            final LocalDate[] expected = futures.get(0).get();
+            for (Future<LocalDate[]> future : futures) {
+                final LocalDate[] dates = future.get();
+                for (int j=0; j<days; ++j) {
+                    Assert.assertEquals(dates[j], LocalDate.ofEpochDay(start + j));
+                    Assert.assertSame(dates[j], expected[j], "All threads should see one canonical instance");
+                    Assert.assertSame(axis.intern(start + j), expected[j]);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testIdenticalCalendarsShareOneIndex() throws Exception {
+        final QuandlDateAxis axis = new QuandlDateAxis(16, 8);
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final QuandlCsvParser serial = new QuandlCsvParser(Long.MAX_VALUE, pool);
+            final QuandlCsvParser parallel = new QuandlCsvParser(0L, 64, pool);
+            final DataFrame<LocalDate,String> first = serial.parseData(new ByteArrayInputStream(prices(100, 1)), axis, QuandlDeadline.NONE);
+            final DataFrame<LocalDate,String> second = parallel.parseData(new ByteArrayInputStream(prices(100, 2)), axis, QuandlDeadline.NONE);
+            final DataFrame<LocalDate,String> other = serial.parseData(new ByteArrayInputStream(prices(90, 3)), axis, QuandlDeadline.NONE);
+            Assert.assertEquals(axis.getCreateCount(), 2L);
+            Assert.assertEquals(axis.getShareCount(), 1L);
+            Assert.assertEquals(axis.getIndexCount(), 2);
+            Assert.assertEquals(first.cols().type("Volume"), Integer.class);
+            Assert.assertEquals(second.data().getDouble(LocalDate.of(2017, 3, 30), "Close"), 2.5d, 0d);
+            Assert.assertEquals(first.data().getDouble(LocalDate.of(2017, 3, 30), "Close"), 1.5d, 0d);
+            Assert.assertEquals(other.rowCount(), 90);
+            Assert.assertEquals(second.rows().keyArray().toList(), first.rows().keyArray().toList());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testSharedIndexIsCopiedOnWrite() throws Exception {
+        final QuandlDateAxis axis = new QuandlDateAxis(16, 8);
+        final QuandlCsvParser parser = new QuandlCsvParser(Long.MAX_VALUE, ForkJoinPool.commonPool());
+        final DataFrame<LocalDate,String> first = parser.parseData(new ByteArrayInputStream(prices(50, 1)), axis, QuandlDeadline.NONE);
+        final DataFrame<LocalDate,String> second = parser.parseData(new ByteArrayInputStream(prices(50, 2)), axis, QuandlDeadline.NONE);
+        Assert.assertEquals(axis.getShareCount(), 1L);
+        second.rows().sort(true);
+        Assert.assertEquals(second.rows().key(0), LocalDate.of(2017, 3, 31).minusDays(49));
+        Assert.assertEquals(first.rows().key(0), LocalDate.of(2017, 3, 31));
+        Assert.assertEquals(first.data().getDouble(0, "Close"), 1d, 0d);
+        Assert.assertEquals(second.data().getDouble(0, "Close"), 2d + 49 * 0.5d, 0d);
+        second.rows().add(LocalDate.of(2017, 4, 1));
+        Assert.assertEquals(second.rowCount(), 51);
+        Assert.assertEquals(first.rowCount(), 50);
+        Assert.assertFalse(first.rows().contains(LocalDate.of(2017, 4, 1)));
+        final DataFrame<LocalDate,String> third = parser.parseData(new ByteArrayInputStream(prices(50, 3)), axis, QuandlDeadline.NONE);
+        Assert.assertEquals(third.rowCount(), 50);
+        Assert.assertEquals(third.rows().key(0), LocalDate.of(2017, 3, 31));
+        Assert.assertEquals(axis.getShareCount(), 2L);
+    }
+
+
+    @Test()
+    public void testAdapterFramesShareAxis() {
+        final QuandlDateAxis axis = new QuandlDateAxis(16, 8);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withDateAxis(axis);
+        for (String dataset : new String[] {"A", "B", "C"}) {
+            final DataFrame<LocalDate,String> frame = quandl.getDailyData("TEST", dataset, options -> {
+                options.setStartDate(LocalDate.of(2017, 1, 1));
+                options.setEndDate(LocalDate.of(2017, 3, 31));
+            });
+            Assert.assertEquals(frame.rowCount(), 40);
+            Assert.assertEquals(frame.data().getDouble(LocalDate.of(2017, 3, 31), "Close"), (double)dataset.charAt(0), 0d);
+        }
+        Assert.assertEquals(axis.getCreateCount(), 1L);
+        Assert.assertEquals(axis.getShareCount(), 2L);
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the JFR events emitted by the Quandl adapter, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlEventsTests {
+
+    private QuandlStubServer server;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/TEST.csv", exchange -> {
+            QuandlStubServer.respond(exchange, 200, QuandlTestData.csv(QuandlTestData.series(LocalDate.of(2017, 1, 31), 20, 1.5d, 0.1d)));
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    private DataFrame<LocalDate,String> load() {
+        return new Quandl(server.getBaseUrl(), "test").getDailyData("WIKI", "TEST", options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 1, 31));
+        });
+    }
+
+
+    @Test()
+    public void testReadWithEventsDisabled() {
+        Assert.assertTrue(QuandlEvents.isAvailable());
+        Assert.assertEquals(load().rowCount(), 20);
+        Assert.assertNull(QuandlEvents.current());
+    }
+
+
+    @Test()
+    public void testReadWithEventsEnabled() throws Exception {
+        final File file = File.createTempFile("quandl", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.zavtech.morpheus.quandl.Request");
+            recording.enable("com.zavtech.morpheus.quandl.Download");
+            recording.enable("com.zavtech.morpheus.quandl.Parse");
+            recording.start();
+            Assert.assertEquals(load().rowCount(), 20);
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+        try {
+            final List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+            final List<RecordedEvent> requests = events.stream().filter(e -> e.getEventType().getName().endsWith(".Request")).collect(Collectors.toList());
+            Assert.assertEquals(requests.size(), 1);
+            Assert.assertEquals(requests.get(0).getString("operation"), "DATA");
+            Assert.assertEquals(requests.get(0).getString("databaseCode"), "WIKI");
+            Assert.assertEquals(requests.get(0).getString("datasetCode"), "TEST");
+            Assert.assertEquals(requests.get(0).getInt("attempts"), 1);
+            Assert.assertEquals(requests.get(0).getInt("status"), 200);
+            Assert.assertFalse(requests.get(0).getBoolean("failed"));
+            Assert.assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().endsWith(".Download")));
+            Assert.assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().endsWith(".Parse")));
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the size bounded heap and disk tiers of QuandlFrameCache
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlFrameCacheTests {
+
+    private static final LocalDate end = LocalDate.of(2000, 12, 31);
+
+    @Test()
+    public void testEstimateScalesWithRowsAndColumns() {
+        final long small = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 100, 1d, 0d));
+        final long large = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 10000, 1d, 0d));
+        Assert.assertTrue(large > small * 50, "Estimate should scale with row count");
+        Assert.assertTrue(large >= 10000L * 8L, "Estimate should cover the raw double values");
+        final DataFrame<LocalDate,String> strings = QuandlTestData.series(end, 1000, 1d, 0d);
+        strings.cols().add("Name", String.class, v -> "A reasonably long string value");
+        Assert.assertTrue(QuandlFrameCache.estimateBytes(strings) > QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 1000, 1d, 0d)) + 1000L * 40L);
+    }
+
+
+    @Test()
+    public void testHeapBudgetEvictsLeastRecentlyUsed() {
+        final long size = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 1000, 1d, 0d));
+        final QuandlFrameCache cache = new QuandlFrameCache(size * 2 + size / 2);
+        cache.put("a", QuandlTestData.series(end, 1000, 1d, 0d));
+        cache.put("b", QuandlTestData.series(end, 1000, 2d, 0d));
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", QuandlTestData.series(end, 1000, 3d, 0d));
+        Assert.assertEquals(cache.getHeapCount(), 2);
+        Assert.assertTrue(cache.getHeapBytes() <= size * 2 + size / 2);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.<LocalDate,String>get("a").data().getDouble(0, 0), 1d);
+        Assert.assertEquals(cache.getEvictionCount(), 1L);
+        Assert.assertEquals(cache.getSpillCount(), 0L);
+        Assert.assertEquals(cache.getHitRatio(), 2d / 3d, 0.0001);
+    }
+
+
+    @Test()
+    public void testEvictedFramesSpillToDiskAndLoadBack() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-frames").toFile();
+        final long size = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 1000, 1d, 0d));
+        final QuandlFrameCache cache = new QuandlFrameCache(size + size / 2, dir, Long.MAX_VALUE);
+        cache.put("a", QuandlTestData.series(end, 1000, 1d, 0d));
+        cache.put("b", QuandlTestData.series(end, 1000, 2d, 0d));
+        Assert.assertEquals(cache.getHeapCount(), 1);
+        Assert.assertEquals(cache.getDiskCount(), 1);
+        Assert.assertTrue(cache.getDiskBytes() > 0L);
+        final DataFrame<LocalDate,String> a = cache.get("a");
+        Assert.assertEquals(a.rowCount(), 1000);
+        Assert.assertEquals(a.rows().key(999), end.minusDays(999));
+        Assert.assertEquals(a.data().getDouble(500, 0), 1d);
+        Assert.assertEquals(cache.getDiskHitCount(), 1L);
+        Assert.assertEquals(cache.getHeapCount(), 1);
+        Assert.assertEquals(cache.getDiskCount(), 1);
+        Assert.assertEquals(cache.getSpillCount(), 2L);
+        cache.clear();
+        Assert.assertEquals(dir.listFiles().length, 0);
+    }
+
+
+    @Test()
+    public void testOversizedFrameStaysOnDisk() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-frames").toFile();
+        final long size = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 1000, 1d, 0d));
+        final QuandlFrameCache cache = new QuandlFrameCache(size + size / 2, dir, Long.MAX_VALUE);
+        cache.put("a", QuandlTestData.series(end, 1000, 1d, 0d));
+        cache.put("big", QuandlTestData.series(end, 5000, 2d, 0d));
+        Assert.assertEquals(cache.getHeapCount(), 1);
+        Assert.assertEquals(cache.getDiskCount(), 1);
+        for (int i=0; i<3; ++i) {
+            final DataFrame<LocalDate,String> big = cache.get("big");
+            Assert.assertEquals(big.rowCount(), 5000);
+            Assert.assertEquals(big.data().getDouble(0, 0), 2d);
+            big.data().setDouble(0, 0, 99d);
+        }
+        Assert.assertEquals(cache.getDiskHitCount(), 3L);
+        Assert.assertEquals(cache.getHeapCount(), 1, "The oversized frame should not displace the heap tier");
+        Assert.assertEquals(cache.getDiskCount(), 1);
+        Assert.assertEquals(cache.getEvictionCount(), 0L);
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertEquals(cache.getHitCount(), 1L);
+        cache.clear();
+    }
+
+
+    @Test()
+    public void testCachedFramesCannotBeMutatedByCallers() {
+        final QuandlFrameCache cache = new QuandlFrameCache(1024 * 1024);
+        final DataFrame<LocalDate,String> frame = QuandlTestData.series(end, 10, 1d, 0d);
+        cache.put("a", frame);
+        frame.data().setDouble(0, 0, 99d);
+        cache.<LocalDate,String>get("a").data().setDouble(0, 0, 99d);
+        Assert.assertEquals(cache.<LocalDate,String>get("a").data().getDouble(0, 0), 1d);
+    }
+
+
+
+    @Test()
+    public void testFramesExpireAfterMaxAge() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-frames").toFile();
+        final long size = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 1000, 1d, 0d));
+        final QuandlFrameCache cache = new QuandlFrameCache(size + size / 2, dir, Long.MAX_VALUE);
+        Assert.assertEquals(cache.getMaxAge(), Duration.ofHours(1));
+        cache.put("a", QuandlTestData.series(end, 1000, 1d, 0d));
+        cache.put("b", QuandlTestData.series(end, 1000, 2d, 0d));
+        Assert.assertNotNull(cache.get("b"));
+        Assert.assertEquals(cache.getDiskCount(), 1);
+        cache.setMaxAge(Duration.ofMillis(1));
+        Thread.sleep(20);
+        Assert.assertNull(cache.get("a"), "The spilled frame should have expired");
+        Assert.assertNull(cache.get("b"), "The heap frame should have expired");
+        Assert.assertEquals(cache.getHeapCount(), 0);
+        Assert.assertEquals(cache.getDiskCount(), 0);
+        Assert.assertEquals(cache.getHeapBytes(), 0L);
+        Assert.assertEquals(cache.getDiskBytes(), 0L);
+        Assert.assertEquals(cache.getMissCount(), 2L);
+        Assert.assertEquals(dir.listFiles().length, 0, "Expired spill files should be deleted");
+        cache.put("a", QuandlTestData.series(end, 1000, 3d, 0d));
+        cache.setMaxAge(Duration.ofHours(1));
+        Assert.assertEquals(cache.<LocalDate,String>get("a").data().getDouble(0, 0), 3d);
+    }
+
+
+    @Test()
+    public void testConcurrentReadersAndWritersStayConsistent() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-frames").toFile();
+        final long size = QuandlFrameCache.estimateBytes(QuandlTestData.series(end, 500, 1d, 0d));
+        final QuandlFrameCache cache = new QuandlFrameCache(size * 3 + size / 2, dir, Long.MAX_VALUE);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t=0; t<8; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i=0; i<50; ++i) {
+                        final int index = (thread + i) % 10;
+                        if (i % 3 == 0) {
+                            cache.put("k" + index, QuandlTestData.series(end, 500, index, 0d));
+                        } else {
+                            final DataFrame<LocalDate,String> frame = cache.get("k" + index);
+                            if (frame != null) {
+                                Assert.assertEquals(frame.rowCount(), 500);
+                                Assert.assertEquals(frame.data().getDouble(0, 0), (double)index);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(cache.getHeapBytes() <= size * 3 + size / 2);
+        Assert.assertEquals(cache.getHeapCount() + cache.getDiskCount(), 10);
+        Assert.assertEquals(dir.listFiles().length, cache.getDiskCount(), "Every spill file should be referenced");
+        for (int i=0; i<10; ++i) {
+            Assert.assertEquals(cache.<LocalDate,String>get("k" + i).data().getDouble(0, 0), (double)i);
+        }
+        cache.clear();
+        Assert.assertEquals(dir.listFiles().length, 0);
+    }
+
+}
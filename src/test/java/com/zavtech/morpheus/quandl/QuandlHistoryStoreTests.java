@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the append-only revision log maintained by QuandlHistoryStore
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHistoryStoreTests {
+
+    private static final LocalDate end = LocalDate.of(2017, 12, 31);
+    private static final ZonedDateTime t1 = ZonedDateTime.of(2017, 3, 1, 22, 0, 0, 0, ZoneOffset.UTC);
+    private static final ZonedDateTime t2 = t1.plusDays(1);
+    private static final ZonedDateTime t3 = t1.plusDays(2);
+
+
+    private static void assertFrameEquals(DataFrame<LocalDate,String> actual, DataFrame<LocalDate,String> unsorted) {
+        final DataFrame<LocalDate,String> expected = unsorted.copy().rows().sort(true);
+        Assert.assertEquals(actual.rowCount(), expected.rowCount(), "Row count");
+        Assert.assertEquals(actual.colCount(), expected.colCount(), "Column count");
+        Assert.assertEquals(actual.rows().keyArray().toList(), expected.rows().keyArray().toList());
+        Assert.assertEquals(actual.cols().keyArray().toList(), expected.cols().keyArray().toList());
+        for (int i=0; i<expected.rowCount(); ++i) {
+            for (int j=0; j<expected.colCount(); ++j) {
+                Assert.assertEquals(actual.data().getDouble(i, j), expected.data().getDouble(i, j), 0d, "Value at " + i + "," + j);
+            }
+        }
+    }
+
+
+    @Test()
+    public void testAsOfRebuildsEachRevision() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final QuandlHistoryStore store = new QuandlHistoryStore(dir);
+        final DataFrame<LocalDate,String> v1 = QuandlTestData.series(end, 1000, 100d, 1d);
+        final DataFrame<LocalDate,String> v2 = QuandlTestData.series(end, 1001, 100d, 1d);
+        v2.data().setDouble(LocalDate.of(2017, 1, 5), "Close", 1.5d);
+        final DataFrame<LocalDate,String> v3 = v2.rows().select(row -> !row.key().equals(LocalDate.of(2017, 1, 1))).copy();
+        Assert.assertEquals(store.append("WIKI", "TEST", t1, v1), 1000);
+        final long fullLength = new File(dir, "WIKI/TEST.history").length();
+        Assert.assertEquals(store.append("WIKI", "TEST", t2, v2), 2);
+        Assert.assertEquals(store.append("WIKI", "TEST", t3, v3), 1);
+        Assert.assertEquals(store.append("WIKI", "TEST", t3, v3), 0);
+        Assert.assertTrue(new File(dir, "WIKI/TEST.history").length() < fullLength * 1.1, "Revisions should only record changed rows");
+        Assert.assertEquals(store.getVersions("WIKI", "TEST"), Arrays.asList(t1, t2, t3));
+        Assert.assertFalse(store.getAsOf("WIKI", "TEST", t1.minusSeconds(1)).isPresent());
+        assertFrameEquals(store.getAsOf("WIKI", "TEST", t1).get(), v1);
+        assertFrameEquals(store.getAsOf("WIKI", "TEST", t2.minusSeconds(1)).get(), v1);
+        assertFrameEquals(store.getAsOf("WIKI", "TEST", t2).get(), v2);
+        assertFrameEquals(store.getAsOf("WIKI", "TEST", t3.plusDays(10)).get(), v3);
+        final QuandlHistoryStore reopened = new QuandlHistoryStore(dir);
+        assertFrameEquals(reopened.getAsOf("WIKI", "TEST", t2).get(), v2);
+        assertFrameEquals(reopened.getLatest("WIKI", "TEST").get(), v3);
+    }
+
+
+    @Test(expectedExceptions = { QuandlException.class })
+    public void testOutOfOrderAppendIsRejected() throws Exception {
+        final QuandlHistoryStore store = new QuandlHistoryStore(Files.createTempDirectory("quandl-history").toFile());
+        store.append("WIKI", "TEST", t2, QuandlTestData.series(end, 10, 100d, 1d));
+        store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 101d, 1d));
+    }
+
+
+    @Test()
+    public void testPartialRecordIsIgnoredAndTruncated() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final QuandlHistoryStore store = new QuandlHistoryStore(dir);
+        store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 100d, 1d));
+        try (FileOutputStream os = new FileOutputStream(new File(dir, "WIKI/TEST.history"), true)) {
+            os.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+        final QuandlHistoryStore reopened = new QuandlHistoryStore(dir);
+        Assert.assertEquals(reopened.getVersions("WIKI", "TEST").size(), 1);
+        Assert.assertEquals(reopened.append("WIKI", "TEST", t2, QuandlTestData.series(end, 10, 101d, 1d)), 10);
+        final QuandlHistoryStore reopenedAgain = new QuandlHistoryStore(dir);
+        Assert.assertEquals(reopenedAgain.getVersions("WIKI", "TEST"), Arrays.asList(t1, t2));
+        assertFrameEquals(reopenedAgain.getAsOf("WIKI", "TEST", t1).get(), QuandlTestData.series(end, 10, 100d, 1d));
+    }
+
+
+    @Test()
+    public void testSameRefreshTimeWithDifferentDataIsRejected() throws Exception {
+        final QuandlHistoryStore store = new QuandlHistoryStore(Files.createTempDirectory("quandl-history").toFile());
+        Assert.assertEquals(store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 100d, 1d)), 10);
+        Assert.assertEquals(store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 100d, 1d)), 0);
+        try {
+            store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 101d, 1d));
+            Assert.fail("Expected a conflicting append at the same refresh time to be rejected");
+        } catch (QuandlException ex) {
+            Assert.assertTrue(ex.getMessage().contains("already recorded"), ex.getMessage());
+        }
+        Assert.assertEquals(store.getVersions("WIKI", "TEST"), Collections.singletonList(t1));
+        assertFrameEquals(store.getLatest("WIKI", "TEST").get(), QuandlTestData.series(end, 10, 100d, 1d));
+    }
+
+
+    @Test()
+    public void testAsOfAcrossCheckpointsMatchesEachRevision() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final QuandlHistoryStore store = new QuandlHistoryStore(dir);
+        final List<DataFrame<LocalDate,String>> revisions = new ArrayList<>();
+        for (int i=0; i<100; ++i) {
+            final DataFrame<LocalDate,String> frame = QuandlTestData.series(end.plusDays(i), 200 + i, 100d, 1d);
+            frame.data().setDouble(i % 50, "Close", i);
+            revisions.add(frame);
+            Assert.assertTrue(store.append("WIKI", "TEST", t1.plusHours(i), frame) > 0);
+        }
+        final QuandlHistoryStore reopened = new QuandlHistoryStore(dir);
+        for (QuandlHistoryStore target : Arrays.asList(store, reopened)) {
+            for (int i : new int[] {0, 1, 30, 31, 32, 33, 63, 64, 70, 98, 99}) {
+                assertFrameEquals(target.getAsOf("WIKI", "TEST", t1.plusHours(i).plusMinutes(30)).get(), revisions.get(i));
+            }
+        }
+    }
+
+
+
+    @Test()
+    public void testEmptyLogIsTreatedAsEmptyAndTruncated() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final File file = new File(dir, "WIKI/TEST.history");
+        Assert.assertTrue(file.getParentFile().mkdirs());
+        for (byte[] header : Arrays.asList(new byte[0], new byte[] { 0x51, 0x48 })) {
+            try (FileOutputStream os = new FileOutputStream(file)) {
+                os.write(header);
+            }
+            final QuandlHistoryStore store = new QuandlHistoryStore(dir);
+            Assert.assertTrue(store.getVersions("WIKI", "TEST").isEmpty());
+            Assert.assertFalse(store.getLatest("WIKI", "TEST").isPresent());
+            Assert.assertEquals(store.append("WIKI", "TEST", t1, QuandlTestData.series(end, 10, 100d, 1d)), 10);
+            final QuandlHistoryStore reopened = new QuandlHistoryStore(dir);
+            Assert.assertEquals(reopened.getVersions("WIKI", "TEST"), Collections.singletonList(t1));
+            assertFrameEquals(reopened.getLatest("WIKI", "TEST").get(), QuandlTestData.series(end, 10, 100d, 1d));
+        }
+    }
+
+
+    @Test()
+    public void testCodesCannotEscapeDirectory() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final QuandlHistoryStore store = new QuandlHistoryStore(new File(dir, "store"));
+        for (String[] codes : new String[][] { {"WIKI", "../TEST"}, {"..", "TEST"}, {"WIKI", ".."}, {"WIKI/X", "TEST"}, {"WIKI", "A\\B"}, {"WIKI", ""} }) {
+            try {
+                store.append(codes[0], codes[1], t1, QuandlTestData.series(end, 10, 100d, 1d));
+                Assert.fail("Expected invalid codes to be rejected: " + codes[0] + "/" + codes[1]);
+            } catch (QuandlException ex) {
+                Assert.assertTrue(ex.getMessage().startsWith("Invalid Quandl"), ex.getMessage());
+            }
+        }
+        Assert.assertEquals(dir.list(), new String[0], "Nothing should be written outside the store");
+        Assert.assertEquals(store.append("WIKI", "BRK_A-1.0", t1, QuandlTestData.series(end, 10, 100d, 1d)), 10);
+    }
+
+
+    @Test()
+    public void testCheckpointsAreBounded() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-history").toFile();
+        final QuandlHistoryStore store = new QuandlHistoryStore(dir);
+        final List<DataFrame<LocalDate,String>> revisions = new ArrayList<>();
+        for (int i=0; i<1100; ++i) {
+            final DataFrame<LocalDate,String> frame = QuandlTestData.series(end, 10, 100d, 1d);
+            frame.data().setDouble(i % 10, "Close", i);
+            revisions.add(frame);
+            store.append("WIKI", "TEST", t1.plusHours(i), frame);
+            Assert.assertTrue(store.getCheckpointCount("WIKI", "TEST") <= 16, "Checkpoints should be bounded");
+        }
+        Assert.assertEquals(store.getCheckpointCount("WIKI", "TEST"), 1100 / 128);
+        final QuandlHistoryStore reopened = new QuandlHistoryStore(dir);
+        Assert.assertEquals(reopened.getCheckpointCount("WIKI", "TEST"), 1100 / 128);
+        for (QuandlHistoryStore target : Arrays.asList(store, reopened)) {
+            for (int i : new int[] {0, 31, 127, 128, 500, 1023, 1024, 1098}) {
+                assertFrameEquals(target.getAsOf("WIKI", "TEST", t1.plusHours(i).plusMinutes(30)).get(), revisions.get(i));
+            }
+        }
+    }
+
+
+    @Test()
+    public void testEvictedHistoriesAreReloaded() throws Exception {
+        final QuandlHistoryStore store = new QuandlHistoryStore(Files.createTempDirectory("quandl-history").toFile());
+        for (int i=0; i<100; ++i) {
+            store.append("WIKI", "D" + i, t1, QuandlTestData.series(end, 10, i, 1d));
+        }
+        for (int i=0; i<100; ++i) {
+            Assert.assertEquals(store.append("WIKI", "D" + i, t2, QuandlTestData.series(end, 10, i, 1d)), 0);
+            assertFrameEquals(store.getLatest("WIKI", "D" + i).get(), QuandlTestData.series(end, 10, i, 1d));
+            Assert.assertEquals(store.getVersions("WIKI", "D" + i), Collections.singletonList(t1));
+        }
+    }
+
+}
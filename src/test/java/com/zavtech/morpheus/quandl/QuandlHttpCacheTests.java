@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the conditional request cache of QuandlTransport, and for keeping the api key out of any output
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlHttpCacheTests {
+
+    private static final String apiKey = "secret-api-key-5f1c";
+
+    private QuandlStubServer server;
+    private List<String> validators = new CopyOnWriteArrayList<>();
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/TEST.csv", exchange -> {
+            final String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+            validators.add(String.valueOf(etag));
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            if ("\"v1\"".equals(etag)) {
+                QuandlStubServer.respond(exchange, 304, new byte[0]);
+            } else {
+                QuandlStubServer.respond(exchange, "Date,Close\n2017-01-04,2.5\n2017-01-03,1.5\n");
+            }
+        });
+        this.server.handle("/api/v3/datasets/WIKI/MISSING.csv", exchange -> {
+            QuandlStubServer.respond(exchange, 404, new byte[0]);
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.validators.clear();
+    }
+
+
+    private static DataFrame<LocalDate,String> load(Quandl quandl, String dataset) {
+        return quandl.getDailyData("WIKI", dataset, options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 1, 31));
+        });
+    }
+
+
+    @Test()
+    public void testNotModifiedServesCachedBody() {
+        final QuandlHttpCache cache = new QuandlHttpCache(1024 * 1024);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), apiKey).withHttpCache(cache);
+        final DataFrame<LocalDate,String> first = load(quandl, "TEST");
+        final DataFrame<LocalDate,String> second = load(quandl, "TEST");
+        Assert.assertEquals(validators.size(), 2);
+        Assert.assertEquals(validators.get(0), "null");
+        Assert.assertEquals(validators.get(1), "\"v1\"");
+        Assert.assertEquals(cache.getMissCount(), 1L);
+        Assert.assertEquals(cache.getHitCount(), 1L);
+        Assert.assertEquals(second.rows().keyArray().toList(), first.rows().keyArray().toList());
+        Assert.assertEquals(second.data().getDouble(LocalDate.of(2017, 1, 4), "Close"), 2.5d, 0d);
+    }
+
+
+    @Test()
+    public void testParsedContentCountsAgainstBudget() {
+        final int bodyLength = "Date,Close\n2017-01-04,2.5\n2017-01-03,1.5\n".length();
+        final QuandlHttpCache large = new QuandlHttpCache(1024 * 1024);
+        load(new Quandl(server.getBaseUrl(), apiKey).withHttpCache(large), "TEST");
+        Assert.assertEquals(large.size(), 1);
+        Assert.assertTrue(large.getTotalBytes() > bodyLength, "The parsed frame should be charged, total was " + large.getTotalBytes());
+        final QuandlHttpCache small = new QuandlHttpCache(bodyLength + 16);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), apiKey).withHttpCache(small);
+        load(quandl, "TEST");
+        Assert.assertEquals(small.size(), 1);
+        Assert.assertEquals(small.getTotalBytes(), bodyLength, "The parsed frame does not fit, so only the body is retained");
+        final DataFrame<LocalDate,String> frame = load(quandl, "TEST");
+        Assert.assertEquals(small.getHitCount(), 1L);
+        Assert.assertEquals(frame.data().getDouble(LocalDate.of(2017, 1, 4), "Close"), 2.5d, 0d);
+        Assert.assertTrue(small.getTotalBytes() <= bodyLength + 16);
+    }
+
+
+    @Test()
+    public void testApiKeyIsNeverPrintedOrIncludedInMessages() {
+        final PrintStream out = System.out;
+        final PrintStream err = System.err;
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final StringBuilder messages = new StringBuilder();
+        try {
+            System.setOut(new PrintStream(captured, true));
+            System.setErr(new PrintStream(captured, true));
+            load(new Quandl(server.getBaseUrl(), apiKey).withHttpCache(new QuandlHttpCache(1024 * 1024)), "TEST");
+            for (String baseUrl : new String[] {server.getBaseUrl(), "http://localhost:1"}) {
+                try {
+                    load(new Quandl(baseUrl, apiKey), "MISSING");
+                    Assert.fail("Expected request to fail for " + baseUrl);
+                } catch (QuandlException ex) {
+                    for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                        messages.append(cause).append("\n");
+                    }
+                }
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        final String output = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertFalse(output.contains(apiKey), "Api key was printed: " + output);
+        Assert.assertTrue(messages.toString().contains("api_key=***"), "Messages were " + messages);
+        Assert.assertFalse(messages.toString().contains(apiKey), "Api key was in messages: " + messages);
+    }
+
+}
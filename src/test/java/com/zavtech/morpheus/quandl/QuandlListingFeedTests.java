@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * A unit test for the incremental dataset listing changes reported by QuandlListingFeed, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlListingFeedTests {
+
+    private QuandlStubServer server;
+    private volatile byte[] archive;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer().handle("/api/v3/databases/TEST/codes.csv", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            QuandlStubServer.respond(exchange, 200, archive);
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    private static Map<String,String> listing(int count) {
+        final Map<String,String> listing = new LinkedHashMap<>();
+        for (int i=0; i<count; ++i) {
+            listing.put("TEST/C" + i, "Company " + i + ", Inc. \"Class A\" Prices");
+        }
+        return listing;
+    }
+
+
+    @Test()
+    public void testRefreshReportsOnlyChanges() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-listing").toFile();
+        final QuandlSource<?,?> source = new QuandlSource<>(server.getBaseUrl(), "test");
+        final QuandlListingFeed feed = new QuandlListingFeed(source, dir);
+        final Map<String,String> listing = listing(1000);
+        this.archive = QuandlStubServer.zip("TEST", listing);
+        final QuandlListingFeed.Changes initial = feed.refresh("TEST");
+        Assert.assertFalse(initial.isUnchanged());
+        Assert.assertEquals(initial.getAdded().size(), 1000);
+        Assert.assertEquals(initial.getAdded().get("TEST/C7"), "Company 7, Inc. \"Class A\" Prices");
+        Assert.assertTrue(initial.getRemoved().isEmpty());
+        listing.remove("TEST/C10");
+        listing.remove("TEST/C20");
+        listing.put("TEST/C5", "Renamed Company");
+        listing.put("TEST/NEW", "New Company");
+        this.archive = QuandlStubServer.zip("TEST", listing);
+        final QuandlListingFeed.Changes changes = feed.refresh("TEST");
+        Assert.assertFalse(changes.isUnchanged());
+        Assert.assertEquals(changes.getAdded(), Collections.singletonMap("TEST/NEW", "New Company"));
+        Assert.assertEquals(changes.getChanged(), Collections.singletonMap("TEST/C5", "Renamed Company"));
+        Assert.assertEquals(changes.getRemoved(), new TreeSet<>(Arrays.asList("TEST/C10", "TEST/C20")));
+    }
+
+
+    @Test()
+    public void testUnchangedArchiveIsNotParsed() throws Exception {
+        final File dir = Files.createTempDirectory("quandl-listing").toFile();
+        final QuandlSource<?,?> source = new QuandlSource<>(server.getBaseUrl(), "test");
+        this.archive = QuandlStubServer.zip("TEST", listing(100));
+        Assert.assertEquals(new QuandlListingFeed(source, dir).refresh("TEST").getAdded().size(), 100);
+        final QuandlListingFeed.Changes changes = new QuandlListingFeed(source, dir).refresh("TEST");
+        Assert.assertTrue(changes.isUnchanged());
+        Assert.assertTrue(changes.isEmpty());
+        final QuandlListingFeed.Changes shrunk = new QuandlListingFeed(source, dir).refresh("TEST", QuandlStubServer.zip("TEST", listing(99)));
+        Assert.assertFalse(shrunk.isUnchanged());
+        Assert.assertEquals(shrunk.getRemoved(), Collections.singleton("TEST/C99"));
+        Assert.assertTrue(shrunk.getAdded().isEmpty());
+    }
+
+}
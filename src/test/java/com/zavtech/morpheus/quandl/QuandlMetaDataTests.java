@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * A unit test for the concurrent batch metadata requests of QuandlSource, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlMetaDataTests {
+
+    private QuandlStubServer server;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer(32).handle("/api/v3/datasets/WIKI/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            final String dataset = path.substring("/api/v3/datasets/WIKI/".length(), path.indexOf("/metadata.json"));
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (dataset.equals("MISSING")) {
+                QuandlStubServer.respond(exchange, 404, new byte[0]);
+            } else {
+                QuandlStubServer.respond(exchange, "{\"dataset\":{\"id\":" + dataset.substring(1) + ",\"dataset_code\":\"" + dataset + "\"," +
+                    "\"database_code\":\"WIKI\",\"name\":\"Test " + dataset + "\",\"oldest_available_date\":\"2017-01-02\"," +
+                    "\"newest_available_date\":\"2017-12-29\",\"column_names\":[\"Date\",\"Close\"],\"frequency\":\"daily\"," +
+                    "\"type\":\"Time Series\",\"premium\":false,\"database_id\":1}}");
+            }
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.server.reset();
+    }
+
+
+    private static List<String> codes(int count) {
+        final List<String> codes = new ArrayList<>();
+        for (int i=0; i<count; ++i) {
+            codes.add("WIKI/D" + i);
+        }
+        return codes;
+    }
+
+
+    private static long threadCount() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().startsWith("QuandlMetaData")).count();
+    }
+
+
+    @Test()
+    public void testBatchCollectsResultsAndErrors() {
+        final QuandlSource<?,?> source = new QuandlSource<>(server.getBaseUrl(), "test");
+        final List<String> codes = codes(30);
+        codes.add(5, "WIKI/MISSING");
+        codes.add(9, "INVALID");
+        final QuandlBatch<Integer,QuandlField> batch = source.getMetaData(codes, 4);
+        Assert.assertEquals(batch.getFrame().rowCount(), 30);
+        Assert.assertEquals(batch.getErrors().keySet(), new HashSet<>(Arrays.asList("WIKI/MISSING", "INVALID")));
+        Assert.assertEquals(server.getRequestCount(), 31);
+        Assert.assertTrue(server.getMaxConcurrency() > 1, "Expected concurrent requests, max was " + server.getMaxConcurrency());
+        Assert.assertTrue(server.getMaxConcurrency() <= 4, "Expected at most 4 concurrent requests, max was " + server.getMaxConcurrency());
+    }
+
+
+    @Test()
+    public void testBatchesShareOneBoundedExecutor() {
+        final QuandlSource<?,?> source = new QuandlSource<>(server.getBaseUrl(), "test");
+        final long before = threadCount();
+        for (int i=0; i<5; ++i) {
+            Assert.assertFalse(source.getMetaData(codes(40), 64).hasErrors());
+        }
+        Assert.assertTrue(server.getMaxConcurrency() <= 16, "Expected at most 16 concurrent requests, max was " + server.getMaxConcurrency());
+        Assert.assertTrue(threadCount() - before <= 16, "Expected at most 16 metadata threads, found " + (threadCount() - before));
+        Assert.assertEquals(source.getMetaData(new ArrayList<>(), 4).getFrame().rowCount(), 0);
+    }
+
+}
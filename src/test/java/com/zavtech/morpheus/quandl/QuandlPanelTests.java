@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * A unit test for the QuandlPanel k-way merge builder
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPanelTests {
+
+    /**
+     * Returns a single column frame of doubles keyed by the dates specified
+     * @param column    the column key
+     * @param dates     the row dates
+     * @param values    the column values
+     * @return          the newly created frame
+     */
+    private DataFrame<LocalDate,String> frame(String column, LocalDate[] dates, double... values) {
+        final Index<LocalDate> rowKeys = Index.of(LocalDate.class, dates);
+        return DataFrame.of(rowKeys, String.class, columns -> columns.add(column, Array.of(values)));
+    }
+
+
+    @Test()
+    public void testMergeOfOverlappingSeries() {
+        final LocalDate d1 = LocalDate.of(2014, 1, 6);
+        final LocalDate d2 = LocalDate.of(2014, 1, 7);
+        final LocalDate d3 = LocalDate.of(2014, 1, 8);
+        final LocalDate d4 = LocalDate.of(2014, 1, 9);
+        final DataFrame<LocalDate,String> panel = new QuandlPanel()
+            .add("WIKI", "AAPL", frame("Close", new LocalDate[] {d1, d2, d4}, 1d, 2d, 4d))
+            .add("WIKI", "MSFT", frame("Close", new LocalDate[] {d4, d3, d2}, 40d, 30d, 20d))
+            .add("FRED", "GDP", frame("VALUE", new LocalDate[0]))
+            .build();
+        Assert.assertEquals(panel.rowCount(), 4);
+        Assert.assertEquals(panel.colCount(), 3);
+        Assert.assertEquals(panel.rows().keyArray().toList(), Arrays.asList(d1, d2, d3, d4));
+        Assert.assertEquals(panel.cols().type("WIKI/AAPL/Close"), Double.class);
+        Assert.assertEquals(panel.data().getDouble(d1, "WIKI/AAPL/Close"), 1d);
+        Assert.assertTrue(Double.isNaN(panel.data().getDouble(d3, "WIKI/AAPL/Close")));
+        Assert.assertEquals(panel.data().getDouble(d4, "WIKI/AAPL/Close"), 4d);
+        Assert.assertTrue(Double.isNaN(panel.data().getDouble(d1, "WIKI/MSFT/Close")));
+        Assert.assertEquals(panel.data().getDouble(d2, "WIKI/MSFT/Close"), 20d);
+        Assert.assertEquals(panel.data().getDouble(d3, "WIKI/MSFT/Close"), 30d);
+        Assert.assertTrue(panel.col("FRED/GDP/VALUE").values().allMatch(v -> Double.isNaN(v.getDouble())));
+    }
+
+
+    @Test()
+    public void testCustomNaming() {
+        final LocalDate[] dates = {LocalDate.of(2014, 1, 6), LocalDate.of(2014, 1, 7)};
+        final DataFrame<LocalDate,String> panel = new QuandlPanel()
+            .setNaming((database, dataset, column) -> dataset)
+            .add("WIKI", "AAPL", frame("Close", dates, 1d, 2d))
+            .add("WIKI", "MSFT", frame("Close", dates, 3d, 4d))
+            .build();
+        Assert.assertTrue(panel.cols().containsAll(Arrays.asList("AAPL", "MSFT")));
+        Assert.assertEquals(panel.data().getDouble(dates[1], "MSFT"), 4d);
+    }
+
+
+    @Test(expectedExceptions = {QuandlException.class})
+    public void testDuplicateColumnKeys() {
+        final LocalDate[] dates = {LocalDate.of(2014, 1, 6)};
+        new QuandlPanel()
+            .setNaming((database, dataset, column) -> column)
+            .add("WIKI", "AAPL", frame("Close", dates, 1d))
+            .add("WIKI", "MSFT", frame("Close", dates, 2d))
+            .build();
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the date range merging performed by QuandlPlanner
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPlannerTests {
+
+    private QuandlPlanner planner() {
+        return new QuandlPlanner(new QuandlSource<>("http://localhost", "test"));
+    }
+
+
+    @Test()
+    public void testOverlappingAndAdjacentRangesMerge() {
+        final QuandlPlanner planner = planner();
+        final QuandlOptions<?,?> r1 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); });
+        final QuandlOptions<?,?> r2 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-02-01"); o.setEndDate("2014-06-30"); });
+        final QuandlOptions<?,?> r3 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-07-01"); o.setEndDate("2014-07-31"); });
+        final QuandlOptions<?,?> r4 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2015-01-01"); o.setEndDate("2015-12-31"); });
+        final List<QuandlPlanner.Fetch> fetches = planner.plan();
+        Assert.assertEquals(fetches.size(), 2);
+        Assert.assertEquals(fetches.get(0).getStartDate(), LocalDate.of(2014, 1, 1));
+        Assert.assertEquals(fetches.get(0).getEndDate(), LocalDate.of(2014, 7, 31));
+        Assert.assertEquals(fetches.get(0).getRequests().size(), 3);
+        Assert.assertTrue(fetches.get(0).getRequests().containsAll(Arrays.asList(r1, r2, r3)));
+        Assert.assertEquals(fetches.get(1).getStartDate(), LocalDate.of(2015, 1, 1));
+        Assert.assertEquals(fetches.get(1).getRequests().get(0), r4);
+    }
+
+
+    @Test()
+    public void testDistinctDatasetsAndColumnsAreNotMerged() {
+        final QuandlPlanner planner = planner();
+        planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); });
+        planner.add("WIKI", "MSFT", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); });
+        planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); o.setColumnIndex(4); });
+        planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); o.setLimit(5); });
+        Assert.assertEquals(planner.plan().size(), 4);
+    }
+
+
+    @Test(expectedExceptions = {QuandlException.class})
+    public void testMissingDateRange() {
+        planner().add("WIKI", "AAPL", o -> o.setStartDate("2014-01-01"));
+    }
+
+
+    @Test()
+    public void testMergedFetchKeepsTimeoutAndCancelToken() {
+        final QuandlPlanner planner = planner();
+        final QuandlCancelToken token = new QuandlCancelToken();
+        planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); o.setTimeout(Duration.ofSeconds(7)); o.setCancelToken(token); });
+        planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-02-01"); o.setEndDate("2014-06-30"); o.setTimeout(Duration.ofSeconds(7)); o.setCancelToken(token); });
+        final List<QuandlPlanner.Fetch> fetches = planner.plan();
+        Assert.assertEquals(fetches.size(), 1);
+        final QuandlOptions<?,?> options = fetches.get(0).getOptions();
+        Assert.assertFalse(options.isSealed());
+        Assert.assertEquals(options.getOperation(), QuandlOptions.Operation.DATA);
+        Assert.assertEquals(options.getTimeout().orElse(null), Duration.ofSeconds(7));
+        Assert.assertSame(options.getCancelToken().orElse(null), token);
+        Assert.assertEquals(options.getEndDate().orElse(null), LocalDate.of(2014, 6, 30));
+    }
+
+
+    @Test()
+    public void testDistinctTimeoutsAndCancelTokensAreNotMerged() {
+        final QuandlPlanner planner = planner();
+        final QuandlCancelToken token = new QuandlCancelToken();
+        final QuandlOptions<?,?> r1 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-01-01"); o.setEndDate("2014-03-31"); o.setCancelToken(token); });
+        final QuandlOptions<?,?> r2 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-02-01"); o.setEndDate("2014-06-30"); });
+        final QuandlOptions<?,?> r3 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-02-01"); o.setEndDate("2014-06-30"); o.setCancelToken(new QuandlCancelToken()); });
+        final QuandlOptions<?,?> r4 = planner.add("WIKI", "AAPL", o -> { o.setStartDate("2014-02-01"); o.setEndDate("2014-06-30"); o.setTimeout(Duration.ofMillis(50)); });
+        final List<QuandlPlanner.Fetch> fetches = planner.plan();
+        Assert.assertEquals(fetches.size(), 4);
+        for (QuandlPlanner.Fetch fetch : fetches) {
+            Assert.assertEquals(fetch.getRequests().size(), 1);
+            final QuandlOptions<?,?> request = fetch.getRequests().get(0);
+            Assert.assertSame(fetch.getOptions().getCancelToken().orElse(null), request.getCancelToken().orElse(null));
+            Assert.assertEquals(fetch.getOptions().getTimeout(), request.getTimeout());
+        }
+        Assert.assertTrue(fetches.stream().map(f -> f.getRequests().get(0)).collect(Collectors.toList()).containsAll(Arrays.asList(r1, r2, r3, r4)));
+    }
+
+
+    @Test()
+    public void testSealedRequestsArePlannedWithoutModification() {
+        final QuandlStubServer server = new QuandlStubServer().handle("/api/v3/datasets/WIKI/AAPL.csv", exchange -> {
+            QuandlStubServer.respond(exchange, 200, QuandlTestData.csv(QuandlTestData.series(LocalDate.of(2014, 6, 30), 181, 1d, 1d)));
+        });
+        try {
+            final QuandlPlanner planner = new QuandlPlanner(new QuandlSource<>(server.getBaseUrl(), "test"));
+            final QuandlOptions<?,?> r1 = new QuandlOptions<>();
+            r1.setDatabase("WIKI");
+            r1.setDataset("AAPL");
+            r1.setStartDate("2014-01-01");
+            r1.setEndDate("2014-03-31");
+            r1.seal();
+            final QuandlOptions<?,?> r2 = r1.copy();
+            r2.setStartDate("2014-03-01");
+            r2.setEndDate("2014-06-30");
+            r2.seal();
+            final Map<QuandlOptions<?,?>,DataFrame<LocalDate,String>> results = planner.add(r1).add(r2).execute();
+            Assert.assertNull(r1.getOperation());
+            Assert.assertEquals(server.getRequestCount(), 1);
+            Assert.assertEquals(results.get(r1).rowCount(), 90);
+            Assert.assertTrue(results.get(r1).rows().contains(LocalDate.of(2014, 1, 1)));
+            Assert.assertTrue(results.get(r1).rows().contains(LocalDate.of(2014, 3, 31)));
+            Assert.assertEquals(results.get(r2).rowCount(), 122);
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    @Test(expectedExceptions = {QuandlException.class})
+    public void testNonDataRequestIsRejected() {
+        final QuandlOptions<?,?> request = new QuandlOptions<>();
+        request.setOperation(QuandlOptions.Operation.META_DATA);
+        request.setDatabase("WIKI");
+        request.setDataset("AAPL");
+        request.setStartDate("2014-01-01");
+        request.setEndDate("2014-03-31");
+        planner().add(request);
+    }
+
+}
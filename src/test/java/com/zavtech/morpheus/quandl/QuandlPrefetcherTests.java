@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the access pattern driven prefetching performed by QuandlPrefetcher, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlPrefetcherTests {
+
+    private QuandlStubServer server;
+    private QuandlPrefetcher prefetcher;
+    private List<String> requests = new CopyOnWriteArrayList<>();
+    private volatile String stallDataset;
+    private volatile CountDownLatch stall;
+
+
+    @BeforeMethod()
+    public void start() throws Exception {
+        this.requests.clear();
+        this.stallDataset = null;
+        this.stall = null;
+        this.server = new QuandlStubServer(4);
+        this.server.handle("/api/v3/datasets/TEST/", exchange -> {
+            final String query = exchange.getRequestURI().getQuery();
+            final String dataset = QuandlStubServer.dataset(exchange);
+            requests.add(dataset + "?" + query.replaceAll("api_key=[^&]*&?", ""));
+            if (dataset.equals(stallDataset) && requests.stream().filter(r -> r.startsWith(dataset)).count() == 1L) {
+                try {
+                    stall.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            QuandlStubServer.respond(exchange, "Date,Close\n2017-01-04,2.5\n2017-01-03,1.5\n");
+        });
+        this.server.handle("/api/v3/databases/TEST/codes.csv", exchange -> {
+            final Map<String,String> listing = new LinkedHashMap<>();
+            for (int i=0; i<10; ++i) {
+                listing.put("TEST/C" + i, "Company " + i);
+            }
+            QuandlStubServer.respond(exchange, 200, QuandlStubServer.zip("TEST", listing));
+        });
+    }
+
+
+    @AfterMethod()
+    public void stop() {
+        this.server.stop();
+        if (prefetcher != null) {
+            this.prefetcher.shutdown();
+        }
+    }
+
+
+    private Quandl quandl(QuandlPrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+        return new Quandl(server.getBaseUrl(), "test").withPrefetcher(prefetcher);
+    }
+
+
+    private static DataFrame<LocalDate,String> load(Quandl quandl, String dataset, LocalDate start, LocalDate end) {
+        return quandl.getDailyData("TEST", dataset, options -> {
+            options.setStartDate(start);
+            options.setEndDate(end);
+        });
+    }
+
+
+    private static void awaitIdle(QuandlPrefetcher prefetcher) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (prefetcher.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(prefetcher.getPendingCount(), 0, "Prefetches still pending");
+    }
+
+
+    @Test()
+    public void testListingWalkPrefetchesNextDatasets() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(2, 16, 2);
+        final Quandl quandl = quandl(prefetcher);
+        final LocalDate start = LocalDate.of(2017, 1, 1);
+        final LocalDate end = LocalDate.of(2017, 1, 31);
+        Assert.assertEquals(quandl.getDatasetListing("TEST").rowCount(), 10);
+        load(quandl, "C3", start, end);
+        load(quandl, "C4", start, end);
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getPrefetchCount(), 2L);
+        Assert.assertEquals(requests.size(), 4);
+        Assert.assertTrue(requests.get(2).startsWith("C5") || requests.get(3).startsWith("C5"), "Requests: " + requests);
+        final DataFrame<LocalDate,String> frame = load(quandl, "C5", start, end);
+        Assert.assertEquals(frame.rowCount(), 2);
+        Assert.assertEquals(frame.data().getDouble(LocalDate.of(2017, 1, 4), "Close"), 2.5d, 0d);
+        Assert.assertEquals(prefetcher.getHitCount(), 1L);
+        awaitIdle(prefetcher);
+        Assert.assertEquals(requests.stream().filter(r -> r.startsWith("C5")).count(), 1L);
+        Assert.assertTrue(requests.stream().anyMatch(r -> r.startsWith("C7")), "Requests: " + requests);
+        load(quandl, "C6", start, end);
+        Assert.assertEquals(prefetcher.getHitCount(), 2L);
+        Assert.assertEquals(prefetcher.getHitRatio(), 0.5d, 0d);
+    }
+
+
+    @Test()
+    public void testBackwardWindowPrefetchesPreviousWindow() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(1, 16, 1);
+        final Quandl quandl = quandl(prefetcher);
+        load(quandl, "C0", LocalDate.of(2017, 3, 1), LocalDate.of(2017, 3, 31));
+        load(quandl, "C0", LocalDate.of(2017, 1, 30), LocalDate.of(2017, 2, 28));
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getPrefetchCount(), 1L);
+        Assert.assertTrue(requests.get(2).contains("start_date=2016-12-31") && requests.get(2).contains("end_date=2017-01-29"), "Requests: " + requests);
+        load(quandl, "C0", LocalDate.of(2016, 12, 31), LocalDate.of(2017, 1, 29));
+        Assert.assertEquals(prefetcher.getHitCount(), 1L);
+        awaitIdle(prefetcher);
+        Assert.assertEquals(requests.size(), 4);
+        Assert.assertTrue(requests.get(3).contains("start_date=2016-12-01") && requests.get(3).contains("end_date=2016-12-30"), "Requests: " + requests);
+    }
+
+
+    @Test()
+    public void testPrefetchIsSkippedWithoutSpareRateBudget() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(2, 16, 2);
+        final Quandl quandl = quandl(prefetcher).withRateLimiter(new QuandlRateLimiter(100d, 1d));
+        load(quandl, "C0", LocalDate.of(2017, 3, 1), LocalDate.of(2017, 3, 31));
+        load(quandl, "C0", LocalDate.of(2017, 1, 30), LocalDate.of(2017, 2, 28));
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getPrefetchCount(), 0L);
+        Assert.assertEquals(prefetcher.getSkipCount(), 2L);
+        Assert.assertEquals(requests.size(), 2);
+    }
+
+
+    @Test()
+    public void testPrefetchedFramesAreBounded() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(3, 1, 1);
+        final Quandl quandl = quandl(prefetcher);
+        load(quandl, "C0", LocalDate.of(2017, 3, 1), LocalDate.of(2017, 3, 31));
+        load(quandl, "C0", LocalDate.of(2017, 1, 30), LocalDate.of(2017, 2, 28));
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getPrefetchCount(), 3L);
+        Assert.assertEquals(prefetcher.getCacheSize(), 1);
+        Assert.assertEquals(prefetcher.getWasteCount(), 2L);
+    }
+
+
+    @Test()
+    public void testInFlightPrefetchIsAbandonedAtDeadline() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(1, 16, 1);
+        final Quandl quandl = quandl(prefetcher);
+        final LocalDate start = LocalDate.of(2017, 1, 1);
+        final LocalDate end = LocalDate.of(2017, 1, 31);
+        this.stallDataset = "C5";
+        this.stall = new CountDownLatch(1);
+        try {
+            Assert.assertEquals(quandl.getDatasetListing("TEST").rowCount(), 10);
+            load(quandl, "C3", start, end);
+            load(quandl, "C4", start, end);
+            Assert.assertEquals(prefetcher.getPendingCount(), 1);
+            final long startNanos = System.nanoTime();
+            final DataFrame<LocalDate,String> frame = quandl.getDailyData("TEST", "C5", options -> {
+                options.setStartDate(start);
+                options.setEndDate(end);
+                options.setTimeout(Duration.ofMillis(500));
+            });
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            Assert.assertEquals(frame.rowCount(), 2);
+            Assert.assertTrue(elapsedMillis < 2000L, "The wait for the prefetch should be bounded by the deadline, took " + elapsedMillis);
+            Assert.assertEquals(prefetcher.getHitCount(), 0L);
+            Assert.assertEquals(requests.stream().filter(r -> r.startsWith("C5")).count(), 2L);
+        } finally {
+            this.stall.countDown();
+        }
+    }
+
+
+    @Test()
+    public void testExpiredPrefetchIsNotServed() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(1, 16, 1);
+        prefetcher.setMaxAge(Duration.ofMillis(50));
+        final Quandl quandl = quandl(prefetcher);
+        final LocalDate start = LocalDate.of(2017, 1, 1);
+        final LocalDate end = LocalDate.of(2017, 1, 31);
+        Assert.assertEquals(quandl.getDatasetListing("TEST").rowCount(), 10);
+        load(quandl, "C3", start, end);
+        load(quandl, "C4", start, end);
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getCacheSize(), 1);
+        Thread.sleep(100L);
+        Assert.assertEquals(load(quandl, "C5", start, end).rowCount(), 2);
+        Assert.assertEquals(prefetcher.getHitCount(), 0L);
+        Assert.assertEquals(prefetcher.getWasteCount(), 1L);
+        Assert.assertEquals(requests.stream().filter(r -> r.startsWith("C5")).count(), 2L);
+    }
+
+
+    @Test()
+    public void testPrefetchIgnoresCallerCancelToken() throws Exception {
+        final QuandlPrefetcher prefetcher = new QuandlPrefetcher(1, 16, 1);
+        final Quandl quandl = quandl(prefetcher);
+        final LocalDate start = LocalDate.of(2017, 1, 1);
+        final LocalDate end = LocalDate.of(2017, 1, 31);
+        final QuandlCancelToken token = new QuandlCancelToken();
+        this.stallDataset = "C5";
+        this.stall = new CountDownLatch(1);
+        try {
+            Assert.assertEquals(quandl.getDatasetListing("TEST").rowCount(), 10);
+            load(quandl, "C3", start, end);
+            quandl.getDailyData("TEST", "C4", options -> {
+                options.setStartDate(start);
+                options.setEndDate(end);
+                options.setTimeout(Duration.ofMillis(200));
+                options.setCancelToken(token);
+            });
+            Assert.assertEquals(prefetcher.getPendingCount(), 1);
+            token.cancel();
+            Thread.sleep(300L);
+        } finally {
+            this.stall.countDown();
+        }
+        awaitIdle(prefetcher);
+        Assert.assertEquals(prefetcher.getFailureCount(), 0L, "The prefetch should not inherit the caller's token or timeout");
+        Assert.assertEquals(load(quandl, "C5", start, end).rowCount(), 2);
+        Assert.assertEquals(prefetcher.getHitCount(), 1L);
+    }
+
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.quandl.QuandlScheduler.Priority;
+
+/**
+ * A unit test for the priority dispatch performed by QuandlScheduler
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlSchedulerTests {
+
+    private QuandlScheduler scheduler(int threads) {
+        return new QuandlScheduler(new QuandlSource<>("http://localhost", "test"), threads);
+    }
+
+
+    @Test()
+    public void testInteractiveJumpsBatchBacklog() throws Exception {
+        final QuandlScheduler scheduler = scheduler(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        scheduler.submit(Priority.BATCH, () -> latch.await(5, TimeUnit.SECONDS));
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i=0; i<5; ++i) {
+            futures.add(scheduler.submit(Priority.BATCH, () -> order.add("batch")));
+        }
+        futures.add(scheduler.submit(Priority.INTERACTIVE, () -> order.add("interactive")));
+        latch.countDown();
+        for (Future<Boolean> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(order.size(), 6);
+        Assert.assertEquals(order.get(0), "interactive");
+        Assert.assertEquals(scheduler.getDispatchCount(Priority.BATCH), 6L);
+        scheduler.shutdown();
+    }
+
+
+    @Test()
+    public void testBatchIsNotStarved() throws Exception {
+        final QuandlScheduler scheduler = scheduler(1);
+        scheduler.setWeight(Priority.INTERACTIVE, 4);
+        scheduler.setWeight(Priority.BATCH, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        scheduler.submit(Priority.BATCH, () -> latch.await(5, TimeUnit.SECONDS));
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i=0; i<5; ++i) {
+            futures.add(scheduler.submit(Priority.BATCH, () -> order.add("batch")));
+        }
+        for (int i=0; i<20; ++i) {
+            futures.add(scheduler.submit(Priority.INTERACTIVE, () -> order.add("interactive")));
+        }
+        latch.countDown();
+        for (Future<Boolean> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        final int firstBatch = order.indexOf("batch");
+        Assert.assertTrue(firstBatch > 0, "Interactive should be dispatched first");
+        Assert.assertTrue(firstBatch <= 5, "Batch should be dispatched within one weight cycle, was at " + firstBatch);
+        Assert.assertTrue(order.subList(0, 15).stream().filter("batch"::equals).count() >= 2);
+        scheduler.shutdown();
+    }
+
+
+    @Test()
+    public void testClassConcurrencyLimitLeavesRoomForInteractive() throws Exception {
+        final QuandlScheduler scheduler = scheduler(3);
+        scheduler.setMaxConcurrency(Priority.BATCH, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Future<Boolean>> batch = new ArrayList<>();
+        for (int i=0; i<3; ++i) {
+            batch.add(scheduler.submit(Priority.BATCH, () -> latch.await(5, TimeUnit.SECONDS)));
+        }
+        final Future<String> interactive = scheduler.submit(Priority.INTERACTIVE, () -> "done");
+        Assert.assertEquals(interactive.get(5, TimeUnit.SECONDS), "done");
+        Assert.assertEquals(scheduler.getActiveCount(Priority.BATCH), 1);
+        Assert.assertEquals(scheduler.getQueueLength(Priority.BATCH), 2);
+        latch.countDown();
+        for (Future<Boolean> future : batch) {
+            Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        scheduler.shutdown();
+    }
+
+
+    @Test()
+    public void testDispatchRespectsSharedRateLimit() throws Exception {
+        final QuandlSource<?,?> source = new QuandlSource<>("http://localhost", "test");
+        source.setRateLimiter(new QuandlRateLimiter(20d, 1d));
+        final QuandlScheduler scheduler = new QuandlScheduler(source, 4);
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i=0; i<6; ++i) {
+            futures.add(scheduler.submit(Priority.NORMAL, () -> { source.getRateLimiter().acquire(); return true; }));
+        }
+        for (Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsedMillis >= 200, "Six permits at 20 per second should take about 250ms, took " + elapsedMillis);
+        Assert.assertTrue(elapsedMillis < 450, "Each task should consume the permit acquired by the dispatcher, took " + elapsedMillis);
+        scheduler.shutdown();
+    }
+
+
+    @Test()
+    public void testUnusedPermitIsReturned() throws Exception {
+        final QuandlSource<?,?> source = new QuandlSource<>("http://localhost", "test");
+        source.setRateLimiter(new QuandlRateLimiter(0.5d, 2d));
+        final QuandlScheduler scheduler = new QuandlScheduler(source, 1);
+        Assert.assertEquals(scheduler.submit(Priority.NORMAL, () -> "done").get(5, TimeUnit.SECONDS), "done");
+        final long expiry = System.currentTimeMillis() + 5000L;
+        while (source.getRateLimiter().getAvailablePermits() < 1.99d && System.currentTimeMillis() < expiry) {
+            Thread.sleep(5L);
+        }
+        Assert.assertTrue(source.getRateLimiter().getAvailablePermits() >= 1.99d, "The dispatcher should return the permit the task did not use");
+        scheduler.shutdown();
+    }
+
+
+    @Test()
+    public void testQueuedRequestsFailIfDispatcherIsInterrupted() throws Exception {
+        final QuandlSource<?,?> source = new QuandlSource<>("http://localhost", "test");
+        source.setRateLimiter(new QuandlRateLimiter(0.1d, 1d));
+        final QuandlScheduler scheduler = new QuandlScheduler(source, 2);
+        Assert.assertEquals(scheduler.submit(Priority.NORMAL, () -> { source.getRateLimiter().acquire(); return "first"; }).get(5, TimeUnit.SECONDS), "first");
+        final Future<String> queued = scheduler.submit(Priority.NORMAL, () -> "second");
+        final Thread dispatcher = awaitDispatcherBlockedOnPermit();
+        dispatcher.interrupt();
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected the queued request to fail");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof QuandlException, "Cause was " + ex.getCause());
+        }
+        try {
+            scheduler.submit(Priority.NORMAL, () -> "third");
+            Assert.fail("Expected the scheduler to be shutdown");
+        } catch (QuandlException ex) {
+            Assert.assertTrue(ex.getMessage().contains("shutdown"));
+        }
+    }
+
+
+    private static Thread awaitDispatcherBlockedOnPermit() throws Exception {
+        final long expiry = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < expiry) {
+            for (Map.Entry<Thread,StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                if (entry.getKey().getName().equals("QuandlScheduler")) {
+                    for (StackTraceElement element : entry.getValue()) {
+                        if (element.getClassName().equals(QuandlRateLimiter.class.getName()) && element.getMethodName().equals("acquire")) {
+                            return entry.getKey();
+                        }
+                    }
+                }
+            }
+            Thread.sleep(5L);
+        }
+        throw new AssertionError("The dispatcher never blocked on a rate permit");
+    }
+
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the lazy window paging performed by QuandlSeries, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlSeriesTests {
+
+    private static final LocalDate oldest = LocalDate.of(2017, 1, 2);
+    private static final LocalDate newest = LocalDate.of(2017, 12, 29);
+
+    private QuandlStubServer server;
+    private List<String> dataQueries = new CopyOnWriteArrayList<>();
+    private AtomicInteger metaDataCount = new AtomicInteger();
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/TEST/metadata.json", exchange -> {
+            metaDataCount.incrementAndGet();
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            final String json = "{\"dataset\":{\"id\":1,\"dataset_code\":\"TEST\",\"database_code\":\"WIKI\",\"name\":\"Test\"," +
+                "\"oldest_available_date\":\"" + oldest + "\",\"newest_available_date\":\"" + newest + "\"," +
+                "\"column_names\":[\"Date\",\"Close\"],\"frequency\":\"daily\",\"type\":\"Time Series\",\"premium\":false,\"database_id\":1}}";
+            QuandlStubServer.respond(exchange, json);
+        });
+        this.server.handle("/api/v3/datasets/WIKI/TEST.csv", exchange -> {
+            final Map<String,String> query = QuandlStubServer.query(exchange);
+            dataQueries.add(exchange.getRequestURI().getQuery());
+            final LocalDate start = LocalDate.parse(query.get("start_date"));
+            final LocalDate end = LocalDate.parse(query.get("end_date"));
+            final List<LocalDate> dates = new ArrayList<>();
+            for (LocalDate date = start; !date.isAfter(end); date = date.plusDays(1)) {
+                if (!date.isBefore(oldest) && !date.isAfter(newest) && date.getDayOfWeek().getValue() <= DayOfWeek.FRIDAY.getValue()) {
+                    dates.add(date);
+                }
+            }
+            if ("desc".equals(query.get("order"))) {
+                Collections.reverse(dates);
+            }
+            final int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+            final StringBuilder csv = new StringBuilder("Date,Close\n");
+            dates.stream().limit(limit).forEach(date -> csv.append(date).append(",").append(date.getDayOfYear()).append(".5\n"));
+            QuandlStubServer.respond(exchange, csv.toString());
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.dataQueries.clear();
+        this.metaDataCount.set(0);
+    }
+
+
+    private QuandlSeries series(int windowDays, int maxWindows) {
+        return new QuandlSeries(new QuandlSource<>(server.getBaseUrl(), "test"), "WIKI", "TEST", windowDays, maxWindows);
+    }
+
+
+    @Test()
+    public void testRangeFetchesOnlyCoveringWindows() {
+        final QuandlSeries series = series(30, 10);
+        Assert.assertEquals(series.getColumnKeys(), Collections.singletonList("Close"));
+        final DataFrame<LocalDate,String> frame = series.getRange(LocalDate.of(2017, 6, 5), LocalDate.of(2017, 6, 9));
+        Assert.assertEquals(frame.rowCount(), 5);
+        Assert.assertEquals(frame.rows().firstKey().orElse(null), LocalDate.of(2017, 6, 5));
+        Assert.assertEquals(frame.rows().lastKey().orElse(null), LocalDate.of(2017, 6, 9));
+        Assert.assertEquals(frame.data().getDouble(0, 0), LocalDate.of(2017, 6, 5).getDayOfYear() + 0.5, 0.0001);
+        Assert.assertEquals(dataQueries.size(), 1);
+        series.getRange(LocalDate.of(2017, 6, 6), LocalDate.of(2017, 6, 8));
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertEquals(series.getHitCount(), 1L);
+        Assert.assertEquals(series.getMissCount(), 1L);
+    }
+
+
+    @Test()
+    public void testRangeSpanningWindowsIsContiguous() {
+        final QuandlSeries series = series(7, 10);
+        final DataFrame<LocalDate,String> frame = series.getRange(LocalDate.of(2016, 12, 1), LocalDate.of(2017, 1, 31));
+        Assert.assertEquals(frame.rows().firstKey().orElse(null), oldest);
+        Assert.assertEquals(frame.rows().lastKey().orElse(null), LocalDate.of(2017, 1, 31));
+        Assert.assertEquals(frame.rowCount(), 22);
+        Assert.assertTrue(dataQueries.size() >= 5);
+        Assert.assertTrue(dataQueries.stream().noneMatch(q -> q.contains("start_date=2016")));
+    }
+
+
+    @Test()
+    public void testLastUsesLimitUnlessCached() {
+        final QuandlSeries series = series(30, 10);
+        final DataFrame<LocalDate,String> last = series.getLast(3);
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertTrue(dataQueries.get(0).contains("limit=3"));
+        Assert.assertTrue(dataQueries.get(0).contains("order=desc"));
+        Assert.assertEquals(last.rowCount(), 3);
+        Assert.assertEquals(last.rows().firstKey().orElse(null), LocalDate.of(2017, 12, 27));
+        Assert.assertEquals(last.rows().lastKey().orElse(null), newest);
+        series.getRange(LocalDate.of(2017, 11, 1), newest);
+        final int queryCount = dataQueries.size();
+        final DataFrame<LocalDate,String> cached = series.getLast(3);
+        Assert.assertEquals(dataQueries.size(), queryCount);
+        Assert.assertEquals(cached.rows().keyArray(), last.rows().keyArray());
+    }
+
+
+    @Test()
+    public void testWindowCacheIsBounded() {
+        final QuandlSeries series = series(30, 2);
+        final DataFrame<LocalDate,String> frame = series.getRange(oldest, newest);
+        Assert.assertEquals(frame.rowCount(), 260);
+        Assert.assertEquals(series.getWindowCount(), 2);
+        series.clear();
+        Assert.assertEquals(series.getWindowCount(), 0);
+    }
+
+
+    @Test()
+    public void testLastCountsHitsOnlyWhenServedFromCache() {
+        final QuandlSeries series = series(30, 10);
+        series.getRange(LocalDate.of(2017, 11, 1), newest);
+        final long misses = series.getMissCount();
+        Assert.assertEquals(series.getHitCount(), 0L);
+        series.getLast(100);
+        Assert.assertEquals(series.getHitCount(), 0L, "Windows found before a miss did not serve the result");
+        Assert.assertEquals(series.getMissCount(), misses + 1);
+        series.getLast(3);
+        Assert.assertTrue(series.getHitCount() > 0L);
+        Assert.assertEquals(series.getMissCount(), misses + 1);
+    }
+
+
+    @Test()
+    public void testLastFillsWindowCache() {
+        final QuandlSeries series = series(30, 20);
+        final DataFrame<LocalDate,String> last = series.getLast(40);
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertTrue(series.getWindowCount() > 0, "Windows covered by the last rows should be cached");
+        final DataFrame<LocalDate,String> cached = series.getLast(10);
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertEquals(cached.rows().keyArray(), last.tail(10).rows().keyArray());
+        Assert.assertEquals(cached.data().getDouble(9, 0), newest.getDayOfYear() + 0.5, 0.0001);
+        Assert.assertEquals(series.getRange(newest.minusDays(20), newest).rowCount(), 15);
+        Assert.assertEquals(dataQueries.size(), 1);
+        Assert.assertEquals(series.getLast(40).rows().keyArray(), last.rows().keyArray());
+        Assert.assertEquals(dataQueries.size(), 2, "The oldest window was cut off by the limit so cannot be cached");
+        final QuandlSeries full = series(30, 20);
+        Assert.assertEquals(full.getLast(1000).rowCount(), 260);
+        Assert.assertEquals(full.getRange(oldest, newest).rowCount(), 260);
+        Assert.assertEquals(full.getLast(260).rowCount(), 260);
+        Assert.assertEquals(dataQueries.size(), 3);
+    }
+
+
+    @Test()
+    public void testConcurrentCallersShareOneMetaDataLoad() throws Exception {
+        final QuandlSeries series = series(30, 10);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i=0; i<8; ++i) {
+                futures.add(executor.submit(series::getColumnKeys));
+            }
+            for (Future<List<String>> future : futures) {
+                Assert.assertEquals(future.get(), Collections.singletonList("Close"));
+            }
+            Assert.assertEquals(metaDataCount.get(), 1);
+            series.refresh();
+            Assert.assertEquals(metaDataCount.get(), 2);
+            Assert.assertEquals(series.getEndDate(), newest);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
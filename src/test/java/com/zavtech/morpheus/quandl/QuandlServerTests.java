@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the local caching proxy QuandlServer, placed in front of a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlServerTests {
+
+    private QuandlStubServer upstream;
+    private QuandlServer server;
+    private volatile long latencyMillis;
+    private List<String> upstreamQueries = new CopyOnWriteArrayList<>();
+
+
+    @BeforeMethod()
+    public void start() throws Exception {
+        this.latencyMillis = 0L;
+        this.upstreamQueries.clear();
+        this.upstream = new QuandlStubServer(8);
+        this.upstream.handle("/api/v3/datasets/WIKI/TEST.csv", exchange -> {
+            upstreamQueries.add(exchange.getRequestURI().getQuery());
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            QuandlStubServer.respond(exchange, "Date,Close\n2017-01-04,2.5\n2017-01-03,1.5\n");
+        });
+        this.upstream.handle("/api/v3/datasets/WIKI/MISSING.csv", exchange -> {
+            upstreamQueries.add(exchange.getRequestURI().getQuery());
+            QuandlStubServer.respond(exchange, 404, new byte[0]);
+        });
+        final QuandlSource<?,?> source = new QuandlSource<>(upstream.getBaseUrl(), "server-key");
+        this.server = new QuandlServer(source, new InetSocketAddress("localhost", 0), 8, 1024 * 1024, Duration.ofMinutes(1)).start();
+    }
+
+
+    @AfterMethod()
+    public void stop() {
+        this.server.stop();
+        this.upstream.stop();
+    }
+
+
+    private DataFrame<LocalDate,String> load(Quandl quandl, String dataset) {
+        return quandl.getDailyData("WIKI", dataset, options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 1, 31));
+        });
+    }
+
+
+    @Test()
+    public void testClientsShareCacheAndServerKey() {
+        final DataFrame<LocalDate,String> first = load(new Quandl(server.getBaseUrl(), "client-1"), "TEST");
+        final DataFrame<LocalDate,String> second = load(new Quandl(server.getBaseUrl(), "client-2"), "TEST");
+        Assert.assertEquals(first.rowCount(), 2);
+        Assert.assertEquals(second.data().getDouble(LocalDate.of(2017, 1, 4), "Close"), 2.5d, 0d);
+        Assert.assertEquals(upstreamQueries.size(), 1);
+        Assert.assertTrue(upstreamQueries.get(0).contains("api_key=server-key"));
+        Assert.assertFalse(upstreamQueries.get(0).contains("client"));
+        Assert.assertEquals(server.getRequestCount(), 2L);
+        Assert.assertEquals(server.getHitCount(), 1L);
+        Assert.assertEquals(server.getUpstreamCount(), 1L);
+    }
+
+
+    @Test()
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        this.latencyMillis = 300L;
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<Future<DataFrame<LocalDate,String>>> futures = new ArrayList<>();
+            for (int i=0; i<8; ++i) {
+                final Quandl quandl = new Quandl(server.getBaseUrl(), "client-" + i);
+                futures.add(executor.submit(() -> {
+                    latch.await();
+                    return load(quandl, "TEST");
+                }));
+            }
+            latch.countDown();
+            for (Future<DataFrame<LocalDate,String>> future : futures) {
+                Assert.assertEquals(future.get().rowCount(), 2);
+            }
+            Assert.assertEquals(upstreamQueries.size(), 1);
+            Assert.assertEquals(server.getUpstreamCount(), 1L);
+            Assert.assertEquals(server.getCoalescedCount() + server.getHitCount(), 7L);
+            Assert.assertTrue(server.getCoalescedCount() > 0L);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testDefaultServerBindsLoopbackOnly() {
+        final QuandlServer local = new Quandl(upstream.getBaseUrl(), "server-key").newServer(0);
+        Assert.assertTrue(local.getAddress().getAddress().isLoopbackAddress());
+        try {
+            local.start();
+            Assert.assertTrue(local.getAddress().getAddress().isLoopbackAddress());
+            Assert.assertTrue(local.getAddress().getPort() > 0);
+            Assert.assertEquals(load(new Quandl(local.getBaseUrl(), "client"), "TEST").rowCount(), 2);
+        } finally {
+            local.stop();
+        }
+        final QuandlServer wide = new QuandlServer(new QuandlSource<>(upstream.getBaseUrl(), "server-key"), new InetSocketAddress(0), 1, 1024, Duration.ofMinutes(1));
+        Assert.assertTrue(wide.getAddress().getAddress().isAnyLocalAddress());
+    }
+
+
+    @Test()
+    public void testClientCacheRevalidatesAgainstServer() {
+        final QuandlHttpCache cache = new QuandlHttpCache(1024 * 1024);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "client").withHttpCache(cache);
+        load(quandl, "TEST");
+        final DataFrame<LocalDate,String> frame = load(quandl, "TEST");
+        Assert.assertEquals(frame.rowCount(), 2);
+        Assert.assertEquals(cache.getHitCount(), 1L);
+        Assert.assertEquals(upstreamQueries.size(), 1);
+    }
+
+
+    @Test()
+    public void testUpstreamErrorStatusIsPassedThrough() {
+        try {
+            load(new Quandl(server.getBaseUrl(), "client"), "MISSING");
+            Assert.fail("Expected upstream 404 to fail the client request");
+        } catch (QuandlException ex) {
+            Assert.assertTrue(ex.getCause() instanceof QuandlHttpException, "Cause was " + ex.getCause());
+            Assert.assertEquals(((QuandlHttpException)ex.getCause()).getStatus(), 404);
+        }
+        Assert.assertEquals(server.getCacheSize(), 0);
+    }
+
+
+
+    @Test()
+    public void testStalledUpstreamIsBoundedByTimeout() throws Exception {
+        this.latencyMillis = 5000L;
+        this.server.setUpstreamTimeout(Duration.ofMillis(300));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<DataFrame<LocalDate,String>>> futures = new ArrayList<>();
+            for (int i=0; i<4; ++i) {
+                final Quandl quandl = new Quandl(server.getBaseUrl(), "client-" + i);
+                futures.add(executor.submit(() -> load(quandl, "TEST")));
+            }
+            for (Future<DataFrame<LocalDate,String>> future : futures) {
+                try {
+                    future.get(4, TimeUnit.SECONDS);
+                    Assert.fail("Expected the stalled upstream request to time out");
+                } catch (ExecutionException ex) {
+                    Assert.assertTrue(ex.getCause() instanceof QuandlException, "Cause was " + ex.getCause());
+                    Assert.assertTrue(ex.getCause().getCause() instanceof QuandlHttpException, "Cause was " + ex.getCause().getCause());
+                    Assert.assertEquals(((QuandlHttpException)ex.getCause().getCause()).getStatus(), 504);
+                }
+            }
+            Assert.assertEquals(server.getCacheSize(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testUpstreamErrorIsPublishedToCoalescedCallers() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final QuandlSource<?,?> source = new QuandlSource<Object,Object>(upstream.getBaseUrl(), "server-key") {
+            @Override
+            QuandlResponse forward(String path, String query, Duration timeout) throws QuandlException {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new AssertionError("Simulated upstream error");
+            }
+        };
+        final QuandlServer failing = new QuandlServer(source, new InetSocketAddress("localhost", 0), 4, 1024 * 1024, Duration.ofMinutes(1)).start();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<DataFrame<LocalDate,String>> first = executor.submit(() -> load(new Quandl(failing.getBaseUrl(), "client-1"), "TEST"));
+            Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+            final Future<DataFrame<LocalDate,String>> second = executor.submit(() -> load(new Quandl(failing.getBaseUrl(), "client-2"), "TEST"));
+            final long expiry = System.currentTimeMillis() + 5000L;
+            while (failing.getCoalescedCount() == 0L && System.currentTimeMillis() < expiry) {
+                Thread.sleep(5L);
+            }
+            Assert.assertEquals(failing.getCoalescedCount(), 1L);
+            release.countDown();
+            for (Future<DataFrame<LocalDate,String>> future : Arrays.asList(first, second)) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    Assert.fail("Expected the upstream error to fail the client request");
+                } catch (ExecutionException ex) {
+                    Assert.assertTrue(ex.getCause() instanceof QuandlException, "Cause was " + ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            failing.stop();
+        }
+    }
+
+}
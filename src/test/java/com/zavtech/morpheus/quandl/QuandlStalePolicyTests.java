@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.zavtech.morpheus.frame.DataFrame;
+
+/**
+ * A unit test for the circuit breakers and stale result serving of QuandlStalePolicy, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlStalePolicyTests {
+
+    private QuandlStubServer server;
+    private volatile boolean failing;
+    private volatile CountDownLatch stall;
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/", exchange -> {
+            try {
+                final CountDownLatch stall = this.stall;
+                if (stall != null) {
+                    stall.await(30, TimeUnit.SECONDS);
+                }
+                if (failing) {
+                    QuandlStubServer.respond(exchange, 500, new byte[0]);
+                } else {
+                    QuandlStubServer.respond(exchange, 200, QuandlTestData.csv(QuandlTestData.series(LocalDate.of(2017, 1, 31), 20, 1.5d, 0.1d)));
+                }
+            } catch (InterruptedException ex) {
+                exchange.close();
+            }
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.release();
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.release();
+        this.failing = false;
+        this.stall = null;
+        this.server.reset();
+    }
+
+
+    /**
+     * Releases any requests stalled by a prior test, so they do not hold server threads
+     */
+    private void release() {
+        final CountDownLatch stall = this.stall;
+        if (stall != null) {
+            stall.countDown();
+        }
+    }
+
+
+    private static DataFrame<LocalDate,String> load(Quandl quandl, String dataset) {
+        return quandl.getDailyData("WIKI", dataset, options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 1, 31));
+        });
+    }
+
+
+    private static DataFrame<LocalDate,String> load(Quandl quandl, String dataset, Duration timeout, QuandlCancelToken token) {
+        return quandl.getDailyData("WIKI", dataset, options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 1, 31));
+            options.setTimeout(timeout);
+            options.setCancelToken(token);
+        });
+    }
+
+
+    private static void awaitState(QuandlCircuitBreaker breaker, QuandlCircuitBreaker.State state) throws Exception {
+        final long expiry = System.currentTimeMillis() + 5000L;
+        while (breaker.getState() != state && System.currentTimeMillis() < expiry) {
+            Thread.sleep(5L);
+        }
+        Assert.assertEquals(breaker.getState(), state);
+    }
+
+
+    private void awaitRequests(int count) throws Exception {
+        final long expiry = System.currentTimeMillis() + 5000L;
+        while (server.getRequestCount() < count && System.currentTimeMillis() < expiry) {
+            Thread.sleep(5L);
+        }
+        Assert.assertEquals(server.getRequestCount(), count);
+    }
+
+
+    @Test()
+    public void testBreakerOpensAndClosesWhileServingStale() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final QuandlStalePolicy policy = new QuandlStalePolicy(16, 2, Duration.ofSeconds(30), clock::get);
+        final QuandlCircuitBreaker breaker = policy.getCircuitBreaker(QuandlOptions.Operation.DATA);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withStalePolicy(policy);
+        final DataFrame<LocalDate,String> fresh = load(quandl, "TEST");
+        Assert.assertFalse(policy.isStale(fresh));
+        Assert.assertEquals(breaker.getState(), QuandlCircuitBreaker.State.CLOSED);
+        this.failing = true;
+        for (int i=0; i<2; ++i) {
+            final DataFrame<LocalDate,String> stale = load(quandl, "TEST");
+            Assert.assertTrue(policy.isStale(stale));
+            Assert.assertEquals(stale.rowCount(), fresh.rowCount());
+        }
+        Assert.assertEquals(breaker.getState(), QuandlCircuitBreaker.State.OPEN);
+        Assert.assertEquals(server.getRequestCount(), 3);
+        Assert.assertTrue(policy.isStale(load(quandl, "TEST")));
+        Assert.assertEquals(server.getRequestCount(), 3, "No requests should be issued while the circuit is open");
+        Assert.assertEquals(breaker.getState(), QuandlCircuitBreaker.State.OPEN);
+        this.failing = false;
+        clock.addAndGet(30000L);
+        Assert.assertTrue(policy.isStale(load(quandl, "TEST")), "The trial request should run in the background");
+        awaitState(breaker, QuandlCircuitBreaker.State.CLOSED);
+        Assert.assertFalse(policy.isStale(load(quandl, "TEST")));
+        Assert.assertEquals(policy.getStaleCount(), 4L);
+    }
+
+
+    @Test()
+    public void testFailureWithoutLastGoodIsThrown() throws Exception {
+        final QuandlStalePolicy policy = new QuandlStalePolicy(16, 2, Duration.ofSeconds(30));
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withStalePolicy(policy);
+        this.failing = true;
+        for (int i=0; i<3; ++i) {
+            try {
+                load(quandl, "NONE");
+                Assert.fail("Expected request to fail without a last good result");
+            } catch (QuandlException ex) {
+                Assert.assertEquals(ex.getMessage().contains("Circuit is open"), i == 2, ex.getMessage());
+            }
+        }
+        Assert.assertEquals(server.getRequestCount(), 2);
+        Assert.assertEquals(policy.getCircuitBreaker(QuandlOptions.Operation.DATA).getState(), QuandlCircuitBreaker.State.OPEN);
+    }
+
+
+    @Test()
+    public void testReadersGetStaleWhileLoadIsInFlight() throws Exception {
+        final QuandlStalePolicy policy = new QuandlStalePolicy(16, 2, Duration.ofSeconds(30));
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withStalePolicy(policy);
+        load(quandl, "TEST");
+        this.server.reset();
+        this.stall = new CountDownLatch(1);
+        final CompletableFuture<DataFrame<LocalDate,String>> pending = CompletableFuture.supplyAsync(() -> load(quandl, "TEST"));
+        final long expiry = System.currentTimeMillis() + 5000L;
+        while (server.getRequestCount() == 0 && System.currentTimeMillis() < expiry) {
+            Thread.sleep(5L);
+        }
+        Assert.assertEquals(server.getRequestCount(), 1);
+        for (int i=0; i<5; ++i) {
+            Assert.assertTrue(policy.isStale(load(quandl, "TEST")), "Readers should not pile up behind an in flight load");
+        }
+        Assert.assertEquals(server.getRequestCount(), 1);
+        this.stall.countDown();
+        Assert.assertFalse(policy.isStale(pending.get(5, TimeUnit.SECONDS)));
+        Assert.assertFalse(policy.isStale(load(quandl, "TEST")));
+        Assert.assertEquals(server.getRequestCount(), 2);
+    }
+
+
+    @Test()
+    public void testDeadlineFailuresAreNotRecordedOrServedStale() throws Exception {
+        final QuandlStalePolicy policy = new QuandlStalePolicy(16, 2, Duration.ofSeconds(30));
+        final QuandlCircuitBreaker breaker = policy.getCircuitBreaker(QuandlOptions.Operation.DATA);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withStalePolicy(policy);
+        load(quandl, "TEST");
+        this.server.reset();
+        this.stall = new CountDownLatch(1);
+        for (int i=0; i<3; ++i) {
+            try {
+                load(quandl, "TEST", Duration.ofMillis(250), null);
+                Assert.fail("Expected the caller's deadline to expire");
+            } catch (QuandlTimeoutException ex) {
+                Assert.assertFalse(ex.isCancelled());
+            }
+            awaitRequests(i + 1);
+        }
+        final QuandlCancelToken token = new QuandlCancelToken();
+        token.cancel();
+        try {
+            load(quandl, "TEST", null, token);
+            Assert.fail("Expected the cancelled request to fail");
+        } catch (QuandlTimeoutException ex) {
+            Assert.assertTrue(ex.isCancelled());
+        }
+        Assert.assertEquals(breaker.getState(), QuandlCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(policy.getStaleCount(), 0L);
+        this.stall.countDown();
+        Assert.assertFalse(policy.isStale(load(quandl, "TEST")));
+    }
+
+
+    @Test()
+    public void testRefreshIsFreeOfCallerDeadline() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final QuandlStalePolicy policy = new QuandlStalePolicy(16, 2, Duration.ofSeconds(30), clock::get);
+        final QuandlCircuitBreaker breaker = policy.getCircuitBreaker(QuandlOptions.Operation.DATA);
+        final Quandl quandl = new Quandl(server.getBaseUrl(), "test").withStalePolicy(policy);
+        load(quandl, "TEST");
+        this.failing = true;
+        load(quandl, "TEST");
+        load(quandl, "TEST");
+        Assert.assertEquals(breaker.getState(), QuandlCircuitBreaker.State.OPEN);
+        clock.addAndGet(30000L);
+        this.failing = false;
+        this.server.reset();
+        final QuandlCancelToken token = new QuandlCancelToken();
+        token.cancel();
+        final DataFrame<LocalDate,String> stale = load(quandl, "TEST", Duration.ofMillis(500), token);
+        Assert.assertTrue(policy.isStale(stale));
+        awaitState(breaker, QuandlCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(server.getRequestCount(), 1);
+    }
+
+}
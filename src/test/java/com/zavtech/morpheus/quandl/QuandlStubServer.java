@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Quandl API bound to an ephemeral loopback port, which records request concurrency
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlStubServer {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private AtomicInteger requestCount = new AtomicInteger();
+    private AtomicInteger activeCount = new AtomicInteger();
+    private AtomicInteger maxActiveCount = new AtomicInteger();
+
+    /**
+     * Constructor for a started server that handles requests on a cached thread pool
+     */
+    QuandlStubServer() {
+        this(0);
+    }
+
+    /**
+     * Constructor for a started server
+     * @param threads   the number of handler threads, 0 for a cached thread pool
+     */
+    QuandlStubServer(int threads) {
+        try {
+            this.executor = threads > 0 ? Executors.newFixedThreadPool(threads) : Executors.newCachedThreadPool();
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+            this.server.setExecutor(executor);
+            this.server.start();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to start stub server", ex);
+        }
+    }
+
+    /**
+     * Registers a handler for a path prefix, which is wrapped to record request counts and concurrency
+     * @param path      the path prefix
+     * @param handler   the handler for requests under the path
+     * @return          this server
+     */
+    QuandlStubServer handle(String path, HttpHandler handler) {
+        this.server.createContext(path, exchange -> {
+            this.requestCount.incrementAndGet();
+            this.maxActiveCount.accumulateAndGet(activeCount.incrementAndGet(), Math::max);
+            try {
+                handler.handle(exchange);
+            } finally {
+                this.activeCount.decrementAndGet();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Returns the base url for the Quandl API on this server
+     * @return  the base url
+     */
+    String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the number of requests received since the last reset
+     * @return  the request count
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the max number of requests that were being handled at the same time since the last reset
+     * @return  the max concurrent request count
+     */
+    int getMaxConcurrency() {
+        return maxActiveCount.get();
+    }
+
+    /**
+     * Resets the request count and max concurrency
+     */
+    void reset() {
+        this.requestCount.set(0);
+        this.maxActiveCount.set(0);
+    }
+
+    /**
+     * Stops this server and its handler threads
+     */
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Writes a 200 response with the text body specified
+     * @param exchange  the exchange to respond to
+     * @param body      the response body
+     */
+    static void respond(HttpExchange exchange, String body) throws IOException {
+        respond(exchange, 200, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a response with the status and body specified
+     * @param exchange  the exchange to respond to
+     * @param status    the HTTP status code
+     * @param body      the response body, empty for no body
+     */
+    static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Returns the query parameters of the request, which are empty if there is no query
+     * @param exchange  the exchange for the request
+     * @return          the map of query parameters
+     */
+    static Map<String,String> query(HttpExchange exchange) {
+        final Map<String,String> result = new HashMap<>();
+        final String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String token : query.split("&")) {
+                final int index = token.indexOf('=');
+                if (index > 0) {
+                    result.put(token.substring(0, index), token.substring(index + 1));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the code of the dataset a request is for, which is the last path segment without its extension
+     * @param exchange  the exchange for the request
+     * @return          the dataset code
+     */
+    static String dataset(HttpExchange exchange) {
+        final String path = exchange.getRequestURI().getPath();
+        return path.substring(path.lastIndexOf('/') + 1, path.lastIndexOf('.'));
+    }
+
+    /**
+     * Returns a zip archive of a dataset code listing, the way Quandl serves codes.csv
+     * @param database  the database code
+     * @param listing   the map of dataset code to description
+     * @return          the zip archive bytes
+     */
+    static byte[] zip(String database, Map<String,String> listing) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bytes)) {
+            zos.putNextEntry(new ZipEntry(database + "-datasets-codes.csv"));
+            for (Map.Entry<String,String> entry : listing.entrySet()) {
+                final String description = "\"" + entry.getValue().replace("\"", "\"\"") + "\"";
+                zos.write((entry.getKey() + "," + description + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            zos.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+}
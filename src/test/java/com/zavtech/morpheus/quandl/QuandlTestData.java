@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Random;
+
+import com.zavtech.morpheus.array.Array;
+import com.zavtech.morpheus.frame.DataFrame;
+import com.zavtech.morpheus.index.Index;
+
+/**
+ * Generators for the price frames and CSV bodies used across the Quandl unit tests
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+final class QuandlTestData {
+
+    /**
+     * Private constructor
+     */
+    private QuandlTestData() {
+        super();
+    }
+
+    /**
+     * Returns a frame of consecutive daily prices in descending date order, the way Quandl returns them
+     * @param end       the date of the first row
+     * @param rowCount  the number of rows
+     * @param close     the close price in the first row
+     * @param step      the change in close price for each row
+     * @return          the frame with Close, and Volume of 1000 plus the row ordinal
+     */
+    static DataFrame<LocalDate,String> series(LocalDate end, int rowCount, double close, double step) {
+        final Index<LocalDate> rows = Index.of(LocalDate.class, Math.max(rowCount, 1));
+        final double[] closes = new double[rowCount];
+        final double[] volumes = new double[rowCount];
+        for (int i=0; i<rowCount; ++i) {
+            rows.add(end.minusDays(i));
+            closes[i] = close + i * step;
+            volumes[i] = 1000d + i;
+        }
+        return DataFrame.of(rows, String.class, columns -> {
+            columns.add("Close", Array.of(closes));
+            columns.add("Volume", Array.of(volumes));
+        });
+    }
+
+    /**
+     * Returns a frame of weekday prices with occasional holidays in descending date order, the way Quandl returns them
+     * @param rowCount  the number of rows
+     * @param seed      the seed for the random prices, which does not affect the dates
+     * @return          the frame with Close, Volume and Split Ratio, with one missing Close half way
+     */
+    static DataFrame<LocalDate,String> prices(int rowCount, long seed) {
+        final Random calendar = new Random(7);
+        final LocalDate[] dates = new LocalDate[rowCount];
+        LocalDate date = LocalDate.of(1990, 1, 1);
+        for (int i=0; i<rowCount; ++i) {
+            while (date.getDayOfWeek() == DayOfWeek.SATURDAY || date.getDayOfWeek() == DayOfWeek.SUNDAY || calendar.nextInt(50) == 0) {
+                date = date.plusDays(1);
+            }
+            dates[rowCount - 1 - i] = date;
+            date = date.plusDays(1);
+        }
+        final Random random = new Random(seed);
+        final Index<LocalDate> rows = Index.of(LocalDate.class, Math.max(rowCount, 1));
+        final double[] close = new double[rowCount];
+        final double[] volume = new double[rowCount];
+        final double[] ratio = new double[rowCount];
+        double price = 50d;
+        for (int i=rowCount-1; i>=0; --i) {
+            price = Math.max(1d, price + (random.nextInt(21) - 10) * 0.05);
+            close[i] = Math.round(price * 100d) / 100d;
+            volume[i] = 1000d * (1000 + random.nextInt(500));
+            ratio[i] = random.nextInt(100) == 0 ? 0.5d : 1d;
+        }
+        if (rowCount > 0) {
+            close[rowCount / 2] = Double.NaN;
+        }
+        for (LocalDate key : dates) rows.add(key);
+        return DataFrame.of(rows, String.class, columns -> {
+            columns.add("Close", Array.of(close));
+            columns.add("Volume", Array.of(volume));
+            columns.add("Split Ratio", Array.of(ratio));
+        });
+    }
+
+    /**
+     * Returns a frame as a Quandl style CSV body, with a Date column followed by the frame columns in row order
+     * Numeric columns whose values are all whole numbers are written as integers, missing values as empty fields,
+     * and column names containing spaces are quoted.
+     * @param frame     the frame to write
+     * @param newLine   the line separator
+     * @return          the CSV body
+     */
+    static byte[] csv(DataFrame<LocalDate,String> frame, String newLine) {
+        final boolean[] integral = new boolean[frame.colCount()];
+        final StringBuilder csv = new StringBuilder("Date");
+        for (int j=0; j<frame.colCount(); ++j) {
+            final String name = frame.cols().key(j);
+            csv.append(",").append(name.contains(" ") ? "\"" + name + "\"" : name);
+            integral[j] = Number.class.isAssignableFrom(frame.cols().type(name));
+            for (int i=0; i<frame.rowCount() && integral[j]; ++i) {
+                final double value = frame.data().getDouble(i, j);
+                integral[j] = Double.isNaN(value) || value == Math.rint(value);
+            }
+        }
+        csv.append(newLine);
+        for (int i=0; i<frame.rowCount(); ++i) {
+            csv.append(frame.rows().key(i));
+            for (int j=0; j<frame.colCount(); ++j) {
+                final Object value = frame.data().getValue(i, j);
+                csv.append(",");
+                if (value instanceof Number && Double.isNaN(((Number)value).doubleValue())) {
+                    continue;
+                } else if (value != null) {
+                    csv.append(integral[j] ? String.valueOf(((Number)value).longValue()) : value);
+                }
+            }
+            csv.append(newLine);
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a frame as a Quandl style CSV body with newline separated rows
+     * @param frame the frame to write
+     * @return      the CSV body
+     */
+    static byte[] csv(DataFrame<LocalDate,String> frame) {
+        return csv(frame, "\n");
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * A unit test for request deadlines and cancellation, against a local stand-in for Quandl that stalls
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlTimeoutTests {
+
+    private QuandlStubServer server;
+    private AtomicInteger pageCount = new AtomicInteger();
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/STALL.csv", exchange -> {
+            try {
+                Thread.sleep(5000L);
+                exchange.sendResponseHeaders(200, -1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        this.server.handle("/api/v3/datasets/WIKI/TRICKLE.csv", exchange -> {
+            try {
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write("Date,Close\n".getBytes(StandardCharsets.UTF_8));
+                    for (int i=0; i<100; ++i) {
+                        os.write((LocalDate.of(2017, 1, 1).plusDays(i) + ",1.0\n").getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                        Thread.sleep(50L);
+                    }
+                }
+            } catch (Exception ex) {
+                exchange.close();
+            }
+        });
+        this.server.handle("/api/v3/databases.csv", exchange -> {
+            try {
+                pageCount.incrementAndGet();
+                Thread.sleep(250L);
+                QuandlStubServer.respond(exchange, "id,name,database_code,datasets_count\n1,Test,TEST,10\n");
+            } catch (Exception ex) {
+                exchange.close();
+            }
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    private Quandl quandl() {
+        return new Quandl(server.getBaseUrl(), "test");
+    }
+
+
+    private static void load(Quandl quandl, String dataset, Duration timeout, QuandlCancelToken token) {
+        quandl.getDailyData("WIKI", dataset, options -> {
+            options.setStartDate(LocalDate.of(2017, 1, 1));
+            options.setEndDate(LocalDate.of(2017, 12, 31));
+            options.setTimeout(timeout);
+            options.setCancelToken(token);
+        });
+    }
+
+
+    @Test()
+    public void testStalledConnectionTimesOut() {
+        final long start = System.nanoTime();
+        try {
+            load(quandl(), "STALL", Duration.ofMillis(300), null);
+            Assert.fail("Expected request to time out");
+        } catch (QuandlTimeoutException ex) {
+            Assert.assertFalse(ex.isCancelled());
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsed < 2000L, "Timeout took " + elapsed + " millis");
+    }
+
+
+    @Test()
+    public void testSlowDownloadTimesOutAcrossReads() {
+        final long start = System.nanoTime();
+        try {
+            load(quandl(), "TRICKLE", Duration.ofMillis(500), null);
+            Assert.fail("Expected request to time out");
+        } catch (QuandlTimeoutException ex) {
+            Assert.assertFalse(ex.isCancelled());
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsed < 2500L, "Timeout took " + elapsed + " millis");
+    }
+
+
+    @Test()
+    public void testCancelTokenAbortsRequestInFlight() throws Exception {
+        final QuandlCancelToken token = new QuandlCancelToken();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                Thread.sleep(200L);
+                token.cancel();
+                return null;
+            });
+            final long start = System.nanoTime();
+            try {
+                load(quandl(), "STALL", null, token);
+                Assert.fail("Expected request to be cancelled");
+            } catch (QuandlTimeoutException ex) {
+                Assert.assertTrue(ex.isCancelled());
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue(elapsed < 2000L, "Cancel took " + elapsed + " millis");
+            try {
+                load(quandl(), "STALL", null, token);
+                Assert.fail("Expected request with cancelled token to fail immediately");
+            } catch (QuandlTimeoutException ex) {
+                Assert.assertTrue(ex.isCancelled());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test()
+    public void testDeadlineSpansAllPages() {
+        pageCount.set(0);
+        final Quandl quandl = quandl().withTimeout(Duration.ofMillis(1500));
+        try {
+            quandl.getDatabaseListing();
+            Assert.fail("Expected paged listing to time out");
+        } catch (QuandlTimeoutException ex) {
+            Assert.assertFalse(ex.isCancelled());
+        }
+        Assert.assertTrue(pageCount.get() >= 2 && pageCount.get() <= 7, "Pages requested: " + pageCount.get());
+    }
+
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void testTimeoutMustBePositive() {
+        new QuandlOptions<>().setTimeout(Duration.ZERO);
+    }
+
+}
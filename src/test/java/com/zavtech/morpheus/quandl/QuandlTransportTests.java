@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2014-2017 Xavier Witdouck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zavtech.morpheus.quandl;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * A unit test for the rate limiting and request hedging performed by QuandlTransport, against a local stand-in for Quandl
+ *
+ * @author Xavier Witdouck
+ *
+ * <p><strong>This is open source software released under the <a href="http://www.apache.org/licenses/LICENSE-2.0">Apache 2.0 License</a></strong></p>
+ */
+public class QuandlTransportTests {
+
+    private QuandlStubServer server;
+    private volatile long stallMillis;
+    private AtomicInteger stallCount = new AtomicInteger();
+    private Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+
+    @BeforeClass()
+    public void start() throws Exception {
+        this.server = new QuandlStubServer();
+        this.server.handle("/api/v3/datasets/WIKI/FAST.csv", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            QuandlStubServer.respond(exchange, "Date,Close\n2017-01-03,1.5\n");
+        });
+        this.server.handle("/api/v3/datasets/WIKI/SLOW.csv", exchange -> {
+            try {
+                if (stallCount.getAndDecrement() > 0) {
+                    Thread.sleep(stallMillis);
+                }
+                QuandlStubServer.respond(exchange, "Date,Close\n2017-01-03,1.5\n");
+            } catch (InterruptedException ex) {
+                exchange.close();
+            }
+        });
+        this.server.handle("/api/v3/datasets/WIKI/MISSING.csv", exchange -> {
+            QuandlStubServer.respond(exchange, 404, new byte[0]);
+        });
+    }
+
+
+    @AfterClass()
+    public void stop() {
+        this.server.stop();
+    }
+
+
+    @BeforeMethod()
+    public void reset() {
+        this.stallMillis = 0L;
+        this.stallCount.set(0);
+        this.clientPorts.clear();
+        this.server.reset();
+    }
+
+
+    private String url(String dataset) {
+        return server.getBaseUrl() + "/api/v3/datasets/WIKI/" + dataset + ".csv?api_key=test";
+    }
+
+
+    private QuandlTransport transport(QuandlHedgePolicy policy, QuandlRateLimiter limiter) {
+        final QuandlTransport transport = new QuandlTransport();
+        transport.setHedgePolicy(policy);
+        transport.setRateLimiter(limiter);
+        for (int i=0; i<20; ++i) {
+            transport.get(url("FAST"), true);
+        }
+        return transport;
+    }
+
+
+    @Test()
+    public void testTokenBucketRefillsAtConfiguredRate() {
+        final QuandlRateLimiter limiter = new QuandlRateLimiter(20d, 2d);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire(), "The burst should be exhausted");
+        Assert.assertFalse(limiter.tryAcquire(10L, TimeUnit.MILLISECONDS), "A permit needs ~50ms to refill");
+        final long start = System.nanoTime();
+        for (int i=0; i<5; ++i) {
+            limiter.acquire();
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsedMillis >= 200L, "Five permits at 20 per second should take ~250ms, took " + elapsedMillis);
+        Assert.assertTrue(elapsedMillis < 1000L, "Five permits at 20 per second should take ~250ms, took " + elapsedMillis);
+        Assert.assertTrue(limiter.getAvailablePermits() < 1d);
+    }
+
+
+    @Test()
+    public void testHedgeIsIssuedAfterDelay() {
+        final QuandlHedgePolicy policy = new QuandlHedgePolicy(0.5d, 1d, 50L, 20);
+        final QuandlTransport transport = transport(policy, null);
+        Assert.assertEquals(policy.getDelayMillis(), 50L);
+        Assert.assertEquals(policy.getHedgeCount(), 0L);
+        this.stallMillis = 2000L;
+        this.stallCount.set(1);
+        final long start = System.nanoTime();
+        transport.get(url("SLOW"), true);
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsedMillis >= 50L, "The hedge should wait for the delay, took " + elapsedMillis);
+        Assert.assertTrue(elapsedMillis < 1000L, "The hedge should respond before the stalled request, took " + elapsedMillis);
+        Assert.assertEquals(policy.getHedgeCount(), 1L);
+        Assert.assertEquals(policy.getHedgeWinCount(), 1L);
+        transport.get(url("FAST"), false);
+        Assert.assertEquals(policy.getHedgeCount(), 1L, "Requests that are not hedgeable are never hedged");
+    }
+
+
+    @Test()
+    public void testHedgesAreCappedByBudget() {
+        final QuandlHedgePolicy policy = new QuandlHedgePolicy(0.5d, 0.1d, 20L, 20);
+        final QuandlTransport transport = transport(policy, null);
+        this.stallMillis = 60L;
+        this.stallCount.set(Integer.MAX_VALUE);
+        for (int i=0; i<30; ++i) {
+            transport.get(url("SLOW"), true);
+        }
+        Assert.assertTrue(policy.getHedgeCount() > 0L, "Some slow requests should be hedged");
+        Assert.assertTrue(policy.getHedgeCount() <= 5L, "Hedges should not exceed 10% of 50 requests, was " + policy.getHedgeCount());
+    }
+
+
+    @Test()
+    public void testHedgeIsNotIssuedWithoutRateBudget() {
+        final QuandlHedgePolicy policy = new QuandlHedgePolicy(0.5d, 1d, 20L, 20);
+        final QuandlTransport transport = transport(policy, new QuandlRateLimiter(0.5d, 21d));
+        this.stallMillis = 100L;
+        this.stallCount.set(1);
+        transport.get(url("SLOW"), true);
+        Assert.assertEquals(policy.getHedgeCount(), 0L, "The rate limiter had no permit to spare for a hedge");
+    }
+
+
+    @Test()
+    public void testLatencyIsOnlyRecordedForSuccessfulPrimaryAttempts() {
+        final QuandlHedgePolicy policy = new QuandlHedgePolicy(0.5d, 1d, 5L, 20);
+        final QuandlTransport transport = new QuandlTransport();
+        transport.setHedgePolicy(policy);
+        for (int i=0; i<20; ++i) {
+            try {
+                transport.get(url("MISSING"), true);
+                Assert.fail("Expected request to fail");
+            } catch (QuandlHttpException ex) {
+                Assert.assertTrue(ex.getMessage().contains("404"));
+            }
+        }
+        Assert.assertEquals(policy.getDelayMillis(), -1L, "Failed requests should not contribute latency samples");
+        final QuandlHedgePolicy hedged = new QuandlHedgePolicy(0.5d, 1d, 50L, 20);
+        final QuandlTransport hedging = transport(hedged, null);
+        final long delayMillis = hedged.getDelayMillis();
+        this.stallMillis = 2000L;
+        for (int i=0; i<16; ++i) {
+            this.stallCount.set(1);
+            hedging.get(url("SLOW"), true);
+        }
+        Assert.assertEquals(hedged.getHedgeWinCount(), 16L);
+        Assert.assertEquals(hedged.getDelayMillis(), delayMillis, "Hedge wins should not contribute latency samples");
+    }
+
+
+    @Test()
+    public void testConnectionsAreReused() {
+        final QuandlTransport transport = new QuandlTransport();
+        for (int i=0; i<10; ++i) {
+            Assert.assertEquals(transport.get(url("FAST"), false).getStatus(), 200);
+        }
+        Assert.assertEquals(server.getRequestCount(), 10);
+        Assert.assertEquals(clientPorts.size(), 1, "Sequential requests should reuse one keep-alive connection");
+    }
+
+}